@@ -0,0 +1,128 @@
+package com.example.passcast;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What this device has received, by content hash, and where it was saved. Lets a
+ * receiver tell a sender it already has a file instead of receiving another copy.
+ * Entries are checked against MediaStore when looked up, and pruned in bulk, so files
+ * the user deleted are received again. Blocks; use it off the main thread.
+ */
+final class ContentIndex extends SQLiteOpenHelper {
+
+    private static final String TAG = "ContentIndex";
+    private static final String NAME = "content_index.db";
+    private static final int VERSION = 1;
+    private static final String TABLE = "received";
+
+    private final ContentResolver resolver;
+
+    ContentIndex(Context context) {
+        super(context.getApplicationContext(), NAME, null, VERSION);
+        this.resolver = context.getContentResolver();
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // Keyed by the hash itself, so a lookup is one B-tree probe however many entries there are
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "hash TEXT PRIMARY KEY NOT NULL, "
+                + "uri TEXT NOT NULL, "
+                + "size INTEGER NOT NULL, "
+                + "received_at INTEGER NOT NULL) WITHOUT ROWID");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /** Notes that content with {@code hash} was published at {@code uri}. */
+    void put(byte[] hash, Uri uri, long size) {
+        ContentValues values = new ContentValues();
+        values.put("hash", ContentHash.hex(hash));
+        values.put("uri", uri.toString());
+        values.put("size", size);
+        values.put("received_at", System.currentTimeMillis());
+        try {
+            getWritableDatabase().insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not index " + uri, e);
+        }
+    }
+
+    /**
+     * The saved copy of content with this hash, or null. A copy that was deleted, or
+     * changed size since, is dropped from the index.
+     */
+    Uri find(byte[] hash) {
+        String key = ContentHash.hex(hash);
+        Uri saved;
+        long size;
+        try (Cursor c = getReadableDatabase().query(TABLE, new String[]{"uri", "size"}, "hash=?",
+                new String[]{key}, null, null, null)) {
+            if (!c.moveToFirst()) return null;
+            saved = Uri.parse(c.getString(0));
+            size = c.getLong(1);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Index lookup failed", e);
+            return null;
+        }
+        if (stillThere(saved, size)) return saved;
+        getWritableDatabase().delete(TABLE, "hash=?", new String[]{key});
+        return null;
+    }
+
+    private boolean stillThere(Uri uri, long size) {
+        try (Cursor c = resolver.query(uri, new String[]{MediaStore.MediaColumns.SIZE,
+                MediaStore.MediaColumns.IS_PENDING}, null, null, null)) {
+            return c != null && c.moveToFirst() && c.getLong(0) == size && c.getInt(1) == 0;
+        } catch (RuntimeException e) {
+            // Gone, or no longer ours to read
+            return false;
+        }
+    }
+
+    /** Drops every entry whose Downloads row no longer exists; returns how many. */
+    int prune() {
+        Set<Long> present = new HashSet<>();
+        try (Cursor c = resolver.query(MediaStore.Downloads.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Downloads._ID}, null, null, null)) {
+            if (c == null) return 0;
+            while (c.moveToNext()) present.add(c.getLong(0));
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        int removed = 0;
+        db.beginTransaction();
+        try (Cursor c = db.query(TABLE, new String[]{"hash", "uri"}, null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                long id;
+                try {
+                    id = ContentUris.parseId(Uri.parse(c.getString(1)));
+                } catch (RuntimeException e) {
+                    id = -1;
+                }
+                if (present.contains(id)) continue;
+                removed += db.delete(TABLE, "hash=?", new String[]{c.getString(0)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return removed;
+    }
+}
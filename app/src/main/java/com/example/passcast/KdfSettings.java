@@ -0,0 +1,64 @@
+package com.example.passcast;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.IOException;
+
+/** Per-device KDF cost, calibrated once to {@link PasswordKdf#DEFAULT_TARGET_MILLIS}. */
+public final class KdfSettings {
+
+    private static final String TAG = "KdfSettings";
+    private static final String PREFS = "passcast";
+    private static final String KEY_ITERATIONS = "kdf_iterations";
+    private static final String KEY_SENDER_PARAMS = "kdf_sender_params";
+
+    private KdfSettings() {}
+
+    public static int iterations(Context context) {
+        return prefs(context).getInt(KEY_ITERATIONS, PasswordKdf.DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * The sender's KDF params. They are kept across sessions so the same password keeps
+     * deriving the same key and cached artifacts stay valid; they are regenerated with a
+     * fresh salt whenever the calibrated cost changes.
+     */
+    public static KdfParams senderParams(Context context) {
+        SharedPreferences prefs = prefs(context);
+        int iterations = iterations(context);
+        String stored = prefs.getString(KEY_SENDER_PARAMS, null);
+        if (stored != null) {
+            try {
+                KdfParams params = KdfParams.fromBytes(Base64.decode(stored, Base64.NO_WRAP));
+                if (params.iterations == iterations) return params;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Discarding stored KDF params", e);
+            }
+        }
+        KdfParams params = KdfParams.generate(iterations);
+        prefs.edit().putString(KEY_SENDER_PARAMS, Base64.encodeToString(params.toBytes(), Base64.NO_WRAP)).apply();
+        return params;
+    }
+
+    /** Runs the calibration on {@code queue} the first time the app starts. */
+    public static void calibrateIfNeeded(Context context, WorkQueue queue) {
+        SharedPreferences prefs = prefs(context);
+        if (prefs.contains(KEY_ITERATIONS)) return;
+        queue.execute(WorkQueue.PRIORITY_NORMAL, () -> {
+            try {
+                int iterations = PasswordKdf.calibrate(PasswordKdf.DEFAULT_TARGET_MILLIS);
+                prefs.edit().putInt(KEY_ITERATIONS, iterations).apply();
+                Log.i(TAG, "Calibrated KDF to " + iterations + " iterations");
+            } catch (Exception e) {
+                Log.w(TAG, "KDF calibration failed", e);
+            }
+        });
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+}
@@ -1,14 +1,35 @@
 package com.example.passcast;
 
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
 import android.widget.Button;
+import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 public class MainActivity extends AppCompatActivity {
 
-    Button btnSend, btnReceive;
+    private static final String TAG = "MainActivity";
+
+    Button btnSend, btnReceive, btnExportTelemetry;
+    private TransferService service;
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((TransferService.LocalBinder) binder).getService();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -17,6 +38,7 @@ public class MainActivity extends AppCompatActivity {
 
         btnSend = findViewById(R.id.btnSend);
         btnReceive = findViewById(R.id.btnReceive);
+        btnExportTelemetry = findViewById(R.id.btnExportTelemetry);
 
         btnSend.setOnClickListener(v -> {
             Intent i = new Intent(MainActivity.this, SenderActivity.class);
@@ -27,5 +49,38 @@ public class MainActivity extends AppCompatActivity {
             Intent i = new Intent(MainActivity.this, ReceiverActivity.class);
             startActivity(i);
         });
+
+        // On the service's chores queue, so a double tap exports twice in turn rather than at once
+        btnExportTelemetry.setOnClickListener(v -> {
+            if (service != null) service.chores().execute(WorkQueue.PRIORITY_NORMAL, this::exportTelemetry);
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Binding also creates the service, which calibrates the KDF on first start
+        bindService(new Intent(this, TransferService.class), connection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        service = null;
+        unbindService(connection);
+    }
+
+    private void exportTelemetry() {
+        Context app = getApplicationContext();
+        String result;
+        try {
+            Telemetry.export(app);
+            result = "Transfer logs saved to Downloads";
+        } catch (Exception e) {
+            Log.w(TAG, "Telemetry export failed", e);
+            result = "Export failed: " + e.getMessage();
+        }
+        String message = result;
+        runOnUiThread(() -> Toast.makeText(app, message, Toast.LENGTH_SHORT).show());
     }
 }
@@ -0,0 +1,225 @@
+package com.example.passcast;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.nearby.connection.Strategy;
+import com.google.android.gms.tasks.Task;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/** {@link Transport} over Nearby Connections; callbacks arrive on the main thread. */
+public final class NearbyTransport implements Transport {
+
+    private final ConnectionsClient client;
+    private final String serviceId;
+    private final Strategy strategy;
+
+    /**
+     * With {@code manyToMany}, a receiver can connect to several senders at once, at
+     * the cost of the Wi-Fi hotspot upgrade a star topology gets. Every device has to
+     * use the same setting to find the others.
+     */
+    public NearbyTransport(Context context, String serviceId, boolean manyToMany) {
+        this.client = Nearby.getConnectionsClient(context);
+        this.serviceId = serviceId;
+        this.strategy = manyToMany ? Strategy.P2P_CLUSTER : Strategy.P2P_STAR;
+    }
+
+    @Override
+    public CompletableFuture<Void> startAdvertising(String name, Listener listener) {
+        return toFuture(client.startAdvertising(name, serviceId, lifecycle(listener),
+                new AdvertisingOptions.Builder().setStrategy(strategy).build()));
+    }
+
+    @Override
+    public CompletableFuture<Void> startDiscovery(DiscoveryListener listener) {
+        return toFuture(client.startDiscovery(serviceId, new EndpointDiscoveryCallback() {
+            @Override
+            public void onEndpointFound(@NonNull String endpointId, @NonNull DiscoveredEndpointInfo info) {
+                listener.onEndpointFound(endpointId, info.getEndpointName());
+            }
+
+            @Override
+            public void onEndpointLost(@NonNull String endpointId) {
+                listener.onEndpointLost(endpointId);
+            }
+        }, new DiscoveryOptions.Builder().setStrategy(strategy).build()));
+    }
+
+    @Override
+    public CompletableFuture<Void> requestConnection(String name, String endpointId, Listener listener) {
+        CompletableFuture<Void> result = toFuture(client.requestConnection(name, endpointId, lifecycle(listener)));
+        // A request that never reaches the other side gets no connection result
+        result.exceptionally(e -> {
+            listener.onConnectionFailed(endpointId, e.getMessage());
+            return null;
+        });
+        return result;
+    }
+
+    @Override
+    public Payload bytes(byte[] data) {
+        return new NearbyPayload(com.google.android.gms.nearby.connection.Payload.fromBytes(data));
+    }
+
+    @Override
+    public Payload stream(InputStream in) {
+        return new NearbyPayload(com.google.android.gms.nearby.connection.Payload.fromStream(in));
+    }
+
+    @Override
+    public Payload file(File file) throws FileNotFoundException {
+        return new NearbyPayload(com.google.android.gms.nearby.connection.Payload.fromFile(file));
+    }
+
+    @Override
+    public void send(String endpointId, Payload payload) {
+        client.sendPayload(endpointId, ((NearbyPayload) payload).payload);
+    }
+
+    @Override
+    public void cancel(long payloadId) {
+        client.cancelPayload(payloadId);
+    }
+
+    @Override
+    public void stopDiscovery() {
+        client.stopDiscovery();
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        client.disconnectFromEndpoint(endpointId);
+    }
+
+    @Override
+    public void stopAll() {
+        client.stopAdvertising();
+        client.stopDiscovery();
+        client.stopAllEndpoints();
+    }
+
+    private static CompletableFuture<Void> toFuture(Task<Void> task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        task.addOnSuccessListener(unused -> future.complete(null))
+                .addOnFailureListener(future::completeExceptionally);
+        return future;
+    }
+
+    private ConnectionLifecycleCallback lifecycle(Listener listener) {
+        PayloadCallback payloads = new PayloadCallback() {
+            @Override
+            public void onPayloadReceived(@NonNull String endpointId,
+                                          @NonNull com.google.android.gms.nearby.connection.Payload payload) {
+                listener.onPayloadReceived(endpointId, new NearbyPayload(payload));
+            }
+
+            @Override
+            public void onPayloadTransferUpdate(@NonNull String endpointId, @NonNull PayloadTransferUpdate update) {
+                listener.onTransferUpdate(endpointId, update.getPayloadId(), status(update.getStatus()),
+                        update.getBytesTransferred(), update.getTotalBytes());
+            }
+        };
+        return new ConnectionLifecycleCallback() {
+            @Override
+            public void onConnectionInitiated(@NonNull String endpointId, @NonNull ConnectionInfo info) {
+                client.acceptConnection(endpointId, payloads);
+            }
+
+            @Override
+            public void onConnectionResult(@NonNull String endpointId, @NonNull ConnectionResolution result) {
+                if (result.getStatus().getStatusCode() == ConnectionsStatusCodes.STATUS_OK) {
+                    listener.onConnected(endpointId);
+                } else {
+                    listener.onConnectionFailed(endpointId, result.getStatus().getStatusMessage());
+                }
+            }
+
+            @Override
+            public void onBandwidthChanged(@NonNull String endpointId, @NonNull BandwidthInfo info) {
+                listener.onBandwidthChanged(endpointId, info.getQuality());
+            }
+
+            @Override
+            public void onDisconnected(@NonNull String endpointId) {
+                listener.onDisconnected(endpointId);
+            }
+        };
+    }
+
+    private static int status(int nearbyStatus) {
+        switch (nearbyStatus) {
+            case PayloadTransferUpdate.Status.SUCCESS:
+                return STATUS_SUCCESS;
+            case PayloadTransferUpdate.Status.IN_PROGRESS:
+                return STATUS_IN_PROGRESS;
+            case PayloadTransferUpdate.Status.CANCELED:
+                return STATUS_CANCELED;
+            default:
+                return STATUS_FAILURE;
+        }
+    }
+
+    private static final class NearbyPayload implements Payload {
+        final com.google.android.gms.nearby.connection.Payload payload;
+
+        NearbyPayload(com.google.android.gms.nearby.connection.Payload payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public long getId() {
+            return payload.getId();
+        }
+
+        @Override
+        public int getType() {
+            switch (payload.getType()) {
+                case com.google.android.gms.nearby.connection.Payload.Type.BYTES:
+                    return BYTES;
+                case com.google.android.gms.nearby.connection.Payload.Type.FILE:
+                    return FILE;
+                default:
+                    return STREAM;
+            }
+        }
+
+        @Override
+        public byte[] asBytes() {
+            return payload.asBytes();
+        }
+
+        @Override
+        public InputStream asStream() {
+            return payload.asStream().asInputStream();
+        }
+
+        @Override
+        public FileChannel openFile() throws IOException {
+            ParcelFileDescriptor pfd = payload.asFile().asParcelFileDescriptor();
+            if (pfd == null) throw new FileNotFoundException("Payload " + payload.getId() + " has no file");
+            return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.passcast;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * A Downloads entry that stays invisible to other apps and the media scanner while
+ * it is written. The row is inserted with {@code IS_PENDING}, its file is preallocated
+ * to the expected size, and it is only published once the content has been verified;
+ * {@link #close()} without {@link #publish(long)} deletes it.
+ */
+public final class PendingDownload implements Closeable {
+
+    private static final String TAG = "PendingDownload";
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final ParcelFileDescriptor pfd;
+    private final FileOutputStream out;
+    private boolean published;
+
+    private PendingDownload(ContentResolver resolver, Uri uri, ParcelFileDescriptor pfd) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.pfd = pfd;
+        this.out = new FileOutputStream(pfd.getFileDescriptor());
+    }
+
+    /** Inserts a pending row for {@code fileName} and reserves {@code expectedSize} bytes for it. */
+    public static PendingDownload create(ContentResolver resolver, String fileName, long expectedSize)
+            throws IOException {
+        return create(resolver, fileName, MimeTypes.fromName(fileName), expectedSize);
+    }
+
+    /**
+     * As above, for a path relative to Downloads as sent in a batch manifest. Folder
+     * segments are kept; empty, "." and ".." segments are dropped so a peer can't
+     * write outside Downloads.
+     */
+    public static PendingDownload create(ContentResolver resolver, String path, String mimeType,
+                                         long expectedSize) throws IOException {
+        String[] location = location(path);
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Downloads.DISPLAY_NAME, location[1]);
+        values.put(MediaStore.Downloads.MIME_TYPE, mimeType);
+        values.put(MediaStore.Downloads.RELATIVE_PATH, location[0]);
+        values.put(MediaStore.Downloads.IS_PENDING, 1);
+        Uri uri = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) throw new IOException("Cannot create download for " + path);
+
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = resolver.openFileDescriptor(uri, "rw");
+            if (pfd == null) throw new FileNotFoundException(uri.toString());
+            if (expectedSize > 0) {
+                try {
+                    // Reserve the blocks up front so parallel positional writes don't fragment
+                    Os.posix_fallocate(pfd.getFileDescriptor(), 0, expectedSize);
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.ENOSPC) throw new IOException("Not enough space", e);
+                    Log.d(TAG, "Preallocation unsupported", e);
+                }
+            }
+            return new PendingDownload(resolver, uri, pfd);
+        } catch (IOException | RuntimeException e) {
+            if (pfd != null) pfd.close();
+            resolver.delete(uri, null, null);
+            throw e;
+        }
+    }
+
+    /** The folder under Downloads and the file name a manifest path maps to. */
+    private static String[] location(String path) throws IOException {
+        StringBuilder dir = new StringBuilder("Download");
+        String name = null;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) continue;
+            if (name != null) dir.append('/').append(name);
+            name = segment;
+        }
+        if (name == null) throw new IOException("Invalid file name " + path);
+        return new String[]{dir.toString(), name};
+    }
+
+    /**
+     * The newest published download this app saved at {@code path}, e.g. an earlier
+     * version of a file being sent again, or null if there is none.
+     */
+    public static Uri findPrevious(ContentResolver resolver, String path) throws IOException {
+        String[] location = location(path);
+        String selection = MediaStore.Downloads.DISPLAY_NAME + "=? AND "
+                + MediaStore.Downloads.RELATIVE_PATH + "=? AND "
+                + MediaStore.Downloads.IS_PENDING + "=0";
+        // MediaStore stores the folder with a trailing slash
+        String[] args = {location[1], location[0] + "/"};
+        try (Cursor c = resolver.query(MediaStore.Downloads.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Downloads._ID}, selection, args,
+                MediaStore.Downloads.DATE_MODIFIED + " DESC")) {
+            if (c == null || !c.moveToFirst()) return null;
+            return ContentUris.withAppendedId(MediaStore.Downloads.EXTERNAL_CONTENT_URI, c.getLong(0));
+        }
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    /** Positional writes go straight to the file; the channel is owned by this download. */
+    public FileChannel channel() {
+        return out.getChannel();
+    }
+
+    /**
+     * SHA-256 of the first {@code size} bytes, read back through a duplicate descriptor
+     * with positional reads, so content written out of order can be checked before it
+     * is published.
+     */
+    public byte[] hash(long size) throws IOException {
+        MessageDigest sha = ContentHash.sha256();
+        try (FileChannel in = new ParcelFileDescriptor.AutoCloseInputStream(pfd.dup()).getChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            for (long pos = 0; pos < size; ) {
+                buf.clear().limit((int) Math.min(buf.capacity(), size - pos));
+                int n = in.read(buf, pos);
+                if (n < 0) throw new IOException("Download shorter than " + size);
+                sha.update(buf.array(), 0, n);
+                pos += n;
+            }
+        }
+        return sha.digest();
+    }
+
+    /** Trims the file to its final size, flushes it and makes the row visible in one update. */
+    public void publish(long size) throws IOException {
+        FileChannel ch = channel();
+        if (ch.size() != size) ch.truncate(size);
+        ch.force(true);
+        out.close();
+        pfd.close();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Downloads.IS_PENDING, 0);
+        if (resolver.update(uri, values, null, null) != 1) throw new IOException("Cannot publish " + uri);
+        published = true;
+    }
+
+    @Override
+    public void close() {
+        if (published) return;
+        try {
+            out.close();
+            pfd.close();
+        } catch (IOException ignored) {}
+        try {
+            resolver.delete(uri, null, null);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not delete partial output", e);
+        }
+    }
+}
@@ -0,0 +1,1340 @@
+package com.example.passcast;
+
+import android.app.DownloadManager;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+
+/**
+ * The receiver side: discovers senders, answers their offers with the segments already
+ * held, and verifies, decrypts and saves what arrives. Blocking work runs on the
+ * service's inbound queue, live streams ahead of decrypts and decrypts ahead of salvage.
+ */
+final class ReceiveSession extends TransferSession {
+
+    private static final String TAG = "ReceiveSession";
+
+    private final ContentResolver resolver;
+    private String enteredPassword;
+    private boolean discovering;
+    private final Set<String> connected = new HashSet<>();
+    // Senders that proved they hold the key, and the nonce sent to the rest
+    private final Set<String> confirmed = new HashSet<>();
+    private final Map<String, byte[]> helloNonces = new HashMap<>();
+    // Round trip of the key confirmation per sender, which sizes the credit window of its streams
+    private final Map<String, Long> helloSentAt = new HashMap<>();
+    private final Map<String, Long> rttNanos = new HashMap<>();
+    // Each sender's lockout after wrong passwords, by name, honoured here too so retries don't just bounce
+    private final Map<String, Long> retryAfterNanos = new HashMap<>();
+
+    // Per sender: the transfers on offer by transfer id, and the batch manifest if any
+    private final Map<String, Map<String, TransferCheckpoint>> transfers = new HashMap<>();
+    private final Map<String, BatchManifest> manifests = new HashMap<>();
+    // Data payloads are paired with their transfer by a Bind message, which may arrive either side of them
+    private final Map<Long, IncomingData> incoming = new HashMap<>();
+    private final Map<Long, ControlMessage.Bind> bindings = new HashMap<>();
+    // The earlier copy each delta transfer is rebuilt from, by metrics id
+    private final Map<String, Uri> deltaBases = new HashMap<>();
+
+    // Telemetry per endpoint and transfer, the data payload each is running on, and live progress
+    private final Map<String, TransferMetrics> metrics = new HashMap<>();
+    private final Map<Long, TransferMetrics> payloadMetrics = new HashMap<>();
+    private final Map<Long, LiveProgress> liveProgress = new HashMap<>();
+    private final Map<String, Long> connectedAt = new HashMap<>();
+    private final Map<String, Long> upgradeNanos = new HashMap<>();
+    private final Map<String, Integer> quality = new HashMap<>();
+
+    // Senders in range and recently used, and a list redraw that is already on its way
+    private static final String PREF_RECENT_SENDERS = "recent_senders";
+    private static final long LIST_UPDATE_MILLIS = 250;
+    private static final long SWEEP_MILLIS = 5_000;
+    private final EndpointRegistry registry = new EndpointRegistry();
+    private boolean listUpdatePending;
+    private long discoveryStartedAt;
+    // A recent sender picked before discovery has found it again
+    private String reconnectTo;
+
+    private final ParallelSegmentEngine engine =
+            new ParallelSegmentEngine(ParallelSegmentEngine.defaultThreads());
+    private final KeyCache keyCache = new KeyCache();
+    private final ContentIndex index;
+
+    // Files fetched from several senders at once, by content hash, and each sender's part, by metrics id
+    private static final int MAX_SWARM_PEERS = 4;
+    private final Map<String, SwarmDownload> swarms = new HashMap<>();
+    private final Map<String, SwarmMember> swarmMembers = new HashMap<>();
+    private final Set<String> swarmConnecting = new HashSet<>();
+
+    ReceiveSession(TransferService service, List<Observer> observers) {
+        super(service, observers, "Tap Scan to find senders");
+        this.resolver = context.getContentResolver();
+        this.index = new ContentIndex(context);
+        restoreRecentSenders();
+        // Observers carried over from a stopped session still list its senders
+        if (!observers.isEmpty()) sendersChanged();
+        // Forget files deleted since the last session, so they are received again
+        service.inbound().execute(WorkQueue.PRIORITY_LOW, () -> {
+            try {
+                int removed = index.prune();
+                if (removed > 0) Log.i(TAG, "Dropped " + removed + " deleted files from the content index");
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not prune the content index", e);
+            }
+            // Give up on transfers abandoned long enough that they will not be resumed
+            int expired = TransferCheckpoint.expire(transfersDir(),
+                    TransferCheckpoint.MAX_AGE_MILLIS, System.currentTimeMillis());
+            if (expired > 0) Log.i(TAG, "Deleted " + expired + " files of abandoned transfers");
+        });
+    }
+
+    @Override
+    void addObserver(Observer observer) {
+        super.addObserver(observer);
+        observer.onSendersChanged(registry.snapshot());
+    }
+
+    @Override
+    boolean isActive() {
+        return discovering || !connected.isEmpty() || service.inbound().pendingCount() > 0;
+    }
+
+    @Override
+    void close() {
+        stopDiscovery();
+        reconnectTo = null;
+        for (TransferMetrics m : metrics.values()) finishMetrics(m, "stopped");
+        engine.close();
+        keyCache.close();
+        index.close();
+        // A half-assembled swarm file cannot be resumed, so it goes with the session
+        for (Map.Entry<String, SwarmDownload> e : swarms.entrySet()) {
+            try {
+                e.getValue().close();
+            } catch (IOException ignored) {}
+            swarmPartFile(e.getKey()).delete();
+        }
+        swarms.clear();
+    }
+
+    /** DISCOVERY **/
+    void startDiscovery() {
+        if (discovering) return;
+        status("Scanning...");
+
+        discovering = true;
+        discoveryStartedAt = System.nanoTime();
+        transport.startDiscovery(discoveryListener).whenComplete((unused, e) -> {
+            if (e != null) {
+                discovering = false;
+                status("Discovery failed: " + e.getMessage());
+                service.stopIfIdle();
+                return;
+            }
+            status("Searching for senders...");
+        });
+        service.postDelayed(sweep, SWEEP_MILLIS);
+    }
+
+    /**
+     * Drops senders that have gone quiet. Nearby reports an endpoint once per discovery
+     * run, so discovery restarts now and then to re-confirm the ones still there; not
+     * while connected, when scanning would only slow the transfer down.
+     */
+    private final Runnable sweep = new Runnable() {
+        @Override
+        public void run() {
+            if (!discovering) return;
+            if (registry.expire()) sendersChanged();
+            long running = (System.nanoTime() - discoveryStartedAt) / 1_000_000;
+            if (connected.isEmpty() && running >= registry.getTtlMillis() / 2) {
+                transport.stopDiscovery();
+                discoveryStartedAt = System.nanoTime();
+                transport.startDiscovery(discoveryListener);
+            }
+            service.postDelayed(this, SWEEP_MILLIS);
+        }
+    };
+
+    private void stopDiscovery() {
+        if (!discovering) return;
+        discovering = false;
+        transport.stopDiscovery();
+        service.removeCallbacks(sweep);
+    }
+
+    /** Coalesces bursts of discovery events into one list update. */
+    private void sendersChanged() {
+        if (listUpdatePending) return;
+        listUpdatePending = true;
+        service.postDelayed(() -> {
+            listUpdatePending = false;
+            List<EndpointRegistry.Endpoint> current = registry.snapshot();
+            for (Observer o : new ArrayList<>(observers)) o.onSendersChanged(current);
+        }, LIST_UPDATE_MILLIS);
+    }
+
+    private final Transport.DiscoveryListener discoveryListener = new Transport.DiscoveryListener() {
+        @Override
+        public void onEndpointFound(String endpointId, String name) {
+            service.post(() -> {
+                if (registry.found(endpointId, name)) sendersChanged();
+                String target = reconnectTo != null ? registry.availableIdFor(reconnectTo) : null;
+                if (target != null) {
+                    reconnectTo = null;
+                    status("Found " + name + ", connecting...");
+                    transport.requestConnection("Receiver", target, connectionListener);
+                }
+            });
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+            service.post(() -> {
+                if (registry.lost(endpointId)) sendersChanged();
+            });
+        }
+    };
+
+    /**
+     * Connects to a listed sender, decrypting whatever it sends with {@code password}.
+     * A recent sender not yet found again is tried directly, and connected to the
+     * moment discovery sees it if that fails.
+     */
+    void connect(String endpointId, String password) {
+        Long lockedUntil = retryAfterNanos.get(lockoutKey(endpointId));
+        long wait = lockedUntil == null ? 0 : (lockedUntil - System.nanoTime()) / 1_000_000;
+        if (wait > 0) {
+            status("Sender is locked out. Try again in " + (wait + 999) / 1000 + " s.");
+            return;
+        }
+        enteredPassword = password;
+        String target = registry.availableIdFor(endpointId);
+        if (target == null) {
+            reconnectTo = endpointId;
+            target = endpointId;
+            status("Reconnecting to " + registry.nameOf(endpointId) + "...");
+            startDiscovery();
+        }
+        transport.requestConnection("Receiver", target, connectionListener);
+    }
+
+    private void restoreRecentSenders() {
+        registry.restoreRecent(service.prefs().getString(PREF_RECENT_SENDERS, null));
+    }
+
+    private void rememberSender(String endpointId) {
+        String name = registry.nameOf(endpointId);
+        if (name == null) return;
+        registry.remember(endpointId, name);
+        service.prefs().edit().putString(PREF_RECENT_SENDERS, registry.encodeRecent()).apply();
+        sendersChanged();
+    }
+
+    /** CONNECTION HANDLING **/
+    private final Transport.Listener connectionListener = new Transport.Listener() {
+        @Override
+        public void onConnected(String endpointId) {
+            connected.add(endpointId);
+            swarmConnecting.remove(endpointId);
+            if (endpointId.equals(reconnectTo)) reconnectTo = null;
+            rememberSender(endpointId);
+            connectedAt.put(endpointId, System.nanoTime());
+            upgradeNanos.remove(endpointId);
+            status("Connected. Checking password...");
+            sayHello(endpointId);
+        }
+
+        @Override
+        public void onBandwidthChanged(String endpointId, int quality) {
+            ReceiveSession.this.quality.put(endpointId, quality);
+            Long connected = connectedAt.get(endpointId);
+            if (quality == Transport.QUALITY_HIGH && connected != null && !upgradeNanos.containsKey(endpointId)) {
+                long upgrade = System.nanoTime() - connected;
+                upgradeNanos.put(endpointId, upgrade);
+                for (TransferMetrics m : metrics.values()) {
+                    if (m.endpointId.equals(endpointId)) m.upgraded(upgrade);
+                }
+            }
+        }
+
+        @Override
+        public void onConnectionFailed(String endpointId, String reason) {
+            // An extra sender for a swarm; the transfer goes on without it
+            if (swarmConnecting.remove(endpointId)) return;
+            if (endpointId.equals(reconnectTo)) {
+                // Gone from Nearby's cache; wait for discovery to find it again
+                status("Looking for " + registry.nameOf(endpointId) + "...");
+                return;
+            }
+            status("Connection failed.");
+            service.stopIfIdle();
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            status("Disconnected.");
+            // Keep whatever verified segments made it across for the next connection
+            for (Map.Entry<Long, IncomingData> e : new ArrayList<>(incoming.entrySet())) {
+                if (!e.getValue().endpointId.equals(endpointId)) continue;
+                service.setMoving(e.getKey(), false);
+                salvageLater(e.getKey());
+            }
+            transfers.remove(endpointId);
+            manifests.remove(endpointId);
+            confirmed.remove(endpointId);
+            helloNonces.remove(endpointId);
+            helloSentAt.remove(endpointId);
+            rttNanos.remove(endpointId);
+            leaveSwarms(endpointId);
+            deltaBases.keySet().removeIf(id -> id.startsWith(endpointId + "/"));
+            for (Iterator<Map.Entry<String, TransferMetrics>> it = metrics.entrySet().iterator(); it.hasNext(); ) {
+                TransferMetrics m = it.next().getValue();
+                if (!m.endpointId.equals(endpointId)) continue;
+                finishMetrics(m, "disconnected");
+                it.remove();
+            }
+            for (Iterator<Map.Entry<Long, TransferMetrics>> it = payloadMetrics.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, TransferMetrics> e = it.next();
+                if (!e.getValue().endpointId.equals(endpointId)) continue;
+                service.setMoving(e.getKey(), false);
+                liveProgress.remove(e.getKey());
+                it.remove();
+            }
+            connectedAt.remove(endpointId);
+            upgradeNanos.remove(endpointId);
+            connected.remove(endpointId);
+            quality.remove(endpointId);
+            service.stopIfIdle();
+        }
+
+        /** PAYLOAD HANDLING **/
+        @Override
+        public void onPayloadReceived(String endpointId, Transport.Payload payload) {
+            if (payload.getType() == Transport.Payload.BYTES) {
+                try {
+                    ControlMessage msg;
+                    if (confirmed.contains(endpointId)) {
+                        msg = ControlMessage.parse(payload.asBytes());
+                    } else if ((msg = KeyConfirmation.readUnconfirmed(payload.asBytes())) == null) {
+                        // A weak-key Challenge among them; nothing can follow it
+                        drop(endpointId);
+                        status("Sender failed the password check. Disconnected.");
+                        return;
+                    }
+                    if (msg instanceof ControlMessage.Challenge)
+                        answerChallenge(endpointId, (ControlMessage.Challenge) msg);
+                    else if (msg instanceof ControlMessage.Reject)
+                        handleReject(endpointId, (ControlMessage.Reject) msg);
+                    // Offers and data only count from a sender that proved the password too
+                    else if (!confirmed.contains(endpointId))
+                        Log.w(TAG, "Ignoring " + msg.getClass().getSimpleName() + " before key confirmation");
+                    else if (msg instanceof ControlMessage.Offer)
+                        handleOffer(endpointId, (ControlMessage.Offer) msg);
+                    else if (msg instanceof ControlMessage.Manifest)
+                        handleManifest(endpointId, (ControlMessage.Manifest) msg);
+                    else if (msg instanceof ControlMessage.Bind)
+                        handleBind((ControlMessage.Bind) msg);
+                } catch (IOException e) {
+                    Log.w(TAG, "Bad control message", e);
+                }
+            } else if (!confirmed.contains(endpointId)) {
+                transport.cancel(payload.getId());
+            } else {
+                // FILE payloads are announced when they start and decrypted once complete;
+                // STREAM payloads carry framed segments, verified and written as they arrive
+                IncomingData data = new IncomingData(endpointId, payload);
+                ControlMessage.Bind bind = bindings.remove(payload.getId());
+                if (bind != null) {
+                    data.transferId = bind.transferId;
+                    data.delta = bind.delta;
+                }
+                incoming.put(payload.getId(), data);
+                dispatch(payload.getId());
+            }
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, long payloadId, int status, long bytesTransferred,
+                                     long totalBytes) {
+            if (payloadMetrics.containsKey(payloadId) || incoming.containsKey(payloadId))
+                service.setMoving(payloadId, status == Transport.STATUS_IN_PROGRESS);
+            TransferMetrics m = payloadMetrics.get(payloadId);
+            if (m != null) {
+                m.progress(bytesTransferred);
+                LiveProgress live = liveProgress.get(payloadId);
+                LiveProgress.Snapshot snapshot = live != null ? live.update(bytesTransferred, totalBytes) : null;
+                if (status == Transport.STATUS_IN_PROGRESS && snapshot != null) {
+                    status("Receiving " + m.getFileName() + ": " + snapshot);
+                }
+                if (status != Transport.STATUS_IN_PROGRESS) {
+                    m.end(TransferMetrics.Stage.TRANSFER, bytesTransferred);
+                    payloadMetrics.remove(payloadId);
+                    liveProgress.remove(payloadId);
+                }
+                if (status == Transport.STATUS_FAILURE || status == Transport.STATUS_CANCELED) {
+                    finishMetrics(m, status == Transport.STATUS_CANCELED ? "canceled" : "failed");
+                }
+            }
+
+            IncomingData data = incoming.get(payloadId);
+            if (data == null) return;
+            data.bytesTransferred = bytesTransferred;
+
+            if (status == Transport.STATUS_SUCCESS) {
+                status("Transfer complete");
+                data.complete = true;
+                dispatch(payloadId);
+            } else if (status == Transport.STATUS_FAILURE || status == Transport.STATUS_CANCELED) {
+                salvageLater(payloadId);
+            }
+        }
+    };
+
+    private static class IncomingData {
+        final String endpointId;
+        final Transport.Payload payload;
+        String transferId;
+        boolean delta;
+        volatile long bytesTransferred;
+        boolean complete;
+
+        IncomingData(String endpointId, Transport.Payload payload) {
+            this.endpointId = endpointId;
+            this.payload = payload;
+        }
+    }
+
+    /** KEY CONFIRMATION **/
+
+    /** Opens key confirmation; the sender has to prove the key before this side does. */
+    private void sayHello(String endpointId) {
+        byte[] nonce = KeyConfirmation.newNonce();
+        helloNonces.put(endpointId, nonce);
+        helloSentAt.put(endpointId, System.nanoTime());
+        transport.send(endpointId, transport.bytes(new ControlMessage.Hello(nonce).toBytes()));
+    }
+
+    /**
+     * Derives the key with the sender's params and, if the sender's MAC shows it holds
+     * the same key, proves this side does too. A Challenge with params cheaper than this
+     * device would ever use doesn't parse, so never gets this far, and a sender whose MAC
+     * doesn't match gets nothing back, so a rogue one can't collect answers to test
+     * guesses against. The derivation is the slow part and runs off the main thread;
+     * the key stays cached for the transfers that follow. The proof carries this
+     * device's cipher speeds, so the sender can seal later broadcasts with a suite that
+     * suits it.
+     */
+    private void answerChallenge(String endpointId, ControlMessage.Challenge challenge) {
+        byte[] nonce = helloNonces.remove(endpointId);
+        if (nonce == null) return;
+        // Overstated if the sender was still deriving its key; that only widens the first window
+        Long sentAt = helloSentAt.remove(endpointId);
+        if (sentAt != null) rttNanos.put(endpointId, System.nanoTime() - sentAt);
+        String password = enteredPassword;
+        service.inbound().execute(WorkQueue.PRIORITY_HIGH, () -> {
+            byte[] proof;
+            long[] speeds;
+            try {
+                SecretKey key = keyCache.get(password, challenge.params).key;
+                if (!KeyConfirmation.matches(KeyConfirmation.senderProof(key, challenge.nonce, nonce), challenge.mac)) {
+                    service.post(() -> {
+                        // Either the password differs or whoever this is doesn't hold the key
+                        drop(endpointId);
+                        status("❌ Wrong password! Nothing was sent.");
+                    });
+                    return;
+                }
+                speeds = service.cipherSpeeds();
+                proof = KeyConfirmation.receiverProof(key, challenge.nonce, nonce);
+            } catch (GeneralSecurityException e) {
+                Log.w(TAG, "Key confirmation failed", e);
+                service.post(() -> drop(endpointId));
+                return;
+            }
+            service.post(() -> {
+                if (!connected.contains(endpointId)) return;
+                confirmed.add(endpointId);
+                transport.send(endpointId, transport.bytes(new ControlMessage.Proof(nonce, proof, speeds).toBytes()));
+                status("Password confirmed. Receiving...");
+                if (service.isSwarm()) connectSwarmPeers(endpointId);
+            });
+        });
+    }
+
+    /**
+     * A sender turns a Hello away while it is locked out after wrong passwords, possibly
+     * other receivers', so this one's password may well be right. Only a sender still
+     * owed a challenge may say so, and only about itself.
+     */
+    private void handleReject(String endpointId, ControlMessage.Reject reject) {
+        if (helloNonces.remove(endpointId) == null) {
+            Log.w(TAG, "Ignoring Reject outside key confirmation");
+            return;
+        }
+        long wait = reject.retryAfterMillis;
+        if (wait > 0) retryAfterNanos.put(lockoutKey(endpointId), System.nanoTime() + wait * 1_000_000);
+        drop(endpointId);
+        status(wait > 0 ? "Sender is locked out. Try again in " + (wait + 999) / 1000 + " s."
+                : "❌ Wrong password! Nothing was sent.");
+    }
+
+    /** Endpoint ids change between sessions of a sender; its advertised name mostly doesn't. */
+    private String lockoutKey(String endpointId) {
+        String name = registry.nameOf(endpointId);
+        return name != null ? name : endpointId;
+    }
+
+    /** Hangs up on a sender; Nearby reports no disconnect to the side that hangs up. */
+    private void drop(String endpointId) {
+        transport.disconnect(endpointId);
+        if (connected.contains(endpointId)) connectionListener.onDisconnected(endpointId);
+    }
+
+    private void handleBind(ControlMessage.Bind bind) {
+        IncomingData data = incoming.get(bind.payloadId);
+        if (data == null) {
+            bindings.put(bind.payloadId, bind);
+            return;
+        }
+        data.transferId = bind.transferId;
+        data.delta = bind.delta;
+        dispatch(bind.payloadId);
+    }
+
+    private void handleManifest(String endpointId, ControlMessage.Manifest part) throws IOException {
+        BatchManifest manifest = manifests.get(endpointId);
+        if (manifest == null || !manifest.batchId.equals(part.batchId)) {
+            manifest = new BatchManifest(part);
+            manifests.put(endpointId, manifest);
+        } else {
+            manifest.add(part);
+        }
+        if (manifest.isComplete()) status("Receiving " + manifest.fileCount() + " files...");
+    }
+
+    /** Starts work on a data payload once it is bound to a transfer and ready to read. */
+    private void dispatch(long payloadId) {
+        IncomingData data = incoming.get(payloadId);
+        if (data == null || data.transferId == null) return;
+        Map<String, TransferCheckpoint> offered = transfers.get(data.endpointId);
+        TransferCheckpoint cp = offered != null ? offered.get(data.transferId) : null;
+        if (cp == null) {
+            // Nothing was offered under that id; don't let the payload hold the link
+            incoming.remove(payloadId);
+            transport.cancel(payloadId);
+            return;
+        }
+        BatchManifest batch = manifests.get(data.endpointId);
+        TransferMetrics m = metrics.computeIfAbsent(metricsId(data.endpointId, cp.transferId),
+                k -> newMetrics(data.endpointId, cp));
+        if (!data.complete && !payloadMetrics.containsKey(payloadId)) {
+            m.bandwidth(quality.getOrDefault(data.endpointId, Transport.QUALITY_UNKNOWN));
+            m.begin(TransferMetrics.Stage.TRANSFER);
+            payloadMetrics.put(payloadId, m);
+            liveProgress.put(payloadId, new LiveProgress());
+        }
+        SwarmMember member = swarmMembers.get(metricsId(data.endpointId, cp.transferId));
+        if (data.payload.getType() == Transport.Payload.STREAM && member != null) {
+            incoming.remove(payloadId);
+            member.payloadId = payloadId;
+            InputStream frames = data.payload.asStream();
+            String password = enteredPassword;
+            CreditFlow.Window credit = creditFor(data.endpointId, payloadId, cp);
+            service.inbound().execute(WorkQueue.PRIORITY_HIGH,
+                    () -> receiveSwarmBatch(member, frames, credit, password, m));
+        } else if (data.payload.getType() == Transport.Payload.STREAM) {
+            incoming.remove(payloadId);
+            InputStream frames = data.payload.asStream();
+            CreditFlow.Window credit = creditFor(data.endpointId, payloadId, cp);
+            service.inbound().execute(WorkQueue.PRIORITY_HIGH, () -> receiveSegments(cp, batch, frames, credit, m));
+        } else if (data.payload.getType() == Transport.Payload.FILE && data.complete) {
+            incoming.remove(payloadId);
+            Transport.Payload payload = data.payload;
+            String password = enteredPassword;
+            Uri basis = deltaBases.remove(metricsId(data.endpointId, cp.transferId));
+            if (data.delta && basis != null) {
+                String endpointId = data.endpointId;
+                service.inbound().execute(WorkQueue.PRIORITY_NORMAL,
+                        () -> applyDelta(endpointId, payload, password, cp, batch, basis, m));
+            } else {
+                service.inbound().execute(WorkQueue.PRIORITY_NORMAL, () -> decryptAndSave(payload, password, cp, batch, m));
+            }
+        }
+    }
+
+    /** TELEMETRY **/
+    private static String metricsId(String endpointId, String transferId) {
+        return endpointId + "/" + transferId;
+    }
+
+    private TransferMetrics newMetrics(String endpointId, TransferCheckpoint cp) {
+        TransferMetrics m = new TransferMetrics(cp.transferId, TransferMetrics.RECEIVE, endpointId)
+                .describe(cp.fileName, cp.plaintextSize());
+        Long connected = connectedAt.get(endpointId);
+        if (connected != null) m.connected(connected);
+        Long upgrade = upgradeNanos.get(endpointId);
+        if (upgrade != null) m.upgraded(upgrade);
+        return m;
+    }
+
+    /** Closes and logs a record; safe to call from any thread, and more than once. */
+    private void finishMetrics(TransferMetrics m, String outcome) {
+        if (m.finish(outcome)) Telemetry.record(context, m);
+    }
+
+    /** The key for a transfer, timing any wait for the derivation. */
+    private SecretKey keyFor(TransferCheckpoint cp, String password, TransferMetrics m)
+            throws GeneralSecurityException {
+        m.begin(TransferMetrics.Stage.KDF);
+        try {
+            return keyFor(cp, password);
+        } finally {
+            m.end(TransferMetrics.Stage.KDF, 0);
+        }
+    }
+
+    /** RESUMABLE TRANSFERS **/
+    private File transfersDir() {
+        File dir = new File(context.getFilesDir(), "transfers");
+        dir.mkdirs();
+        return dir;
+    }
+
+    private File checkpointFile(String transferId) {
+        return new File(transfersDir(), transferId + TransferCheckpoint.SUFFIX);
+    }
+
+    private File partFile(String transferId) {
+        return new File(transfersDir(), transferId + TransferCheckpoint.PART_SUFFIX);
+    }
+
+    /** Answers an offer with the segments we already hold for it, if any. */
+    private void handleOffer(String endpointId, ControlMessage.Offer offer) {
+        TransferCheckpoint cp = null;
+        File ckpt = checkpointFile(offer.transferId);
+        if (ckpt.exists()) {
+            try {
+                TransferCheckpoint saved = TransferCheckpoint.load(ckpt);
+                if (saved.matches(offer) && partFile(offer.transferId).exists()) cp = saved;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable checkpoint", e);
+            }
+        }
+        try {
+            if (cp == null) cp = TransferCheckpoint.fromOffer(offer);
+        } catch (IOException e) {
+            status("Invalid offer: " + e.getMessage());
+            return;
+        }
+        transfers.computeIfAbsent(endpointId, k -> new HashMap<>()).put(cp.transferId, cp);
+
+        // An offer we have seen before, or one we already hold segments of, is a retry
+        String id = metricsId(endpointId, cp.transferId);
+        TransferMetrics previous = metrics.get(id);
+        if (previous != null) finishMetrics(previous, "superseded");
+        TransferMetrics m = newMetrics(endpointId, cp);
+        m.resumed(previous != null ? previous.getRetries() + 1 : cp.verifiedCount() > 0 ? 1 : 0,
+                cp.verifiedCount());
+        metrics.put(id, m);
+        // Start deriving with the sender's salt and cost now, so the key is ready when data arrives
+        keyCache.prefetch(enteredPassword, cp.header.getKdfParams(), false);
+        if (cp.verifiedCount() > 0)
+            status("Resuming " + cp.fileName + " (" + cp.verifiedCount() + "/" + cp.segmentCount + " segments)");
+
+        TransferCheckpoint offered = cp;
+        BatchManifest batch = manifests.get(endpointId);
+        String password = enteredPassword;
+        // The index lookup is quick but touches disk, so it runs off the main thread
+        service.inbound().execute(WorkQueue.PRIORITY_HIGH, () -> answerOffer(endpointId, offered, batch, password));
+    }
+
+    /**
+     * Declines an offer whose files are all here already, going by their content hashes.
+     * Otherwise asks for a delta against an older copy, or for the segments not yet held.
+     */
+    private void answerOffer(String endpointId, TransferCheckpoint cp, BatchManifest batch, String password) {
+        boolean packed = batch != null && batch.isPacked(cp.transferId);
+        ControlMessage.Entry entry = batch != null ? single(batch.entriesFor(cp.transferId)) : null;
+        String name = entry != null ? entry.name : cp.fileName;
+        if (alreadyHave(cp, batch, packed)) {
+            deleteCheckpoint(cp.transferId);
+            service.post(() -> {
+                if (!connected.contains(endpointId)) return;
+                TransferMetrics m = metrics.remove(metricsId(endpointId, cp.transferId));
+                if (m != null) finishMetrics(m, "already_received");
+                transport.send(endpointId, transport.bytes(new ControlMessage.Have(cp.transferId).toBytes()));
+                status("Already received " + name + ", skipped");
+            });
+            return;
+        }
+        boolean swarmable = !packed && cp.verifiedCount() == 0 && SwarmDownload.eligible(cp);
+        service.post(() -> {
+            if (!connected.contains(endpointId)) return;
+            if (swarmable && swarms.containsKey(ContentHash.hex(cp.contentHash))) {
+                joinSwarm(endpointId, cp, name);
+            } else if (cp.verifiedCount() == 0 && !packed) {
+                // Without an older copy to patch, fetch it whole, or in parts from every sender of it
+                Runnable otherwise = swarmable && service.isSwarm()
+                        ? () -> joinSwarm(endpointId, cp, name)
+                        : () -> sendResume(endpointId, cp);
+                service.inbound().execute(WorkQueue.PRIORITY_NORMAL,
+                        () -> requestDelta(endpointId, cp, name, password, otherwise));
+            } else {
+                sendResume(endpointId, cp);
+            }
+        });
+    }
+
+    private void sendResume(String endpointId, TransferCheckpoint cp) {
+        transport.send(endpointId, transport.bytes(resumeFor(cp, cp.verified()).toBytes()));
+    }
+
+    /** FLOW CONTROL **/
+
+    /** Asks for the segments not in {@code skip}, under credit flow control if they come as a stream. */
+    private static ControlMessage.Resume resumeFor(TransferCheckpoint cp, BitSet skip) {
+        return new ControlMessage.Resume(cp.transferId, skip, CreditFlow.initialWindow(cp.header.getSegmentSize()));
+    }
+
+    /** Grants the sender of stream {@code payloadId} credit as its segments are written out. */
+    private CreditFlow.Window creditFor(String endpointId, long payloadId, TransferCheckpoint cp) {
+        return new CreditFlow.Window(cp.header.getSegmentSize(), rttNanos.getOrDefault(endpointId, 0L),
+                through -> service.post(() -> {
+                    if (!connected.contains(endpointId)) return;
+                    ControlMessage.Credit credit = new ControlMessage.Credit(payloadId, through);
+                    transport.send(endpointId, transport.bytes(credit.toBytes()));
+                }));
+    }
+
+    private boolean alreadyHave(TransferCheckpoint cp, BatchManifest batch, boolean packed) {
+        if (!packed) return index.find(cp.contentHash) != null;
+        List<ControlMessage.Entry> entries = batch.entriesFor(cp.transferId);
+        if (entries.isEmpty()) return false;
+        for (ControlMessage.Entry e : entries) {
+            if (index.find(e.contentHash) == null) return false;
+        }
+        return true;
+    }
+
+    /** SWARM **/
+
+    /** One sender's part in a swarm: its offer of the file, and the stream of its current batch. */
+    private static final class SwarmMember {
+        final String endpointId;
+        final TransferCheckpoint cp;
+        final String name;
+        final SwarmDownload swarm;
+        long payloadId = -1;
+
+        SwarmMember(String endpointId, TransferCheckpoint cp, String name, SwarmDownload swarm) {
+            this.endpointId = endpointId;
+            this.cp = cp;
+            this.name = name;
+            this.swarm = swarm;
+        }
+    }
+
+    /** Connects to the other senders in range offering the same files, up to a few. */
+    private void connectSwarmPeers(String endpointId) {
+        for (String peer : registry.sameTagAs(endpointId)) {
+            if (connected.size() + swarmConnecting.size() >= MAX_SWARM_PEERS) break;
+            if (connected.contains(peer) || swarmConnecting.contains(peer)) continue;
+            swarmConnecting.add(peer);
+            transport.requestConnection("Receiver", peer, connectionListener);
+        }
+    }
+
+    private File swarmPartFile(String hashHex) {
+        return new File(transfersDir(), "swarm-" + hashHex + TransferCheckpoint.PART_SUFFIX);
+    }
+
+    /**
+     * Fetches an offered file in batches alongside the other senders of it, starting a
+     * swarm if this is the first. Each sender's batches are requested as resumes that
+     * skip everything outside the batch, so senders need nothing new to take part.
+     */
+    private void joinSwarm(String endpointId, TransferCheckpoint cp, String name) {
+        String key = ContentHash.hex(cp.contentHash);
+        SwarmDownload swarm = swarms.get(key);
+        if (swarm == null) {
+            try {
+                swarm = new SwarmDownload(cp, new RandomAccessFile(swarmPartFile(key), "rw").getChannel());
+            } catch (IOException e) {
+                Log.w(TAG, "Could not start a swarm for " + name, e);
+                sendResume(endpointId, cp);
+                return;
+            }
+            swarms.put(key, swarm);
+        } else if (!swarm.accepts(cp)) {
+            sendResume(endpointId, cp);
+            return;
+        }
+        swarm.planner().addPeer(endpointId, null);
+        swarmMembers.put(metricsId(endpointId, cp.transferId), new SwarmMember(endpointId, cp, name, swarm));
+        fetchNext(swarm);
+    }
+
+    /** Gives every idle sender in a swarm its next batch. */
+    private void fetchNext(SwarmDownload swarm) {
+        SwarmPlanner planner = swarm.planner();
+        String name = null;
+        for (SwarmMember member : swarmMembers.values()) {
+            if (member.swarm != swarm) continue;
+            name = member.name;
+            if (!planner.isIdle(member.endpointId)) continue;
+            BitSet batch = planner.next(member.endpointId);
+            if (batch.isEmpty()) continue;
+            ControlMessage.Resume request = resumeFor(member.cp, planner.skipAllBut(batch));
+            transport.send(member.endpointId, transport.bytes(request.toBytes()));
+        }
+        if (name != null) {
+            status("Receiving " + name + " from " + planner.peerCount() + " senders: "
+                    + planner.doneCount() * 100 / planner.getSegmentCount() + "%");
+        }
+    }
+
+    /** Reads one batch; the sender that completes the file also finishes it. */
+    private void receiveSwarmBatch(SwarmMember member, InputStream frames, CreditFlow.Window credit, String password,
+                                   TransferMetrics m) {
+        SwarmDownload swarm = member.swarm;
+        boolean failed = false;
+        try {
+            SecretKey key = keyFor(member.cp, password, m);
+            m.begin(TransferMetrics.Stage.DECRYPT);
+            int written = swarm.receive(member.endpointId, member.cp, key, frames, credit);
+            m.end(TransferMetrics.Stage.DECRYPT, (long) written * member.cp.header.getSegmentSize());
+        } catch (Exception e) {
+            // A broken link or a segment that fails to open; the others carry on without it
+            Log.w(TAG, "Swarm batch from " + member.endpointId + " failed", e);
+            failed = true;
+        } finally {
+            swarm.planner().finished(member.endpointId);
+        }
+        if (swarm.claimFinish()) {
+            finishSwarm(member);
+            return;
+        }
+        boolean leave = failed;
+        service.post(() -> {
+            if (leave) leaveSwarms(member.endpointId);
+            if (swarms.containsValue(swarm)) fetchNext(swarm);
+        });
+    }
+
+    /** Checks the assembled file against its content hash and moves it into Downloads. */
+    private void finishSwarm(SwarmMember member) {
+        SwarmDownload swarm = member.swarm;
+        String key = ContentHash.hex(member.cp.contentHash);
+        File part = swarmPartFile(key);
+        long size = swarm.getPlaintextSize();
+        Uri saved = null;
+        try {
+            if (!swarm.verify()) throw new IOException("Assembled file does not match its content hash");
+            try (PendingDownload download = PendingDownload.create(resolver, member.name,
+                    MimeTypes.fromName(member.name), size);
+                 FileChannel in = new FileInputStream(part).getChannel()) {
+                FileChannel out = download.channel();
+                for (long pos = 0; pos < size; ) pos += in.transferTo(pos, size - pos, out);
+                download.publish(size);
+                index.put(member.cp.contentHash, download.getUri(), size);
+                saved = download.getUri();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Swarm download of " + member.name + " failed", e);
+        } finally {
+            try {
+                swarm.close();
+            } catch (IOException ignored) {}
+            part.delete();
+        }
+        Uri uri = saved;
+        if (uri != null) showNotification(uri, member.name);
+        service.post(() -> {
+            List<SwarmMember> members = endSwarm(swarm, uri != null ? "ok" : "failed");
+            if (uri != null) {
+                status("Decrypted: " + member.name + " (from " + members.size() + " senders)");
+                return;
+            }
+            // Start over from one sender, the ordinary way
+            for (SwarmMember m : members) {
+                if (!connected.contains(m.endpointId)) continue;
+                transport.send(m.endpointId, transport.bytes(resumeFor(m.cp, new BitSet()).toBytes()));
+                status("Swarm download failed, receiving " + member.name + " from one sender");
+                return;
+            }
+            status("Error: swarm download of " + member.name + " failed");
+        });
+    }
+
+    /** Dissolves a finished swarm, stopping any batches still racing, and returns its members. */
+    private List<SwarmMember> endSwarm(SwarmDownload swarm, String outcome) {
+        swarms.values().remove(swarm);
+        List<SwarmMember> members = new ArrayList<>();
+        for (Iterator<SwarmMember> it = swarmMembers.values().iterator(); it.hasNext(); ) {
+            SwarmMember member = it.next();
+            if (member.swarm != swarm) continue;
+            it.remove();
+            members.add(member);
+            if (member.payloadId != -1) transport.cancel(member.payloadId);
+            TransferMetrics m = metrics.remove(metricsId(member.endpointId, member.cp.transferId));
+            if (m != null) finishMetrics(m, outcome);
+        }
+        return members;
+    }
+
+    /**
+     * Takes a sender out of its swarms; its outstanding segments go to the others. A
+     * swarm left with no senders is kept, so whatever it has can be finished if one
+     * of them offers the file again.
+     */
+    private void leaveSwarms(String endpointId) {
+        Set<SwarmDownload> affected = new HashSet<>();
+        for (Iterator<SwarmMember> it = swarmMembers.values().iterator(); it.hasNext(); ) {
+            SwarmMember member = it.next();
+            if (!member.endpointId.equals(endpointId)) continue;
+            it.remove();
+            member.swarm.planner().removePeer(endpointId);
+            affected.add(member.swarm);
+        }
+        for (SwarmDownload swarm : affected) fetchNext(swarm);
+    }
+
+    /** DELTA SYNC **/
+
+    /**
+     * Asks for a delta against an earlier copy of the file in Downloads, sending the
+     * copy's block signature encrypted with the transfer key. Without a large enough
+     * copy, runs {@code otherwise} on the main thread instead.
+     */
+    private void requestDelta(String endpointId, TransferCheckpoint cp, String name, String password,
+                              Runnable otherwise) {
+        byte[] sealed = null;
+        Uri basis = null;
+        try {
+            basis = PendingDownload.findPrevious(resolver, name);
+            if (basis != null) sealed = sealedSignature(basis, keyCache.get(password, cp.header.getKdfParams()));
+        } catch (Exception e) {
+            Log.w(TAG, "No delta for " + name, e);
+        }
+        Uri found = basis;
+        byte[] signature = sealed;
+        service.post(() -> {
+            if (!connected.contains(endpointId)) return;
+            if (signature == null) {
+                otherwise.run();
+                return;
+            }
+            deltaBases.put(metricsId(endpointId, cp.transferId), found);
+            Transport.Payload stream = transport.stream(new ByteArrayInputStream(signature));
+            ControlMessage.DeltaRequest request = new ControlMessage.DeltaRequest(cp.transferId, stream.getId());
+            transport.send(endpointId, transport.bytes(request.toBytes()));
+            transport.send(endpointId, stream);
+            status("Found an earlier copy of " + name + ", asking for the changes only");
+        });
+    }
+
+    /** The encrypted signature of {@code basis}, or null if it is too small to bother. */
+    private byte[] sealedSignature(Uri basis, PasswordKey key) throws IOException, GeneralSecurityException {
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(basis, "r")) {
+            if (pfd == null || pfd.getStatSize() < DeltaSync.MIN_BASIS_BYTES) return null;
+            DeltaSync.Signature sig;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(pfd.getFileDescriptor()),
+                    StreamHeader.DEFAULT_SEGMENT_SIZE)) {
+                sig = DeltaSync.Signature.compute(in, pfd.getStatSize());
+            }
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            sig.write(plain);
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            StreamingAead.encrypt(key, new ByteArrayInputStream(plain.toByteArray()), sealed,
+                    StreamHeader.DEFAULT_SEGMENT_SIZE);
+            return sealed.toByteArray();
+        }
+    }
+
+    /**
+     * Rebuilds the new version from the earlier copy and a decrypted delta, into a
+     * pending download that is only published if it matches the offer's content hash.
+     * Otherwise it is discarded and the whole file requested instead.
+     */
+    private void applyDelta(String endpointId, Transport.Payload payload, String password, TransferCheckpoint cp,
+                            BatchManifest batch, Uri basis, TransferMetrics m) {
+        ControlMessage.Entry entry = batch != null ? single(batch.entriesFor(cp.transferId)) : null;
+        String fileName = entry != null ? entry.name : cp.fileName;
+        String mime = entry != null ? entry.mimeType : MimeTypes.fromName(cp.fileName);
+        boolean plain = cp.header.getCodec() == Compression.NONE;
+        File delta = null;
+        try {
+            SecretKey key = keyFor(cp, password, m);
+            delta = File.createTempFile("delta", ".tmp", context.getCacheDir());
+            m.begin(TransferMetrics.Stage.DECRYPT);
+            try (FileChannel ch = payload.openFile();
+                 InputStream in = new BufferedInputStream(Channels.newInputStream(ch), StreamHeader.DEFAULT_SEGMENT_SIZE);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(delta), StreamHeader.DEFAULT_SEGMENT_SIZE)) {
+                StreamingAead.decrypt(key, in, out);
+            }
+            m.end(TransferMetrics.Stage.DECRYPT, delta.length());
+
+            m.begin(TransferMetrics.Stage.SAVE);
+            try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(basis, "r");
+                 InputStream in = new BufferedInputStream(new FileInputStream(delta), StreamHeader.DEFAULT_SEGMENT_SIZE);
+                 PendingDownload download = PendingDownload.create(resolver, fileName, mime,
+                         plain ? cp.plaintextSize() : 0)) {
+                if (pfd == null) throw new FileNotFoundException(basis.toString());
+                MessageDigest sha = ContentHash.sha256();
+                long size;
+                try (FileChannel old = new FileInputStream(pfd.getFileDescriptor()).getChannel()) {
+                    OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                            Channels.newOutputStream(download.channel()), StreamHeader.DEFAULT_SEGMENT_SIZE), sha);
+                    size = DeltaSync.patch(old, in, out);
+                    out.flush();
+                }
+                if (!MessageDigest.isEqual(sha.digest(), cp.contentHash))
+                    throw new IOException("Rebuilt file does not match the sender's");
+                download.publish(size);
+                index.put(cp.contentHash, download.getUri(), size);
+                m.end(TransferMetrics.Stage.SAVE, size);
+                finishMetrics(m, "ok");
+                deleteCheckpoint(cp.transferId);
+                showNotification(download.getUri(), fileName);
+                status("Updated: " + fileName + " (" + delta.length() + " bytes of changes)");
+            }
+        } catch (AEADBadTagException e) {
+            finishMetrics(m, "wrong_password");
+            status("❌ Wrong password! File not saved.");
+        } catch (Exception e) {
+            Log.w(TAG, "Delta for " + fileName + " failed, asking for the whole file", e);
+            finishMetrics(m, "delta_failed");
+            service.post(() -> {
+                if (!connected.contains(endpointId)) return;
+                metrics.put(metricsId(endpointId, cp.transferId), newMetrics(endpointId, cp));
+                transport.send(endpointId, transport.bytes(resumeFor(cp, new BitSet()).toBytes()));
+            });
+        } finally {
+            if (delta != null) delta.delete();
+        }
+    }
+
+    private void salvageLater(long payloadId) {
+        IncomingData data = incoming.remove(payloadId);
+        if (data == null || data.transferId == null || data.payload.getType() != Transport.Payload.FILE
+                || data.delta) return;
+        Map<String, TransferCheckpoint> offered = transfers.get(data.endpointId);
+        TransferCheckpoint cp = offered != null ? offered.get(data.transferId) : null;
+        if (cp == null) return;
+        service.inbound().execute(WorkQueue.PRIORITY_LOW, () -> salvage(cp, data.payload, data.bytesTransferred));
+    }
+
+    /** Keeps the verified prefix of an interrupted FILE payload for the next attempt. */
+    private void salvage(TransferCheckpoint cp, Transport.Payload payload, long available) {
+        try (FileChannel in = payload.openFile();
+             RandomAccessFile part = new RandomAccessFile(partFile(cp.transferId), "rw")) {
+            new SegmentReceiver(cp, checkpointFile(cp.transferId), part.getChannel(), keyFor(cp, enteredPassword))
+                    .salvage(in, available);
+            status("Interrupted. " + cp.verifiedCount() + "/"
+                + cp.segmentCount + " segments kept for resume.");
+        } catch (Exception e) {
+            Log.w(TAG, "Salvage failed", e);
+        }
+    }
+
+    private void receiveSegments(TransferCheckpoint cp, BatchManifest batch, InputStream frames,
+                                 CreditFlow.Window credit, TransferMetrics m) {
+        try (RandomAccessFile part = new RandomAccessFile(partFile(cp.transferId), "rw")) {
+            SecretKey key = keyFor(cp, enteredPassword, m);
+            // Segments are verified and opened as they arrive, overlapping the transfer
+            m.begin(TransferMetrics.Stage.DECRYPT);
+            new SegmentReceiver(cp, checkpointFile(cp.transferId), part.getChannel(), key).receive(frames, credit);
+            m.end(TransferMetrics.Stage.DECRYPT, part.length());
+            if (!cp.isComplete()) {
+                finishMetrics(m, "interrupted");
+                status("Interrupted. " + cp.verifiedCount() + "/"
+                    + cp.segmentCount + " segments kept for resume.");
+                return;
+            }
+            part.setLength(cp.plaintextSize());
+        } catch (AEADBadTagException e) {
+            finishMetrics(m, "wrong_password");
+            status("❌ Wrong password! File not saved.");
+            return;
+        } catch (Exception e) {
+            Log.w(TAG, "Resumed transfer interrupted", e);
+            finishMetrics(m, "interrupted");
+            status("Interrupted. " + cp.verifiedCount() + "/"
+                + cp.segmentCount + " segments kept for resume.");
+            return;
+        }
+        publishPart(cp, batch, m);
+    }
+
+    /** Moves a completed partial output into Downloads, decoding it on the way. */
+    private void publishPart(TransferCheckpoint cp, BatchManifest batch, TransferMetrics m) {
+        File part = partFile(cp.transferId);
+        m.begin(TransferMetrics.Stage.SAVE);
+        if (batch != null && batch.isPacked(cp.transferId)) {
+            long size = part.length();
+            try (InputStream in = Compression.decoding(new FileInputStream(part), cp.header.getCodec())) {
+                unpack(cp, batch, in);
+                m.end(TransferMetrics.Stage.SAVE, size);
+                finishMetrics(m, "ok");
+            } catch (Exception e) {
+                finishMetrics(m, "failed");
+                status("Error: " + e.getMessage());
+            }
+            return;
+        }
+        ControlMessage.Entry entry = batch != null ? single(batch.entriesFor(cp.transferId)) : null;
+        String name = entry != null ? entry.name : cp.fileName;
+        String mime = entry != null ? entry.mimeType : MimeTypes.fromName(cp.fileName);
+        boolean plain = cp.header.getCodec() == Compression.NONE;
+        try (PendingDownload download = PendingDownload.create(resolver, name, mime,
+                plain ? part.length() : 0)) {
+            FileChannel out = download.channel();
+            // Segments were verified as they came in; the whole file is checked against the offer here
+            MessageDigest sha = ContentHash.sha256();
+            try (InputStream in = new DigestInputStream(
+                    Compression.decoding(new FileInputStream(part), cp.header.getCodec()), sha)) {
+                copy(in, out);
+            }
+            if (!MessageDigest.isEqual(sha.digest(), cp.contentHash))
+                throw new IOException("Received file does not match the sender's");
+            long size = out.position();
+            download.publish(size);
+            index.put(cp.contentHash, download.getUri(), size);
+            m.end(TransferMetrics.Stage.SAVE, size);
+            finishMetrics(m, "ok");
+            deleteCheckpoint(cp.transferId);
+            showNotification(download.getUri(), name);
+            status("Decrypted: " + name);
+        } catch (Exception e) {
+            finishMetrics(m, "failed");
+            status("Error: " + e.getMessage());
+        }
+    }
+
+    private static ControlMessage.Entry single(List<ControlMessage.Entry> entries) {
+        return entries.size() == 1 ? entries.get(0) : null;
+    }
+
+    /** Splits a decoded archive into its files, publishing each once its hash checks out. */
+    private void unpack(TransferCheckpoint cp, BatchManifest batch, InputStream in) throws IOException {
+        List<ControlMessage.Entry> entries = batch.entriesFor(cp.transferId);
+        DownloadSink sink = new DownloadSink();
+        try (BatchArchive.Unpacker unpacker = new BatchArchive.Unpacker(entries, sink)) {
+            byte[] buffer = new byte[StreamHeader.DEFAULT_SEGMENT_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                unpacker.write(buffer, 0, n);
+            }
+            unpacker.finish();
+        }
+        deleteCheckpoint(cp.transferId);
+        showBatchNotification(entries.size());
+        status("Received " + entries.size() + " files");
+    }
+
+    /**
+     * Writes unpacked files to pending Downloads rows, one at a time. Files already
+     * received in an earlier batch are still verified, but not saved a second time.
+     */
+    private final class DownloadSink implements BatchArchive.Sink {
+        private PendingDownload current;
+
+        @Override
+        public OutputStream open(ControlMessage.Entry entry) throws IOException {
+            if (index.find(entry.contentHash) != null) {
+                current = null;
+                return DISCARD;
+            }
+            current = PendingDownload.create(resolver, entry.name, entry.mimeType, entry.size);
+            return new BufferedOutputStream(Channels.newOutputStream(current.channel()),
+                    StreamHeader.DEFAULT_SEGMENT_SIZE);
+        }
+
+        @Override
+        public void publish(ControlMessage.Entry entry) throws IOException {
+            if (current == null) return;
+            current.publish(entry.size);
+            index.put(entry.contentHash, current.getUri(), entry.size);
+            current = null;
+        }
+
+        @Override
+        public void discard(ControlMessage.Entry entry) {
+            if (current != null) current.close();
+            current = null;
+        }
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    private static void copy(InputStream in, FileChannel out) throws IOException {
+        OutputStream os = Channels.newOutputStream(out);
+        byte[] buffer = new byte[StreamHeader.DEFAULT_SEGMENT_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            os.write(buffer, 0, n);
+        }
+    }
+
+    private void deleteCheckpoint(String transferId) {
+        checkpointFile(transferId).delete();
+        partFile(transferId).delete();
+    }
+
+    /** DECRYPT AND SAVE **/
+    private SecretKey keyFor(TransferCheckpoint cp, String password) throws GeneralSecurityException {
+        return keyCache.get(password, cp.header.getKdfParams()).key;
+    }
+
+    /** Refuses a payload sealed under another header than the one its offer described. */
+    private static void checkHeader(FileChannel payload, TransferCheckpoint cp) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(StreamHeader.LENGTH);
+        ParallelSegmentEngine.readFully(payload, header, 0);
+        if (header.hasRemaining() || !MessageDigest.isEqual(header.array(), cp.header.toBytes()))
+            throw new IOException("Payload does not match its offer");
+    }
+
+    private void decryptAndSave(Transport.Payload payload, String password, TransferCheckpoint cp,
+                                BatchManifest batch, TransferMetrics m) {
+        if (batch != null && batch.isPacked(cp.transferId)) {
+            // Archives are decrypted in order and split into files on the fly
+            try (FileChannel ch = payload.openFile();
+                 InputStream in = new BufferedInputStream(Channels.newInputStream(ch),
+                         StreamHeader.DEFAULT_SEGMENT_SIZE)) {
+                checkHeader(ch, cp);
+                SecretKey key = keyFor(cp, password, m);
+                List<ControlMessage.Entry> entries = batch.entriesFor(cp.transferId);
+                // Decryption and the writes into Downloads are one pass here
+                m.begin(TransferMetrics.Stage.DECRYPT);
+                long size;
+                try (BatchArchive.Unpacker unpacker = new BatchArchive.Unpacker(entries, new DownloadSink())) {
+                    size = StreamingAead.decrypt(key, in, unpacker);
+                    unpacker.finish();
+                }
+                m.end(TransferMetrics.Stage.DECRYPT, size);
+                finishMetrics(m, "ok");
+                deleteCheckpoint(cp.transferId);
+                showBatchNotification(entries.size());
+                status("Received " + entries.size() + " files");
+            } catch (AEADBadTagException e) {
+                finishMetrics(m, "wrong_password");
+                status("❌ Wrong password! File not saved.");
+            } catch (Exception e) {
+                finishMetrics(m, "failed");
+                status("Error: " + e.getMessage());
+            }
+            return;
+        }
+
+        ControlMessage.Entry entry = batch != null ? single(batch.entriesFor(cp.transferId)) : null;
+        String fileName = entry != null ? entry.name : cp.fileName;
+        String mime = entry != null ? entry.mimeType : MimeTypes.fromName(cp.fileName);
+        boolean plain = cp.header.getCodec() == Compression.NONE;
+        try (FileChannel in = payload.openFile();
+             PendingDownload download = PendingDownload.create(resolver, fileName, mime,
+                     plain ? cp.plaintextSize() : 0)) {
+            checkHeader(in, cp);
+            SecretKey key = keyFor(cp, password, m);
+            FileChannel out = download.channel();
+
+            m.begin(TransferMetrics.Stage.DECRYPT);
+            long size;
+            byte[] hash;
+            if (plain) {
+                // Segments are verified independently and opened on all cores, at their final offsets
+                size = engine.decrypt(key, in, in.size(), out);
+                hash = download.hash(size);
+            } else {
+                // Compressed content has to be inflated in order, so stream it
+                MessageDigest sha = ContentHash.sha256();
+                InputStream src = new BufferedInputStream(Channels.newInputStream(in), StreamHeader.DEFAULT_SEGMENT_SIZE);
+                OutputStream sink = new DigestOutputStream(new BufferedOutputStream(Channels.newOutputStream(out),
+                        StreamHeader.DEFAULT_SEGMENT_SIZE), sha);
+                StreamingAead.decrypt(key, src, sink);
+                sink.flush();
+                size = out.position();
+                hash = sha.digest();
+            }
+            m.end(TransferMetrics.Stage.DECRYPT, size);
+            // The sender's key vouches for the segments, the offer's hash for the whole file
+            if (!MessageDigest.isEqual(hash, cp.contentHash))
+                throw new IOException("Decrypted file does not match the sender's");
+            // Only verified content becomes visible
+            m.begin(TransferMetrics.Stage.SAVE);
+            download.publish(size);
+            index.put(cp.contentHash, download.getUri(), size);
+            m.end(TransferMetrics.Stage.SAVE, size);
+            finishMetrics(m, "ok");
+            deleteCheckpoint(cp.transferId);
+
+            showNotification(download.getUri(), fileName);
+            status("Decrypted: " + fileName);
+
+        } catch (AEADBadTagException e) {
+            finishMetrics(m, "wrong_password");
+            status("❌ Wrong password! File not saved.");
+        } catch (Exception e) {
+            finishMetrics(m, "failed");
+            status("Error: " + e.getMessage());
+        }
+    }
+
+    /** NOTIFICATION **/
+    private void showNotification(Uri uri, String fileName) {
+        Intent open = new Intent(Intent.ACTION_VIEW);
+        open.setDataAndType(uri, resolver.getType(uri));
+        open.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        PendingIntent pi = PendingIntent.getActivity(context, 0, open, PendingIntent.FLAG_IMMUTABLE);
+
+        NotificationCompat.Builder nb = new NotificationCompat.Builder(context, TransferService.RECEIVED_CHANNEL_ID)
+                .setContentTitle("📥 File Received")
+                .setContentText("Tap to open: " + fileName)
+                .setSmallIcon(android.R.drawable.stat_sys_download_done)
+                .setContentIntent(pi)
+                .setAutoCancel(true);
+
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify((int) System.currentTimeMillis(), nb.build());
+    }
+
+    private void showBatchNotification(int count) {
+        Intent open = new Intent(DownloadManager.ACTION_VIEW_DOWNLOADS);
+        PendingIntent pi = PendingIntent.getActivity(context, 0, open, PendingIntent.FLAG_IMMUTABLE);
+
+        NotificationCompat.Builder nb = new NotificationCompat.Builder(context, TransferService.RECEIVED_CHANNEL_ID)
+                .setContentTitle("📥 " + count + " Files Received")
+                .setContentText("Tap to open Downloads")
+                .setSmallIcon(android.R.drawable.stat_sys_download_done)
+                .setContentIntent(pi)
+                .setAutoCancel(true);
+
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify((int) System.currentTimeMillis(), nb.build());
+    }
+}
@@ -1,72 +1,97 @@
 package com.example.passcast;
 
 import android.Manifest;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.content.ContentValues;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.os.*;
-import android.provider.MediaStore;
-import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.*;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
-import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
 
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.*;
-
-import java.io.*;
-import java.security.MessageDigest;
 import java.util.*;
-import javax.crypto.*;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
+/** Lists senders in range and connects to one; receiving runs in {@link TransferService}. */
 public class ReceiverActivity extends AppCompatActivity {
 
-    private static final String TAG = "ReceiverActivity";
-    private static final String SERVICE_ID = "com.example.passcast.SERVICE_ID";
     private static final int REQUEST_PERMISSIONS = 200;
-    private static final String CHANNEL_ID = "passcast_channel";
 
     private Button btnScan;
-    private ListView lvSenders;
+    private RecyclerView rvSenders;
     private TextView tvStatus;
-    private String enteredPassword;
-    private String incomingFileName = "received_file";
 
-    private ArrayList<String> names = new ArrayList<>();
-    private Map<String, String> endpoints = new HashMap<>();
-    private ArrayAdapter<String> adapter;
+    private SenderAdapter adapter;
+    private TransferService service;
+
+    private final TransferSession.Observer observer = new TransferSession.Observer() {
+        @Override
+        public void onStatus(String status) {
+            tvStatus.setText(status);
+        }
+
+        @Override
+        public void onSendersChanged(List<EndpointRegistry.Endpoint> senders) {
+            // Diffed off the main thread; only rows that changed are redrawn
+            adapter.submitList(senders);
+        }
+    };
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((TransferService.LocalBinder) binder).getService();
+            service.receiver().addObserver(observer);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_receiver);
-        createNotificationChannel();
 
         btnScan = findViewById(R.id.btnScan);
-        lvSenders = findViewById(R.id.lvSenders);
+        rvSenders = findViewById(R.id.rvSenders);
         tvStatus = findViewById(R.id.tvStatus);
 
-        adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, names);
-        lvSenders.setAdapter(adapter);
+        adapter = new SenderAdapter(sender -> showPasswordDialog(sender.id));
+        rvSenders.setLayoutManager(new LinearLayoutManager(this));
+        rvSenders.setAdapter(adapter);
 
         btnScan.setOnClickListener(v -> checkPermissionsAndDiscover());
+    }
 
-        lvSenders.setOnItemClickListener((p, view, i, id) -> {
-            String name = names.get(i);
-            String endpointId = endpoints.get(name);
-            if (endpointId != null) showPasswordDialog(endpointId);
-        });
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, TransferService.class), connection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (service != null) {
+            service.receiver().removeObserver(observer);
+            service = null;
+        }
+        unbindService(connection);
     }
 
     /** PERMISSION HANDLING **/
@@ -107,39 +132,12 @@ public class ReceiverActivity extends AppCompatActivity {
 
     /** DISCOVERY **/
     private void startDiscovery() {
-        names.clear();
-        endpoints.clear();
-        adapter.notifyDataSetChanged();
-        tvStatus.setText("Scanning...");
-
-        Nearby.getConnectionsClient(this)
-                .startDiscovery(
-                        SERVICE_ID,
-                        discoveryCallback,
-                        new DiscoveryOptions.Builder().setStrategy(Strategy.P2P_POINT_TO_POINT).build()
-                )
-                .addOnSuccessListener(unused -> tvStatus.setText("Searching for senders..."))
-                .addOnFailureListener(e -> tvStatus.setText("Discovery failed: " + e.getMessage()));
+        if (service == null) return;
+        // Keeps discovery and any transfers going once this screen is gone
+        TransferService.start(this);
+        service.receiver().startDiscovery();
     }
 
-    private final EndpointDiscoveryCallback discoveryCallback = new EndpointDiscoveryCallback() {
-        @Override
-        public void onEndpointFound(@NonNull String endpointId, @NonNull DiscoveredEndpointInfo info) {
-            runOnUiThread(() -> {
-                if (!endpoints.containsKey(info.getEndpointName())) {
-                    names.add(info.getEndpointName());
-                    endpoints.put(info.getEndpointName(), endpointId);
-                    adapter.notifyDataSetChanged();
-                }
-            });
-        }
-
-        @Override
-        public void onEndpointLost(@NonNull String endpointId) {
-            Log.d(TAG, "Endpoint lost: " + endpointId);
-        }
-    };
-
     /** PASSWORD DIALOG **/
     private void showPasswordDialog(String endpointId) {
         EditText input = new EditText(this);
@@ -148,157 +146,68 @@ public class ReceiverActivity extends AppCompatActivity {
                 .setTitle("Connect to sender")
                 .setView(input)
                 .setPositiveButton("Connect", (d, w) -> {
-                    enteredPassword = input.getText().toString();
-                    if (enteredPassword.isEmpty()) {
+                    String password = input.getText().toString();
+                    if (password.isEmpty()) {
                         Toast.makeText(this, "Enter password", Toast.LENGTH_SHORT).show();
                         return;
                     }
-                    Nearby.getConnectionsClient(this)
-                            .requestConnection("Receiver", endpointId, connectionLifecycleCallback);
+                    if (service != null) service.receiver().connect(endpointId, password);
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
-    /** CONNECTION HANDLING **/
-    private final ConnectionLifecycleCallback connectionLifecycleCallback = new ConnectionLifecycleCallback() {
-        @Override
-        public void onConnectionInitiated(@NonNull String endpointId, @NonNull ConnectionInfo info) {
-            Nearby.getConnectionsClient(ReceiverActivity.this)
-                    .acceptConnection(endpointId, payloadCallback);
-        }
+    /** SENDER LIST **/
+    private static final DiffUtil.ItemCallback<EndpointRegistry.Endpoint> SAME_SENDER =
+            new DiffUtil.ItemCallback<EndpointRegistry.Endpoint>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull EndpointRegistry.Endpoint a, @NonNull EndpointRegistry.Endpoint b) {
+                    return a.id.equals(b.id);
+                }
 
-        @Override
-        public void onConnectionResult(@NonNull String endpointId, @NonNull ConnectionResolution res) {
-            if (res.getStatus().getStatusCode() == ConnectionsStatusCodes.STATUS_OK) {
-                tvStatus.setText("Connected. Receiving...");
-            } else {
-                tvStatus.setText("Connection failed.");
-            }
-        }
+                @Override
+                public boolean areContentsTheSame(@NonNull EndpointRegistry.Endpoint a, @NonNull EndpointRegistry.Endpoint b) {
+                    return a.equals(b);
+                }
+            };
 
-        @Override
-        public void onDisconnected(@NonNull String endpointId) {
-            tvStatus.setText("Disconnected.");
-        }
-    };
+    private interface OnSenderClick {
+        void onClick(EndpointRegistry.Endpoint sender);
+    }
 
-    /** PAYLOAD HANDLING **/
-    private final PayloadCallback payloadCallback = new PayloadCallback() {
-        @Override
-        public void onPayloadReceived(@NonNull String endpointId, @NonNull Payload payload) {
-            if (payload.asBytes() != null) {
-                incomingFileName = new String(payload.asBytes());
-                Log.d(TAG, "Filename received: " + incomingFileName);
-            } else if (payload.asFile() != null) {
-                new Thread(() -> {
-                    try {
-                        ParcelFileDescriptor pfd = payload.asFile().asParcelFileDescriptor();
-                        if (pfd != null)
-                            decryptAndSave(pfd, enteredPassword, incomingFileName);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Decryption error", e);
-                        runOnUiThread(() -> tvStatus.setText("Decryption error: " + e.getMessage()));
-                    }
-                }).start();
-            }
-        }
+    private static final class SenderAdapter extends ListAdapter<EndpointRegistry.Endpoint, SenderAdapter.Row> {
+        private final OnSenderClick onClick;
 
-        @Override
-        public void onPayloadTransferUpdate(@NonNull String endpointId, @NonNull PayloadTransferUpdate update) {
-            if (update.getStatus() == PayloadTransferUpdate.Status.SUCCESS) {
-                tvStatus.setText("Transfer complete");
-            }
+        SenderAdapter(OnSenderClick onClick) {
+            super(SAME_SENDER);
+            this.onClick = onClick;
         }
-    };
-
-    /** DECRYPT AND SAVE **/
-    private void decryptAndSave(ParcelFileDescriptor pfd, String password, String fileName) {
-        try (FileInputStream fis = new FileInputStream(pfd.getFileDescriptor())) {
-
-            // Read IV first 12 bytes
-            byte[] iv = new byte[12];
-            if (fis.read(iv) != 12)
-                throw new Exception("Invalid IV");
-
-            // Derive AES key from password
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
-            byte[] keyBytes = sha.digest(password.getBytes("UTF-8"));
-            byte[] aesKey = Arrays.copyOf(keyBytes, 16);
-            SecretKeySpec key = new SecretKeySpec(aesKey, "AES");
 
-            // Prepare cipher
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        static final class Row extends RecyclerView.ViewHolder {
+            final TextView name;
+            final TextView detail;
 
-            // Prepare output file in Downloads
-            ContentValues values = new ContentValues();
-            values.put(MediaStore.Downloads.DISPLAY_NAME, fileName);
-            values.put(MediaStore.Downloads.MIME_TYPE, getMimeTypeFromName(fileName));
-            values.put(MediaStore.Downloads.RELATIVE_PATH, "Download");
-
-            Uri outUri = getContentResolver().insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
-
-            try (OutputStream out = getContentResolver().openOutputStream(outUri);
-                 CipherInputStream cis = new CipherInputStream(fis, cipher)) {
-
-                byte[] buffer = new byte[4096];
-                int n;
-                while ((n = cis.read(buffer)) != -1) {
-                    out.write(buffer, 0, n);
-                }
+            Row(View view) {
+                super(view);
+                name = view.findViewById(android.R.id.text1);
+                detail = view.findViewById(android.R.id.text2);
             }
-
-            showNotification(outUri, fileName);
-            runOnUiThread(() -> tvStatus.setText("Decrypted: " + fileName));
-
-        } catch (AEADBadTagException e) {
-            runOnUiThread(() -> tvStatus.setText("❌ Wrong password! File not saved."));
-        } catch (Exception e) {
-            runOnUiThread(() -> tvStatus.setText("Error: " + e.getMessage()));
         }
-    }
-
-    /** DYNAMIC MIME DETECTION **/
-    private String getMimeTypeFromName(String name) {
-        String lower = name.toLowerCase(Locale.ROOT);
-        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
-        if (lower.endsWith(".png")) return "image/png";
-        if (lower.endsWith(".pdf")) return "application/pdf";
-        if (lower.endsWith(".mp4")) return "video/mp4";
-        if (lower.endsWith(".txt")) return "text/plain";
-        if (lower.endsWith(".mp3")) return "audio/mpeg";
-        if (lower.endsWith(".apk")) return "application/vnd.android.package-archive";
-        return "application/octet-stream";
-    }
-
-    /** NOTIFICATION **/
-    private void showNotification(Uri uri, String fileName) {
-        Intent open = new Intent(Intent.ACTION_VIEW);
-        open.setDataAndType(uri, getContentResolver().getType(uri));
-        open.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-
-        PendingIntent pi = PendingIntent.getActivity(this, 0, open, PendingIntent.FLAG_IMMUTABLE);
-
-        NotificationCompat.Builder nb = new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle("📥 File Received")
-                .setContentText("Tap to open: " + fileName)
-                .setSmallIcon(android.R.drawable.stat_sys_download_done)
-                .setContentIntent(pi)
-                .setAutoCancel(true);
 
-        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        nm.notify((int) System.currentTimeMillis(), nb.build());
-    }
+        @NonNull
+        @Override
+        public Row onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(parent.getContext())
+                    .inflate(android.R.layout.simple_list_item_2, parent, false);
+            return new Row(view);
+        }
 
-    /** CHANNEL **/
-    private void createNotificationChannel() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            NotificationChannel ch = new NotificationChannel(
-                    CHANNEL_ID, "PassCast", NotificationManager.IMPORTANCE_DEFAULT
-            );
-            NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-            nm.createNotificationChannel(ch);
+        @Override
+        public void onBindViewHolder(@NonNull Row row, int position) {
+            EndpointRegistry.Endpoint sender = getItem(position);
+            row.name.setText(sender.label);
+            row.detail.setText(sender.available ? "In range" : "Recently used — tap to reconnect");
+            row.itemView.setOnClickListener(v -> onClick.onClick(sender));
         }
     }
 }
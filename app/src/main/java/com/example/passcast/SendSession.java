@@ -0,0 +1,1248 @@
+package com.example.passcast;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The sender side of a broadcast: seals the selection into artifacts, advertises, and
+ * answers each receiver's offers with the segments it is missing, a few sends at a time.
+ */
+final class SendSession extends TransferSession {
+
+    private static final String TAG = "SendSession";
+    private static final long MAX_CACHE_BYTES = 2L * 1024 * 1024 * 1024;
+    private static final long REJECT_LINGER_MILLIS = 1_000;
+
+    private final ContentResolver resolver;
+    private final List<SourceFile> selectedFiles = new ArrayList<>();
+    private Compression.Stats compressionStats;
+    private boolean advertising;
+    private String broadcastName;
+
+    // The selection being hashed and sealed, off the main thread, while advertising goes ahead
+    private Preparation preparation;
+    // The one whose artifacts are on offer; what it pinned and its uncached files last as long as the broadcast
+    private Preparation onOffer;
+    private final ExecutorService preparer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "passcast-prepare");
+        t.setDaemon(true);
+        return t;
+    });
+    // Confirmed receivers that connected early, waiting for the offers
+    private final Set<String> awaitingOffers = new HashSet<>();
+
+    // Artifacts on offer in this broadcast by transfer id, and the manifest when there are several files
+    private final Map<String, Artifact> artifacts = new LinkedHashMap<>();
+    private List<ControlMessage.Manifest> manifest = Collections.emptyList();
+
+    // One send per receiver and artifact: payload id -> send id, plus resume state waiting for a send slot
+    private final Map<Long, String> dataPayloads = new HashMap<>();
+    // The payload each send is on now; an earlier one may still be finishing after a new resume
+    private final Map<String, Long> currentPayloads = new HashMap<>();
+    private final Map<String, PendingSend> pendingSends = new HashMap<>();
+    private final BroadcastScheduler scheduler;
+    // Bulk sends wait here for the Wi-Fi upgrade before they take a scheduler slot
+    private final UpgradeGate upgradeGate = new UpgradeGate();
+    // Delta requests and the signature streams they name, paired by payload id, and delta files in flight
+    private final Map<Long, ControlMessage.DeltaRequest> deltaRequests = new HashMap<>();
+    private final Map<Long, Transport.Payload> signatures = new HashMap<>();
+    private final Map<Long, File> deltaPayloads = new HashMap<>();
+    // Credit from each receiver that asked for flow control, by the stream payload it governs
+    private final Map<Long, CreditFlow.Gate> gates = new HashMap<>();
+
+    // Telemetry per send id, and when each receiver connected and reached high bandwidth
+    private final Map<String, TransferMetrics> sendMetrics = new HashMap<>();
+    private final Map<String, Long> connectedAt = new HashMap<>();
+    private final Map<String, Long> upgradeNanos = new HashMap<>();
+    private final LiveProgress liveProgress = new LiveProgress();
+
+    private final ParallelSegmentEngine engine =
+            new ParallelSegmentEngine(ParallelSegmentEngine.defaultThreads());
+    private final KeyCache keyCache = new KeyCache();
+    private final KdfParams kdfParams;
+    // The broadcast's key, which receivers prove they hold before anything is offered to them
+    private PasswordKey broadcastKey;
+    private final Map<String, Handshake> handshakes = new HashMap<>();
+    private final Set<String> confirmed = new HashSet<>();
+    private final KeyConfirmation.Backoff backoff = new KeyConfirmation.Backoff();
+    private final KeyConfirmation.ChallengeLimit challengeLimit = new KeyConfirmation.ChallengeLimit();
+    // Receivers challenged on their current connection; each gets one MAC per connection
+    private final Set<String> challenged = new HashSet<>();
+    private ArtifactCache artifactCache;
+    private final ExecutorService sealer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "passcast-seal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    SendSession(TransferService service, List<Observer> observers, int maxConcurrentSends) {
+        super(service, observers, "Ready...");
+        this.resolver = context.getContentResolver();
+        this.scheduler = new BroadcastScheduler(maxConcurrentSends, this::startSend);
+        // Stable per-device salt, so cached artifacts stay valid across sessions
+        this.kdfParams = KdfSettings.senderParams(context);
+        openArtifactCache();
+    }
+
+    /** Opens the artifact cache and drops loose artifacts left by older versions. */
+    private void openArtifactCache() {
+        File[] legacy = context.getCacheDir().listFiles((dir, name) -> name.startsWith("encrypted_"));
+        if (legacy != null) {
+            for (File f : legacy) f.delete();
+        }
+        File dir = new File(context.getCacheDir(), "artifacts");
+        long budget = Math.min(MAX_CACHE_BYTES, context.getCacheDir().getUsableSpace() / 2);
+        try {
+            artifactCache = new ArtifactCache(dir, Math.max(budget, 1));
+            Log.i(TAG, artifactCache.stats().toString());
+        } catch (IOException e) {
+            Log.w(TAG, "Artifact cache unavailable", e);
+        }
+    }
+
+    /** Starts deriving the key for a password that is still being typed. */
+    void prefetchKey(String password) {
+        keyCache.prefetch(password, kdfParams, true);
+    }
+
+    void setMaxConcurrentSends(int sends) {
+        scheduler.setMaxConcurrent(sends);
+    }
+
+    @Override
+    boolean isActive() {
+        return advertising || preparation != null || !dataPayloads.isEmpty();
+    }
+
+    /**
+     * Seals {@code files} and advertises them as {@code name}, replacing any earlier
+     * broadcast. Sealing runs in the background; advertising starts at once, and
+     * receivers that connect before the files are ready wait for their offers.
+     */
+    void start(String name, String password, List<SourceFile> files) {
+        cancelPreparation();
+        endOffer();
+        selectedFiles.clear();
+        selectedFiles.addAll(files);
+        broadcastName = name;
+        broadcastKey = null;
+        artifacts.clear();
+        manifest = Collections.emptyList();
+        compressionStats = null;
+
+        Preparation p = new Preparation(files);
+        preparation = p;
+        p.task = preparer.submit(() -> prepare(p, password));
+        status("Preparing " + (files.size() == 1 ? files.get(0).name : files.size() + " files") + "...");
+        // The swarm tag names the content, so a swarm sender can only advertise once it is hashed
+        if (!service.isSwarm()) advertise(name);
+    }
+
+    private void advertise(String advertisedName) {
+        advertising = true;
+        transport.startAdvertising(advertisedName, connectionListener).whenComplete((unused, e) -> {
+            if (e != null) {
+                advertising = false;
+                status("Broadcast failed: " + e.getMessage());
+                service.stopIfIdle();
+                return;
+            }
+            if (preparation == null) status(broadcastStatus());
+        });
+    }
+
+    private String broadcastStatus() {
+        return "Broadcasting as " + broadcastName
+                + (selectedFiles.size() > 1 ? " — " + selectedFiles.size() + " files in "
+                        + artifacts.size() + " payloads" : "")
+                + (compressionStats != null ? " — compressed " + compressionStats : "")
+                + (artifactCache != null ? "\n" + artifactCache.stats() : "");
+    }
+
+    /** Calls off a preparation still running; the files it was reading are closed as it unwinds. */
+    private void cancelPreparation() {
+        if (preparation != null) {
+            preparation.canceled = true;
+            preparation.task.cancel(true);
+            release(preparation);
+            preparation = null;
+        }
+        awaitingOffers.clear();
+    }
+
+    private void endOffer() {
+        if (onOffer != null) release(onOffer);
+        onOffer = null;
+    }
+
+    /**
+     * Stops {@code p}'s background seals, lets the cache evict what it pinned and deletes
+     * the artifacts it sealed without a cache; once only, from whichever thread sees it
+     * end first.
+     */
+    private void release(Preparation p) {
+        synchronized (p) {
+            if (p.released) return;
+            p.released = true;
+            for (Seal seal : p.seals) {
+                seal.progress.cancel();
+                // One still queued never runs, so nothing else deletes its file
+                if (seal.task.cancel(false)) seal.outFile.delete();
+            }
+            p.seals.clear();
+            for (String cacheKey : p.pins) artifactCache.unpin(cacheKey);
+            for (File f : p.temporaries) f.delete();
+            p.pins.clear();
+            p.temporaries.clear();
+        }
+    }
+
+    @Override
+    void close() {
+        advertising = false;
+        cancelPreparation();
+        endOffer();
+        for (String id : new ArrayList<>(sendMetrics.keySet())) finishMetrics(id, "stopped");
+        preparer.shutdownNow();
+        sealer.shutdownNow();
+        engine.close();
+        keyCache.close();
+    }
+
+    /** A file picked for sending; {@code name} may carry a relative folder path. */
+    static final class SourceFile {
+        final Uri uri;
+        final String name;
+        final long size;
+        final String mimeType;
+
+        SourceFile(Uri uri, String name, long size, String mimeType) {
+            this.uri = uri;
+            this.name = name;
+            this.size = size;
+            this.mimeType = mimeType;
+        }
+    }
+
+    /** One encrypted artifact on offer: a single file or an archive of small ones. */
+    private static final class Artifact {
+        final ControlMessage.Offer offer;
+        File file;
+        // Non-null while the artifact is still being sealed in the background
+        ArtifactProgress sealing;
+        // Key derivation, hashing and sealing, shared by every send of this artifact
+        final TransferMetrics prep;
+        // The file itself, for deltas against a receiver's older copy; null for archives
+        final Uri source;
+        final PasswordKey key;
+
+        Artifact(ControlMessage.Offer offer, File file, ArtifactProgress sealing, TransferMetrics prep, Uri source,
+                 PasswordKey key) {
+            this.offer = offer;
+            this.file = file;
+            this.sealing = sealing;
+            this.prep = prep;
+            this.source = source;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Key confirmation with one receiver: its nonce from the {@link ControlMessage.Hello},
+     * then the challenge it was sent and the key that challenge proved.
+     */
+    private static final class Handshake {
+        final byte[] receiverNonce;
+        byte[] senderNonce;
+        PasswordKey key;
+
+        Handshake(byte[] receiverNonce) {
+            this.receiverNonce = receiverNonce;
+        }
+    }
+
+    /** A pipelined seal on the sealer thread, called off with the broadcast it was for. */
+    private static final class Seal {
+        final ArtifactProgress progress;
+        final File outFile;
+        Future<?> task;
+
+        Seal(ArtifactProgress progress, File outFile) {
+            this.progress = progress;
+            this.outFile = outFile;
+        }
+    }
+
+    private static final class PendingSend {
+        final String endpointId;
+        final String transferId;
+        final BitSet verified;
+        // An encrypted delta to send instead of the artifact, or null
+        final File delta;
+        // The receiver's initial credit for a stream, or 0 for none
+        final int window;
+
+        PendingSend(String endpointId, String transferId, BitSet verified, File delta, int window) {
+            this.endpointId = endpointId;
+            this.transferId = transferId;
+            this.verified = verified;
+            this.delta = delta;
+            this.window = window;
+        }
+    }
+
+    /**
+     * One run of {@link #prepare} on the preparer thread: the artifacts it has built, which
+     * the main thread takes over once it is done, and the progress of its current step.
+     */
+    private static final class Preparation {
+        final List<SourceFile> files;
+        final Map<String, Artifact> artifacts = new LinkedHashMap<>();
+        List<ControlMessage.Manifest> manifest = Collections.emptyList();
+        Compression.Stats compressionStats;
+        Future<?> task;
+        volatile boolean canceled;
+        // Chosen on the preparer thread before anything is sealed
+        byte cipherSuite = CipherSuite.AES_GCM;
+        // Background seals, cache keys pinned and artifact files made outside the cache;
+        // guarded by the preparation
+        final List<Seal> seals = new ArrayList<>();
+        final List<String> pins = new ArrayList<>();
+        final List<File> temporaries = new ArrayList<>();
+        boolean released;
+
+        // Touched by the preparer thread only
+        private final LiveProgress progress = new LiveProgress();
+        private String step;
+        private long stepBytes;
+        private long stepTotal;
+
+        Preparation(List<SourceFile> files) {
+            this.files = new ArrayList<>(files);
+        }
+    }
+
+    /** Names the next pass over the data, of {@code total} bytes or -1 if unknown. */
+    private void beginStep(Preparation p, String step, long total) {
+        p.step = step;
+        p.stepBytes = 0;
+        p.stepTotal = total;
+        status(step + "...");
+    }
+
+    /** Input for a preparation: counts what is read for progress, and stops once it is called off. */
+    private final class PreparationInput extends FilterInputStream {
+        private final Preparation p;
+
+        PreparationInput(InputStream in, Preparation p) {
+            super(in);
+            this.p = p;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (p.canceled) throw new InterruptedIOException("Broadcast replaced");
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                p.stepBytes += n;
+                LiveProgress.Snapshot snapshot = p.progress.update(p.stepBytes, p.stepTotal);
+                if (snapshot != null) status(p.step + "\n" + snapshot);
+            }
+            return n;
+        }
+    }
+
+    private InputStream open(Uri uri, Preparation p) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) throw new FileNotFoundException(uri.toString());
+        return new PreparationInput(in, p);
+    }
+
+    /** Runs on the preparer thread; hands the key, then the artifacts, to the main thread. */
+    private void prepare(Preparation p, String password) {
+        try {
+            // Usually already derived in the background while the password was typed
+            long kdfStart = System.nanoTime();
+            PasswordKey key = keyCache.get(password, kdfParams);
+            long kdfNanos = System.nanoTime() - kdfStart;
+            service.post(() -> onKeyReady(p, key));
+            p.cipherSuite = service.broadcastCipherSuite();
+            Log.i(TAG, "Sealing with " + CipherSuite.name(p.cipherSuite));
+            build(p, key, kdfNanos);
+            service.post(() -> onPrepared(p));
+        } catch (Exception e) {
+            release(p);
+            if (p.canceled) return;
+            Log.w(TAG, "Preparing the broadcast failed", e);
+            service.post(() -> {
+                if (preparation != p) return;
+                preparation = null;
+                status("Error: " + e.getMessage());
+                service.stopIfIdle();
+            });
+        }
+    }
+
+    /**
+     * Builds the artifacts for the selection. A single file is offered on its own; several
+     * are described by a manifest, with small files packed into shared archives.
+     */
+    private void build(Preparation p, PasswordKey key, long kdfNanos) throws Exception {
+        if (p.files.size() == 1) {
+            SourceFile f = p.files.get(0);
+            TransferMetrics prep = newPrep(kdfNanos);
+            addArtifact(p, prepareFile(p, f, hashOf(p, f, new long[1], prep), key, prep));
+            return;
+        }
+
+        long[] sizes = new long[p.files.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            // Unknown sizes can't be packed; they go out as files of their own
+            sizes[i] = p.files.get(i).size < 0 ? Long.MAX_VALUE : p.files.get(i).size;
+        }
+        List<ControlMessage.Entry> entries = new ArrayList<>();
+        for (BatchPlan.Group group : BatchPlan.plan(sizes)) {
+            TransferMetrics prep = newPrep(kdfNanos);
+            if (group.packed) {
+                prepareArchive(p, group.members, key, entries, prep);
+            } else {
+                SourceFile f = p.files.get(group.members.get(0));
+                long[] size = new long[1];
+                byte[] hash = hashOf(p, f, size, prep);
+                Artifact a = prepareFile(p, f, hash, key, prep);
+                addArtifact(p, a);
+                entries.add(new ControlMessage.Entry(f.name, size[0], mimeOf(f), hash, a.offer.transferId, false));
+            }
+        }
+        p.manifest = ControlMessage.Manifest.split(UUID.randomUUID().toString(), entries);
+    }
+
+    /** The key is ready: receivers that said hello while it was derived can be challenged. */
+    private void onKeyReady(Preparation p, PasswordKey key) {
+        if (preparation != p) return;
+        broadcastKey = key;
+        for (Map.Entry<String, Handshake> e : new ArrayList<>(handshakes.entrySet())) {
+            if (e.getValue().senderNonce == null) challenge(e.getKey(), e.getValue());
+        }
+    }
+
+    /** Takes over the finished artifacts and sends offers to everyone who was waiting for them. */
+    private void onPrepared(Preparation p) {
+        if (preparation != p) {
+            release(p);
+            return;
+        }
+        preparation = null;
+        onOffer = p;
+        artifacts.putAll(p.artifacts);
+        manifest = p.manifest;
+        compressionStats = p.compressionStats;
+        if (service.isSwarm()) {
+            advertise(EndpointRegistry.advertisedName(broadcastName, contentTag()));
+        } else if (advertising) {
+            status(broadcastStatus());
+        }
+        for (String endpointId : awaitingOffers) {
+            if (confirmed.contains(endpointId)) sendOffers(endpointId);
+        }
+        awaitingOffers.clear();
+    }
+
+    /**
+     * A short tag for the files on offer, the same on every device offering them, so
+     * a receiver can find all of them and fetch from each at once.
+     */
+    private String contentTag() {
+        List<String> hashes = new ArrayList<>();
+        for (Artifact a : artifacts.values()) hashes.add(ContentHash.hex(a.offer.contentHash));
+        Collections.sort(hashes);
+        MessageDigest sha = ContentHash.sha256();
+        for (String h : hashes) sha.update(h.getBytes(StandardCharsets.US_ASCII));
+        return ContentHash.hex(sha.digest()).substring(0, 12);
+    }
+
+    /** Stage timings for preparing one artifact; never logged on its own. */
+    private static TransferMetrics newPrep(long kdfNanos) {
+        TransferMetrics prep = new TransferMetrics(null, TransferMetrics.SEND, null);
+        prep.record(TransferMetrics.Stage.KDF, kdfNanos, 0);
+        return prep;
+    }
+
+    private static void addArtifact(Preparation p, Artifact a) {
+        p.artifacts.put(a.offer.transferId, a);
+    }
+
+    private String mimeOf(SourceFile f) {
+        String mime = f.mimeType;
+        if (mime == null || mime.equals("application/octet-stream")) mime = MimeTypes.fromName(f.name);
+        return mime;
+    }
+
+    /** SHA-256 of the content; the number of bytes read is left in {@code sizeOut[0]}. */
+    private byte[] hashOf(Preparation p, SourceFile f, long[] sizeOut, TransferMetrics prep) throws IOException {
+        beginStep(p, "Checking " + f.name, f.size);
+        prep.begin(TransferMetrics.Stage.HASH);
+        try (InputStream in = open(f.uri, p)) {
+            MessageDigest sha = ContentHash.sha256();
+            byte[] buf = new byte[64 * 1024];
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                sha.update(buf, 0, n);
+                total += n;
+            }
+            sizeOut[0] = total;
+            byte[] hash = sha.digest();
+            prep.end(TransferMetrics.Stage.HASH, total);
+            return hash;
+        }
+    }
+
+    /**
+     * Reuses the cached artifact for this content, key and format if there is one,
+     * otherwise seals the file and stores the result. Seekable, incompressible files
+     * are sealed in the background and streamed to receivers while that runs.
+     */
+    private Artifact prepareFile(Preparation p, SourceFile f, byte[] contentHash, PasswordKey key,
+                                 TransferMetrics prep) throws Exception {
+        byte codec = chooseCodec(f);
+        String cacheKey = ArtifactCache.key(contentHash, ArtifactCache.keyId(key.key),
+                StreamHeader.DEFAULT_SEGMENT_SIZE, codec, p.cipherSuite);
+        pin(p, cacheKey);
+        File artifact = artifactCache != null ? artifactCache.get(cacheKey) : null;
+        if (artifact == null) {
+            File outFile = newArtifactFile(p);
+            long size = codec == Compression.NONE ? statSize(f.uri) : -1;
+            if (size >= 0) return sealInBackground(p, f, key, size, contentHash, cacheKey, outFile, prep);
+
+            beginStep(p, "Encrypting " + f.name, f.size);
+            prep.begin(TransferMetrics.Stage.ENCRYPT);
+            try (InputStream in = open(f.uri, p)) {
+                encrypt(p, in, key, codec, outFile);
+            } catch (Exception e) {
+                outFile.delete();
+                throw e;
+            }
+            prep.end(TransferMetrics.Stage.ENCRYPT, outFile.length());
+            artifact = artifactCache != null ? artifactCache.put(cacheKey, outFile) : outFile;
+        }
+        if (artifactCache != null) Log.i(TAG, artifactCache.stats().toString());
+        return new Artifact(buildOffer(f.name, contentHash, readHeader(artifact), artifact.length()), artifact, null,
+                prep, f.uri, key);
+    }
+
+    /**
+     * Packs small files back to back into one artifact. Every file is hashed for the
+     * manifest in the same pass that hashes the archive for the cache.
+     */
+    private void prepareArchive(Preparation p, List<Integer> members, PasswordKey key,
+                                List<ControlMessage.Entry> entries, TransferMetrics prep) throws Exception {
+        long[] sizes = new long[members.size()];
+        byte[][] hashes = new byte[members.size()][];
+        MessageDigest archiveSha = ContentHash.sha256();
+        byte[] buf = new byte[64 * 1024];
+        boolean allPrecompressed = true;
+        long knownSize = 0;
+        for (int i : members) knownSize += p.files.get(i).size;
+        beginStep(p, "Checking " + members.size() + " files", knownSize);
+        prep.begin(TransferMetrics.Stage.HASH);
+        for (int i = 0; i < members.size(); i++) {
+            SourceFile f = p.files.get(members.get(i));
+            allPrecompressed &= Compression.isPrecompressed(mimeOf(f));
+            MessageDigest sha = ContentHash.sha256();
+            try (InputStream in = open(f.uri, p)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    sha.update(buf, 0, n);
+                    archiveSha.update(buf, 0, n);
+                    sizes[i] += n;
+                }
+            }
+            hashes[i] = sha.digest();
+        }
+        byte[] archiveHash = archiveSha.digest();
+        long archiveSize = 0;
+        for (long size : sizes) archiveSize += size;
+        prep.end(TransferMetrics.Stage.HASH, archiveSize);
+
+        BatchArchive.Opener opener = i -> open(p.files.get(members.get(i)).uri, p);
+        byte codec = Compression.NONE;
+        if (!allPrecompressed) {
+            try (InputStream in = BatchArchive.pack(sizes, opener)) {
+                byte[] sample = new byte[Compression.SAMPLE_SIZE];
+                codec = Compression.choose(null, sample, StreamingAead.readFully(in, sample, sample.length));
+            }
+        }
+
+        String cacheKey = ArtifactCache.key(archiveHash, ArtifactCache.keyId(key.key),
+                StreamHeader.DEFAULT_SEGMENT_SIZE, codec, p.cipherSuite);
+        pin(p, cacheKey);
+        File artifact = artifactCache != null ? artifactCache.get(cacheKey) : null;
+        if (artifact == null) {
+            beginStep(p, "Encrypting " + members.size() + " files", archiveSize);
+            File outFile = newArtifactFile(p);
+            prep.begin(TransferMetrics.Stage.ENCRYPT);
+            try (InputStream in = BatchArchive.pack(sizes, opener)) {
+                encrypt(p, in, key, codec, outFile);
+            } catch (Exception e) {
+                outFile.delete();
+                throw e;
+            }
+            prep.end(TransferMetrics.Stage.ENCRYPT, outFile.length());
+            artifact = artifactCache != null ? artifactCache.put(cacheKey, outFile) : outFile;
+        }
+
+        Artifact a = new Artifact(buildOffer(members.size() + " files", archiveHash, readHeader(artifact),
+                artifact.length()), artifact, null, prep, null, key);
+        addArtifact(p, a);
+        for (int i = 0; i < members.size(); i++) {
+            SourceFile f = p.files.get(members.get(i));
+            entries.add(new ControlMessage.Entry(f.name, sizes[i], mimeOf(f), hashes[i], a.offer.transferId, true));
+        }
+    }
+
+    /**
+     * Keeps a cached artifact from being evicted, by the rest of this selection as much as
+     * anything, for as long as {@code p}'s broadcast may offer it.
+     */
+    private void pin(Preparation p, String cacheKey) throws IOException {
+        if (artifactCache == null) return;
+        synchronized (p) {
+            if (p.released) throw new InterruptedIOException("Broadcast replaced");
+            artifactCache.pin(cacheKey);
+            p.pins.add(cacheKey);
+        }
+    }
+
+    /** A file to seal into; without a cache it is deleted when {@code p}'s broadcast ends. */
+    private File newArtifactFile(Preparation p) throws IOException {
+        if (artifactCache != null) return artifactCache.createTempFile();
+        File f = File.createTempFile("artifact", ".tmp", context.getCacheDir());
+        synchronized (p) {
+            if (p.released) {
+                f.delete();
+                throw new InterruptedIOException("Broadcast replaced");
+            }
+            p.temporaries.add(f);
+        }
+        return f;
+    }
+
+    private long statSize(Uri uri) {
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r")) {
+            return pfd != null ? pfd.getStatSize() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Pipelined mode: the header is fixed up front so the offer can go out at once, and
+     * segments are sealed segment-parallel across all cores while receivers stream them.
+     */
+    private Artifact sealInBackground(Preparation p, SourceFile f, PasswordKey key, long size, byte[] contentHash,
+                                      String cacheKey, File outFile, TransferMetrics prep) throws IOException {
+        StreamHeader header = StreamHeader.create(StreamHeader.DEFAULT_SEGMENT_SIZE, key.params, Compression.NONE,
+                p.cipherSuite);
+        ArtifactProgress progress = new ArtifactProgress(header.segmentCount(size));
+        Artifact artifact = new Artifact(buildOffer(f.name, contentHash, header.toBytes(), header.ciphertextSize(size)),
+                outFile, progress, prep, f.uri, key);
+
+        Seal seal = new Seal(progress, outFile);
+        synchronized (p) {
+            if (p.released) {
+                outFile.delete();
+                throw new InterruptedIOException("Broadcast replaced");
+            }
+            p.seals.add(seal);
+            seal.task = sealer.submit(() -> runSeal(seal, artifact, f, key, header, size, cacheKey));
+        }
+        return artifact;
+    }
+
+    /** Runs on the sealer thread; deletes the partial artifact if it fails or is called off. */
+    private void runSeal(Seal seal, Artifact artifact, SourceFile f, PasswordKey key, StreamHeader header, long size,
+                         String cacheKey) {
+        artifact.prep.begin(TransferMetrics.Stage.ENCRYPT);
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(f.uri, "r")) {
+            if (pfd == null) throw new FileNotFoundException(f.uri.toString());
+            try (FileInputStream fis = new FileInputStream(pfd.getFileDescriptor());
+                 RandomAccessFile raf = new RandomAccessFile(seal.outFile, "rw")) {
+                engine.encrypt(key.key, header, fis.getChannel(), size, raf.getChannel(), seal.progress);
+            }
+            artifact.prep.end(TransferMetrics.Stage.ENCRYPT, header.ciphertextSize(size));
+        } catch (Exception e) {
+            seal.progress.fail(e);
+            seal.outFile.delete();
+            if (seal.progress.isCanceled()) return;
+            Log.w(TAG, "Encryption failed", e);
+            service.post(() -> {
+                if (artifacts.get(artifact.offer.transferId) == artifact)
+                    status("Encryption failed: " + e.getMessage());
+            });
+            return;
+        }
+        service.post(() -> onSealed(artifact, cacheKey));
+    }
+
+    /** Files the finished artifact; later sends use it directly instead of streaming. */
+    private void onSealed(Artifact artifact, String cacheKey) {
+        if (artifactCache != null) {
+            try {
+                artifact.file = artifactCache.put(cacheKey, artifact.file);
+                Log.i(TAG, artifactCache.stats().toString());
+            } catch (IOException e) {
+                Log.w(TAG, "Could not cache artifact", e);
+                return;
+            }
+        }
+        artifact.sealing = null;
+    }
+
+    /** Seals through the sequential streaming path, with the codec chosen for the content. */
+    private void encrypt(Preparation p, InputStream in, PasswordKey key, byte codec, File outFile) throws Exception {
+        Compression.Stats stats = new Compression.Stats();
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outFile),
+                StreamHeader.DEFAULT_SEGMENT_SIZE)) {
+            StreamingAead.encrypt(key, in, out, StreamHeader.DEFAULT_SEGMENT_SIZE, codec, p.cipherSuite, stats);
+        }
+        if (codec != Compression.NONE) {
+            p.compressionStats = stats;
+            Log.i(TAG, "Compressed " + outFile.getName() + ": " + stats);
+        }
+    }
+
+    /** Skips known compressed formats, otherwise samples the head of the file. */
+    private byte chooseCodec(SourceFile f) {
+        String mime = mimeOf(f);
+        if (Compression.isPrecompressed(mime)) return Compression.NONE;
+        try (InputStream in = resolver.openInputStream(f.uri)) {
+            if (in == null) return Compression.NONE;
+            byte[] sample = new byte[Compression.SAMPLE_SIZE];
+            int n = StreamingAead.readFully(in, sample, sample.length);
+            return Compression.choose(mime, sample, n);
+        } catch (IOException e) {
+            return Compression.NONE;
+        }
+    }
+
+    /** Describes an artifact so a receiver can tell whether it already holds part of it. */
+    private static ControlMessage.Offer buildOffer(String name, byte[] contentHash, byte[] header, long ciphertextSize) {
+        return new ControlMessage.Offer(TransferCheckpoint.transferId(contentHash, header),
+                name, ciphertextSize, contentHash, header);
+    }
+
+    private static byte[] readHeader(File artifact) throws IOException {
+        byte[] header = new byte[StreamHeader.LENGTH];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(artifact))) {
+            in.readFully(header);
+        }
+        return header;
+    }
+
+    private static String sendId(String endpointId, String transferId) {
+        return endpointId + "/" + transferId;
+    }
+
+    /** Queues a send; the scheduler starts it once one of the outbound slots is free. */
+    private void queueSend(String endpointId, Artifact artifact, BitSet verified) {
+        queueSend(endpointId, artifact, verified, null, 0);
+    }
+
+    private void queueSend(String endpointId, Artifact artifact, BitSet verified, File delta, int window) {
+        StreamHeader header;
+        try {
+            header = StreamHeader.parse(artifact.offer.header);
+        } catch (IOException e) {
+            status("Send failed: " + e.getMessage());
+            return;
+        }
+        long size = artifact.offer.ciphertextSize;
+        long alreadyThere = Math.min((long) verified.cardinality() * header.encryptedSegmentSize(), size);
+        String id = sendId(endpointId, artifact.offer.transferId);
+        PendingSend replaced = pendingSends.put(id, new PendingSend(endpointId, artifact.offer.transferId, verified, delta,
+                window));
+        currentPayloads.remove(id);
+        if (replaced != null && replaced.delta != null) replaced.delta.delete();
+
+        // A second resume for the same receiver and artifact is a retry
+        TransferMetrics previous = sendMetrics.get(id);
+        if (previous != null) finishMetrics(id, "superseded");
+        TransferMetrics metrics = new TransferMetrics(artifact.offer.transferId, TransferMetrics.SEND, endpointId)
+                .describe(artifact.offer.fileName, size);
+        metrics.resumed(previous != null ? previous.getRetries() + 1 : 0, verified.cardinality());
+        Long connected = connectedAt.get(endpointId);
+        if (connected != null) metrics.connected(connected);
+        sendMetrics.put(id, metrics);
+
+        PendingSend pending = pendingSends.get(id);
+        long remaining = delta != null ? delta.length() : size - alreadyThere;
+        int priority = verified.isEmpty() ? BroadcastScheduler.PRIORITY_NORMAL : BroadcastScheduler.PRIORITY_RESUME;
+        long heldAt = System.nanoTime();
+        upgradeGate.submit(endpointId, remaining, () -> {
+            // Superseded by a later resume, or the receiver left while this was held
+            if (pendingSends.get(id) != pending) return;
+            metrics.held(System.nanoTime() - heldAt);
+            scheduler.enqueue(id, remaining, priority);
+            updateBroadcastStatus();
+        });
+        if (upgradeGate.heldCount(endpointId) > 0) status("Waiting for Wi-Fi before sending " + artifact.offer.fileName);
+    }
+
+    /** Records a receiver that already holds every file in an artifact; nothing is sent. */
+    private void skipSend(String endpointId, Artifact artifact) {
+        String id = sendId(endpointId, artifact.offer.transferId);
+        if (sendMetrics.containsKey(id)) finishMetrics(id, "superseded");
+        sendMetrics.put(id, new TransferMetrics(artifact.offer.transferId, TransferMetrics.SEND, endpointId)
+                .describe(artifact.offer.fileName, 0));
+        finishMetrics(id, "already_received");
+        Log.i(TAG, endpointId + " already has " + artifact.offer.fileName);
+    }
+
+    /** Sends the whole artifact, or only the segments the receiver is missing. */
+    private void startSend(String id) {
+        PendingSend send = pendingSends.remove(id);
+        Artifact artifact = send != null ? artifacts.get(send.transferId) : null;
+        if (artifact == null) {
+            scheduler.onComplete(id, false);
+            return;
+        }
+        try {
+            Transport.Payload data;
+            if (send.delta != null) {
+                data = transport.file(send.delta);
+                deltaPayloads.put(data.getId(), send.delta);
+            } else if (artifact.sealing != null) {
+                // Still being sealed: stream segments as the encryptor finishes them
+                data = stream(send, new SegmentStream(artifact.file, StreamHeader.parse(artifact.offer.header),
+                        artifact.offer.ciphertextSize, send.verified, artifact.sealing));
+            } else {
+                data = send.verified.isEmpty()
+                        ? transport.file(artifact.file)
+                        : stream(send, new SegmentStream(artifact.file, send.verified));
+            }
+            // Tell the receiver which transfer the data belongs to before it starts arriving
+            ControlMessage.Bind bind = new ControlMessage.Bind(send.transferId, data.getId(), send.delta != null);
+            transport.send(send.endpointId, transport.bytes(bind.toBytes()));
+            dataPayloads.put(data.getId(), id);
+            currentPayloads.put(id, data.getId());
+            TransferMetrics metrics = sendMetrics.get(id);
+            if (metrics != null) {
+                metrics.bandwidth(upgradeGate.quality(send.endpointId));
+                metrics.begin(TransferMetrics.Stage.TRANSFER);
+            }
+            transport.send(send.endpointId, data);
+        } catch (Exception e) {
+            Log.w(TAG, "Send to " + send.endpointId + " failed", e);
+            if (send.delta != null) send.delta.delete();
+            finishMetrics(id, "failed");
+            scheduler.onComplete(id, false);
+        }
+    }
+
+    /** A STREAM payload of {@code segments}, held to the receiver's credit if it asked for that. */
+    private Transport.Payload stream(PendingSend send, SegmentStream segments) {
+        if (send.window <= 0) return transport.stream(segments);
+        CreditFlow.Gate gate = new CreditFlow.Gate(send.window);
+        Transport.Payload data = transport.stream(segments.gated(gate));
+        gates.put(data.getId(), gate);
+        return data;
+    }
+
+    /** Releases a finished stream's credit, logging how long the receiver held it back. */
+    private void closeGate(long payloadId) {
+        CreditFlow.Gate gate = gates.remove(payloadId);
+        if (gate == null) return;
+        gate.close();
+        long stalled = gate.getStalledNanos() / 1_000_000;
+        if (stalled > 0) Log.i(TAG, "Stream " + payloadId + " waited " + stalled + " ms for receiver credit");
+    }
+
+    /** Completes a send's record with what it took to prepare the artifact, and logs it. */
+    private void finishMetrics(String id, String outcome) {
+        TransferMetrics metrics = sendMetrics.get(id);
+        if (metrics == null || metrics.isFinished()) return;
+        Artifact artifact = artifacts.get(metrics.transferId);
+        if (artifact != null) metrics.addStages(artifact.prep);
+        Long upgrade = upgradeNanos.get(metrics.endpointId);
+        if (upgrade != null) metrics.upgraded(upgrade);
+        if (metrics.finish(outcome)) Telemetry.record(context, metrics);
+    }
+
+    private void updateBroadcastStatus() {
+        BroadcastScheduler.Report report = scheduler.report();
+        LiveProgress.Snapshot progress = liveProgress.update(report.bytesDelivered, report.bytesTotal);
+        if (report.sending > 0 && progress != null && progress.bytes < progress.total) {
+            status(report.summary() + "\n" + progress);
+        } else {
+            status(report.summary());
+        }
+    }
+
+    /** KEY CONFIRMATION **/
+
+    /** A receiver opened key confirmation; it is challenged once the key is ready. */
+    private void onHello(String endpointId, ControlMessage.Hello hello) {
+        if (handshakes.containsKey(endpointId) || confirmed.contains(endpointId)
+                || challenged.contains(endpointId)) return;
+        Handshake h = new Handshake(hello.nonce);
+        handshakes.put(endpointId, h);
+        if (broadcastKey != null) challenge(endpointId, h);
+    }
+
+    /**
+     * Proves the sender holds the broadcast key, unless too many receivers answered
+     * wrong lately or too many challenges went out this minute: every challenge hands
+     * out a MAC that passwords can be tested against. Failures are counted together,
+     * since endpoint ids are not stable enough to count per receiver.
+     */
+    private void challenge(String endpointId, Handshake h) {
+        long wait = backoff.remainingMillis();
+        if (wait == 0) wait = challengeLimit.take();
+        if (wait > 0) {
+            handshakes.remove(endpointId);
+            reject(endpointId, wait);
+            return;
+        }
+        byte[] nonce = KeyConfirmation.newNonce();
+        byte[] mac;
+        try {
+            mac = KeyConfirmation.senderProof(broadcastKey.key, nonce, h.receiverNonce);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Key confirmation failed", e);
+            handshakes.remove(endpointId);
+            reject(endpointId, 0);
+            return;
+        }
+        h.senderNonce = nonce;
+        h.key = broadcastKey;
+        challenged.add(endpointId);
+        ControlMessage.Challenge challenge = new ControlMessage.Challenge(broadcastKey.params, nonce, mac);
+        transport.send(endpointId, transport.bytes(challenge.toBytes()));
+    }
+
+    /**
+     * Accepts a receiver whose proof shows it derived the key the challenge proved, and
+     * sends it the offers. A wrong one is rejected and dropped before any payload goes
+     * out, and counts towards the lockout.
+     */
+    private void checkProof(String endpointId, ControlMessage.Proof proof) {
+        Handshake h = handshakes.get(endpointId);
+        if (h == null || h.senderNonce == null) return;
+        handshakes.remove(endpointId);
+        try {
+            if (KeyConfirmation.matches(KeyConfirmation.receiverProof(h.key.key, h.senderNonce, h.receiverNonce),
+                    proof.mac)) {
+                backoff.succeeded();
+                confirmed.add(endpointId);
+                // So later broadcasts are sealed with a suite this receiver runs well
+                if (proof.cipherSpeeds != null) service.notePeerCipherSpeeds(proof.cipherSpeeds);
+                // Held until the files are ready
+                if (preparation != null) awaitingOffers.add(endpointId);
+                else sendOffers(endpointId);
+                return;
+            }
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Key confirmation failed", e);
+        }
+        status("A receiver entered the wrong password");
+        reject(endpointId, backoff.failed());
+    }
+
+    private void reject(String endpointId, long waitMillis) {
+        transport.send(endpointId, transport.bytes(new ControlMessage.Reject(waitMillis).toBytes()));
+        // The receiver hangs up on a rejection; drop it anyway if it lingers
+        service.postDelayed(() -> {
+            if (!connectedAt.containsKey(endpointId) || confirmed.contains(endpointId)) return;
+            transport.disconnect(endpointId);
+            connectionListener.onDisconnected(endpointId);
+        }, REJECT_LINGER_MILLIS);
+    }
+
+    /**
+     * The file list first, then one offer per artifact; the receiver answers each offer
+     * with the segments it already has.
+     */
+    private void sendOffers(String endpointId) {
+        for (ControlMessage.Manifest part : manifest) {
+            transport.send(endpointId, transport.bytes(part.toBytes()));
+        }
+        for (Artifact a : artifacts.values()) {
+            transport.send(endpointId, transport.bytes(a.offer.toBytes()));
+        }
+    }
+
+    /** DELTA SYNC **/
+
+    /**
+     * Once a delta request and its signature have both arrived, diffs the file against
+     * the receiver's old copy off the main thread and queues the delta, or the whole
+     * artifact when no worthwhile delta can be made.
+     */
+    private void startDelta(String endpointId, long payloadId) {
+        if (!deltaRequests.containsKey(payloadId) || !signatures.containsKey(payloadId)) return;
+        ControlMessage.DeltaRequest request = deltaRequests.remove(payloadId);
+        InputStream signature = signatures.remove(payloadId).asStream();
+        Artifact artifact = artifacts.get(request.transferId);
+        if (artifact == null) {
+            transport.cancel(payloadId);
+            return;
+        }
+        if (artifact.source == null) {
+            transport.cancel(payloadId);
+            queueSend(endpointId, artifact, new BitSet());
+            return;
+        }
+        sealer.execute(() -> {
+            File delta = buildDelta(artifact, signature);
+            service.post(() -> {
+                if (artifacts.get(artifact.offer.transferId) != artifact) {
+                    if (delta != null) delta.delete();
+                    return;
+                }
+                queueSend(endpointId, artifact, new BitSet(), delta, 0);
+            });
+        });
+    }
+
+    /**
+     * Encrypts the instructions that turn the receiver's copy into this file, or returns
+     * null if that fails or would not save at least half the artifact.
+     */
+    private File buildDelta(Artifact artifact, InputStream signature) {
+        File plain = null;
+        File sealed = null;
+        try {
+            ByteArrayOutputStream sigBytes = new ByteArrayOutputStream();
+            StreamingAead.decrypt(artifact.key.key, signature, sigBytes);
+            DeltaSync.Signature sig = DeltaSync.Signature.read(new ByteArrayInputStream(sigBytes.toByteArray()));
+
+            plain = File.createTempFile("delta", ".tmp", context.getCacheDir());
+            DeltaSync.Stats stats;
+            try (InputStream in = resolver.openInputStream(artifact.source)) {
+                if (in == null) throw new FileNotFoundException(artifact.source.toString());
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(plain),
+                        StreamHeader.DEFAULT_SEGMENT_SIZE)) {
+                    stats = DeltaSync.diff(sig, new BufferedInputStream(in, StreamHeader.DEFAULT_SEGMENT_SIZE), out);
+                }
+            }
+            Log.i(TAG, "Delta for " + artifact.offer.fileName + ": " + stats);
+            if (plain.length() > artifact.offer.ciphertextSize / 2) return null;
+
+            sealed = File.createTempFile("delta", ".enc", context.getCacheDir());
+            try (InputStream in = new BufferedInputStream(new FileInputStream(plain), StreamHeader.DEFAULT_SEGMENT_SIZE);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(sealed),
+                         StreamHeader.DEFAULT_SEGMENT_SIZE)) {
+                // Under the artifact's suite, which the receiver is known to open
+                StreamingAead.encrypt(artifact.key, in, out, StreamHeader.DEFAULT_SEGMENT_SIZE, Compression.NONE,
+                        StreamHeader.parse(artifact.offer.header).getCipherSuite(), null);
+            }
+            return sealed;
+        } catch (Exception e) {
+            Log.w(TAG, "Delta failed, sending " + artifact.offer.fileName + " whole", e);
+            if (sealed != null) sealed.delete();
+            return null;
+        } finally {
+            if (plain != null) plain.delete();
+        }
+    }
+
+    private void deleteDelta(long payloadId) {
+        File delta = deltaPayloads.remove(payloadId);
+        if (delta != null) delta.delete();
+    }
+
+    /** Releases held bulk sends once the upgrade wait is over, rescheduling if the timer fires early. */
+    private void expireUpgradeWait(String endpointId, long delayMillis) {
+        service.postDelayed(() -> {
+            long left = upgradeGate.expire(endpointId);
+            if (left > 0) expireUpgradeWait(endpointId, left);
+        }, delayMillis);
+    }
+
+    private final Transport.Listener connectionListener = new Transport.Listener() {
+        @Override
+        public void onConnected(String endpointId) {
+            connectedAt.put(endpointId, System.nanoTime());
+            upgradeNanos.remove(endpointId);
+            upgradeGate.connected(endpointId);
+            expireUpgradeWait(endpointId, upgradeGate.getTimeoutMillis());
+            // Nothing about the files goes out until the receiver shows it has the password;
+            // it opens with a Hello
+        }
+
+        @Override
+        public void onConnectionFailed(String endpointId, String reason) {
+            status("Connection failed.");
+        }
+
+        @Override
+        public void onBandwidthChanged(String endpointId, int quality) {
+            Long connected = connectedAt.get(endpointId);
+            if (quality == Transport.QUALITY_HIGH && connected != null && !upgradeNanos.containsKey(endpointId)) {
+                upgradeNanos.put(endpointId, System.nanoTime() - connected);
+            }
+            upgradeGate.onBandwidthChanged(endpointId, quality);
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            upgradeGate.disconnected(endpointId);
+            handshakes.remove(endpointId);
+            challenged.remove(endpointId);
+            confirmed.remove(endpointId);
+            awaitingOffers.remove(endpointId);
+            for (String transferId : artifacts.keySet()) {
+                String id = sendId(endpointId, transferId);
+                PendingSend pending = pendingSends.remove(id);
+                if (pending != null && pending.delta != null) pending.delta.delete();
+                finishMetrics(id, "disconnected");
+                scheduler.remove(id);
+                currentPayloads.remove(id);
+            }
+            for (Iterator<Map.Entry<Long, String>> it = dataPayloads.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, String> e = it.next();
+                if (!e.getValue().startsWith(endpointId + "/")) continue;
+                service.setMoving(e.getKey(), false);
+                deleteDelta(e.getKey());
+                closeGate(e.getKey());
+                it.remove();
+            }
+            connectedAt.remove(endpointId);
+            upgradeNanos.remove(endpointId);
+            updateBroadcastStatus();
+        }
+
+        @Override
+        public void onPayloadReceived(String endpointId, Transport.Payload payload) {
+            if (payload.getType() != Transport.Payload.BYTES && !confirmed.contains(endpointId)) {
+                transport.cancel(payload.getId());
+                return;
+            }
+            if (payload.getType() == Transport.Payload.STREAM) {
+                // A receiver's block signature; the request naming it may come either side
+                signatures.put(payload.getId(), payload);
+                startDelta(endpointId, payload.getId());
+                return;
+            }
+            if (payload.getType() != Transport.Payload.BYTES) return;
+            try {
+                ControlMessage msg = ControlMessage.parse(payload.asBytes());
+                if (msg instanceof ControlMessage.Hello) {
+                    onHello(endpointId, (ControlMessage.Hello) msg);
+                    return;
+                }
+                if (msg instanceof ControlMessage.Proof) {
+                    checkProof(endpointId, (ControlMessage.Proof) msg);
+                    return;
+                }
+                // Everything else is only heard from receivers that proved the password
+                if (!confirmed.contains(endpointId)) return;
+                if (msg instanceof ControlMessage.Resume) {
+                    ControlMessage.Resume resume = (ControlMessage.Resume) msg;
+                    Artifact artifact = artifacts.get(resume.transferId);
+                    if (artifact != null) queueSend(endpointId, artifact, resume.verified, null, resume.window);
+                } else if (msg instanceof ControlMessage.Have) {
+                    Artifact artifact = artifacts.get(((ControlMessage.Have) msg).transferId);
+                    if (artifact != null) skipSend(endpointId, artifact);
+                } else if (msg instanceof ControlMessage.Credit) {
+                    ControlMessage.Credit credit = (ControlMessage.Credit) msg;
+                    String id = dataPayloads.get(credit.payloadId);
+                    CreditFlow.Gate gate = gates.get(credit.payloadId);
+                    if (gate != null && id != null && id.startsWith(endpointId + "/")) gate.grant(credit.through);
+                } else if (msg instanceof ControlMessage.DeltaRequest) {
+                    ControlMessage.DeltaRequest request = (ControlMessage.DeltaRequest) msg;
+                    deltaRequests.put(request.payloadId, request);
+                    startDelta(endpointId, request.payloadId);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Bad control message", e);
+            }
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, long payloadId, int status, long bytesTransferred,
+                                     long totalBytes) {
+            String id = dataPayloads.get(payloadId);
+            if (id == null) return;
+            service.setMoving(payloadId, status == Transport.STATUS_IN_PROGRESS);
+            if (!Long.valueOf(payloadId).equals(currentPayloads.get(id))) {
+                // Overtaken by a later resume, e.g. a swarm receiver's next batch; only clean up
+                if (status != Transport.STATUS_IN_PROGRESS) {
+                    dataPayloads.remove(payloadId);
+                    deleteDelta(payloadId);
+                    closeGate(payloadId);
+                }
+                return;
+            }
+            TransferMetrics metrics = sendMetrics.get(id);
+            if (metrics != null) metrics.progress(bytesTransferred);
+            switch (status) {
+                case Transport.STATUS_IN_PROGRESS:
+                    scheduler.onProgress(id, bytesTransferred);
+                    break;
+                case Transport.STATUS_SUCCESS:
+                    dataPayloads.remove(payloadId);
+                    currentPayloads.remove(id);
+                    deleteDelta(payloadId);
+                    closeGate(payloadId);
+                    if (metrics != null) metrics.end(TransferMetrics.Stage.TRANSFER, bytesTransferred);
+                    finishMetrics(id, "ok");
+                    scheduler.onComplete(id, true);
+                    Log.i(TAG, "Broadcast report:\n" + scheduler.report());
+                    break;
+                case Transport.STATUS_FAILURE:
+                case Transport.STATUS_CANCELED:
+                    dataPayloads.remove(payloadId);
+                    currentPayloads.remove(id);
+                    deleteDelta(payloadId);
+                    closeGate(payloadId);
+                    finishMetrics(id, status == Transport.STATUS_CANCELED ? "canceled" : "failed");
+                    scheduler.onComplete(id, false);
+                    break;
+            }
+            updateBroadcastStatus();
+        }
+    };
+}
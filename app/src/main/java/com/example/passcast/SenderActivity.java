@@ -1,12 +1,20 @@
 package com.example.passcast;
 
 import android.Manifest;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.widget.Button;
 import android.widget.EditText;
@@ -19,42 +27,37 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.AdvertisingOptions;
-import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
-import com.google.android.gms.nearby.connection.ConnectionResolution;
-import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
-import com.google.android.gms.nearby.connection.Strategy;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
+/** Picks what to send and starts the broadcast; the transfer itself runs in {@link TransferService}. */
 public class SenderActivity extends AppCompatActivity {
 
     private static final String TAG = "SenderActivity";
-    private static final String SERVICE_ID = "com.example.passcast.SERVICE_ID";
     private static final int REQUEST_PERMISSIONS = 100;
 
     private EditText etSenderName, etPassword;
     private TextView tvFileName, tvStatus;
-    private Button btnSelectFile, btnStartBroadcast;
+    private Button btnSelectFile, btnSelectFolder, btnStartBroadcast;
+
+    private final List<SendSession.SourceFile> selectedFiles = new ArrayList<>();
+    private TransferService service;
 
-    private Uri selectedFileUri;
-    private File encryptedFile;
-    private Payload sendingPayload;
-    private String fileName;
+    private final TransferSession.Observer observer = status -> tvStatus.setText(status);
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((TransferService.LocalBinder) binder).getService();
+            service.sender().addObserver(observer);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -66,31 +69,126 @@ public class SenderActivity extends AppCompatActivity {
         tvFileName = findViewById(R.id.tvFileName);
         tvStatus = findViewById(R.id.tvStatus);
         btnSelectFile = findViewById(R.id.btnSelectFile);
+        btnSelectFolder = findViewById(R.id.btnSelectFolder);
         btnStartBroadcast = findViewById(R.id.btnStartBroadcast);
 
+        // The key is derived off the main thread as the password is typed
+        etPassword.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (s.length() > 0 && service != null) service.sender().prefetchKey(s.toString());
+            }
+        });
+
         btnSelectFile.setOnClickListener(v -> openFilePicker());
+        btnSelectFolder.setOnClickListener(v -> folderPickerLauncher.launch(null));
         btnStartBroadcast.setOnClickListener(v -> checkPermissionsAndBroadcast());
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, TransferService.class), connection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (service != null) {
+            service.sender().removeObserver(observer);
+            service = null;
+        }
+        unbindService(connection);
+    }
+
     private void openFilePicker() {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("*/*");
-        filePickerLauncher.launch(Intent.createChooser(intent, "Select File"));
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        filePickerLauncher.launch(Intent.createChooser(intent, "Select Files"));
     }
 
     private final ActivityResultLauncher<Intent> filePickerLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
             result -> {
                 if (result.getResultCode() == RESULT_OK && result.getData() != null) {
-                    selectedFileUri = result.getData().getData();
-                    fileName = getFileNameFromUri(selectedFileUri);
-                    tvFileName.setText(fileName);
+                    Intent data = result.getData();
+                    selectedFiles.clear();
+                    if (data.getClipData() != null) {
+                        for (int i = 0; i < data.getClipData().getItemCount(); i++)
+                            selectedFiles.add(describe(data.getClipData().getItemAt(i).getUri()));
+                    } else if (data.getData() != null) {
+                        selectedFiles.add(describe(data.getData()));
+                    }
+                    showSelection();
                 }
             });
 
+    private final ActivityResultLauncher<Uri> folderPickerLauncher = registerForActivityResult(
+            new ActivityResultContracts.OpenDocumentTree(),
+            tree -> {
+                if (tree == null) return;
+                selectedFiles.clear();
+                String rootId = DocumentsContract.getTreeDocumentId(tree);
+                String rootName = getFileNameFromUri(DocumentsContract.buildDocumentUriUsingTree(tree, rootId));
+                listTree(tree, rootId, rootName, selectedFiles);
+                showSelection();
+            });
+
+    /** Adds every file below {@code documentId}, named by its path relative to the picked folder. */
+    private void listTree(Uri tree, String documentId, String prefix, List<SendSession.SourceFile> out) {
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(tree, documentId);
+        String[] columns = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_MIME_TYPE,
+                DocumentsContract.Document.COLUMN_SIZE
+        };
+        try (Cursor c = getContentResolver().query(children, columns, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                String id = c.getString(0);
+                String name = prefix + "/" + c.getString(1);
+                String mime = c.getString(2);
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mime)) {
+                    listTree(tree, id, name, out);
+                } else {
+                    out.add(new SendSession.SourceFile(DocumentsContract.buildDocumentUriUsingTree(tree, id), name,
+                            c.isNull(3) ? -1 : c.getLong(3), mime));
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not list " + prefix, e);
+        }
+    }
+
+    private SendSession.SourceFile describe(Uri uri) {
+        String name = getFileNameFromUri(uri);
+        long size = -1;
+        try (Cursor cursor = getContentResolver().query(uri, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) size = cursor.getLong(0);
+        } catch (Exception ignored) {}
+        return new SendSession.SourceFile(uri, name, size, getContentResolver().getType(uri));
+    }
+
+    private void showSelection() {
+        if (selectedFiles.size() == 1) {
+            tvFileName.setText(selectedFiles.get(0).name);
+            return;
+        }
+        long total = 0;
+        for (SendSession.SourceFile f : selectedFiles) total += Math.max(0, f.size);
+        tvFileName.setText(String.format(Locale.ROOT, "%d files (%.1f MB)", selectedFiles.size(), total / 1e6));
+    }
+
     private String getFileNameFromUri(Uri uri) {
         String name = null;
-        try (android.database.Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
             if (cursor != null && cursor.moveToFirst()) {
                 int idx = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
                 if (idx >= 0) name = cursor.getString(idx);
@@ -148,100 +246,17 @@ public class SenderActivity extends AppCompatActivity {
         String name = etSenderName.getText().toString().trim();
         String password = etPassword.getText().toString();
 
-        if (name.isEmpty() || password.isEmpty() || selectedFileUri == null) {
+        if (name.isEmpty() || password.isEmpty() || selectedFiles.isEmpty()) {
             Toast.makeText(this, "Enter name, password, and select a file", Toast.LENGTH_SHORT).show();
             return;
         }
-
-        try {
-            tvStatus.setText("Encrypting...");
-            encryptedFile = encryptFile(selectedFileUri, password);
-            sendingPayload = Payload.fromFile(encryptedFile);
-
-            tvStatus.setText("Broadcasting...");
-            Nearby.getConnectionsClient(this)
-                    .startAdvertising(
-                            name,
-                            SERVICE_ID,
-                            connectionLifecycleCallback,
-                            new AdvertisingOptions.Builder().setStrategy(Strategy.P2P_POINT_TO_POINT).build()
-                    )
-                    .addOnSuccessListener(unused -> tvStatus.setText("Broadcasting as " + name))
-                    .addOnFailureListener(e -> tvStatus.setText("Broadcast failed: " + e.getMessage()));
-        } catch (Exception e) {
-            tvStatus.setText("Error: " + e.getMessage());
+        if (service == null) {
+            Toast.makeText(this, "Transfer service not ready", Toast.LENGTH_SHORT).show();
+            return;
         }
-    }
 
-    private File encryptFile(Uri uri, String password) throws Exception {
-        InputStream in = getContentResolver().openInputStream(uri);
-        if (in == null) return null;
-
-        MessageDigest sha = MessageDigest.getInstance("SHA-256");
-        byte[] keyBytes = sha.digest(password.getBytes("UTF-8"));
-        byte[] aesKey = new byte[16];
-        System.arraycopy(keyBytes, 0, aesKey, 0, 16);
-        SecretKeySpec key = new SecretKeySpec(aesKey, "AES");
-
-        byte[] iv = new byte[12];
-        new SecureRandom().nextBytes(iv);
-        GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-
-        File outFile = new File(getCacheDir(), "encrypted_" + System.currentTimeMillis());
-        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-            fos.write(iv);
-            try (CipherOutputStream cos = new CipherOutputStream(fos, cipher)) {
-                byte[] buf = new byte[4096];
-                int r;
-                while ((r = in.read(buf)) != -1) cos.write(buf, 0, r);
-            }
-        }
-        in.close();
-        return outFile;
+        // Keeps the broadcast going once this screen is gone
+        TransferService.start(this);
+        service.sender().start(name, password, new ArrayList<>(selectedFiles));
     }
-
-    private final ConnectionLifecycleCallback connectionLifecycleCallback = new ConnectionLifecycleCallback() {
-        @Override
-        public void onConnectionInitiated(String endpointId, com.google.android.gms.nearby.connection.ConnectionInfo connectionInfo) {
-            Nearby.getConnectionsClient(SenderActivity.this).acceptConnection(endpointId, payloadCallback);
-        }
-
-        @Override
-        public void onConnectionResult(String endpointId, ConnectionResolution result) {
-            if (result.getStatus().getStatusCode() == ConnectionsStatusCodes.STATUS_OK) {
-                tvStatus.setText("Connected — sending file...");
-                try {
-                    // send file name first
-                    Payload namePayload = Payload.fromBytes(fileName.getBytes());
-                    Nearby.getConnectionsClient(SenderActivity.this).sendPayload(endpointId, namePayload);
-                    // then send encrypted file
-                    Nearby.getConnectionsClient(SenderActivity.this).sendPayload(endpointId, sendingPayload);
-                } catch (Exception e) {
-                    tvStatus.setText("Send failed: " + e.getMessage());
-                }
-            } else {
-                tvStatus.setText("Connection failed.");
-            }
-        }
-
-        @Override
-        public void onDisconnected(String endpointId) {
-            tvStatus.setText("Disconnected.");
-        }
-    };
-
-    private final PayloadCallback payloadCallback = new PayloadCallback() {
-        @Override
-        public void onPayloadReceived(String s, Payload payload) {}
-
-        @Override
-        public void onPayloadTransferUpdate(String s, PayloadTransferUpdate update) {
-            if (update.getStatus() == PayloadTransferUpdate.Status.SUCCESS) {
-                tvStatus.setText("File sent successfully!");
-            }
-        }
-    };
 }
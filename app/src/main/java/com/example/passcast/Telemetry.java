@@ -0,0 +1,87 @@
+package com.example.passcast;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** This device's {@link TelemetryLog}, written off the main thread, and its export to Downloads. */
+public final class Telemetry {
+
+    private static final String TAG = "Telemetry";
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "passcast-telemetry");
+        t.setDaemon(true);
+        return t;
+    });
+    private static TelemetryLog log;
+
+    private Telemetry() {}
+
+    private static synchronized TelemetryLog log(Context context) {
+        if (log == null) log = new TelemetryLog(new File(context.getApplicationContext().getFilesDir(), "telemetry"));
+        return log;
+    }
+
+    /** Logs a finished transfer. */
+    public static void record(Context context, TransferMetrics metrics) {
+        Log.i(TAG, metrics.toString());
+        TelemetryLog log = log(context);
+        writer.execute(() -> {
+            try {
+                log.append(metrics);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not log transfer", e);
+            }
+        });
+    }
+
+    /**
+     * Writes every kept record to a JSON file in Downloads, tagged with this device,
+     * and returns its uri. Blocks; call it off the main thread.
+     */
+    public static Uri export(Context context) throws IOException {
+        Map<String, String> device = new LinkedHashMap<>();
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("sdk", String.valueOf(Build.VERSION.SDK_INT));
+        device.put("app", appVersion(context));
+        device.put("cores", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        device.put("maxHeapBytes", String.valueOf(Runtime.getRuntime().maxMemory()));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        log(context).export(device, json);
+        String name = "passcast-telemetry-" + Build.MODEL.replace(' ', '_') + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date()) + ".json";
+        try (PendingDownload download = PendingDownload.create(context.getContentResolver(), name,
+                "application/json", json.size())) {
+            FileChannel out = download.channel();
+            ByteBuffer buf = ByteBuffer.wrap(json.toByteArray());
+            while (buf.hasRemaining()) out.write(buf);
+            download.publish(json.size());
+            return download.getUri();
+        }
+    }
+
+    private static String appVersion(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.example.passcast;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Owns the transport and both sessions so transfers outlive the activity that started
+ * them. Runs in the foreground while a session is active, and holds a wake lock and a
+ * high-performance Wi-Fi lock only while bytes are actually moving.
+ */
+public class TransferService extends Service {
+
+    static final String SERVICE_ID = "com.example.passcast.SERVICE_ID";
+    static final String RECEIVED_CHANNEL_ID = "passcast_channel";
+    private static final String ONGOING_CHANNEL_ID = "passcast_transfers";
+    private static final String ACTION_STOP = "com.example.passcast.action.STOP";
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final String PREFS = "passcast";
+    private static final String PREF_SENDS = "max_concurrent_sends";
+    private static final String PREF_RECEIVE_WORKERS = "receive_workers";
+    private static final String PREF_SWARM = "swarm";
+    private static final String PREF_CIPHER_SPEEDS = "cipher_speeds";
+    private static final String PREF_PEER_CIPHER_SPEEDS = "peer_cipher_speeds";
+    // Receivers whose cipher speeds the next broadcast is chosen for
+    private static final int MAX_PEER_CIPHER_SPEEDS = 8;
+    private static final int DEFAULT_SENDS = 4;
+    // Stream receives hold a worker for the whole transfer; a sender runs up to four
+    // payloads at once, so leave room for those plus a decrypt
+    private static final int DEFAULT_RECEIVE_WORKERS = 5;
+
+    /** Handed to activities that bind, so they can reach the sessions. */
+    class LocalBinder extends Binder {
+        TransferService getService() {
+            return TransferService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler main = new Handler(Looper.getMainLooper());
+    // Data payloads with bytes in flight, on either side
+    private final Set<Long> moving = new HashSet<>();
+    private boolean inboundBusy;
+    private boolean foreground;
+
+    private Transport transport;
+    private WorkQueue inbound;
+    // Background work outside the transfers, one job at a time: KDF calibration, telemetry export
+    private WorkQueue chores;
+    private SendSession sender;
+    private ReceiveSession receiver;
+    // Kept across the sessions Stop replaces, as bound activities only register once
+    private final List<TransferSession.Observer> senderObservers = new ArrayList<>();
+    private final List<TransferSession.Observer> receiverObservers = new ArrayList<>();
+    private PowerManager.WakeLock wakeLock;
+    private WifiManager.WifiLock wifiLock;
+    // Guarded by this
+    private long[] cipherSpeeds;
+
+    /** Starts the service so it survives the caller; sessions bring it to the foreground. */
+    static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, TransferService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        createNotificationChannels();
+        transport = new NearbyTransport(getApplicationContext(), SERVICE_ID, isSwarm());
+        inbound = new WorkQueue(prefs().getInt(PREF_RECEIVE_WORKERS, DEFAULT_RECEIVE_WORKERS), "passcast-receive");
+        inbound.setListener(busy -> {
+            synchronized (this) {
+                inboundBusy = busy;
+                updateLocks();
+            }
+            if (!busy) post(this::stopIfIdle);
+        });
+        chores = new WorkQueue(1, "passcast-chores");
+        KdfSettings.calibrateIfNeeded(this, chores);
+
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "passcast:transfer");
+        wakeLock.setReferenceCounted(false);
+        WifiManager wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        wifiLock = wm.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "passcast:transfer");
+        wifiLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopTransfers();
+            return START_NOT_STICKY;
+        }
+        startForeground(NOTIFICATION_ID, buildNotification("Ready"), ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+        foreground = true;
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        transport.stopAll();
+        if (sender != null) sender.close();
+        if (receiver != null) receiver.close();
+        inbound.close();
+        chores.close();
+        synchronized (this) {
+            moving.clear();
+            inboundBusy = false;
+            updateLocks();
+        }
+    }
+
+    Transport transport() {
+        return transport;
+    }
+
+    WorkQueue inbound() {
+        return inbound;
+    }
+
+    WorkQueue chores() {
+        return chores;
+    }
+
+    SendSession sender() {
+        if (sender == null) sender = new SendSession(this, senderObservers, prefs().getInt(PREF_SENDS, DEFAULT_SENDS));
+        return sender;
+    }
+
+    ReceiveSession receiver() {
+        if (receiver == null) receiver = new ReceiveSession(this, receiverObservers);
+        return receiver;
+    }
+
+    int getMaxConcurrentSends() {
+        return prefs().getInt(PREF_SENDS, DEFAULT_SENDS);
+    }
+
+    int getReceiveWorkers() {
+        return inbound.getConcurrency();
+    }
+
+    /** Changes how many sends and inbound jobs run at once, now and in later sessions. */
+    void setConcurrency(int sends, int receiveWorkers) {
+        prefs().edit()
+                .putInt(PREF_SENDS, sends)
+                .putInt(PREF_RECEIVE_WORKERS, receiveWorkers)
+                .apply();
+        if (sender != null) sender.setMaxConcurrentSends(sends);
+        inbound.setConcurrency(receiveWorkers);
+    }
+
+    /**
+     * Whether receivers fetch from every sender of the same files at once. Needs the
+     * many-to-many transport on every device, so it takes effect from the next start.
+     */
+    boolean isSwarm() {
+        return prefs().getBoolean(PREF_SWARM, false);
+    }
+
+    void setSwarm(boolean swarm) {
+        prefs().edit().putBoolean(PREF_SWARM, swarm).apply();
+    }
+
+    /**
+     * How fast this device runs each {@link CipherSuite}, measured on first use and kept
+     * until the system is updated. Measuring blocks for a moment, so call it off the
+     * main thread.
+     */
+    synchronized long[] cipherSpeeds() {
+        if (cipherSpeeds != null) return cipherSpeeds;
+        String build = Build.FINGERPRINT + "|";
+        String saved = prefs().getString(PREF_CIPHER_SPEEDS, null);
+        if (saved != null && saved.startsWith(build)) {
+            cipherSpeeds = CipherSuite.decodeSpeeds(saved.substring(build.length()));
+        }
+        if (cipherSpeeds == null) {
+            cipherSpeeds = CipherSuite.measure();
+            prefs().edit().putString(PREF_CIPHER_SPEEDS, build + CipherSuite.encodeSpeeds(cipherSpeeds)).apply();
+        }
+        return cipherSpeeds;
+    }
+
+    /** Remembers the cipher speeds a receiver reported, for choosing the next broadcast's suite. */
+    synchronized void notePeerCipherSpeeds(long[] speeds) {
+        List<String> recent = new ArrayList<>();
+        recent.add(CipherSuite.encodeSpeeds(speeds));
+        String saved = prefs().getString(PREF_PEER_CIPHER_SPEEDS, "");
+        for (String s : saved.split(";")) {
+            if (!s.isEmpty() && recent.size() < MAX_PEER_CIPHER_SPEEDS) recent.add(s);
+        }
+        prefs().edit().putString(PREF_PEER_CIPHER_SPEEDS, String.join(";", recent)).apply();
+    }
+
+    /**
+     * The suite to seal a broadcast with: the fastest for the slowest of this device and
+     * the receivers seen lately. Off the main thread, as for {@link #cipherSpeeds}.
+     */
+    byte broadcastCipherSuite() {
+        List<long[]> sides = new ArrayList<>();
+        sides.add(cipherSpeeds());
+        for (String s : prefs().getString(PREF_PEER_CIPHER_SPEEDS, "").split(";")) {
+            long[] speeds = CipherSuite.decodeSpeeds(s);
+            if (speeds != null) sides.add(speeds);
+        }
+        return CipherSuite.choose(sides.toArray(new long[0][]));
+    }
+
+    SharedPreferences prefs() {
+        return getSharedPreferences(PREFS, MODE_PRIVATE);
+    }
+
+    void post(Runnable r) {
+        main.post(r);
+    }
+
+    void postDelayed(Runnable r, long delayMillis) {
+        main.postDelayed(r, delayMillis);
+    }
+
+    void removeCallbacks(Runnable r) {
+        main.removeCallbacks(r);
+    }
+
+    /** Marks a data payload as moving bytes or not; any thread. */
+    synchronized void setMoving(long payloadId, boolean isMoving) {
+        boolean changed = isMoving ? moving.add(payloadId) : moving.remove(payloadId);
+        if (changed) updateLocks();
+    }
+
+    /** Holds the locks exactly while a payload is in flight or inbound work is queued. */
+    private synchronized void updateLocks() {
+        boolean hold = !moving.isEmpty() || inboundBusy;
+        if (hold == wakeLock.isHeld()) return;
+        if (hold) {
+            wakeLock.acquire();
+            wifiLock.acquire();
+        } else {
+            wakeLock.release();
+            wifiLock.release();
+        }
+    }
+
+    /** Leaves the foreground once neither session has anything left to do. */
+    void stopIfIdle() {
+        if ((sender != null && sender.isActive()) || (receiver != null && receiver.isActive())) return;
+        if (!foreground) return;
+        foreground = false;
+        stopForeground(STOP_FOREGROUND_REMOVE);
+        // Bound activities keep the sessions alive; otherwise this ends the service
+        stopSelf();
+    }
+
+    /** Mirrors the latest session status in the ongoing notification. */
+    void onSessionStatus(TransferSession session, String text) {
+        if (!foreground) return;
+        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        nm.notify(NOTIFICATION_ID, buildNotification(text));
+    }
+
+    /** The notification's Stop action: ends every transfer and the service with them. */
+    private void stopTransfers() {
+        transport.stopAll();
+        if (sender != null) {
+            sender.close();
+            sender = null;
+        }
+        if (receiver != null) {
+            receiver.close();
+            receiver = null;
+        }
+        synchronized (this) {
+            moving.clear();
+            updateLocks();
+        }
+        foreground = false;
+        stopForeground(STOP_FOREGROUND_REMOVE);
+        stopSelf();
+    }
+
+    private Notification buildNotification(String text) {
+        Intent stop = new Intent(this, TransferService.class).setAction(ACTION_STOP);
+        PendingIntent stopIntent = PendingIntent.getService(this, 0, stop, PendingIntent.FLAG_IMMUTABLE);
+        Intent open = new Intent(this, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent openIntent = PendingIntent.getActivity(this, 0, open, PendingIntent.FLAG_IMMUTABLE);
+
+        return new NotificationCompat.Builder(this, ONGOING_CHANNEL_ID)
+                .setContentTitle("PassCast")
+                .setContentText(text)
+                .setStyle(new NotificationCompat.BigTextStyle().bigText(text))
+                .setSmallIcon(android.R.drawable.stat_sys_upload)
+                .setContentIntent(openIntent)
+                .addAction(android.R.drawable.ic_menu_close_clear_cancel, "Stop", stopIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    private void createNotificationChannels() {
+        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        nm.createNotificationChannel(new NotificationChannel(
+                ONGOING_CHANNEL_ID, "Transfers", NotificationManager.IMPORTANCE_LOW));
+        nm.createNotificationChannel(new NotificationChannel(
+                RECEIVED_CHANNEL_ID, "PassCast", NotificationManager.IMPORTANCE_DEFAULT));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.passcast;
+
+import android.content.Context;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One side of the protocol running inside {@link TransferService}. Activities observe
+ * a session's status while they are visible; the session itself lives as long as the
+ * service, or until the notification's Stop, so transfers carry on across rotation
+ * and backgrounding.
+ */
+abstract class TransferSession {
+
+    /** Called on the main thread. */
+    interface Observer {
+        void onStatus(String status);
+
+        /** The receiver's list of senders changed; at most a few times a second. */
+        default void onSendersChanged(List<EndpointRegistry.Endpoint> senders) {}
+    }
+
+    protected final TransferService service;
+    protected final Context context;
+    protected final Transport transport;
+    // Owned by the service, so activities still bound when Stop replaces a session see the next one
+    protected final List<Observer> observers;
+    private String status;
+
+    TransferSession(TransferService service, List<Observer> observers, String initialStatus) {
+        this.service = service;
+        this.context = service;
+        this.transport = service.transport();
+        this.observers = observers;
+        this.status = initialStatus;
+        for (Observer o : new ArrayList<>(observers)) o.onStatus(initialStatus);
+    }
+
+    void addObserver(Observer observer) {
+        observers.add(observer);
+        observer.onStatus(status);
+    }
+
+    void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    String getStatus() {
+        return status;
+    }
+
+    /** Shows {@code text} to observers and in the service notification; any thread. */
+    protected void status(String text) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            service.post(() -> status(text));
+            return;
+        }
+        status = text;
+        for (Observer o : new ArrayList<>(observers)) o.onStatus(text);
+        service.onSessionStatus(this, text);
+    }
+
+    /** Whether the session still has work that should keep the service running. */
+    abstract boolean isActive();
+
+    abstract void close();
+}
@@ -0,0 +1,65 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+// Transfer core: containers, crypto, framing and transports. No Android dependencies,
+// so it can be unit tested and benchmarked on a plain JVM.
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// Sources carry non-ASCII text (separators, dashes in status strings); don't depend on the locale
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+dependencies {
+    testImplementation(libs.junit)
+    jmhImplementation(libs.gson)
+}
+
+// ./gradlew :core:jmh writes build/reports/jmh/results.json; keep one per release and
+// compare with ./gradlew :core:jmhCompare -Pbaseline=<old results.json>
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results.json"))
+    humanOutputFile.set(layout.buildDirectory.file("reports/jmh/human.txt"))
+    // Allocation rate and bytes/op next to every score
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) }
+    // The 2 GB case takes minutes per combination, so it is opt-in
+    if (providers.gradleProperty("jmhFullSizes").isPresent) {
+        benchmarkParameters.put("fileSize", objects.listProperty<String>().value(
+            listOf("1024", "1048576", "67108864", "2147483648")))
+    }
+}
+
+tasks.register<JavaExec>("jmhCompare") {
+    group = "benchmark"
+    description = "Compares JMH results against a baseline: -Pbaseline=<file> [-Pcurrent=<file>] [-Pthreshold=0.10]"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("com.example.passcast.BenchmarkDiff")
+    args(
+        providers.gradleProperty("baseline").getOrElse(""),
+        providers.gradleProperty("current")
+            .getOrElse(layout.buildDirectory.file("reports/jmh/results.json").get().asFile.path),
+        providers.gradleProperty("threshold").getOrElse("0.10"),
+    )
+}
+
+// Headless soak of many receivers over lossy, dropping links, e.g.
+// ./gradlew :core:soak -Pscenario=lossy,receivers=100; see SoakHarness for the settings
+tasks.register<JavaExec>("soak") {
+    group = "verification"
+    description = "Runs soak scenarios against the loopback transport: -Pscenario=<preset>[,key=value...]"
+    classpath = sourceSets["test"].runtimeClasspath
+    mainClass.set("com.example.passcast.SoakHarness")
+    maxHeapSize = "2g"
+    args(providers.gradleProperty("scenario").getOrElse("crowd").split(";"))
+}
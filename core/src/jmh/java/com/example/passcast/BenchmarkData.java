@@ -0,0 +1,53 @@
+package com.example.passcast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/** Keys and scratch files shared by the benchmarks. */
+final class BenchmarkData {
+
+    private BenchmarkData() {}
+
+    /** A fixed key; the KDF is measured separately and isn't part of any loop here. */
+    static PasswordKey key(int bits) {
+        byte[] raw = new byte[bits / 8];
+        new Random(bits).nextBytes(raw);
+        return new PasswordKey(KdfParams.generate(PasswordKdf.MIN_ITERATIONS), new SecretKeySpec(raw, "AES"));
+    }
+
+    static byte[] random(int len) {
+        byte[] b = new byte[len];
+        new Random(len).nextBytes(b);
+        return b;
+    }
+
+    static File scratchDir() throws IOException {
+        return Files.createTempDirectory("passcast-bench").toFile();
+    }
+
+    /** Writes {@code size} incompressible bytes to {@code f}. */
+    static void fill(File f, long size) throws IOException {
+        byte[] buf = random(1024 * 1024);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(0);
+            for (long left = size; left > 0; ) {
+                int n = (int) Math.min(buf.length, left);
+                raf.write(buf, 0, n);
+                left -= n;
+            }
+        }
+    }
+
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+}
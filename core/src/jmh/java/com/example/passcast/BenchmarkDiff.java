@@ -0,0 +1,136 @@
+package com.example.passcast;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files, benchmark by benchmark and parameter set by
+ * parameter set, on the primary score and on allocated bytes per operation. Exits
+ * with status 1 if anything got worse by more than the threshold, so CI can fail
+ * the build on a regression.
+ *
+ * <p>Usage: {@code BenchmarkDiff <baseline.json> <current.json> [threshold, default 0.10]}
+ */
+public final class BenchmarkDiff {
+
+    private static final String ALLOC_METRIC = "gc.alloc.rate.norm";
+    // Allocation differences below this many bytes per operation are noise
+    private static final double ALLOC_SLACK_BYTES = 64;
+
+    private BenchmarkDiff() {}
+
+    static final class Result {
+        final String mode;
+        final double score;
+        final double error;
+        final double allocPerOp;
+
+        Result(String mode, double score, double error, double allocPerOp) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.allocPerOp = allocPerOp;
+        }
+
+        /** Relative change from {@code base}, positive when worse. */
+        double regression(Result base) {
+            if (base.score == 0) return 0;
+            double change = (score - base.score) / base.score;
+            return mode.equals("thrpt") ? -change : change;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args[0].isEmpty()) {
+            System.err.println("Usage: BenchmarkDiff <baseline.json> <current.json> [threshold]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+
+        List<String> regressions = new ArrayList<>();
+        System.out.printf(Locale.ROOT, "%-90s %14s %14s %8s %12s%n", "benchmark", "baseline", "current", "change",
+                "alloc B/op");
+        for (Map.Entry<String, Result> e : current.entrySet()) {
+            Result now = e.getValue();
+            Result before = baseline.get(e.getKey());
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "%-90s %14s %14.3f %8s %12s  (new)%n", e.getKey(), "-",
+                        now.score, "", alloc(now));
+                continue;
+            }
+            double worse = now.regression(before);
+            // Within the measurement error of both runs is not a regression
+            boolean significant = Math.abs(now.score - before.score) > before.error + now.error;
+            boolean slower = worse > threshold && significant;
+            boolean allocating = before.allocPerOp >= 0 && now.allocPerOp >= 0
+                    && now.allocPerOp > before.allocPerOp * (1 + threshold) + ALLOC_SLACK_BYTES;
+            String flag = slower ? "  SLOWER" : allocating ? "  ALLOCATES MORE" : "";
+            System.out.printf(Locale.ROOT, "%-90s %14.3f %14.3f %+7.1f%% %12s%s%n", e.getKey(), before.score,
+                    now.score, 100 * (now.score - before.score) / before.score, alloc(now), flag);
+            if (!flag.isEmpty()) regressions.add(e.getKey() + flag);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) System.out.printf(Locale.ROOT, "%-90s (missing)%n", key);
+        }
+
+        if (!regressions.isEmpty()) {
+            System.out.println();
+            System.out.println(regressions.size() + " regression(s) over " + Math.round(threshold * 100) + "%:");
+            for (String r : regressions) System.out.println("  " + r);
+            System.exit(1);
+        }
+    }
+
+    private static String alloc(Result r) {
+        return r.allocPerOp < 0 ? "-" : String.format(Locale.ROOT, "%.0f", r.allocPerOp);
+    }
+
+    static Map<String, Result> read(String path) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        try (Reader in = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            JsonArray runs = JsonParser.parseReader(in).getAsJsonArray();
+            for (JsonElement run : runs) {
+                JsonObject o = run.getAsJsonObject();
+                JsonObject primary = o.getAsJsonObject("primaryMetric");
+                JsonObject secondary = o.getAsJsonObject("secondaryMetrics");
+                double alloc = secondary != null && secondary.has(ALLOC_METRIC)
+                        ? secondary.getAsJsonObject(ALLOC_METRIC).get("score").getAsDouble()
+                        : -1;
+                double error = primary.get("scoreError").isJsonPrimitive()
+                        && !primary.get("scoreError").getAsString().equals("NaN")
+                        ? primary.get("scoreError").getAsDouble() : 0;
+                results.put(key(o), new Result(o.get("mode").getAsString(), primary.get("score").getAsDouble(),
+                        error, alloc));
+            }
+        }
+        return results;
+    }
+
+    private static String key(JsonObject run) {
+        StringBuilder key = new StringBuilder(run.get("benchmark").getAsString()
+                .replace("com.example.passcast.", ""));
+        JsonObject params = run.getAsJsonObject("params");
+        if (params != null) {
+            Map<String, String> sorted = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> p : params.entrySet()) sorted.put(p.getKey(), p.getValue().getAsString());
+            key.append(sorted);
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.passcast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The resumable stream path without a link: {@link SegmentStream} framing an
+ * artifact, and {@link SegmentReceiver} verifying the frames into a partial output
+ * with periodic checkpoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FramingBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    @Param({"4096", "65536", "1048576"})
+    public int segmentSize;
+
+    private final PasswordKey key = BenchmarkData.key(128);
+    private File dir;
+    private File artifact;
+    private File frames;
+    private ControlMessage.Offer offer;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        dir = BenchmarkData.scratchDir();
+        File plain = new File(dir, "plain");
+        BenchmarkData.fill(plain, fileSize);
+        artifact = new File(dir, "artifact");
+        try (RandomAccessFile src = new RandomAccessFile(plain, "r");
+             RandomAccessFile dst = new RandomAccessFile(artifact, "rw");
+             ParallelSegmentEngine engine = new ParallelSegmentEngine(1)) {
+            engine.encrypt(key, src.getChannel(), fileSize, dst.getChannel(), segmentSize);
+        }
+        byte[] header = new byte[StreamHeader.LENGTH];
+        try (InputStream in = new FileInputStream(artifact)) {
+            StreamingAead.readFully(in, header, header.length);
+        }
+        byte[] hash;
+        try (InputStream in = new FileInputStream(plain)) {
+            hash = ContentHash.of(in);
+        }
+        offer = new ControlMessage.Offer(TransferCheckpoint.transferId(hash, header), "plain",
+                artifact.length(), hash, header);
+
+        // What a receiver would get off the link
+        frames = new File(dir, "frames");
+        try (InputStream in = new SegmentStream(artifact, new BitSet());
+             RandomAccessFile out = new RandomAccessFile(frames, "rw")) {
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public long frame() throws IOException {
+        long total = 0;
+        try (InputStream in = new SegmentStream(artifact, new BitSet())) {
+            int n;
+            while ((n = in.read(buffer)) != -1) total += n;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int receive() throws IOException, GeneralSecurityException {
+        // A fresh checkpoint each time, or every segment would already be verified
+        TransferCheckpoint cp = TransferCheckpoint.fromOffer(offer);
+        try (InputStream in = new FileInputStream(frames);
+             RandomAccessFile part = new RandomAccessFile(new File(dir, "part"), "rw")) {
+            new SegmentReceiver(cp, new File(dir, "ckpt"), part.getChannel(), key.key).receive(in);
+        }
+        return cp.verifiedCount();
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.passcast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File to file through {@link ParallelSegmentEngine}'s channel and direct-buffer
+ * path, by file size, segment size and thread count. {@link ScalingReport} is the
+ * on-device counterpart.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelEngineBenchmark {
+
+    @Param({"1024", "1048576", "67108864"})
+    public long fileSize;
+
+    @Param({"65536", "1048576"})
+    public int segmentSize;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private final PasswordKey key = BenchmarkData.key(128);
+    private ParallelSegmentEngine engine;
+    private File dir;
+    private RandomAccessFile plain;
+    private RandomAccessFile sealed;
+    private RandomAccessFile opened;
+    private long sealedSize;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        engine = new ParallelSegmentEngine(threads);
+        dir = BenchmarkData.scratchDir();
+        File plainFile = new File(dir, "plain");
+        BenchmarkData.fill(plainFile, fileSize);
+        plain = new RandomAccessFile(plainFile, "r");
+        sealed = new RandomAccessFile(new File(dir, "sealed"), "rw");
+        opened = new RandomAccessFile(new File(dir, "opened"), "rw");
+        sealedSize = encrypt();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.close();
+        plain.close();
+        sealed.close();
+        opened.close();
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public long encrypt() throws IOException, GeneralSecurityException {
+        // Positional writes over the previous run; the size never changes
+        FileChannel dst = sealed.getChannel();
+        return engine.encrypt(key, plain.getChannel(), fileSize, dst, segmentSize);
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException, GeneralSecurityException {
+        return engine.decrypt(key.key, sealed.getChannel(), sealedSize, opened.getChannel());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.passcast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One segment through {@link SegmentCipher}: the inner loop of every encrypt and
+ * decrypt path, by segment size, key size and array vs direct-buffer API.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SegmentCipherBenchmark {
+
+    @Param({"4096", "65536", "1048576"})
+    public int segmentSize;
+
+    @Param({"128", "256"})
+    public int keyBits;
+
+    @Param({"ARRAY", "DIRECT"})
+    public String api;
+
+    // CipherSuite.AES_GCM, CipherSuite.CHACHA20_POLY1305
+    @Param({"0", "1"})
+    public byte cipherSuite;
+
+    private SegmentCipher sealer;
+    private SegmentCipher opener;
+    private byte[] plain;
+    private byte[] sealed;
+    private byte[] out;
+    private ByteBuffer plainBuffer;
+    private ByteBuffer sealedBuffer;
+    private ByteBuffer outBuffer;
+    private int index;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        PasswordKey key = BenchmarkData.key(keyBits);
+        StreamHeader header = StreamHeader.create(segmentSize, key.params, Compression.NONE, cipherSuite);
+        sealer = new SegmentCipher(key.key, header);
+        opener = new SegmentCipher(key.key, header);
+        plain = BenchmarkData.random(segmentSize);
+        sealed = new byte[header.encryptedSegmentSize()];
+        out = new byte[header.encryptedSegmentSize()];
+        // Segment 0 stays sealed for the open benchmarks; sealing moves on from 1
+        new SegmentCipher(key.key, header).seal(0, false, plain, 0, segmentSize, sealed, 0);
+        plainBuffer = ByteBuffer.allocateDirect(segmentSize).put(plain);
+        sealedBuffer = ByteBuffer.allocateDirect(sealed.length).put(sealed);
+        outBuffer = ByteBuffer.allocateDirect(out.length);
+    }
+
+    @Benchmark
+    public int seal() throws GeneralSecurityException {
+        // GCM refuses to reuse a nonce, so every call seals the next segment
+        int i = ++index;
+        if (api.equals("ARRAY")) return sealer.seal(i, false, plain, 0, plain.length, out, 0);
+        plainBuffer.clear();
+        outBuffer.clear();
+        return sealer.seal(i, false, plainBuffer, outBuffer);
+    }
+
+    @Benchmark
+    public int open() throws GeneralSecurityException {
+        if (api.equals("ARRAY")) return opener.open(0, false, sealed, 0, sealed.length, out, 0);
+        sealedBuffer.clear();
+        outBuffer.clear();
+        return opener.open(0, false, sealedBuffer, outBuffer);
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.passcast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File to file through the single-threaded stream API, as used for compressed and
+ * packed artifacts. Compare with {@link ParallelEngineBenchmark} at one thread for
+ * the cost of the stream path itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamingAeadBenchmark {
+
+    @Param({"1024", "1048576", "67108864"})
+    public long fileSize;
+
+    @Param({"4096", "65536", "1048576"})
+    public int segmentSize;
+
+    private final PasswordKey key = BenchmarkData.key(128);
+    private File dir;
+    private File plain;
+    private File sealed;
+    private File opened;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        dir = BenchmarkData.scratchDir();
+        plain = new File(dir, "plain");
+        sealed = new File(dir, "sealed");
+        opened = new File(dir, "opened");
+        BenchmarkData.fill(plain, fileSize);
+        encrypt();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public long encrypt() throws IOException, GeneralSecurityException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(plain), segmentSize);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(sealed), segmentSize)) {
+            return StreamingAead.encrypt(key, in, out, segmentSize);
+        }
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException, GeneralSecurityException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(sealed), segmentSize);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(opened), segmentSize)) {
+            return StreamingAead.decrypt(key.key, in, out);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.passcast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * STREAM payloads over an unshaped {@link LoopbackTransport}: the framing and
+ * hand-off cost the JVM transports add on top of the crypto.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransportBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public int payloadSize;
+
+    private final BlockingQueue<Transport.Payload> received = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> connected = new LinkedBlockingQueue<>();
+    private File dir;
+    private LoopbackTransport sender;
+    private LoopbackTransport receiver;
+    private String receiverId;
+    private byte[] data;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    private Transport.Listener listener(boolean receiving) {
+        return new Transport.Listener() {
+            @Override
+            public void onConnected(String endpointId) {
+                if (!receiving) connected.add(endpointId);
+            }
+
+            @Override
+            public void onConnectionFailed(String endpointId, String reason) {}
+
+            @Override
+            public void onDisconnected(String endpointId) {}
+
+            @Override
+            public void onPayloadReceived(String endpointId, Transport.Payload payload) {
+                if (receiving) received.add(payload);
+            }
+
+            @Override
+            public void onTransferUpdate(String endpointId, long payloadId, int status, long bytes, long total) {}
+        };
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkData.scratchDir();
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        sender = new LoopbackTransport(network, LinkProfile.UNLIMITED, dir);
+        receiver = new LoopbackTransport(network, LinkProfile.UNLIMITED, dir);
+        sender.startAdvertising("bench", listener(false)).get();
+        receiver.requestConnection("receiver", sender.getLocalId(), listener(true)).get();
+        receiverId = connected.poll(10, TimeUnit.SECONDS);
+        data = BenchmarkData.random(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.stopAll();
+        receiver.stopAll();
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public long stream() throws IOException, InterruptedException {
+        sender.send(receiverId, sender.stream(new ByteArrayInputStream(data)));
+        Transport.Payload payload = received.poll(60, TimeUnit.SECONDS);
+        if (payload == null) throw new IOException("Payload did not arrive");
+        long total = 0;
+        try (InputStream in = payload.asStream()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.passcast;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Sender-side cache of encrypted artifacts, addressed by what went into them:
+ * the plaintext hash, the key and the container format. Re-broadcasting the same
+ * file under the same password reuses the artifact (and its transfer id, so
+ * receivers can resume across broadcasts) instead of sealing it again.
+ *
+ * <p>Entries are evicted least-recently-used first once the directory exceeds its
+ * byte budget, except those {@link #pin pinned} by a broadcast that still offers them.
+ * Recency survives restarts through the files' modification times.
+ */
+public final class ArtifactCache {
+
+    private static final String SUFFIX = ".pcst";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int NAME_LENGTH = 32;
+    private static final byte[] KEY_ID_LABEL = "passcast artifact cache".getBytes(StandardCharsets.US_ASCII);
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, File> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Pin counts by key; a key may be pinned before its entry is put
+    private final Map<String, Integer> pins = new HashMap<>();
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Opens the cache, dropping leftovers of interrupted writes and anything else that
+     * isn't a cache entry.
+     */
+    public ArtifactCache(File dir, long maxBytes) throws IOException {
+        if (maxBytes <= 0) throw new IllegalArgumentException("Invalid cache budget " + maxBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+
+        File[] files = dir.listFiles();
+        List<File> found = new ArrayList<>();
+        if (files != null) {
+            for (File f : files) {
+                if (isEntryName(f.getName()) && f.isFile()) found.add(f);
+                else deleteRecursively(f);
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : found) {
+            entries.put(f.getName().substring(0, NAME_LENGTH), f);
+            totalBytes += f.length();
+        }
+        evictToBudget(null);
+    }
+
+    /**
+     * Identifies a key without revealing it: a MAC of a fixed label under the key.
+     * Different passwords or KDF params give different ids.
+     */
+    public static String keyId(SecretKey key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return ContentHash.hex(Arrays.copyOf(mac.doFinal(KEY_ID_LABEL), 8));
+    }
+
+    /** Cache key for a plaintext sealed under {@code keyId} with the given format. */
+    public static String key(byte[] contentHash, String keyId, int segmentSize, byte codec) {
+        return key(contentHash, keyId, segmentSize, codec, CipherSuite.AES_GCM);
+    }
+
+    public static String key(byte[] contentHash, String keyId, int segmentSize, byte codec, byte cipherSuite) {
+        MessageDigest sha = ContentHash.sha256();
+        sha.update(contentHash);
+        sha.update(keyId.getBytes(StandardCharsets.US_ASCII));
+        sha.update(ByteBuffer.allocate(7).put(StreamHeader.VERSION).putInt(segmentSize).put(codec)
+                .put(cipherSuite).array());
+        return ContentHash.hex(sha.digest()).substring(0, NAME_LENGTH);
+    }
+
+    /** Returns the cached artifact and marks it recently used, or null on a miss. */
+    public synchronized File get(String key) {
+        File f = entries.get(key);
+        if (f != null && !f.isFile()) {
+            // Removed behind our back, e.g. the system trimming the cache directory
+            entries.remove(key);
+            totalBytes = Math.max(0, totalBytes - f.length());
+            f = null;
+        }
+        if (f == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    /** A file to seal into; hand it to {@link #put} when complete, or delete it. */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("artifact", TEMP_SUFFIX, dir);
+    }
+
+    /**
+     * Moves a completed artifact into the cache under {@code key} and evicts older
+     * entries if that takes the cache over budget. Neither the new entry nor a pinned
+     * one is evicted, so the cache may stay over budget until they are unpinned.
+     */
+    public synchronized File put(String key, File temp) throws IOException {
+        File target = new File(dir, key + SUFFIX);
+        File old = entries.remove(key);
+        if (old != null) totalBytes -= old.length();
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Cannot store artifact " + target);
+        }
+        target.setLastModified(System.currentTimeMillis());
+        entries.put(key, target);
+        totalBytes += target.length();
+        evictToBudget(key);
+        return target;
+    }
+
+    /** Keeps {@code key} from being evicted until it is {@link #unpin unpinned} as often. */
+    public synchronized void pin(String key) {
+        pins.merge(key, 1, Integer::sum);
+    }
+
+    /** Releases one {@link #pin}, evicting whatever the pin had kept over budget. */
+    public synchronized void unpin(String key) {
+        pins.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+        evictToBudget(null);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, entries.size(), totalBytes, maxBytes);
+    }
+
+    private void evictToBudget(String keep) {
+        Iterator<Map.Entry<String, File>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, File> e = it.next();
+            if (e.getKey().equals(keep) || pins.containsKey(e.getKey())) continue;
+            long len = e.getValue().length();
+            if (e.getValue().delete() || !e.getValue().exists()) {
+                it.remove();
+                totalBytes -= len;
+                evictions++;
+            }
+        }
+    }
+
+    private static boolean isEntryName(String name) {
+        if (name.length() != NAME_LENGTH + SUFFIX.length() || !name.endsWith(SUFFIX)) return false;
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        f.delete();
+    }
+
+    /** Snapshot of the cache counters for display. */
+    public static final class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int entries;
+        public final long bytes;
+        public final long maxBytes;
+
+        Stats(long hits, long misses, long evictions, int entries, long bytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+        }
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Cache: %d hit(s), %d miss(es), %d file(s), %.1f of %.0f MB",
+                    hits, misses, entries, bytes / 1e6, maxBytes / 1e6);
+        }
+    }
+}
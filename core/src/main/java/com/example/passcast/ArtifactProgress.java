@@ -0,0 +1,70 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.BitSet;
+
+/**
+ * Tracks which segments of an artifact that is still being sealed have reached the
+ * file, so readers can stream it while the encryptor is running. Workers finish out
+ * of order; readers wait for the specific segment they need next.
+ */
+public final class ArtifactProgress implements ParallelSegmentEngine.SegmentListener {
+
+    private final int segmentCount;
+    private final BitSet written = new BitSet();
+    private Throwable failure;
+    private volatile boolean canceled;
+
+    public ArtifactProgress(int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    @Override
+    public synchronized void onSegmentWritten(int index) {
+        written.set(index);
+        notifyAll();
+    }
+
+    /** Wakes all readers with an error; the artifact will never complete. */
+    public synchronized void fail(Throwable t) {
+        if (failure == null) failure = t;
+        notifyAll();
+    }
+
+    /** Stops the encryption at the next segment; readers fail as they would on an error. */
+    public void cancel() {
+        canceled = true;
+        fail(new InterruptedIOException("Encryption canceled"));
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    public synchronized boolean isComplete() {
+        return written.cardinality() == segmentCount;
+    }
+
+    public synchronized int writtenCount() {
+        return written.cardinality();
+    }
+
+    /** Blocks until segment {@code index} is in the file. */
+    public synchronized void awaitSegment(int index) throws IOException {
+        while (!written.get(index)) {
+            if (failure != null) throw new IOException("Encryption failed", failure);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for segment " + index);
+            }
+        }
+    }
+}
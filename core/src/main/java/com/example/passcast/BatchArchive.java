@@ -0,0 +1,167 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plaintext layout of a packed artifact: its files' bytes back to back, in manifest
+ * order. Names, sizes and hashes travel in the manifest, so the archive itself has no
+ * framing and both sides can process it strictly sequentially.
+ */
+public final class BatchArchive {
+
+    private BatchArchive() {}
+
+    /** Opens the content of member {@code index}; called once, in order, as the archive is read. */
+    public interface Opener {
+        InputStream open(int index) throws IOException;
+    }
+
+    /**
+     * Concatenates the members, opening each only when the previous one is exhausted.
+     * A member that is shorter or longer than its manifest size fails the stream.
+     */
+    public static InputStream pack(long[] sizes, Opener opener) {
+        return new InputStream() {
+            private int index = -1;
+            private InputStream current;
+            private long remaining;
+
+            private boolean advance() throws IOException {
+                while (remaining == 0) {
+                    if (current != null) {
+                        boolean grown = current.read() != -1;
+                        current.close();
+                        current = null;
+                        if (grown) throw new IOException("File " + index + " changed while packing");
+                    }
+                    if (++index >= sizes.length) return false;
+                    current = opener.open(index);
+                    remaining = sizes[index];
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (!advance()) return -1;
+                int n = current.read(b, off, (int) Math.min(len, remaining));
+                if (n == -1) throw new IOException("File " + index + " changed while packing");
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (current != null) current.close();
+                index = sizes.length;
+                remaining = 0;
+            }
+        };
+    }
+
+    /** Where unpacked files go. Each opened entry is either published or discarded. */
+    public interface Sink {
+        OutputStream open(ControlMessage.Entry entry) throws IOException;
+
+        /** The entry's bytes are complete and match its hash. */
+        void publish(ControlMessage.Entry entry) throws IOException;
+
+        void discard(ControlMessage.Entry entry);
+    }
+
+    /**
+     * Splits a decrypted archive back into files as it is written, verifying each
+     * against its manifest hash before handing it to the sink.
+     */
+    public static final class Unpacker extends OutputStream {
+        private final List<ControlMessage.Entry> entries;
+        private final Sink sink;
+        private final MessageDigest sha = ContentHash.sha256();
+        private int index = -1;
+        private OutputStream current;
+        private long remaining;
+        private int published;
+
+        public Unpacker(List<ControlMessage.Entry> entries, Sink sink) {
+            this.entries = entries;
+            this.sink = sink;
+        }
+
+        public int publishedCount() {
+            return published;
+        }
+
+        /** Opens the next member, publishing any empty ones on the way. */
+        private void next() throws IOException {
+            while (current == null || remaining == 0) {
+                if (current != null) complete();
+                if (index + 1 >= entries.size()) return;
+                ControlMessage.Entry e = entries.get(++index);
+                current = sink.open(e);
+                remaining = e.size;
+                sha.reset();
+                if (remaining > 0) return;
+            }
+        }
+
+        private void complete() throws IOException {
+            ControlMessage.Entry e = entries.get(index);
+            OutputStream out = current;
+            current = null;
+            out.flush();
+            if (!Arrays.equals(sha.digest(), e.contentHash)) {
+                sink.discard(e);
+                throw new IOException("Content hash mismatch for " + e.name);
+            }
+            sink.publish(e);
+            published++;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                next();
+                if (current == null) throw new IOException("Archive longer than its manifest");
+                int n = (int) Math.min(len, remaining);
+                current.write(b, off, n);
+                sha.update(b, off, n);
+                remaining -= n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** Publishes the last members; fails if the archive ended early. */
+        public void finish() throws IOException {
+            next();
+            if (current != null || published < entries.size())
+                throw new IOException("Archive ended after " + published + " of " + entries.size() + " files");
+        }
+
+        /** Discards a member left open by a failed transfer. */
+        @Override
+        public void close() {
+            if (current != null) {
+                sink.discard(entries.get(index));
+                current = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Receiver-side view of a batch, reassembled from its {@link ControlMessage.Manifest} parts. */
+public final class BatchManifest {
+
+    public final String batchId;
+    private final ControlMessage.Manifest[] parts;
+    private int received;
+
+    public BatchManifest(ControlMessage.Manifest first) throws IOException {
+        this.batchId = first.batchId;
+        this.parts = new ControlMessage.Manifest[first.parts];
+        add(first);
+    }
+
+    /** Adds a part; returns true once every part has arrived. */
+    public boolean add(ControlMessage.Manifest part) throws IOException {
+        if (!part.batchId.equals(batchId) || part.parts != parts.length) throw new IOException("Manifest mismatch");
+        if (parts[part.part] == null) {
+            parts[part.part] = part;
+            received++;
+        }
+        return isComplete();
+    }
+
+    public boolean isComplete() {
+        return received == parts.length;
+    }
+
+    public List<ControlMessage.Entry> entries() {
+        List<ControlMessage.Entry> all = new ArrayList<>();
+        for (ControlMessage.Manifest p : parts) {
+            if (p != null) all.addAll(p.entries);
+        }
+        return all;
+    }
+
+    /** The entries carried by one artifact, in the order they were packed. */
+    public List<ControlMessage.Entry> entriesFor(String transferId) {
+        List<ControlMessage.Entry> out = new ArrayList<>();
+        for (ControlMessage.Entry e : entries()) {
+            if (e.transferId.equals(transferId)) out.add(e);
+        }
+        return out;
+    }
+
+    /** True if the artifact is an archive of packed files rather than a single file. */
+    public boolean isPacked(String transferId) {
+        for (ControlMessage.Entry e : entries()) {
+            if (e.transferId.equals(transferId)) return e.packed;
+        }
+        return false;
+    }
+
+    public int fileCount() {
+        int n = 0;
+        for (ControlMessage.Manifest p : parts) {
+            if (p != null) n += p.entries.size();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.passcast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a batch of files into artifacts. Large files get an artifact (and payload) of
+ * their own so they can be sent in parallel; small ones are packed back to back into
+ * shared archives, so a folder of photos costs a handful of payloads instead of one
+ * negotiation per file.
+ */
+public final class BatchPlan {
+
+    /** Files up to this size are packed. */
+    public static final long SMALL_FILE_MAX = 16L * 1024 * 1024;
+    /** Archives are closed once they reach this size, bounding each payload and its resume state. */
+    public static final long ARCHIVE_MAX = 512L * 1024 * 1024;
+
+    private BatchPlan() {}
+
+    /** A set of files sealed into one artifact. */
+    public static final class Group {
+        public final boolean packed;
+        public final List<Integer> members;
+        public final long bytes;
+
+        Group(boolean packed, List<Integer> members, long bytes) {
+            this.packed = packed;
+            this.members = Collections.unmodifiableList(members);
+            this.bytes = bytes;
+        }
+    }
+
+    public static List<Group> plan(long[] sizes) {
+        return plan(sizes, SMALL_FILE_MAX, ARCHIVE_MAX);
+    }
+
+    /** Groups file indexes, keeping the packed files in their original order. */
+    static List<Group> plan(long[] sizes, long smallFileMax, long archiveMax) {
+        List<Group> groups = new ArrayList<>();
+        List<Integer> archive = new ArrayList<>();
+        long archiveBytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] > smallFileMax) {
+                groups.add(new Group(false, Collections.singletonList(i), sizes[i]));
+                continue;
+            }
+            if (!archive.isEmpty() && archiveBytes + sizes[i] > archiveMax) {
+                groups.add(new Group(true, archive, archiveBytes));
+                archive = new ArrayList<>();
+                archiveBytes = 0;
+            }
+            archive.add(i);
+            archiveBytes += sizes[i];
+        }
+        if (!archive.isEmpty()) groups.add(new Group(true, archive, archiveBytes));
+        return groups;
+    }
+}
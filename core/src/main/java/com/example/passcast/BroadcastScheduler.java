@@ -0,0 +1,235 @@
+package com.example.passcast;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Fans one encrypted artifact out to many receivers. At most {@code maxConcurrent}
+ * outbound sends run at once; the rest wait by priority, then in arrival order.
+ * Tracks per-receiver progress and completion time for the broadcast report.
+ */
+public final class BroadcastScheduler {
+
+    /** Starts the actual send to one endpoint when it gets a slot. */
+    public interface Starter {
+        void start(String endpointId);
+    }
+
+    public enum State { QUEUED, SENDING, DONE, FAILED }
+
+    // Lower runs first. Resumes are nearly done, so they go ahead of fresh sends.
+    public static final int PRIORITY_RESUME = 0;
+    public static final int PRIORITY_NORMAL = 1;
+
+    public static final class Receiver {
+        public final String endpointId;
+        public final long totalBytes;
+        final int priority;
+        State state = State.QUEUED;
+        long bytesSent;
+        final long queuedAt;
+        long startedAt;
+        long finishedAt;
+
+        Receiver(String endpointId, long totalBytes, int priority, long now) {
+            this.endpointId = endpointId;
+            this.totalBytes = totalBytes;
+            this.priority = priority;
+            this.queuedAt = now;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /** Queue wait plus send time, or -1 while unfinished. */
+        public long completionMillis() {
+            return state == State.DONE ? (finishedAt - queuedAt) / 1_000_000 : -1;
+        }
+    }
+
+    private int maxConcurrent;
+    private final Starter starter;
+    private final LongSupplier clock;
+    private final Map<String, Receiver> receivers = new LinkedHashMap<>();
+    private final List<String> queue = new ArrayList<>();
+    private int active;
+    private long firstStart = -1;
+    private long lastFinish = -1;
+
+    public BroadcastScheduler(int maxConcurrent, Starter starter) {
+        this(maxConcurrent, starter, System::nanoTime);
+    }
+
+    BroadcastScheduler(int maxConcurrent, Starter starter, LongSupplier clock) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.starter = starter;
+        this.clock = clock;
+    }
+
+    /** Queues a send of {@code totalBytes} to an endpoint; re-enqueueing restarts it. */
+    public void enqueue(String endpointId, long totalBytes) {
+        enqueue(endpointId, totalBytes, PRIORITY_NORMAL);
+    }
+
+    public void enqueue(String endpointId, long totalBytes, int priority) {
+        List<String> toStart;
+        synchronized (this) {
+            remove(endpointId, false);
+            receivers.put(endpointId, new Receiver(endpointId, totalBytes, priority, clock.getAsLong()));
+            // Behind everything of the same or a more urgent priority
+            int at = queue.size();
+            while (at > 0 && receivers.get(queue.get(at - 1)).priority > priority) at--;
+            queue.add(at, endpointId);
+            toStart = drain();
+        }
+        startAll(toStart);
+    }
+
+    /** Changes the number of concurrent sends; running sends are never stopped. */
+    public void setMaxConcurrent(int maxConcurrent) {
+        List<String> toStart;
+        synchronized (this) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            toStart = drain();
+        }
+        startAll(toStart);
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public synchronized void onProgress(String endpointId, long bytesSent) {
+        Receiver r = receivers.get(endpointId);
+        if (r != null && r.state == State.SENDING) r.bytesSent = bytesSent;
+    }
+
+    public void onComplete(String endpointId, boolean success) {
+        List<String> toStart;
+        synchronized (this) {
+            Receiver r = receivers.get(endpointId);
+            if (r == null || r.state != State.SENDING) return;
+            r.finishedAt = clock.getAsLong();
+            r.state = success ? State.DONE : State.FAILED;
+            if (success) {
+                r.bytesSent = r.totalBytes;
+                lastFinish = r.finishedAt;
+            }
+            active--;
+            toStart = drain();
+        }
+        startAll(toStart);
+    }
+
+    /** Drops an endpoint that disconnected, freeing its slot. */
+    public void remove(String endpointId) {
+        List<String> toStart;
+        synchronized (this) {
+            remove(endpointId, true);
+            toStart = drain();
+        }
+        startAll(toStart);
+    }
+
+    private void remove(String endpointId, boolean markFailed) {
+        Receiver r = receivers.get(endpointId);
+        if (r == null) return;
+        if (r.state == State.SENDING) active--;
+        if (r.state == State.QUEUED) queue.remove(endpointId);
+        if (markFailed && (r.state == State.SENDING || r.state == State.QUEUED)) {
+            r.state = State.FAILED;
+            r.finishedAt = clock.getAsLong();
+        } else if (!markFailed) {
+            receivers.remove(endpointId);
+        }
+    }
+
+    private List<String> drain() {
+        List<String> toStart = new ArrayList<>();
+        while (active < maxConcurrent && !queue.isEmpty()) {
+            String id = queue.remove(0);
+            Receiver r = receivers.get(id);
+            r.state = State.SENDING;
+            r.startedAt = clock.getAsLong();
+            if (firstStart < 0) firstStart = r.startedAt;
+            active++;
+            toStart.add(id);
+        }
+        return toStart;
+    }
+
+    // Called outside the lock so a synchronous Starter can report back re-entrantly
+    private void startAll(List<String> ids) {
+        for (String id : ids) starter.start(id);
+    }
+
+    public synchronized Report report() {
+        List<Receiver> snapshot = new ArrayList<>(receivers.values());
+        int sending = 0, queued = 0, done = 0, failed = 0;
+        long delivered = 0, total = 0;
+        for (Receiver r : snapshot) {
+            delivered += r.bytesSent;
+            if (r.state != State.FAILED) total += r.totalBytes;
+            switch (r.state) {
+                case SENDING: sending++; break;
+                case QUEUED: queued++; break;
+                case DONE: done++; break;
+                case FAILED: failed++; break;
+            }
+        }
+        long end = active > 0 || lastFinish < 0 ? clock.getAsLong() : lastFinish;
+        long elapsed = firstStart < 0 ? 0 : end - firstStart;
+        return new Report(snapshot, sending, queued, done, failed, delivered, total, elapsed);
+    }
+
+    public static final class Report {
+        public final List<Receiver> receivers;
+        public final int sending, queued, done, failed;
+        public final long bytesDelivered;
+        /** Bytes the broadcast will have sent once every live receiver is done. */
+        public final long bytesTotal;
+        public final long elapsedNanos;
+
+        Report(List<Receiver> receivers, int sending, int queued, int done, int failed,
+               long bytesDelivered, long bytesTotal, long elapsedNanos) {
+            this.receivers = receivers;
+            this.sending = sending;
+            this.queued = queued;
+            this.done = done;
+            this.failed = failed;
+            this.bytesDelivered = bytesDelivered;
+            this.bytesTotal = bytesTotal;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** Bytes delivered to all receivers per second of broadcast wall time. */
+        public double aggregateBytesPerSecond() {
+            return elapsedNanos <= 0 ? 0 : bytesDelivered / (elapsedNanos / 1e9);
+        }
+
+        public String summary() {
+            return String.format(Locale.ROOT, "Sending to %d, %d queued, %d done, %d failed — %.1f MB/s",
+                    sending, queued, done, failed, aggregateBytesPerSecond() / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(summary());
+            for (Receiver r : receivers) {
+                sb.append('\n').append(r.endpointId).append(": ").append(r.state);
+                if (r.state == State.DONE) sb.append(" in ").append(r.completionMillis()).append(" ms");
+                else sb.append(' ').append(r.bytesSent).append('/').append(r.totalBytes);
+            }
+            return sb.toString();
+        }
+    }
+}
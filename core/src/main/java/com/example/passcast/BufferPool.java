@@ -0,0 +1,38 @@
+package com.example.passcast;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Small free-list of direct buffers so hot loops neither allocate a segment buffer
+ * per segment nor copy through the Java heap on their way to a channel. Buffers
+ * smaller than the request are dropped and replaced.
+ */
+public final class BufferPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public BufferPool(int maxPooled) {
+        free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    /** Returns a cleared buffer with at least {@code minSize} bytes of capacity. */
+    public ByteBuffer acquire(int minSize) {
+        ByteBuffer buf;
+        while ((buf = free.poll()) != null) {
+            if (buf.capacity() >= minSize) {
+                buf.clear();
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect(minSize);
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf != null) free.offer(buf);
+    }
+
+    public int pooled() {
+        return free.size();
+    }
+}
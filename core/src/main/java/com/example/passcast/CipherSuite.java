@@ -0,0 +1,165 @@
+package com.example.passcast;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The AEAD a container is sealed with, recorded in its {@link StreamHeader}. AES-GCM
+ * is fastest wherever the CPU has AES instructions; ChaCha20-Poly1305 is several
+ * times faster on cores without them. Each device measures both once, and a sender
+ * picks the suite that is fastest for the slowest side of the broadcast.
+ */
+public final class CipherSuite {
+
+    public static final byte AES_GCM = 0;
+    public static final byte CHACHA20_POLY1305 = 1;
+    static final byte[] ALL = {AES_GCM, CHACHA20_POLY1305};
+
+    /** Plaintext sealed per suite when measuring, after an untimed warm-up of the same size. */
+    static final int MEASURE_BYTES = 4 * 1024 * 1024;
+    private static final int MEASURE_SEGMENT = StreamHeader.DEFAULT_SEGMENT_SIZE;
+    // Conscrypt on Android, then the JDK's name
+    private static final String[] CHACHA_TRANSFORMATIONS = {"ChaCha20/Poly1305/NoPadding", "ChaCha20-Poly1305"};
+    private static final byte[] CHACHA_KEY_LABEL = "PassCast ChaCha20-Poly1305 key".getBytes(StandardCharsets.US_ASCII);
+
+    private CipherSuite() {}
+
+    public static boolean isKnown(byte suite) {
+        return suite == AES_GCM || suite == CHACHA20_POLY1305;
+    }
+
+    public static String name(byte suite) {
+        switch (suite) {
+            case AES_GCM: return "AES-GCM";
+            case CHACHA20_POLY1305: return "ChaCha20-Poly1305";
+            default: return "suite " + suite;
+        }
+    }
+
+    /** Whether this runtime can seal and open containers of {@code suite}. */
+    public static boolean isAvailable(byte suite) {
+        try {
+            newCipher(suite);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    static Cipher newCipher(byte suite) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (suite == AES_GCM) return Cipher.getInstance("AES/GCM/NoPadding");
+        if (suite != CHACHA20_POLY1305) throw new NoSuchAlgorithmException("Unknown cipher suite " + suite);
+        NoSuchAlgorithmException missing = null;
+        for (String transformation : CHACHA_TRANSFORMATIONS) {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (NoSuchAlgorithmException e) {
+                missing = e;
+            }
+        }
+        throw missing;
+    }
+
+    /**
+     * The key {@code suite} runs under. ChaCha20 needs 256 bits, so the password key is
+     * expanded with HMAC-SHA256 under a fixed label; its strength stays that of the
+     * password key, and the two suites never share a key.
+     */
+    static SecretKey key(SecretKey key, byte suite) throws GeneralSecurityException {
+        if (suite == AES_GCM) return key;
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return new SecretKeySpec(mac.doFinal(CHACHA_KEY_LABEL), "ChaCha20");
+    }
+
+    static AlgorithmParameterSpec spec(byte suite, byte[] nonce) {
+        return suite == AES_GCM
+                ? new GCMParameterSpec(SegmentCipher.TAG_LENGTH * 8, nonce)
+                : new IvParameterSpec(nonce);
+    }
+
+    /**
+     * Seals {@link #MEASURE_BYTES} with each suite through {@link SegmentCipher}; returns
+     * bytes per second indexed by suite, 0 for one this runtime lacks. Takes a few
+     * hundred milliseconds on a slow phone, so callers keep the result.
+     */
+    public static long[] measure() {
+        byte[] raw = new byte[16];
+        new SecureRandom().nextBytes(raw);
+        SecretKey key = new SecretKeySpec(raw, "AES");
+        byte[] plain = new byte[MEASURE_SEGMENT];
+        byte[] sealed = new byte[MEASURE_SEGMENT + SegmentCipher.TAG_LENGTH];
+        long[] speeds = new long[ALL.length];
+        for (byte suite : ALL) {
+            try {
+                SegmentCipher cipher = new SegmentCipher(key, StreamHeader.create(MEASURE_SEGMENT,
+                        KdfParams.generate(1), Compression.NONE, suite));
+                int segments = MEASURE_BYTES / MEASURE_SEGMENT;
+                for (int i = 0; i < segments; i++) cipher.seal(i, false, plain, 0, plain.length, sealed, 0);
+                long start = System.nanoTime();
+                for (int i = segments; i < 2 * segments; i++) cipher.seal(i, false, plain, 0, plain.length, sealed, 0);
+                long elapsed = Math.max(1, System.nanoTime() - start);
+                speeds[suite] = Math.max(1, (long) (MEASURE_BYTES * 1e9 / elapsed));
+            } catch (GeneralSecurityException e) {
+                speeds[suite] = 0;
+            }
+        }
+        return speeds;
+    }
+
+    /**
+     * The suite whose slowest side is fastest, given each side's {@link #measure} result.
+     * A null side has nothing to say; a suite some side lacks is out. Falls back to
+     * AES-GCM, which every runtime has, and prefers it on a tie.
+     */
+    public static byte choose(long[]... sides) {
+        byte best = AES_GCM;
+        long bestRate = -1;
+        for (byte suite : ALL) {
+            long slowest = Long.MAX_VALUE;
+            for (long[] side : sides) {
+                if (side == null) continue;
+                slowest = Math.min(slowest, suite < side.length ? side[suite] : 0);
+            }
+            if (slowest > bestRate && slowest > 0) {
+                best = suite;
+                bestRate = slowest;
+            }
+        }
+        return best;
+    }
+
+    /** {@link #measure} results as text, for keeping in preferences. */
+    public static String encodeSpeeds(long[] speeds) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < speeds.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(speeds[i]);
+        }
+        return sb.toString();
+    }
+
+    /** Inverse of {@link #encodeSpeeds}; null for null or malformed text. */
+    public static long[] decodeSpeeds(String text) {
+        if (text == null || text.isEmpty()) return null;
+        String[] parts = text.split(",");
+        long[] speeds = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) speeds[i] = Math.max(0, Long.parseLong(parts[i]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return speeds;
+    }
+}
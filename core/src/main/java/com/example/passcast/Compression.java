@@ -0,0 +1,191 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Optional compression stage applied to the plaintext before it is segmented and
+ * sealed. The codec is chosen per file from its MIME type and a sample of its bytes,
+ * and recorded in the container header.
+ */
+public final class Compression {
+
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    /** Samples above this many bits per byte are treated as already compressed or encrypted. */
+    static final double MAX_ENTROPY_BITS = 7.5;
+    /** A trial deflate of the sample must save at least this fraction. */
+    static final double MIN_SAVING = 0.10;
+
+    private static final int LEVEL = 6;
+
+    private Compression() {}
+
+    public static boolean isKnown(byte codec) {
+        return codec == NONE || codec == DEFLATE;
+    }
+
+    /** Formats that carry their own compression; deflating them only burns CPU. */
+    public static boolean isPrecompressed(String mimeType) {
+        if (mimeType == null) return false;
+        String m = mimeType.toLowerCase(Locale.ROOT);
+        if (m.startsWith("video/") || m.startsWith("audio/")) return true;
+        if (m.startsWith("image/")) return !m.equals("image/bmp") && !m.equals("image/svg+xml");
+        switch (m) {
+            case "application/zip":
+            case "application/gzip":
+            case "application/x-7z-compressed":
+            case "application/x-rar-compressed":
+            case "application/vnd.android.package-archive":
+            case "application/vnd.openxmlformats-officedocument.wordprocessingml.document":
+            case "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet":
+            case "application/vnd.openxmlformats-officedocument.presentationml.presentation":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Picks a codec for a file from its MIME type and the first bytes of its content. */
+    public static byte choose(String mimeType, byte[] sample, int len) {
+        if (isPrecompressed(mimeType) || len < 512) return NONE;
+        if (entropy(sample, len) > MAX_ENTROPY_BITS) return NONE;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, len);
+            deflater.finish();
+            byte[] out = new byte[len];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < len) {
+                compressed += deflater.deflate(out, 0, out.length);
+            }
+            return deflater.finished() && compressed <= len * (1 - MIN_SAVING) ? DEFLATE : NONE;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Shannon entropy of the byte histogram, in bits per byte. */
+    static double entropy(byte[] b, int len) {
+        if (len == 0) return 0;
+        int[] counts = new int[256];
+        for (int i = 0; i < len; i++) counts[b[i] & 0xff]++;
+        double h = 0;
+        for (int c : counts) {
+            if (c == 0) continue;
+            double p = (double) c / len;
+            h -= p * Math.log(p);
+        }
+        return h / Math.log(2);
+    }
+
+    /** Wraps a plaintext source so reads return the encoded stream. */
+    public static InputStream encoding(InputStream in, byte codec, Stats stats) {
+        switch (codec) {
+            case NONE:
+                return in;
+            case DEFLATE:
+                return new MeteredDeflaterInputStream(in, new Deflater(LEVEL), stats);
+            default:
+                throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+    }
+
+    /** Wraps a plaintext sink so decoded bytes are written through to {@code out}. */
+    public static OutputStream decoding(OutputStream out, byte codec) throws IOException {
+        switch (codec) {
+            case NONE:
+                return out;
+            case DEFLATE:
+                return new InflaterOutputStream(out, new Inflater(), 64 * 1024);
+            default:
+                throw new IOException("Unknown codec " + codec);
+        }
+    }
+
+    /** Wraps a decrypted-plaintext source so reads return the decoded file content. */
+    public static InputStream decoding(InputStream in, byte codec) throws IOException {
+        switch (codec) {
+            case NONE:
+                return in;
+            case DEFLATE:
+                return new InflaterInputStream(in, new Inflater(), 64 * 1024);
+            default:
+                throw new IOException("Unknown codec " + codec);
+        }
+    }
+
+    /** Bytes saved and time spent in the compression stage. */
+    public static final class Stats {
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        public long bytesIn() {
+            return bytesIn.get();
+        }
+
+        public long bytesOut() {
+            return bytesOut.get();
+        }
+
+        public long bytesSaved() {
+            return bytesIn.get() - bytesOut.get();
+        }
+
+        public long cpuMillis() {
+            return nanos.get() / 1_000_000;
+        }
+
+        public double ratio() {
+            return bytesIn.get() == 0 ? 1 : (double) bytesOut.get() / bytesIn.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d -> %d bytes (saved %d, %.0f%%), %d ms",
+                    bytesIn(), bytesOut(), bytesSaved(), (1 - ratio()) * 100, cpuMillis());
+        }
+    }
+
+    private static final class MeteredDeflaterInputStream extends DeflaterInputStream {
+        private final Deflater deflater;
+        private final Stats stats;
+
+        MeteredDeflaterInputStream(InputStream in, Deflater deflater, Stats stats) {
+            super(in, deflater, 64 * 1024);
+            this.deflater = deflater;
+            this.stats = stats;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(b, off, len);
+            if (stats != null) {
+                stats.nanos.addAndGet(System.nanoTime() - start);
+                stats.bytesIn.set(deflater.getBytesRead());
+                stats.bytesOut.set(deflater.getBytesWritten());
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,538 @@
+package com.example.passcast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Small typed messages exchanged as BYTES payloads alongside the data payloads.
+ * Wire format: magic byte | type byte | type-specific body.
+ */
+public abstract class ControlMessage {
+
+    private static final byte MAGIC = (byte) 0xC5;
+
+    static final byte TYPE_OFFER = 1;
+    static final byte TYPE_RESUME = 2;
+    static final byte TYPE_MANIFEST = 3;
+    static final byte TYPE_BIND = 4;
+    static final byte TYPE_DELTA_REQUEST = 5;
+    static final byte TYPE_CHALLENGE = 6;
+    static final byte TYPE_PROOF = 7;
+    // 8 was the sender's closing MAC, from when the receiver proved the key first
+    static final byte TYPE_REJECT = 9;
+    static final byte TYPE_HAVE = 10;
+    static final byte TYPE_CREDIT = 11;
+    static final byte TYPE_HELLO = 12;
+
+    /** Nearby caps BYTES payloads at 32 KiB; stay under it with room to spare. */
+    public static final int MAX_MESSAGE_SIZE = 30 * 1024;
+
+    abstract byte type();
+
+    abstract void writeBody(DataOutputStream out) throws IOException;
+
+    public final byte[] toBytes() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeByte(MAGIC);
+            out.writeByte(type());
+            writeBody(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    public static ControlMessage parse(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 2 || in.readByte() != MAGIC) throw new IOException("Not a control message");
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_OFFER:
+                return Offer.read(in);
+            case TYPE_RESUME:
+                return Resume.read(in);
+            case TYPE_MANIFEST:
+                return Manifest.read(in);
+            case TYPE_BIND:
+                return Bind.read(in);
+            case TYPE_DELTA_REQUEST:
+                return DeltaRequest.read(in);
+            case TYPE_CHALLENGE:
+                return Challenge.read(in);
+            case TYPE_PROOF:
+                return Proof.read(in);
+            case TYPE_REJECT:
+                return Reject.read(in);
+            case TYPE_HAVE:
+                return Have.read(in);
+            case TYPE_CREDIT:
+                return Credit.read(in);
+            case TYPE_HELLO:
+                return Hello.read(in);
+            default:
+                throw new IOException("Unknown control message " + type);
+        }
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static byte[] readBytes(DataInputStream in, int max) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > max) throw new IOException("Field too long: " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+
+    /** Sender → receiver: describes the encrypted artifact on offer. */
+    public static final class Offer extends ControlMessage {
+        public final String transferId;
+        public final String fileName;
+        public final long ciphertextSize;
+        public final byte[] contentHash;
+        public final byte[] header;
+
+        public Offer(String transferId, String fileName, long ciphertextSize, byte[] contentHash, byte[] header) {
+            this.transferId = transferId;
+            this.fileName = fileName;
+            this.ciphertextSize = ciphertextSize;
+            this.contentHash = contentHash;
+            this.header = header;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_OFFER;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeUTF(transferId);
+            out.writeUTF(fileName);
+            out.writeLong(ciphertextSize);
+            writeBytes(out, contentHash);
+            writeBytes(out, header);
+        }
+
+        static Offer read(DataInputStream in) throws IOException {
+            return new Offer(in.readUTF(), in.readUTF(), in.readLong(),
+                    readBytes(in, 64), readBytes(in, 1024));
+        }
+    }
+
+    /**
+     * Receiver → sender: the segments it has already verified for a transfer. A nonzero
+     * {@code window} asks for credit flow control on a stream of the rest: the sender
+     * sends that many segments, then waits for {@link Credit}.
+     */
+    public static final class Resume extends ControlMessage {
+        public final String transferId;
+        public final BitSet verified;
+        public final int window;
+
+        public Resume(String transferId, BitSet verified) {
+            this(transferId, verified, 0);
+        }
+
+        public Resume(String transferId, BitSet verified, int window) {
+            this.transferId = transferId;
+            this.verified = verified;
+            this.window = window;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_RESUME;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeUTF(transferId);
+            writeBytes(out, verified.toByteArray());
+            out.writeInt(window);
+        }
+
+        static Resume read(DataInputStream in) throws IOException {
+            String transferId = in.readUTF();
+            BitSet verified = BitSet.valueOf(readBytes(in, 1 << 24));
+            // Older receivers end the message here
+            return new Resume(transferId, verified, in.available() > 0 ? Math.max(0, in.readInt()) : 0);
+        }
+    }
+
+    /**
+     * Sender → receiver: one part of the list of files in a batch. Each entry names the
+     * artifact that carries it; packed entries are stored back to back, in manifest
+     * order, in their artifact's plaintext. Large batches are split over several parts.
+     */
+    public static final class Manifest extends ControlMessage {
+        public final String batchId;
+        public final int part;
+        public final int parts;
+        public final List<Entry> entries;
+
+        public Manifest(String batchId, int part, int parts, List<Entry> entries) {
+            this.batchId = batchId;
+            this.part = part;
+            this.parts = parts;
+            this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        }
+
+        /** Splits {@code entries} into as few parts as fit in {@link #MAX_MESSAGE_SIZE} each. */
+        public static List<Manifest> split(String batchId, List<Entry> entries) {
+            List<List<Entry>> chunks = new ArrayList<>();
+            List<Entry> chunk = new ArrayList<>();
+            int size = 64 + batchId.length();
+            for (Entry e : entries) {
+                int len = e.encodedSize();
+                if (!chunk.isEmpty() && size + len > MAX_MESSAGE_SIZE) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>();
+                    size = 64 + batchId.length();
+                }
+                chunk.add(e);
+                size += len;
+            }
+            chunks.add(chunk);
+            List<Manifest> parts = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) parts.add(new Manifest(batchId, i, chunks.size(), chunks.get(i)));
+            return parts;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_MANIFEST;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeUTF(batchId);
+            out.writeInt(part);
+            out.writeInt(parts);
+            out.writeInt(entries.size());
+            for (Entry e : entries) e.write(out);
+        }
+
+        static Manifest read(DataInputStream in) throws IOException {
+            String batchId = in.readUTF();
+            int part = in.readInt();
+            int parts = in.readInt();
+            int count = in.readInt();
+            if (parts < 1 || part < 0 || part >= parts || count < 0 || count > MAX_MESSAGE_SIZE)
+                throw new IOException("Malformed manifest");
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) entries.add(Entry.read(in));
+            return new Manifest(batchId, part, parts, entries);
+        }
+    }
+
+    /** One file of a batch. */
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        public final String mimeType;
+        public final byte[] contentHash;
+        public final String transferId;
+        public final boolean packed;
+
+        public Entry(String name, long size, String mimeType, byte[] contentHash, String transferId, boolean packed) {
+            this.name = name;
+            this.size = size;
+            this.mimeType = mimeType;
+            this.contentHash = contentHash;
+            this.transferId = transferId;
+            this.packed = packed;
+        }
+
+        int encodedSize() {
+            // UTF-8 is at most 3 bytes per char for writeUTF
+            return 2 + 3 * name.length() + 8 + 2 + 3 * mimeType.length() + 4 + contentHash.length
+                    + 2 + transferId.length() + 1;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeUTF(mimeType);
+            writeBytes(out, contentHash);
+            out.writeUTF(transferId);
+            out.writeBoolean(packed);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            String name = in.readUTF();
+            long size = in.readLong();
+            if (size < 0) throw new IOException("Invalid entry size");
+            return new Entry(name, size, in.readUTF(), readBytes(in, 64), in.readUTF(), in.readBoolean());
+        }
+    }
+
+    /**
+     * Sender → receiver: announces which transfer the data payload with {@code payloadId}
+     * belongs to, sent just before that payload. A delta payload carries instructions
+     * for rebuilding the file from the receiver's old copy rather than the file itself.
+     */
+    public static final class Bind extends ControlMessage {
+        public final String transferId;
+        public final long payloadId;
+        public final boolean delta;
+
+        public Bind(String transferId, long payloadId) {
+            this(transferId, payloadId, false);
+        }
+
+        public Bind(String transferId, long payloadId, boolean delta) {
+            this.transferId = transferId;
+            this.payloadId = payloadId;
+            this.delta = delta;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_BIND;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeUTF(transferId);
+            out.writeLong(payloadId);
+            out.writeBoolean(delta);
+        }
+
+        static Bind read(DataInputStream in) throws IOException {
+            String transferId = in.readUTF();
+            long payloadId = in.readLong();
+            // Older senders end the message here
+            return new Bind(transferId, payloadId, in.available() > 0 && in.readBoolean());
+        }
+    }
+
+    /**
+     * Receiver → sender, instead of a {@link Resume}: the receiver already holds every
+     * file in the transfer, going by the offered content hashes, so nothing is sent.
+     */
+    public static final class Have extends ControlMessage {
+        public final String transferId;
+
+        public Have(String transferId) {
+            this.transferId = transferId;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_HAVE;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeUTF(transferId);
+        }
+
+        static Have read(DataInputStream in) throws IOException {
+            return new Have(in.readUTF());
+        }
+    }
+
+    /**
+     * Receiver → sender, instead of a {@link Resume}: asks for a transfer as a delta
+     * against the receiver's old copy, described by the block signatures in the
+     * encrypted STREAM payload {@code payloadId}.
+     */
+    public static final class DeltaRequest extends ControlMessage {
+        public final String transferId;
+        public final long payloadId;
+
+        public DeltaRequest(String transferId, long payloadId) {
+            this.transferId = transferId;
+            this.payloadId = payloadId;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_DELTA_REQUEST;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeUTF(transferId);
+            out.writeLong(payloadId);
+        }
+
+        static DeltaRequest read(DataInputStream in) throws IOException {
+            return new DeltaRequest(in.readUTF(), in.readLong());
+        }
+    }
+
+    /** Receiver → sender, first thing on a connection: the receiver's nonce. */
+    public static final class Hello extends ControlMessage {
+        public final byte[] nonce;
+
+        public Hello(byte[] nonce) {
+            this.nonce = nonce;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_HELLO;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            writeBytes(out, nonce);
+        }
+
+        static Hello read(DataInputStream in) throws IOException {
+            return new Hello(readBytes(in, KeyConfirmation.NONCE_LENGTH));
+        }
+    }
+
+    /**
+     * Sender → receiver, in answer to a {@link Hello}: the KDF params the sender's key was
+     * derived with, a fresh nonce, and the sender's MAC over both nonces. Nothing else is
+     * sent until the receiver answers with a valid {@link Proof}.
+     */
+    public static final class Challenge extends ControlMessage {
+        public final KdfParams params;
+        public final byte[] nonce;
+        public final byte[] mac;
+
+        public Challenge(KdfParams params, byte[] nonce, byte[] mac) {
+            this.params = params;
+            this.nonce = nonce;
+            this.mac = mac;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_CHALLENGE;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            ByteBuffer bb = ByteBuffer.allocate(KdfParams.LENGTH);
+            params.writeTo(bb);
+            out.write(bb.array());
+            writeBytes(out, nonce);
+            writeBytes(out, mac);
+        }
+
+        static Challenge read(DataInputStream in) throws IOException {
+            byte[] params = new byte[KdfParams.LENGTH];
+            in.readFully(params);
+            return new Challenge(KdfParams.readFrom(ByteBuffer.wrap(params)),
+                    readBytes(in, KeyConfirmation.NONCE_LENGTH), readBytes(in, KeyConfirmation.MAC_LENGTH));
+        }
+    }
+
+    /**
+     * Receiver → sender: the receiver's nonce and its MAC over both nonces, and how fast
+     * it runs each {@link CipherSuite}, or null if it didn't say.
+     */
+    public static final class Proof extends ControlMessage {
+        public final byte[] nonce;
+        public final byte[] mac;
+        public final long[] cipherSpeeds;
+
+        public Proof(byte[] nonce, byte[] mac) {
+            this(nonce, mac, null);
+        }
+
+        public Proof(byte[] nonce, byte[] mac, long[] cipherSpeeds) {
+            this.nonce = nonce;
+            this.mac = mac;
+            this.cipherSpeeds = cipherSpeeds;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_PROOF;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            writeBytes(out, nonce);
+            writeBytes(out, mac);
+            if (cipherSpeeds == null) return;
+            out.writeByte(cipherSpeeds.length);
+            for (long speed : cipherSpeeds) out.writeLong(speed);
+        }
+
+        static Proof read(DataInputStream in) throws IOException {
+            byte[] nonce = readBytes(in, KeyConfirmation.NONCE_LENGTH);
+            byte[] mac = readBytes(in, KeyConfirmation.MAC_LENGTH);
+            // Older receivers end the message here
+            if (in.available() == 0) return new Proof(nonce, mac);
+            long[] speeds = new long[in.readUnsignedByte()];
+            for (int i = 0; i < speeds.length; i++) speeds[i] = Math.max(0, in.readLong());
+            return new Proof(nonce, mac, speeds);
+        }
+    }
+
+    /**
+     * Sender → receiver, before it disconnects: the password didn't match, or too many
+     * recent attempts failed. Another attempt is only checked after {@code retryAfterMillis}.
+     */
+    public static final class Reject extends ControlMessage {
+        public final long retryAfterMillis;
+
+        public Reject(long retryAfterMillis) {
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_REJECT;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeLong(retryAfterMillis);
+        }
+
+        static Reject read(DataInputStream in) throws IOException {
+            // No honest sender locks out for longer than its backoff allows
+            return new Reject(Math.max(0, Math.min(KeyConfirmation.Backoff.MAX_MILLIS, in.readLong())));
+        }
+    }
+
+    /**
+     * Receiver → sender: the credit-controlled STREAM payload {@code payloadId} may carry
+     * segments up to {@code through}, counted from the start of the stream.
+     */
+    public static final class Credit extends ControlMessage {
+        public final long payloadId;
+        public final int through;
+
+        public Credit(long payloadId, int through) {
+            this.payloadId = payloadId;
+            this.through = through;
+        }
+
+        @Override
+        byte type() {
+            return TYPE_CREDIT;
+        }
+
+        @Override
+        void writeBody(DataOutputStream out) throws IOException {
+            out.writeLong(payloadId);
+            out.writeInt(through);
+        }
+
+        static Credit read(DataInputStream in) throws IOException {
+            return new Credit(in.readLong(), in.readInt());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.passcast;
+
+import java.io.InterruptedIOException;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Credit flow control for a {@link SegmentStream}. The receiver grants segments as it
+ * writes them out, and the sender emits a segment only against a grant, so at most a
+ * window of segments sits in the transport's buffers however slow the receiver's
+ * storage is. The window tracks how fast the receiver drains, stretched over the
+ * round trip, so a fast receiver keeps the link full and a slow one holds it back.
+ */
+public final class CreditFlow {
+
+    public static final int MIN_WINDOW = 4;
+    /** Buffered data a window starts at, before the receiver has measured anything. */
+    public static final long INITIAL_BYTES = 1024 * 1024;
+    /** Upper bound on buffered data, whatever the rate. */
+    public static final long MAX_BYTES = 8L * 1024 * 1024;
+    /** How long the granted data should last at the receiver's rate, on top of the round trip. */
+    static final long HORIZON_NANOS = 250_000_000L;
+    /** Round trips longer than this are a stalled handshake, not the link. */
+    static final long MAX_RTT_NANOS = 1_000_000_000L;
+    /** A sender that has heard nothing this long sends one segment anyway, as a probe. */
+    static final long STALL_NANOS = 5_000_000_000L;
+    // Weight of the newest interval in the smoothed drain rate
+    private static final double SMOOTHING = 0.125;
+
+    private CreditFlow() {}
+
+    /** The window a receiver asks for in its {@link ControlMessage.Resume}. */
+    public static int initialWindow(int segmentBytes) {
+        return clamp(INITIAL_BYTES / segmentBytes, segmentBytes);
+    }
+
+    private static int clamp(long segments, int segmentBytes) {
+        long max = Math.max(MIN_WINDOW, MAX_BYTES / segmentBytes);
+        return (int) Math.max(MIN_WINDOW, Math.min(max, segments));
+    }
+
+    /**
+     * Receiver side, one per stream: call {@link #consumed} as each segment is written.
+     * New grants go to {@code grants}, from the receiving thread.
+     */
+    public static final class Window {
+        private final int segmentBytes;
+        private final long rttNanos;
+        private final IntConsumer grants;
+        private final LongSupplier clock;
+        private int consumed;
+        private int granted;
+        private long lastAt = -1;
+        // Smoothed time to write one segment, 0 until measured
+        private double intervalNanos;
+
+        public Window(int segmentBytes, long rttNanos, IntConsumer grants) {
+            this(segmentBytes, rttNanos, grants, System::nanoTime);
+        }
+
+        Window(int segmentBytes, long rttNanos, IntConsumer grants, LongSupplier clock) {
+            this.segmentBytes = segmentBytes;
+            this.rttNanos = Math.max(0, Math.min(MAX_RTT_NANOS, rttNanos));
+            this.grants = grants;
+            this.clock = clock;
+            this.granted = initialWindow(segmentBytes);
+        }
+
+        /** Notes one segment written; grants more once a quarter window has drained. */
+        public void consumed() {
+            long now = clock.getAsLong();
+            if (lastAt >= 0 && now > lastAt) {
+                double interval = now - lastAt;
+                intervalNanos = intervalNanos == 0 ? interval : SMOOTHING * interval + (1 - SMOOTHING) * intervalNanos;
+            }
+            lastAt = now;
+            consumed++;
+            int window = window();
+            int through = consumed + window;
+            if (through - granted >= Math.max(1, window / 4)) {
+                granted = through;
+                grants.accept(through);
+            }
+        }
+
+        /** Segments the receiver can absorb over the round trip plus the horizon at its rate. */
+        public int window() {
+            if (intervalNanos == 0) return initialWindow(segmentBytes);
+            return clamp((long) Math.ceil((HORIZON_NANOS + rttNanos) / intervalNanos), segmentBytes);
+        }
+
+        public int getGranted() {
+            return granted;
+        }
+    }
+
+    /**
+     * Sender side, one per stream: {@link #acquire} before emitting each segment. Blocks
+     * the reading thread, i.e. the transport, rather than buffering anything.
+     */
+    public static final class Gate {
+        private final LongSupplier clock;
+        private int sent;
+        private int granted;
+        private boolean closed;
+        private long stalledNanos;
+
+        public Gate(int window) {
+            this(window, System::nanoTime);
+        }
+
+        Gate(int window, LongSupplier clock) {
+            this.granted = window;
+            this.clock = clock;
+        }
+
+        public synchronized void grant(int through) {
+            if (through <= granted) return;
+            granted = through;
+            notifyAll();
+        }
+
+        /**
+         * Waits for credit for one more segment. Returns at once when closed; after a long
+         * silence lets one segment through, so a lost grant can't hang the stream.
+         */
+        public synchronized void acquire() throws InterruptedIOException {
+            long start = clock.getAsLong();
+            long left = STALL_NANOS;
+            while (sent >= granted && !closed && left > 0) {
+                try {
+                    wait(left / 1_000_000 + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for credit");
+                }
+                left = STALL_NANOS - (clock.getAsLong() - start);
+            }
+            stalledNanos += clock.getAsLong() - start;
+            sent++;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        /** Total time spent waiting for the receiver. */
+        public synchronized long getStalledNanos() {
+            return stalledNanos;
+        }
+    }
+}
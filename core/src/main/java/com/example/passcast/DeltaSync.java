@@ -0,0 +1,376 @@
+package com.example.passcast;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * rsync-style delta encoding for re-sending a file the receiver already holds an
+ * older version of. The receiver describes its copy as per-block signatures, a rolling
+ * checksum plus a truncated SHA-256; the sender slides over the new content and emits
+ * references to matching blocks and the literal bytes in between; the receiver
+ * rebuilds the new file from its copy and those instructions.
+ *
+ * <p>Only whole blocks of the old copy are matched. A false strong-hash match can't
+ * slip through: the rebuilt file is checked against the offer's content hash.
+ */
+public final class DeltaSync {
+
+    /** Below this an old copy isn't worth describing; the whole file is about as cheap. */
+    public static final long MIN_BASIS_BYTES = 256 * 1024;
+
+    static final int MIN_BLOCK = 2 * 1024;
+    static final int MAX_BLOCK = 128 * 1024;
+    private static final int STRONG_LENGTH = 16;
+    private static final int MAX_BLOCKS = 1 << 20;
+
+    private static final int SIGNATURE_MAGIC = 0x50435331; // "PCS1"
+    private static final int DELTA_MAGIC = 0x50434431;     // "PCD1"
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_LITERAL = 2;
+
+    private DeltaSync() {}
+
+    /** About the square root of the size, as rsync picks it, in whole KiB. */
+    public static int blockSizeFor(long size) {
+        long root = (long) Math.sqrt((double) Math.max(size, 0));
+        long rounded = (root + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, rounded));
+    }
+
+    /** The receiver's description of its old copy. */
+    public static final class Signature {
+        public final int blockSize;
+        public final long basisSize;
+        final int[] weak;
+        final byte[] strong;
+
+        Signature(int blockSize, long basisSize, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.basisSize = basisSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public int blockCount() {
+            return weak.length;
+        }
+
+        /** Reads the whole of {@code basis}, {@code size} bytes, once. */
+        public static Signature compute(InputStream basis, long size) throws IOException {
+            int blockSize = blockSizeFor(size);
+            long count = size / blockSize;
+            if (count > MAX_BLOCKS) throw new IOException("Basis too large: " + size);
+            int[] weak = new int[(int) count];
+            byte[] strong = new byte[(int) count * STRONG_LENGTH];
+            byte[] block = new byte[blockSize];
+            MessageDigest sha = ContentHash.sha256();
+            for (int i = 0; i < count; i++) {
+                if (StreamingAead.readFully(basis, block, blockSize) < blockSize)
+                    throw new EOFException("Basis shorter than " + size);
+                weak[i] = Rolling.of(block, 0, blockSize).value();
+                sha.update(block, 0, blockSize);
+                System.arraycopy(sha.digest(), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            return new Signature(blockSize, size, weak, strong);
+        }
+
+        public void write(OutputStream os) throws IOException {
+            DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(SIGNATURE_MAGIC);
+            out.writeInt(blockSize);
+            out.writeLong(basisSize);
+            out.writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            out.flush();
+        }
+
+        public static Signature read(InputStream is) throws IOException {
+            DataInputStream in = new DataInputStream(is);
+            if (in.readInt() != SIGNATURE_MAGIC) throw new IOException("Not a block signature");
+            int blockSize = in.readInt();
+            long basisSize = in.readLong();
+            int count = in.readInt();
+            if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || count < 0 || count > MAX_BLOCKS
+                    || basisSize < (long) count * blockSize)
+                throw new IOException("Malformed block signature");
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_LENGTH];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            return new Signature(blockSize, basisSize, weak, strong);
+        }
+    }
+
+    /** rsync's rolling checksum over a window of fixed length. */
+    static final class Rolling {
+        private final int length;
+        private int a;
+        private int b;
+
+        private Rolling(int length) {
+            this.length = length;
+        }
+
+        static Rolling of(byte[] buf, int off, int len) {
+            Rolling r = new Rolling(len);
+            for (int i = 0; i < len; i++) {
+                int x = buf[off + i] & 0xff;
+                r.a += x;
+                r.b += (len - i) * x;
+            }
+            r.a &= 0xffff;
+            r.b &= 0xffff;
+            return r;
+        }
+
+        /** Slides the window one byte: {@code out} leaves at the front, {@code in} joins at the back. */
+        void roll(byte out, byte in) {
+            int o = out & 0xff;
+            a = (a - o + (in & 0xff)) & 0xffff;
+            b = (b - length * o + a) & 0xffff;
+        }
+
+        int value() {
+            return (b << 16) | a;
+        }
+    }
+
+    /** What a delta is made of; literal bytes are what actually has to cross the link. */
+    public static final class Stats {
+        public long literalBytes;
+        public long copiedBytes;
+        public int copies;
+
+        public long targetBytes() {
+            return literalBytes + copiedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d bytes: %d literal, %d copied in %d runs",
+                    targetBytes(), literalBytes, copiedBytes, copies);
+        }
+    }
+
+    /** Writes the instructions that rebuild {@code target} from the old copy behind {@code sig}. */
+    public static Stats diff(Signature sig, InputStream target, OutputStream deltaOut) throws IOException {
+        int blockSize = sig.blockSize;
+        Map<Integer, int[]> byWeak = new HashMap<>(sig.blockCount() * 2);
+        for (int i = 0; i < sig.blockCount(); i++) {
+            int[] prev = byWeak.get(sig.weak[i]);
+            int[] next = prev == null ? new int[1] : Arrays.copyOf(prev, prev.length + 1);
+            next[next.length - 1] = i;
+            byWeak.put(sig.weak[i], next);
+        }
+
+        Encoder enc = new Encoder(new DataOutputStream(deltaOut), blockSize);
+        MessageDigest sha = ContentHash.sha256();
+        byte[] buf = new byte[Math.max(4 * blockSize, 256 * 1024)];
+        int start = 0;    // window start
+        int end = 0;      // end of valid data
+        int literal = 0;  // start of bytes not yet emitted
+        boolean eof = false;
+        Rolling rolling = null;
+
+        while (true) {
+            // Keep a full window plus one byte to roll in
+            if (!eof && end - start <= blockSize) {
+                if (buf.length - start <= blockSize) {
+                    enc.literal(buf, literal, start - literal);
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    literal = 0;
+                }
+                int n = target.read(buf, end, buf.length - end);
+                if (n < 0) eof = true;
+                else end += n;
+                continue;
+            }
+            if (end - start < blockSize || sig.blockCount() == 0) break;
+
+            if (rolling == null) rolling = Rolling.of(buf, start, blockSize);
+            int match = -1;
+            int[] candidates = byWeak.get(rolling.value());
+            if (candidates != null) {
+                sha.update(buf, start, blockSize);
+                byte[] digest = sha.digest();
+                int preferred = enc.nextBlock();
+                for (int c : candidates) {
+                    if (strongEquals(sig.strong, c, digest)) {
+                        match = c;
+                        // Continue a run of copies where possible, so it encodes as one
+                        if (c == preferred) break;
+                    }
+                }
+            }
+            if (match >= 0) {
+                enc.literal(buf, literal, start - literal);
+                enc.copy(match);
+                start += blockSize;
+                literal = start;
+                rolling = null;
+            } else if (end - start > blockSize) {
+                rolling.roll(buf[start], buf[start + blockSize]);
+                start++;
+                // Bound the pending literal so it never holds the buffer hostage
+                if (start - literal >= buf.length / 2) {
+                    enc.literal(buf, literal, start - literal);
+                    literal = start;
+                }
+            } else {
+                break;
+            }
+        }
+        // Whatever is left after the last match goes out as it is
+        if (!eof) {
+            enc.literal(buf, literal, end - literal);
+            literal = end;
+            int n;
+            while ((n = target.read(buf)) > 0) enc.literal(buf, 0, n);
+        } else {
+            enc.literal(buf, literal, end - literal);
+        }
+        enc.end();
+        return enc.stats;
+    }
+
+    private static boolean strongEquals(byte[] strong, int block, byte[] digest) {
+        int off = block * STRONG_LENGTH;
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (strong[off + i] != digest[i]) return false;
+        }
+        return true;
+    }
+
+    /** Merges consecutive block references into runs. */
+    private static final class Encoder {
+        final DataOutputStream out;
+        final int blockSize;
+        final Stats stats = new Stats();
+        int runStart = -1;
+        int runLength;
+
+        Encoder(DataOutputStream out, int blockSize) throws IOException {
+            this.out = out;
+            this.blockSize = blockSize;
+            out.writeInt(DELTA_MAGIC);
+            out.writeInt(blockSize);
+        }
+
+        int nextBlock() {
+            return runStart < 0 ? -1 : runStart + runLength;
+        }
+
+        void copy(int block) throws IOException {
+            if (runStart >= 0 && block == runStart + runLength) {
+                runLength++;
+            } else {
+                flushRun();
+                runStart = block;
+                runLength = 1;
+            }
+            stats.copiedBytes += blockSize;
+        }
+
+        void literal(byte[] b, int off, int len) throws IOException {
+            if (len <= 0) return;
+            flushRun();
+            out.writeByte(OP_LITERAL);
+            out.writeInt(len);
+            out.write(b, off, len);
+            stats.literalBytes += len;
+        }
+
+        private void flushRun() throws IOException {
+            if (runStart < 0) return;
+            out.writeByte(OP_COPY);
+            out.writeInt(runStart);
+            out.writeInt(runLength);
+            stats.copies++;
+            runStart = -1;
+            runLength = 0;
+        }
+
+        void end() throws IOException {
+            flushRun();
+            out.writeByte(OP_END);
+            out.writeLong(stats.targetBytes());
+            out.flush();
+        }
+    }
+
+    /**
+     * Rebuilds the new file from {@code basis} and a delta, writing it to {@code out};
+     * returns its length. Block references outside the basis are rejected.
+     */
+    public static long patch(FileChannel basis, InputStream delta, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(delta);
+        if (in.readInt() != DELTA_MAGIC) throw new IOException("Not a delta");
+        int blockSize = in.readInt();
+        if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK) throw new IOException("Malformed delta");
+        long basisBlocks = basis.size() / blockSize;
+        byte[] buf = new byte[Math.max(blockSize, 64 * 1024)];
+        long written = 0;
+        while (true) {
+            byte op = in.readByte();
+            switch (op) {
+                case OP_COPY: {
+                    int first = in.readInt();
+                    int count = in.readInt();
+                    if (first < 0 || count <= 0 || first + (long) count > basisBlocks)
+                        throw new IOException("Block reference outside the basis");
+                    long pos = (long) first * blockSize;
+                    long remaining = (long) count * blockSize;
+                    while (remaining > 0) {
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, remaining));
+                        while (bb.hasRemaining()) {
+                            int n = basis.read(bb, pos + bb.position());
+                            if (n < 0) throw new EOFException("Basis truncated");
+                        }
+                        out.write(buf, 0, bb.position());
+                        pos += bb.position();
+                        remaining -= bb.position();
+                        written += bb.position();
+                    }
+                    break;
+                }
+                case OP_LITERAL: {
+                    int len = in.readInt();
+                    if (len < 0) throw new IOException("Malformed delta");
+                    while (len > 0) {
+                        int n = Math.min(len, buf.length);
+                        in.readFully(buf, 0, n);
+                        out.write(buf, 0, n);
+                        len -= n;
+                        written += n;
+                    }
+                    break;
+                }
+                case OP_END:
+                    if (in.readLong() != written) throw new IOException("Delta length mismatch");
+                    out.flush();
+                    return written;
+                default:
+                    throw new IOException("Unknown delta op " + op);
+            }
+        }
+    }
+}
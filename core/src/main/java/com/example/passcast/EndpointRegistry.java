@@ -0,0 +1,265 @@
+package com.example.passcast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Senders in range, keyed by endpoint id, plus the ones this device connected to
+ * recently. An endpoint that is neither reported lost nor seen again within the TTL
+ * drops out, so the list doesn't fill with senders that have left. Recent senders are
+ * listed before discovery finds them, so a repeat connection can start right away.
+ * A sender may append a tag to its advertised name identifying what it offers, so
+ * receivers can find others offering the same files.
+ */
+public final class EndpointRegistry {
+
+    public static final long DEFAULT_TTL_MILLIS = 45_000;
+    public static final long RECENT_TTL_MILLIS = 10 * 60_000;
+    private static final int MAX_RECENT = 8;
+    private static final char TAG_SEPARATOR = '\u001F';
+
+    /** One row of the sender list; immutable, so two snapshots can be diffed. */
+    public static final class Endpoint {
+        public final String id;
+        public final String name;
+        /** The name, with part of the id when several senders share it. */
+        public final String label;
+        /** In range now, as opposed to only remembered from an earlier connection. */
+        public final boolean available;
+
+        Endpoint(String id, String name, String label, boolean available) {
+            this.id = id;
+            this.name = name;
+            this.label = label;
+            this.available = available;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Endpoint)) return false;
+            Endpoint e = (Endpoint) o;
+            return id.equals(e.id) && name.equals(e.name) && label.equals(e.label) && available == e.available;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, name, label, available);
+        }
+
+        @Override
+        public String toString() {
+            return label + (available ? "" : " (recent)");
+        }
+    }
+
+    private static final class Seen {
+        final String name;
+        // Null when the sender advertises no tag
+        final String tag;
+        long lastSeen;
+
+        Seen(String name, String tag, long lastSeen) {
+            this.name = name;
+            this.tag = tag;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private static final class Recent {
+        final String name;
+        final long usedAtMillis;
+
+        Recent(String name, long usedAtMillis) {
+            this.name = name;
+            this.usedAtMillis = usedAtMillis;
+        }
+    }
+
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final LongSupplier wallClock;
+    private final Map<String, Seen> seen = new HashMap<>();
+    // Oldest first
+    private final LinkedHashMap<String, Recent> recent = new LinkedHashMap<>();
+
+    public EndpointRegistry() {
+        this(DEFAULT_TTL_MILLIS, System::nanoTime, System::currentTimeMillis);
+    }
+
+    EndpointRegistry(long ttlMillis, LongSupplier clock, LongSupplier wallClock) {
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.clock = clock;
+        this.wallClock = wallClock;
+    }
+
+    public long getTtlMillis() {
+        return ttlNanos / 1_000_000;
+    }
+
+    /** The name to advertise so receivers see {@code name} and can match on {@code tag}. */
+    public static String advertisedName(String name, String tag) {
+        return tag == null ? name : name + TAG_SEPARATOR + tag;
+    }
+
+    /**
+     * Returns whether the list changed; seeing a known endpoint again only refreshes it.
+     * {@code advertised} is the name as advertised, tag and all.
+     */
+    public synchronized boolean found(String endpointId, String advertised) {
+        int sep = advertised.indexOf(TAG_SEPARATOR);
+        String name = sep < 0 ? advertised : advertised.substring(0, sep);
+        String tag = sep < 0 ? null : advertised.substring(sep + 1);
+        Seen s = seen.get(endpointId);
+        if (s != null && s.name.equals(name) && Objects.equals(s.tag, tag)) {
+            s.lastSeen = clock.getAsLong();
+            return false;
+        }
+        seen.put(endpointId, new Seen(name, tag, clock.getAsLong()));
+        return true;
+    }
+
+    public synchronized boolean lost(String endpointId) {
+        return seen.remove(endpointId) != null;
+    }
+
+    /** Drops endpoints not seen within the TTL and recent senders past theirs. */
+    public synchronized boolean expire() {
+        boolean changed = false;
+        long now = clock.getAsLong();
+        for (Iterator<Seen> it = seen.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen >= ttlNanos) {
+                it.remove();
+                changed = true;
+            }
+        }
+        long cutoff = wallClock.getAsLong() - RECENT_TTL_MILLIS;
+        for (Iterator<Recent> it = recent.values().iterator(); it.hasNext(); ) {
+            if (it.next().usedAtMillis < cutoff) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /** Milliseconds since the endpoint seen longest ago was last reported, or -1 if none. */
+    public synchronized long oldestSightingMillis() {
+        long now = clock.getAsLong();
+        long oldest = -1;
+        for (Seen s : seen.values()) oldest = Math.max(oldest, (now - s.lastSeen) / 1_000_000);
+        return oldest;
+    }
+
+    /** Notes a successful connection, so the sender is offered again next time. */
+    public synchronized void remember(String endpointId, String name) {
+        recent.remove(endpointId);
+        recent.put(endpointId, new Recent(name, wallClock.getAsLong()));
+        while (recent.size() > MAX_RECENT) {
+            Iterator<String> it = recent.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** The listed name of an endpoint, in range or recent, or null. */
+    public synchronized String nameOf(String endpointId) {
+        Seen s = seen.get(endpointId);
+        if (s != null) return s.name;
+        Recent r = recent.get(endpointId);
+        return r != null ? r.name : null;
+    }
+
+    /**
+     * The endpoint to connect to for a listed one: itself while in range, otherwise a
+     * sender in range under the same name, since an advertiser gets a new id each time
+     * it restarts. Null if neither is in range.
+     */
+    public synchronized String availableIdFor(String endpointId) {
+        if (seen.containsKey(endpointId)) return endpointId;
+        String name = nameOf(endpointId);
+        if (name == null) return null;
+        for (Map.Entry<String, Seen> e : seen.entrySet()) {
+            if (e.getValue().name.equals(name)) return e.getKey();
+        }
+        return null;
+    }
+
+    /** Other senders in range advertising the same tag as {@code endpointId}, by id. */
+    public synchronized List<String> sameTagAs(String endpointId) {
+        Seen s = seen.get(endpointId);
+        List<String> out = new ArrayList<>();
+        if (s == null || s.tag == null) return out;
+        for (Map.Entry<String, Seen> e : seen.entrySet()) {
+            if (!e.getKey().equals(endpointId) && s.tag.equals(e.getValue().tag)) out.add(e.getKey());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * Senders in range sorted by name, then recent ones not in range, newest first. A
+     * recent sender is left out once one of the same name is in range.
+     */
+    public synchronized List<Endpoint> snapshot() {
+        Map<String, Integer> nameCounts = new HashMap<>();
+        for (Seen s : seen.values()) nameCounts.merge(s.name, 1, Integer::sum);
+
+        List<Endpoint> available = new ArrayList<>();
+        for (Map.Entry<String, Seen> e : seen.entrySet()) {
+            String name = e.getValue().name;
+            available.add(new Endpoint(e.getKey(), name, label(e.getKey(), name, nameCounts.get(name) > 1), true));
+        }
+        available.sort(Comparator.comparing((Endpoint e) -> e.name).thenComparing(e -> e.id));
+
+        List<Endpoint> out = new ArrayList<>(available);
+        List<Map.Entry<String, Recent>> recents = new ArrayList<>(recent.entrySet());
+        for (int i = recents.size() - 1; i >= 0; i--) {
+            String id = recents.get(i).getKey();
+            String name = recents.get(i).getValue().name;
+            if (seen.containsKey(id) || nameCounts.containsKey(name)) continue;
+            out.add(new Endpoint(id, name, name, false));
+        }
+        return out;
+    }
+
+    private static String label(String id, String name, boolean shared) {
+        if (!shared) return name;
+        return name + " · " + (id.length() > 4 ? id.substring(id.length() - 4) : id);
+    }
+
+    /** Recent senders as text for preferences: one {@code id\tname\tmillis} line each. */
+    public synchronized String encodeRecent() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Recent> e : recent.entrySet()) {
+            sb.append(e.getKey()).append('\t').append(clean(e.getValue().name)).append('\t')
+                    .append(e.getValue().usedAtMillis).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Restores what {@link #encodeRecent} wrote, skipping expired and malformed lines. */
+    public synchronized void restoreRecent(String encoded) {
+        if (encoded == null) return;
+        long cutoff = wallClock.getAsLong() - RECENT_TTL_MILLIS;
+        for (String line : encoded.split("\n")) {
+            String[] parts = line.split("\t");
+            if (parts.length != 3) continue;
+            try {
+                long usedAt = Long.parseLong(parts[2]);
+                if (usedAt >= cutoff && !recent.containsKey(parts[0])) recent.put(parts[0], new Recent(parts[1], usedAt));
+            } catch (NumberFormatException ignored) {}
+        }
+    }
+
+    private static String clean(String name) {
+        return name.replace('\t', ' ').replace('\n', ' ');
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Password KDF parameters carried in the container header:
+ * algorithm (1) | iterations (4) | salt (16).
+ */
+public final class KdfParams {
+
+    public static final byte PBKDF2_HMAC_SHA256 = 1;
+    public static final int SALT_LENGTH = 16;
+    public static final int LENGTH = 1 + 4 + SALT_LENGTH;
+
+    /** Upper bound accepted from a peer, so a hostile header can't stall the receiver. */
+    public static final int MAX_ITERATIONS = 5_000_000;
+    /**
+     * Lower bound accepted from a peer, so a hostile one can't make a receiver answer
+     * with a MAC that is cheap to test password guesses against.
+     */
+    public static final int MIN_PEER_ITERATIONS = PasswordKdf.MIN_ITERATIONS;
+
+    public final byte algorithm;
+    public final int iterations;
+    private final byte[] salt;
+
+    public KdfParams(byte algorithm, int iterations, byte[] salt) {
+        if (algorithm != PBKDF2_HMAC_SHA256) throw new IllegalArgumentException("Unknown KDF " + algorithm);
+        if (iterations < 1 || iterations > MAX_ITERATIONS)
+            throw new IllegalArgumentException("Invalid KDF iterations " + iterations);
+        if (salt.length != SALT_LENGTH) throw new IllegalArgumentException("Invalid salt");
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.salt = salt.clone();
+    }
+
+    /** Fresh random salt with the given cost. */
+    public static KdfParams generate(int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return new KdfParams(PBKDF2_HMAC_SHA256, iterations, salt);
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    /** The {@link #LENGTH} bytes a header carries, for keeping params outside one. */
+    public byte[] toBytes() {
+        ByteBuffer bb = ByteBuffer.allocate(LENGTH);
+        writeTo(bb);
+        return bb.array();
+    }
+
+    /** Inverse of {@link #toBytes}, held to the same limits as params read off a header. */
+    public static KdfParams fromBytes(byte[] bytes) throws IOException {
+        if (bytes.length != LENGTH) throw new IOException("Bad KDF params length: " + bytes.length);
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
+
+    void writeTo(ByteBuffer bb) {
+        bb.put(algorithm).putInt(iterations).put(salt);
+    }
+
+    static KdfParams readFrom(ByteBuffer bb) throws IOException {
+        byte algorithm = bb.get();
+        int iterations = bb.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        bb.get(salt);
+        KdfParams params;
+        try {
+            params = new KdfParams(algorithm, iterations, salt);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (iterations < MIN_PEER_ITERATIONS) throw new IOException("KDF iterations below minimum: " + iterations);
+        return params;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof KdfParams)) return false;
+        KdfParams p = (KdfParams) o;
+        return algorithm == p.algorithm && iterations == p.iterations && Arrays.equals(salt, p.salt);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * algorithm + iterations) + Arrays.hashCode(salt);
+    }
+}
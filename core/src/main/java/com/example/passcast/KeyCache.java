@@ -0,0 +1,129 @@
+package com.example.passcast;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Session cache of derived keys. Derivation runs on a background thread as soon as
+ * a (password, params) pair is known, so the connect and send paths only ever wait
+ * on an already-running or finished derivation. Params often come from peers, so only
+ * the most recently used {@link #MAX_ENTRIES} keys are kept.
+ */
+public final class KeyCache implements Closeable {
+
+    static final int MAX_ENTRIES = 8;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "passcast-kdf");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<Slot, Future<PasswordKey>> keys = new LinkedHashMap<Slot, Future<PasswordKey>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Slot, Future<PasswordKey>> eldest) {
+            if (size() <= MAX_ENTRIES) return false;
+            eldest.getValue().cancel(false);
+            if (eldest.getValue() == speculative) speculative = null;
+            return true;
+        }
+    };
+    private Future<PasswordKey> speculative;
+
+    private static final class Slot {
+        final String passwordDigest;
+        final KdfParams params;
+
+        Slot(String password, KdfParams params) {
+            // Only a digest of the password is kept as the map key
+            MessageDigest sha = ContentHash.sha256();
+            this.passwordDigest = ContentHash.hex(sha.digest(password.getBytes(StandardCharsets.UTF_8)));
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Slot)) return false;
+            Slot e = (Slot) o;
+            return passwordDigest.equals(e.passwordDigest) && params.equals(e.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(passwordDigest, params);
+        }
+    }
+
+    /**
+     * Starts deriving in the background. A speculative prefetch (e.g. while the user is
+     * still typing) replaces the previous speculative one: that is canceled if it hasn't
+     * started, and its key is dropped either way.
+     */
+    public synchronized void prefetch(String password, KdfParams params, boolean speculativeRequest) {
+        Slot e = new Slot(password, params);
+        Future<PasswordKey> existing = keys.get(e);
+        if (existing != null) {
+            // Asked for in earnest now, so no later keystroke may drop it
+            if (!speculativeRequest && existing == speculative) speculative = null;
+            return;
+        }
+        if (speculativeRequest && speculative != null) {
+            speculative.cancel(false);
+            keys.values().remove(speculative);
+            speculative = null;
+        }
+        Future<PasswordKey> f = executor.submit(() -> PasswordKdf.derive(password, params));
+        keys.put(e, f);
+        if (speculativeRequest) speculative = f;
+    }
+
+    /** Returns the cached key, waiting for (or starting) its derivation. */
+    public PasswordKey get(String password, KdfParams params) throws GeneralSecurityException {
+        Future<PasswordKey> f;
+        synchronized (this) {
+            Slot e = new Slot(password, params);
+            f = keys.get(e);
+            if (f == null || f.isCancelled()) {
+                f = executor.submit(() -> PasswordKdf.derive(password, params));
+                keys.put(e, f);
+            }
+            if (f == speculative) speculative = null;
+        }
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) throw (GeneralSecurityException) e.getCause();
+            throw new GeneralSecurityException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while deriving key");
+        } catch (CancellationException e) {
+            return get(password, params);
+        }
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+
+    public synchronized void clear() {
+        for (Future<PasswordKey> f : keys.values()) f.cancel(false);
+        keys.clear();
+        speculative = null;
+    }
+
+    @Override
+    public void close() {
+        clear();
+        executor.shutdownNow();
+    }
+}
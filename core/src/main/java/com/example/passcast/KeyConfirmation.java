@@ -0,0 +1,169 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks that both ends derived the same key from their passwords before any file data
+ * moves, without the password or the key crossing the link. The receiver opens with a
+ * nonce; the sender answers with its KDF params, a nonce of its own and a MAC over both,
+ * and the receiver answers with its own MAC only if that one checks out. The sender goes
+ * first because its params are its own: whoever harvests its MAC pays the full
+ * derivation cost per guess, while a receiver never hands a MAC to anyone who can't
+ * show the key. The MACs are keyed by a confirmation key derived from the content key,
+ * never the content key itself.
+ */
+public final class KeyConfirmation {
+
+    public static final int NONCE_LENGTH = 16;
+    public static final int MAC_LENGTH = 32;
+
+    private static final byte[] CONFIRMATION_LABEL = "passcast key confirmation v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte RECEIVER = 'R';
+    private static final byte SENDER = 'S';
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private KeyConfirmation() {}
+
+    public static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /** What the receiver sends to show it holds {@code key}, once the sender has. */
+    public static byte[] receiverProof(SecretKey key, byte[] senderNonce, byte[] receiverNonce)
+            throws GeneralSecurityException {
+        return mac(key, RECEIVER, senderNonce, receiverNonce);
+    }
+
+    /** What the sender sends first; distinct from the receiver's, so one can't be replayed as the other. */
+    public static byte[] senderProof(SecretKey key, byte[] senderNonce, byte[] receiverNonce)
+            throws GeneralSecurityException {
+        return mac(key, SENDER, senderNonce, receiverNonce);
+    }
+
+    /** Constant-time comparison of a received proof with the expected one. */
+    public static boolean matches(byte[] expected, byte[] received) {
+        return received != null && MessageDigest.isEqual(expected, received);
+    }
+
+    /**
+     * Reads a control message from a peer that hasn't proved the key yet, or returns null
+     * if it can't be read, which includes a Challenge asking for params below the floor.
+     * The handshake can't go on past such a message, so the peer should be hung up on.
+     */
+    public static ControlMessage readUnconfirmed(byte[] bytes) {
+        try {
+            return ControlMessage.parse(bytes);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] mac(SecretKey key, byte role, byte[] senderNonce, byte[] receiverNonce)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(confirmationKey(key), "HmacSHA256"));
+        mac.update(role);
+        mac.update(senderNonce);
+        mac.update(receiverNonce);
+        return mac.doFinal();
+    }
+
+    private static byte[] confirmationKey(SecretKey key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return mac.doFinal(CONFIRMATION_LABEL);
+    }
+
+    /**
+     * Slows down password guessing against a sender: the first few wrong answers are
+     * free, after that each one locks out further attempts for twice as long as the
+     * last, up to a cap. Only wrong answers count: a receiver that hangs up after the
+     * sender's MAC may just have lost the link, and harvesting MACs is held back by
+     * {@link ChallengeLimit} instead. A correct answer clears it.
+     */
+    public static final class Backoff {
+
+        static final int FREE_ATTEMPTS = 3;
+        static final long BASE_MILLIS = 2_000;
+        static final long MAX_MILLIS = 5 * 60_000;
+
+        private final LongSupplier clock;
+        private int failures;
+        private long lockedUntil;
+
+        public Backoff() {
+            this(System::nanoTime);
+        }
+
+        Backoff(LongSupplier clock) {
+            this.clock = clock;
+        }
+
+        /** Milliseconds before another attempt will be checked, or 0 if one would be now. */
+        public synchronized long remainingMillis() {
+            if (failures < FREE_ATTEMPTS) return 0;
+            return Math.max(0, (lockedUntil - clock.getAsLong()) / 1_000_000);
+        }
+
+        /** Records a wrong answer; returns how long the next attempt has to wait. */
+        public synchronized long failed() {
+            failures++;
+            if (failures < FREE_ATTEMPTS) return 0;
+            long delay = Math.min(MAX_MILLIS, BASE_MILLIS << Math.min(failures - FREE_ATTEMPTS, 20));
+            lockedUntil = clock.getAsLong() + delay * 1_000_000;
+            return delay;
+        }
+
+        public synchronized void succeeded() {
+            failures = 0;
+            lockedUntil = 0;
+        }
+    }
+
+    /**
+     * Caps the challenges a sender hands out per minute. Each carries a MAC that passwords
+     * can be tested against offline, so this bounds how fast anyone nearby collects them
+     * without counting them as wrong answers; receivers that already confirmed are never
+     * challenged again, so it never turns them away.
+     */
+    public static final class ChallengeLimit {
+
+        static final int PER_WINDOW = 10;
+        static final long WINDOW_MILLIS = 60_000;
+
+        private final LongSupplier clock;
+        private final ArrayDeque<Long> issued = new ArrayDeque<>();
+
+        public ChallengeLimit() {
+            this(System::nanoTime);
+        }
+
+        ChallengeLimit(LongSupplier clock) {
+            this.clock = clock;
+        }
+
+        /** Takes a challenge and returns 0, or returns the milliseconds until one is free. */
+        public synchronized long take() {
+            long now = clock.getAsLong();
+            long window = WINDOW_MILLIS * 1_000_000;
+            while (!issued.isEmpty() && now - issued.peekFirst() >= window) issued.pollFirst();
+            if (issued.size() < PER_WINDOW) {
+                issued.addLast(now);
+                return 0;
+            }
+            return Math.max(1, (issued.peekFirst() + window - now) / 1_000_000);
+        }
+    }
+}
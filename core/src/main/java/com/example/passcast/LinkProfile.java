@@ -0,0 +1,88 @@
+package com.example.passcast;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Shape of a simulated link for the JVM transports: throughput cap and one-way
+ * latency, applied to each direction of a connection. Optionally lossy: a lost frame
+ * is sent again a round trip later, holding up everything behind it as on a reliable
+ * link. And optionally unstable: connections drop after a random time with the given
+ * mean.
+ */
+public final class LinkProfile {
+
+    public static final LinkProfile UNLIMITED = new LinkProfile(0, 0);
+    // Rough figures for Nearby before and after the Wi-Fi upgrade
+    public static final LinkProfile BLUETOOTH = new LinkProfile(100_000, 40);
+    public static final LinkProfile WIFI = new LinkProfile(20_000_000, 5);
+
+    /** Bytes per second, or 0 for no cap. */
+    public final long bytesPerSecond;
+    public final long latencyMillis;
+    /** Chance that any one frame is lost and must be sent again. */
+    public final double lossRate;
+    /** Mean time a connection lasts before it drops, or 0 for never. */
+    public final long meanMillisBetweenDrops;
+
+    public LinkProfile(long bytesPerSecond, long latencyMillis) {
+        this(bytesPerSecond, latencyMillis, 0, 0);
+    }
+
+    public LinkProfile(long bytesPerSecond, long latencyMillis, double lossRate, long meanMillisBetweenDrops) {
+        if (bytesPerSecond < 0 || latencyMillis < 0 || meanMillisBetweenDrops < 0)
+            throw new IllegalArgumentException("Negative link shape");
+        if (!(lossRate >= 0 && lossRate < 1)) throw new IllegalArgumentException("Loss rate must be in [0, 1)");
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyMillis = latencyMillis;
+        this.lossRate = lossRate;
+        this.meanMillisBetweenDrops = meanMillisBetweenDrops;
+    }
+
+    public LinkProfile withLoss(double lossRate) {
+        return new LinkProfile(bytesPerSecond, latencyMillis, lossRate, meanMillisBetweenDrops);
+    }
+
+    public LinkProfile withDrops(long meanMillisBetweenDrops) {
+        return new LinkProfile(bytesPerSecond, latencyMillis, lossRate, meanMillisBetweenDrops);
+    }
+
+    /** Nanoseconds the link needs to carry {@code bytes}. */
+    long transmitNanos(long bytes) {
+        return bytesPerSecond == 0 ? 0 : bytes * 1_000_000_000L / bytesPerSecond;
+    }
+
+    /**
+     * Extra nanoseconds a frame of {@code bytes} takes through losses: for each time it
+     * is lost, a retransmission timeout of one round trip plus sending it again.
+     */
+    long lossNanos(long bytes, Random random) {
+        long extra = 0;
+        long timeout = Math.max(1_000_000L, 2 * latencyMillis * 1_000_000);
+        while (lossRate > 0 && random.nextDouble() < lossRate) extra += timeout + transmitNanos(bytes);
+        return extra;
+    }
+
+    /** Nanoseconds until a new connection drops, or -1 if it never does. */
+    long dropAfterNanos(Random random) {
+        if (meanMillisBetweenDrops == 0) return -1;
+        return (long) (-Math.log(1 - random.nextDouble()) * meanMillisBetweenDrops * 1_000_000);
+    }
+
+    /** The {@link Transport} quality Nearby would report for a link this fast. */
+    int quality() {
+        if (bytesPerSecond == 0 || bytesPerSecond >= 10_000_000) return Transport.QUALITY_HIGH;
+        return bytesPerSecond >= 1_000_000 ? Transport.QUALITY_MEDIUM : Transport.QUALITY_LOW;
+    }
+
+    @Override
+    public String toString() {
+        String shape = bytesPerSecond == 0
+                ? String.format(Locale.ROOT, "unlimited, %d ms", latencyMillis)
+                : String.format(Locale.ROOT, "%.2f MB/s, %d ms", bytesPerSecond / 1e6, latencyMillis);
+        if (lossRate > 0) shape += String.format(Locale.ROOT, ", %.1f%% loss", lossRate * 100);
+        if (meanMillisBetweenDrops > 0) shape += String.format(Locale.ROOT, ", drops every ~%.1f s",
+                meanMillisBetweenDrops / 1000.0);
+        return shape;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.passcast;
+
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Turns a flood of transfer updates into at most a few UI refreshes per second,
+ * each with a smoothed rate and an ETA. Transports report progress per chunk, far
+ * more often than a status line can usefully change.
+ */
+public final class LiveProgress {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 250;
+    // Weight of the newest rate sample; about a second of memory at the default interval
+    private static final double SMOOTHING = 0.3;
+
+    private final long intervalNanos;
+    private final LongSupplier clock;
+    private boolean emitted;
+    private long lastEmit;
+    private long lastSampleAt = -1;
+    private long lastSampleBytes;
+    private double bytesPerSecond = -1;
+
+    public LiveProgress() {
+        this(DEFAULT_INTERVAL_MILLIS, System::nanoTime);
+    }
+
+    LiveProgress(long intervalMillis, LongSupplier clock) {
+        this.intervalNanos = intervalMillis * 1_000_000;
+        this.clock = clock;
+    }
+
+    /**
+     * Feeds an update and returns a snapshot if one is due, otherwise null. A finished
+     * transfer ({@code bytes == total}) always yields a snapshot.
+     */
+    public synchronized Snapshot update(long bytes, long total) {
+        long now = clock.getAsLong();
+        if (lastSampleAt < 0 || bytes < lastSampleBytes) {
+            lastSampleAt = now;
+            lastSampleBytes = bytes;
+        } else if (now > lastSampleAt) {
+            double rate = (bytes - lastSampleBytes) / ((now - lastSampleAt) / 1e9);
+            if (now - lastSampleAt >= intervalNanos || bytesPerSecond < 0) {
+                bytesPerSecond = bytesPerSecond < 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * bytesPerSecond;
+                lastSampleAt = now;
+                lastSampleBytes = bytes;
+            }
+        }
+        boolean done = total > 0 && bytes >= total;
+        if (!done && emitted && now - lastEmit < intervalNanos) return null;
+        emitted = true;
+        lastEmit = now;
+        return new Snapshot(bytes, total, Math.max(bytesPerSecond, 0));
+    }
+
+    public static final class Snapshot {
+        public final long bytes;
+        /** -1 when the size is unknown. */
+        public final long total;
+        public final double bytesPerSecond;
+
+        Snapshot(long bytes, long total, double bytesPerSecond) {
+            this.bytes = bytes;
+            this.total = total;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /** Percent done, or -1 when the size is unknown. */
+        public int percent() {
+            return total <= 0 ? -1 : (int) Math.min(100, bytes * 100 / total);
+        }
+
+        /** Seconds left at the current rate, or -1 if that can't be told yet. */
+        public long etaSeconds() {
+            if (total <= 0 || bytesPerSecond <= 0) return -1;
+            return (long) Math.ceil(Math.max(0, total - bytes) / bytesPerSecond);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if (total > 0) sb.append(percent()).append("% of ").append(megabytes(total));
+            else sb.append(megabytes(bytes));
+            sb.append(String.format(Locale.ROOT, " — %.1f MB/s", bytesPerSecond / 1e6));
+            long eta = etaSeconds();
+            if (eta >= 0 && bytes < total) {
+                sb.append(eta >= 60
+                        ? String.format(Locale.ROOT, ", %d:%02d left", eta / 60, eta % 60)
+                        : String.format(Locale.ROOT, ", %d s left", eta));
+            }
+            return sb.toString();
+        }
+
+        private static String megabytes(long bytes) {
+            return String.format(Locale.ROOT, "%.1f MB", bytes / 1e6);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.passcast;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process {@link Transport}: endpoints on the same {@link Network} find each other
+ * and connect through OS pipes, so a sender and any number of receivers can run in
+ * one JVM. Each endpoint's outgoing data is paced by its own {@link LinkProfile}.
+ */
+public final class LoopbackTransport extends StreamTransport {
+
+    /** What the endpoints of one test or benchmark can see of each other. */
+    public static final class Network {
+        private final AtomicInteger ids = new AtomicInteger();
+        private final Map<String, LoopbackTransport> advertisers = new LinkedHashMap<>();
+        private final List<LoopbackTransport> discoverers = new ArrayList<>();
+    }
+
+    private final Network network;
+    private final String localId;
+    // Guarded by the network
+    private String advertisedName;
+    private Listener advertiseListener;
+    private DiscoveryListener discoveryListener;
+
+    public LoopbackTransport(Network network, LinkProfile link, File payloadDir) {
+        super(link, payloadDir);
+        this.network = network;
+        this.localId = "ep" + network.ids.incrementAndGet();
+    }
+
+    /** The id other endpoints on the network know this one by. */
+    public String getLocalId() {
+        return localId;
+    }
+
+    @Override
+    public CompletableFuture<Void> startAdvertising(String name, Listener listener) {
+        synchronized (network) {
+            advertisedName = name;
+            advertiseListener = listener;
+            network.advertisers.put(localId, this);
+            for (LoopbackTransport d : network.discoverers) {
+                if (d != this) d.found(localId, name);
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> startDiscovery(DiscoveryListener listener) {
+        synchronized (network) {
+            discoveryListener = listener;
+            if (!network.discoverers.contains(this)) network.discoverers.add(this);
+            for (LoopbackTransport a : network.advertisers.values()) {
+                if (a != this) found(a.localId, a.advertisedName);
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void stopDiscovery() {
+        synchronized (network) {
+            network.discoverers.remove(this);
+            discoveryListener = null;
+        }
+    }
+
+    private void found(String endpointId, String name) {
+        DiscoveryListener l = discoveryListener;
+        post(() -> l.onEndpointFound(endpointId, name));
+    }
+
+    private void lost(String endpointId) {
+        DiscoveryListener l = discoveryListener;
+        post(() -> l.onEndpointLost(endpointId));
+    }
+
+    @Override
+    public CompletableFuture<Void> requestConnection(String name, String endpointId, Listener listener) {
+        LoopbackTransport peer;
+        Listener peerListener;
+        synchronized (network) {
+            peer = network.advertisers.get(endpointId);
+            peerListener = peer != null ? peer.advertiseListener : null;
+        }
+        if (peer == null) {
+            post(() -> listener.onConnectionFailed(endpointId, "Endpoint not found"));
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Endpoint " + endpointId + " not found"));
+            return failed;
+        }
+        try {
+            Pipe toPeer = Pipe.open();
+            Pipe fromPeer = Pipe.open();
+            // Each side closes the ends it uses; the other side then sees end of stream
+            peer.attach(localId, Channels.newInputStream(toPeer.source()), Channels.newOutputStream(fromPeer.sink()),
+                    closing(toPeer.source(), fromPeer.sink()), peerListener);
+            attach(endpointId, Channels.newInputStream(fromPeer.source()), Channels.newOutputStream(toPeer.sink()),
+                    closing(fromPeer.source(), toPeer.sink()), listener);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static Closeable closing(Closeable a, Closeable b) {
+        return () -> {
+            try {
+                a.close();
+            } finally {
+                b.close();
+            }
+        };
+    }
+
+    @Override
+    public void stopAll() {
+        synchronized (network) {
+            if (network.advertisers.remove(localId, this)) {
+                for (LoopbackTransport d : network.discoverers) {
+                    if (d != this) d.lost(localId);
+                }
+            }
+            network.discoverers.remove(this);
+            advertiseListener = null;
+            discoveryListener = null;
+        }
+        super.stopAll();
+    }
+}
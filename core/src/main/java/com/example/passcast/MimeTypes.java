@@ -0,0 +1,21 @@
+package com.example.passcast;
+
+import java.util.Locale;
+
+/** File-name based MIME detection shared by both sides. */
+public final class MimeTypes {
+
+    private MimeTypes() {}
+
+    public static String fromName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".pdf")) return "application/pdf";
+        if (lower.endsWith(".mp4")) return "video/mp4";
+        if (lower.endsWith(".txt")) return "text/plain";
+        if (lower.endsWith(".mp3")) return "audio/mpeg";
+        if (lower.endsWith(".apk")) return "application/vnd.android.package-archive";
+        return "application/octet-stream";
+    }
+}
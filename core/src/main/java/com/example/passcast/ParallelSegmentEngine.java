@@ -0,0 +1,224 @@
+package com.example.passcast;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Seals or opens the segments of a container on a bounded thread pool.
+ *
+ * Segments are independent, so each worker claims the next segment index, reads it
+ * with a positional read and writes the result at its fixed offset in the output.
+ * Memory use is two pooled direct segment buffers per worker regardless of file size,
+ * and data moves channel to cipher to channel without a copy through the heap.
+ */
+public final class ParallelSegmentEngine implements Closeable {
+
+    private final int threads;
+    private final ExecutorService executor;
+    private final BufferPool pool;
+
+    public ParallelSegmentEngine(int threads) {
+        this.threads = Math.max(1, threads);
+        this.pool = new BufferPool(2 * this.threads);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "passcast-crypto-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Notified on a worker thread once a sealed segment has been written to the output. */
+    public interface SegmentListener {
+        void onSegmentWritten(int index);
+
+        /** Asked before each segment; once true, the encryption stops with an {@link InterruptedIOException}. */
+        default boolean isCanceled() {
+            return false;
+        }
+    }
+
+    /** Encrypts {@code size} bytes of {@code src} into {@code dst}; returns the ciphertext size. */
+    public long encrypt(PasswordKey key, FileChannel src, long size, FileChannel dst, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        return encrypt(key.key, StreamHeader.create(segmentSize, key.params), src, size, dst, null);
+    }
+
+    /**
+     * Encrypts under a header chosen by the caller, so the artifact can be described to
+     * receivers before it exists. {@code listener} may be null.
+     */
+    public long encrypt(SecretKey key, StreamHeader header, FileChannel src, long size, FileChannel dst,
+                        SegmentListener listener) throws IOException, GeneralSecurityException {
+        writeFully(dst, ByteBuffer.wrap(header.toBytes()), 0);
+        int count = header.segmentCount(size);
+
+        run(count, () -> {
+            SegmentCipher cipher = new SegmentCipher(key, header);
+            ByteBuffer plain = pool.acquire(header.getSegmentSize());
+            ByteBuffer sealed = pool.acquire(header.encryptedSegmentSize());
+            return new Worker() {
+                @Override
+                void process(int index) throws IOException, GeneralSecurityException {
+                    if (listener != null && listener.isCanceled())
+                        throw new InterruptedIOException("Encryption canceled");
+                    long off = header.plaintextOffset(index);
+                    int len = (int) Math.min(header.getSegmentSize(), size - off);
+                    plain.clear().limit(len);
+                    if (readFully(src, plain, off) < len)
+                        throw new IOException("Source shrank while encrypting");
+                    plain.flip();
+                    sealed.clear();
+                    cipher.seal(index, index == count - 1, plain, sealed);
+                    writeFully(dst, sealed.flip(), header.ciphertextOffset(index));
+                    if (listener != null) listener.onSegmentWritten(index);
+                }
+
+                @Override
+                void done() {
+                    pool.release(plain);
+                    pool.release(sealed);
+                }
+            };
+        });
+        return header.ciphertextSize(size);
+    }
+
+    /** Decrypts the container in {@code src} into {@code dst}; returns the plaintext size. */
+    public long decrypt(SecretKey key, FileChannel src, long size, FileChannel dst)
+            throws IOException, GeneralSecurityException {
+        byte[] headerBytes = new byte[StreamHeader.LENGTH];
+        if (readFully(src, ByteBuffer.wrap(headerBytes), 0) < headerBytes.length)
+            throw new IOException("Truncated header");
+        StreamHeader header = StreamHeader.parse(headerBytes);
+        if (header.getCodec() != Compression.NONE)
+            throw new IOException("Compressed containers must be decoded in order");
+        long plainSize = header.plaintextSize(size);
+        if (plainSize < 0) throw new IOException("Truncated stream");
+        int count = header.segmentCount(plainSize);
+
+        run(count, () -> {
+            SegmentCipher cipher = new SegmentCipher(key, header);
+            ByteBuffer sealed = pool.acquire(header.encryptedSegmentSize());
+            ByteBuffer plain = pool.acquire(header.getSegmentSize());
+            return new Worker() {
+                @Override
+                void process(int index) throws IOException, GeneralSecurityException {
+                    long off = header.ciphertextOffset(index);
+                    int len = (int) Math.min(header.encryptedSegmentSize(), size - off);
+                    sealed.clear().limit(len);
+                    if (readFully(src, sealed, off) < len)
+                        throw new IOException("Truncated stream");
+                    sealed.flip();
+                    plain.clear();
+                    if (index == count - 1) cipher.openFinal(index, sealed, plain);
+                    else cipher.open(index, false, sealed, plain);
+                    writeFully(dst, plain.flip(), header.plaintextOffset(index));
+                }
+
+                @Override
+                void done() {
+                    pool.release(sealed);
+                    pool.release(plain);
+                }
+            };
+        });
+        return plainSize;
+    }
+
+    private abstract static class Worker {
+        abstract void process(int index) throws IOException, GeneralSecurityException;
+
+        abstract void done();
+    }
+
+    private interface WorkerFactory {
+        Worker create() throws GeneralSecurityException;
+    }
+
+    private void run(int count, WorkerFactory factory) throws IOException, GeneralSecurityException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        int workers = Math.min(threads, count);
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            futures.add(executor.submit(() -> {
+                Worker worker = null;
+                try {
+                    worker = factory.create();
+                    int index;
+                    while (!failed.get() && (index = next.getAndIncrement()) < count) {
+                        worker.process(index);
+                    }
+                } catch (Exception e) {
+                    failed.set(true);
+                    throw e;
+                } finally {
+                    if (worker != null) worker.done();
+                }
+                return null;
+            }));
+        }
+
+        Throwable error = null;
+        for (Future<Void> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (error == null) error = e.getCause();
+            } catch (InterruptedException e) {
+                failed.set(true);
+                Thread.currentThread().interrupt();
+                if (error == null) error = new IOException("Interrupted");
+            }
+        }
+        if (error instanceof IOException) throw (IOException) error;
+        if (error instanceof GeneralSecurityException) throw (GeneralSecurityException) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error != null) throw new IOException(error);
+    }
+
+    static int readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int r = ch.read(buf, position + total);
+            if (r == -1) break;
+            total += r;
+        }
+        return total;
+    }
+
+    static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
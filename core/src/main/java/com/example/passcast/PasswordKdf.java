@@ -0,0 +1,50 @@
+package com.example.passcast;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/** Salted, cost-tunable password to AES key derivation (PBKDF2-HMAC-SHA256). */
+public final class PasswordKdf {
+
+    public static final int KEY_BITS = 128;
+    public static final long DEFAULT_TARGET_MILLIS = 150;
+    public static final int MIN_ITERATIONS = 50_000;
+    /** Used until the device has been calibrated. */
+    public static final int DEFAULT_ITERATIONS = 200_000;
+
+    private static final int PROBE_ITERATIONS = 20_000;
+
+    private PasswordKdf() {}
+
+    public static PasswordKey derive(String password, KdfParams params) throws GeneralSecurityException {
+        SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), params.getSalt(), params.iterations, KEY_BITS);
+        try {
+            byte[] raw = f.generateSecret(spec).getEncoded();
+            return new PasswordKey(params, new SecretKeySpec(raw, "AES"));
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Picks the iteration count that takes about {@code targetMillis} on this device,
+     * never going below {@link #MIN_ITERATIONS}.
+     */
+    public static int calibrate(long targetMillis) throws GeneralSecurityException {
+        KdfParams probe = KdfParams.generate(PROBE_ITERATIONS);
+        derive("calibration", probe); // warm up the provider
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            derive("calibration", probe);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double perIteration = (double) best / PROBE_ITERATIONS;
+        long iterations = (long) (targetMillis * 1_000_000L / Math.max(perIteration, 1e-3));
+        return (int) Math.max(MIN_ITERATIONS, Math.min(KdfParams.MAX_ITERATIONS, iterations));
+    }
+}
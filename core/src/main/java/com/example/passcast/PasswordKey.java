@@ -0,0 +1,15 @@
+package com.example.passcast;
+
+import javax.crypto.SecretKey;
+
+/** A derived content key together with the KDF parameters that produced it. */
+public final class PasswordKey {
+
+    public final KdfParams params;
+    public final SecretKey key;
+
+    public PasswordKey(KdfParams params, SecretKey key) {
+        this.params = params;
+        this.key = key;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.passcast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures {@link ParallelSegmentEngine} throughput for 1..N threads on a scratch
+ * file, giving the scaling curve for the device it runs on.
+ */
+public final class ScalingReport {
+
+    public static final class Row {
+        public final int threads;
+        public final double encryptMBps;
+        public final double decryptMBps;
+        public final double speedup;
+
+        Row(int threads, double encryptMBps, double decryptMBps, double speedup) {
+            this.threads = threads;
+            this.encryptMBps = encryptMBps;
+            this.decryptMBps = decryptMBps;
+            this.speedup = speedup;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%2d threads: encrypt %8.1f MB/s, decrypt %8.1f MB/s, x%.2f",
+                    threads, encryptMBps, decryptMBps, speedup);
+        }
+    }
+
+    private ScalingReport() {}
+
+    /** Runs the curve using {@code dir} for scratch files of {@code size} bytes. */
+    public static List<Row> measure(File dir, long size, int maxThreads)
+            throws IOException, GeneralSecurityException {
+        byte[] rawKey = new byte[16];
+        new SecureRandom().nextBytes(rawKey);
+        PasswordKey key = new PasswordKey(KdfParams.generate(PasswordKdf.MIN_ITERATIONS),
+                new SecretKeySpec(rawKey, "AES"));
+
+        File plain = new File(dir, "scaling.plain");
+        File sealed = new File(dir, "scaling.sealed");
+        File opened = new File(dir, "scaling.opened");
+        List<Row> rows = new ArrayList<>();
+        try {
+            fillRandom(plain, size);
+            double base = 0;
+            for (int t = 1; t <= maxThreads; t++) {
+                try (ParallelSegmentEngine engine = new ParallelSegmentEngine(t);
+                     RandomAccessFile src = new RandomAccessFile(plain, "r");
+                     RandomAccessFile dst = new RandomAccessFile(sealed, "rw");
+                     RandomAccessFile out = new RandomAccessFile(opened, "rw")) {
+                    dst.setLength(0);
+                    out.setLength(0);
+                    FileChannel srcCh = src.getChannel();
+                    FileChannel dstCh = dst.getChannel();
+
+                    long start = System.nanoTime();
+                    long sealedSize = engine.encrypt(key, srcCh, size, dstCh, StreamHeader.DEFAULT_SEGMENT_SIZE);
+                    long encNanos = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    engine.decrypt(key.key, dstCh, sealedSize, out.getChannel());
+                    long decNanos = System.nanoTime() - start;
+
+                    double enc = mbPerSecond(size, encNanos);
+                    double dec = mbPerSecond(size, decNanos);
+                    if (t == 1) base = enc + dec;
+                    rows.add(new Row(t, enc, dec, base == 0 ? 0 : (enc + dec) / base));
+                }
+            }
+        } finally {
+            plain.delete();
+            sealed.delete();
+            opened.delete();
+        }
+        return rows;
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : (bytes / 1e6) / (nanos / 1e9);
+    }
+
+    private static void fillRandom(File f, long size) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        SecureRandom rnd = new SecureRandom();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(0);
+            long left = size;
+            while (left > 0) {
+                rnd.nextBytes(buf);
+                int n = (int) Math.min(buf.length, left);
+                raf.write(buf, 0, n);
+                left -= n;
+            }
+        }
+    }
+}
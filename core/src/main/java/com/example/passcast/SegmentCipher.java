@@ -0,0 +1,138 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Seals and opens single segments of a {@link StreamHeader} container, with the
+ * {@link CipherSuite} its header names.
+ *
+ * Each segment uses nonce = prefix (7) | segment index (4) | final flag (1), and the
+ * encoded header as associated data, so segments cannot be reordered, dropped,
+ * moved between files or marked final after the fact. Not thread-safe: use one
+ * instance per thread.
+ */
+public final class SegmentCipher {
+
+    public static final int TAG_LENGTH = 16;
+
+    private final SecretKey key;
+    private final StreamHeader header;
+    private final byte[] aad;
+    private final byte[] nonce = new byte[12];
+    private final Cipher cipher;
+
+    public SegmentCipher(SecretKey key, StreamHeader header) throws GeneralSecurityException {
+        this.key = CipherSuite.key(key, header.getCipherSuite());
+        this.header = header;
+        this.aad = header.toBytes();
+        this.cipher = CipherSuite.newCipher(header.getCipherSuite());
+        System.arraycopy(header.getNoncePrefix(), 0, nonce, 0, StreamHeader.NONCE_PREFIX_LENGTH);
+    }
+
+    public StreamHeader getHeader() {
+        return header;
+    }
+
+    /** Encrypts {@code len} bytes into {@code out}; returns len + {@link #TAG_LENGTH}. */
+    public int seal(int index, boolean last, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        if (len > header.getSegmentSize()) throw new IllegalArgumentException("Segment too large");
+        if (!last && len != header.getSegmentSize())
+            throw new IllegalArgumentException("Only the final segment may be short");
+        cipher.init(Cipher.ENCRYPT_MODE, key, spec(index, last));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(in, inOff, len, out, outOff);
+    }
+
+    /** Decrypts and verifies one segment; returns the plaintext length. */
+    public int open(int index, boolean last, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        if (len < TAG_LENGTH || len > header.encryptedSegmentSize())
+            throw new AEADBadTagException("Invalid segment length");
+        cipher.init(Cipher.DECRYPT_MODE, key, spec(index, last));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(in, inOff, len, out, outOff);
+    }
+
+    /**
+     * Opens the segment the stream ended on. A segment that only verifies as
+     * non-final means the stream was cut at a segment boundary.
+     */
+    public int openFinal(int index, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException, IOException {
+        try {
+            return open(index, true, in, inOff, len, out, outOff);
+        } catch (AEADBadTagException e) {
+            if (len == header.encryptedSegmentSize()) {
+                try {
+                    open(index, false, in, inOff, len, out, outOff);
+                } catch (AEADBadTagException notTruncated) {
+                    throw e;
+                }
+                throw new IOException("Truncated stream after segment " + index);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code in} into {@code out}, advancing both;
+     * returns the number of bytes written. Direct buffers avoid heap copies.
+     */
+    public int seal(int index, boolean last, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        int len = in.remaining();
+        if (len > header.getSegmentSize()) throw new IllegalArgumentException("Segment too large");
+        if (!last && len != header.getSegmentSize())
+            throw new IllegalArgumentException("Only the final segment may be short");
+        cipher.init(Cipher.ENCRYPT_MODE, key, spec(index, last));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(in, out);
+    }
+
+    /** Decrypts and verifies the remaining bytes of {@code in}; returns the plaintext length. */
+    public int open(int index, boolean last, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        int len = in.remaining();
+        if (len < TAG_LENGTH || len > header.encryptedSegmentSize())
+            throw new AEADBadTagException("Invalid segment length");
+        cipher.init(Cipher.DECRYPT_MODE, key, spec(index, last));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(in, out);
+    }
+
+    /** Buffer variant of {@link #openFinal(int, byte[], int, int, byte[], int)}. */
+    public int openFinal(int index, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException, IOException {
+        int inPos = in.position();
+        int outPos = out.position();
+        try {
+            return open(index, true, in, out);
+        } catch (AEADBadTagException e) {
+            if (in.limit() - inPos == header.encryptedSegmentSize()) {
+                in.position(inPos);
+                out.position(outPos);
+                try {
+                    open(index, false, in, out);
+                } catch (AEADBadTagException notTruncated) {
+                    throw e;
+                }
+                throw new IOException("Truncated stream after segment " + index);
+            }
+            throw e;
+        }
+    }
+
+    private AlgorithmParameterSpec spec(int index, boolean last) {
+        nonce[7] = (byte) (index >>> 24);
+        nonce[8] = (byte) (index >>> 16);
+        nonce[9] = (byte) (index >>> 8);
+        nonce[10] = (byte) index;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return CipherSuite.spec(header.getCipherSuite(), nonce);
+    }
+}
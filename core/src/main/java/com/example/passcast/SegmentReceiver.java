@@ -0,0 +1,109 @@
+package com.example.passcast;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Receiver side of a resumable transfer. Verifies segments as they arrive, writes
+ * their plaintext at its final offset in the partial output and records progress
+ * in the checkpoint, which is flushed to disk every few segments.
+ */
+public final class SegmentReceiver {
+
+    private static final int SAVE_INTERVAL = 32;
+
+    private final TransferCheckpoint checkpoint;
+    private final File checkpointFile;
+    private final FileChannel out;
+    private final SegmentCipher cipher;
+    private final byte[] sealed;
+    private final byte[] plain;
+    private int unsaved;
+
+    public SegmentReceiver(TransferCheckpoint checkpoint, File checkpointFile, FileChannel out, SecretKey key)
+            throws GeneralSecurityException {
+        this.checkpoint = checkpoint;
+        this.checkpointFile = checkpointFile;
+        this.out = out;
+        this.cipher = new SegmentCipher(key, checkpoint.header);
+        this.sealed = new byte[checkpoint.header.encryptedSegmentSize()];
+        this.plain = new byte[checkpoint.header.getSegmentSize()];
+    }
+
+    public TransferCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Consumes a {@link SegmentStream} until it ends; progress survives a broken stream. */
+    public void receive(InputStream frames) throws IOException, GeneralSecurityException {
+        receive(frames, null);
+    }
+
+    /** As above, granting {@code credit} for every segment once it is written, if non-null. */
+    public void receive(InputStream frames, CreditFlow.Window credit) throws IOException, GeneralSecurityException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(frames, sealed.length));
+        int[] len = new int[1];
+        try {
+            int index;
+            while ((index = SegmentStream.readFrame(in, sealed, len)) != -1) {
+                if (index >= checkpoint.segmentCount) throw new IOException("Segment index out of range");
+                accept(index, sealed, len[0]);
+                if (credit != null) credit.consumed();
+            }
+        } finally {
+            save();
+        }
+    }
+
+    /**
+     * Verifies the complete segments in the first {@code available} bytes of a
+     * partially received container, e.g. a FILE payload that failed mid-way.
+     */
+    public void salvage(FileChannel container, long available) throws IOException, GeneralSecurityException {
+        byte[] h = new byte[StreamHeader.LENGTH];
+        if (ParallelSegmentEngine.readFully(container, ByteBuffer.wrap(h), 0) < h.length) return;
+        if (!Arrays.equals(h, checkpoint.header.toBytes())) throw new IOException("Header mismatch");
+        try {
+            for (int i = 0; i < checkpoint.segmentCount; i++) {
+                long off = checkpoint.header.ciphertextOffset(i);
+                int len = sealedLength(i);
+                if (off + len > available) break;
+                if (checkpoint.isVerified(i)) continue;
+                if (ParallelSegmentEngine.readFully(container, ByteBuffer.wrap(sealed, 0, len), off) < len) break;
+                accept(i, sealed, len);
+            }
+        } finally {
+            save();
+        }
+    }
+
+    private void accept(int index, byte[] buf, int len) throws IOException, GeneralSecurityException {
+        if (checkpoint.isVerified(index)) return;
+        if (len != sealedLength(index)) throw new IOException("Bad length for segment " + index);
+        int n = cipher.open(index, index == checkpoint.segmentCount - 1, buf, 0, len, plain, 0);
+        ParallelSegmentEngine.writeFully(out, ByteBuffer.wrap(plain, 0, n), checkpoint.header.plaintextOffset(index));
+        checkpoint.markVerified(index);
+        if (++unsaved >= SAVE_INTERVAL) save();
+    }
+
+    private int sealedLength(int index) {
+        long off = checkpoint.header.ciphertextOffset(index);
+        return (int) Math.min(checkpoint.header.encryptedSegmentSize(), checkpoint.ciphertextSize - off);
+    }
+
+    public void save() throws IOException {
+        // Plaintext must be durable before the checkpoint claims it
+        out.force(false);
+        checkpoint.save(checkpointFile);
+        unsaved = 0;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.passcast;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Sender side of a resumed transfer: reads the encrypted artifact and emits only the
+ * segments the receiver is missing, each framed as index (4) | length (4) | sealed bytes.
+ *
+ * <p>Given an {@link ArtifactProgress}, it can also stream an artifact that is still
+ * being sealed, waiting for each segment in turn. The file is the only buffer between
+ * the encryptor and the link, so memory stays at one frame however far either side
+ * gets ahead. Given a {@link CreditFlow.Gate}, it emits each segment only against the
+ * receiver's credit.
+ */
+public final class SegmentStream extends InputStream {
+
+    public static final int FRAME_HEADER = 8;
+
+    private final RandomAccessFile artifact;
+    private final StreamHeader header;
+    private final long ciphertextSize;
+    private final int count;
+    private final BitSet skip;
+    private final ArtifactProgress progress;
+    private final byte[] frame;
+    private CreditFlow.Gate gate;
+    private int next;
+    private int pos;
+    private int limit;
+
+    public SegmentStream(File file, BitSet skip) throws IOException {
+        this.artifact = new RandomAccessFile(file, "r");
+        byte[] h = new byte[StreamHeader.LENGTH];
+        artifact.readFully(h);
+        this.header = StreamHeader.parse(h);
+        this.ciphertextSize = artifact.length();
+        this.count = header.segmentCount(header.plaintextSize(ciphertextSize));
+        this.skip = skip;
+        this.progress = null;
+        this.frame = new byte[FRAME_HEADER + header.encryptedSegmentSize()];
+    }
+
+    /**
+     * Streams an artifact that is still being written under {@code header}; its final
+     * size is {@code ciphertextSize}.
+     */
+    public SegmentStream(File file, StreamHeader header, long ciphertextSize, BitSet skip,
+                         ArtifactProgress progress) throws IOException {
+        this.artifact = new RandomAccessFile(file, "r");
+        this.header = header;
+        this.ciphertextSize = ciphertextSize;
+        this.count = header.segmentCount(header.plaintextSize(ciphertextSize));
+        if (progress.getSegmentCount() != count) throw new IllegalArgumentException("Segment count mismatch");
+        this.skip = skip;
+        this.progress = progress;
+        this.frame = new byte[FRAME_HEADER + header.encryptedSegmentSize()];
+    }
+
+    /** Holds each segment back until {@code gate} has credit for it; set before reading. */
+    public SegmentStream gated(CreditFlow.Gate gate) {
+        this.gate = gate;
+        return this;
+    }
+
+    /** Number of segments this stream will emit. */
+    public int pendingSegments() {
+        int n = 0;
+        for (int i = skip.nextClearBit(0); i < count; i = skip.nextClearBit(i + 1)) n++;
+        return n;
+    }
+
+    private boolean fill() throws IOException {
+        next = skip.nextClearBit(next);
+        if (next >= count) return false;
+        if (gate != null) gate.acquire();
+        if (progress != null) progress.awaitSegment(next);
+        long off = header.ciphertextOffset(next);
+        int len = (int) Math.min(header.encryptedSegmentSize(), ciphertextSize - off);
+        ByteBuffer.wrap(frame, 0, FRAME_HEADER).putInt(next).putInt(len);
+        artifact.seek(off);
+        artifact.readFully(frame, FRAME_HEADER, len);
+        pos = 0;
+        limit = FRAME_HEADER + len;
+        next++;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return frame[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == limit && !fill()) return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(frame, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (gate != null) gate.close();
+        artifact.close();
+    }
+
+    /**
+     * Reads the next frame into {@code buf}; returns its segment index, or -1 at a clean
+     * end of stream. The sealed length is left in {@code lenOut[0]}.
+     */
+    public static int readFrame(DataInputStream in, byte[] buf, int[] lenOut) throws IOException {
+        int index;
+        try {
+            index = in.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+        int len = in.readInt();
+        if (index < 0 || len < SegmentCipher.TAG_LENGTH || len > buf.length)
+            throw new IOException("Malformed segment frame");
+        in.readFully(buf, 0, len);
+        lenOut[0] = len;
+        return index;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.passcast;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Header of the segmented PassCast container.
+ *
+ * Layout: magic "PCST" | version (1) | segment size (4) | nonce prefix (7) | KDF params (21)
+ * | codec (1) | cipher suite (1).
+ * The encoded header is bound to every segment as associated data, so the salt and
+ * cost a receiver derives its key with, and the suite it opens segments with, are
+ * authenticated too.
+ */
+public final class StreamHeader {
+
+    public static final int MAGIC = 0x50435354; // "PCST"
+    public static final byte VERSION = 4;
+    public static final int NONCE_PREFIX_LENGTH = 7;
+    public static final int LENGTH = 4 + 1 + 4 + NONCE_PREFIX_LENGTH + KdfParams.LENGTH + 1 + 1;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int MIN_SEGMENT_SIZE = 1024;
+    public static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final int segmentSize;
+    private final byte[] noncePrefix;
+    private final KdfParams kdfParams;
+    private final byte codec;
+    private final byte cipherSuite;
+    private final byte[] encoded;
+
+    private StreamHeader(int segmentSize, byte[] noncePrefix, KdfParams kdfParams, byte codec, byte cipherSuite) {
+        this.segmentSize = segmentSize;
+        this.noncePrefix = noncePrefix;
+        this.kdfParams = kdfParams;
+        this.codec = codec;
+        this.cipherSuite = cipherSuite;
+        ByteBuffer bb = ByteBuffer.allocate(LENGTH)
+                .putInt(MAGIC)
+                .put(VERSION)
+                .putInt(segmentSize)
+                .put(noncePrefix);
+        kdfParams.writeTo(bb);
+        bb.put(codec);
+        bb.put(cipherSuite);
+        this.encoded = bb.array();
+    }
+
+    /** New header with a random nonce prefix for a key derived with {@code kdfParams}. */
+    public static StreamHeader create(int segmentSize, KdfParams kdfParams) {
+        return create(segmentSize, kdfParams, Compression.NONE);
+    }
+
+    /** As above, for a plaintext already encoded with {@code codec}. */
+    public static StreamHeader create(int segmentSize, KdfParams kdfParams, byte codec) {
+        return create(segmentSize, kdfParams, codec, CipherSuite.AES_GCM);
+    }
+
+    /** As above, sealed with {@code cipherSuite}, see {@link CipherSuite}. */
+    public static StreamHeader create(int segmentSize, KdfParams kdfParams, byte codec, byte cipherSuite) {
+        checkSegmentSize(segmentSize);
+        if (!Compression.isKnown(codec)) throw new IllegalArgumentException("Unknown codec " + codec);
+        if (!CipherSuite.isKnown(cipherSuite)) throw new IllegalArgumentException("Unknown cipher suite " + cipherSuite);
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        new SecureRandom().nextBytes(prefix);
+        return new StreamHeader(segmentSize, prefix, kdfParams, codec, cipherSuite);
+    }
+
+    public static StreamHeader read(InputStream in) throws IOException {
+        byte[] buf = new byte[LENGTH];
+        try {
+            new DataInputStream(in).readFully(buf);
+        } catch (EOFException e) {
+            throw new IOException("Truncated header");
+        }
+        return parse(buf);
+    }
+
+    public static StreamHeader parse(byte[] buf) throws IOException {
+        if (buf.length < LENGTH) throw new IOException("Truncated header");
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, LENGTH);
+        if (bb.getInt() != MAGIC) throw new IOException("Not a PassCast stream");
+        byte version = bb.get();
+        if (version != VERSION) throw new IOException("Unsupported format version " + version);
+        int segmentSize = bb.getInt();
+        try {
+            checkSegmentSize(segmentSize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        bb.get(prefix);
+        KdfParams kdfParams = KdfParams.readFrom(bb);
+        byte codec = bb.get();
+        if (!Compression.isKnown(codec)) throw new IOException("Unknown codec " + codec);
+        byte cipherSuite = bb.get();
+        if (!CipherSuite.isKnown(cipherSuite)) throw new IOException("Unknown cipher suite " + cipherSuite);
+        return new StreamHeader(segmentSize, prefix, kdfParams, codec, cipherSuite);
+    }
+
+    private static void checkSegmentSize(int segmentSize) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE)
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public byte[] getNoncePrefix() {
+        return noncePrefix.clone();
+    }
+
+    public KdfParams getKdfParams() {
+        return kdfParams;
+    }
+
+    /** Codec the sealed plaintext was encoded with, see {@link Compression}. */
+    public byte getCodec() {
+        return codec;
+    }
+
+    /** AEAD the segments are sealed with, see {@link CipherSuite}. */
+    public byte getCipherSuite() {
+        return cipherSuite;
+    }
+
+    public byte[] toBytes() {
+        return encoded.clone();
+    }
+
+    public int length() {
+        return LENGTH;
+    }
+
+    /** Size of one full segment on the wire. */
+    public int encryptedSegmentSize() {
+        return segmentSize + SegmentCipher.TAG_LENGTH;
+    }
+
+    /** Number of segments for a plaintext; an empty file still has one (empty) final segment. */
+    public int segmentCount(long plaintextSize) {
+        long n = plaintextSize == 0 ? 1 : (plaintextSize + segmentSize - 1) / segmentSize;
+        if (n > Integer.MAX_VALUE) throw new IllegalArgumentException("File too large");
+        return (int) n;
+    }
+
+    public long ciphertextSize(long plaintextSize) {
+        return length() + plaintextSize + (long) segmentCount(plaintextSize) * SegmentCipher.TAG_LENGTH;
+    }
+
+    /** Inverse of {@link #ciphertextSize}; -1 if no plaintext size maps to this length. */
+    public long plaintextSize(long ciphertextSize) {
+        long body = ciphertextSize - length();
+        if (body < SegmentCipher.TAG_LENGTH) return -1;
+        long full = body / encryptedSegmentSize();
+        long rest = body % encryptedSegmentSize();
+        if (rest == 0) return full * segmentSize;
+        if (rest < SegmentCipher.TAG_LENGTH) return -1;
+        return full * segmentSize + rest - SegmentCipher.TAG_LENGTH;
+    }
+
+    public long ciphertextOffset(int index) {
+        return length() + (long) index * encryptedSegmentSize();
+    }
+
+    public long plaintextOffset(int index) {
+        return (long) index * segmentSize;
+    }
+}
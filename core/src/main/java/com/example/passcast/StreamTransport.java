@@ -0,0 +1,630 @@
+package com.example.passcast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Transport} over one byte stream per connection, for the JVM implementations.
+ * Payloads are cut into frames of type (1) | payload id (8) | length (4) | body and
+ * interleaved on the connection, so several STREAM and FILE payloads share it the
+ * way they share a Nearby link. Each direction is paced by the {@link LinkProfile},
+ * which can also make it lossy or drop it.
+ *
+ * <p>Like a socket, a connection stalls while a received stream is not being read;
+ * cancel a stream that won't be consumed. Received files land in {@code payloadDir}
+ * and are deleted when the channel from {@link Payload#openFile()} is closed.
+ */
+public abstract class StreamTransport implements Transport {
+
+    public static final int MAX_BYTES_SIZE = 32 * 1024;
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FRAME_HEADER = 13;
+    private static final int QUEUE_FRAMES = 32;
+    private static final int PIPE_CAPACITY = 1024 * 1024;
+
+    private static final byte FRAME_BYTES = 1;
+    private static final byte FRAME_START = 2;
+    private static final byte FRAME_DATA = 3;
+    private static final byte FRAME_END = 4;
+    private static final byte FRAME_CANCEL = 5;
+
+    private final LinkProfile profile;
+    private final File payloadDir;
+    private final ExecutorService callbacks;
+    private final ExecutorService io;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final Set<File> receivedFiles = ConcurrentHashMap.newKeySet();
+
+    protected StreamTransport(LinkProfile link, File payloadDir) {
+        this.profile = link;
+        this.payloadDir = payloadDir;
+        this.callbacks = Executors.newSingleThreadExecutor(r -> daemon(r, "passcast-callbacks"));
+        AtomicInteger count = new AtomicInteger();
+        this.io = Executors.newCachedThreadPool(r -> daemon(r, "passcast-link-" + count.incrementAndGet()));
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public LinkProfile getLinkProfile() {
+        return profile;
+    }
+
+    /** Runs a listener callback on the callback thread, after those already posted. */
+    protected final void post(Runnable callback) {
+        callbacks.execute(callback);
+    }
+
+    protected final void execute(Runnable task) {
+        io.execute(task);
+    }
+
+    /**
+     * Takes over an established link to {@code endpointId} and reports it connected.
+     * {@code link} is closed when the connection ends.
+     */
+    protected final void attach(String endpointId, InputStream in, OutputStream out, Closeable link,
+                                Listener listener) {
+        Connection old = connections.remove(endpointId);
+        if (old != null) old.drop(false);
+        Connection c = new Connection(endpointId, in, out, link, listener);
+        connections.put(endpointId, c);
+        post(() -> listener.onConnected(endpointId));
+        post(() -> listener.onBandwidthChanged(endpointId, profile.quality()));
+        execute(c::readLoop);
+        execute(c::shapeLoop);
+        if (profile.latencyMillis > 0) execute(c::deliverLoop);
+    }
+
+    @Override
+    public Payload bytes(byte[] data) {
+        if (data.length > MAX_BYTES_SIZE) throw new IllegalArgumentException("Bytes payload over " + MAX_BYTES_SIZE);
+        return new StreamPayload(newId(), Payload.BYTES, data, null, null);
+    }
+
+    @Override
+    public Payload stream(InputStream in) {
+        return new StreamPayload(newId(), Payload.STREAM, null, in, null);
+    }
+
+    @Override
+    public Payload file(File file) throws FileNotFoundException {
+        if (!file.isFile()) throw new FileNotFoundException(file.toString());
+        return new StreamPayload(newId(), Payload.FILE, null, null, file);
+    }
+
+    private static long newId() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    @Override
+    public void send(String endpointId, Payload payload) {
+        Connection c = connections.get(endpointId);
+        if (c == null) return;
+        StreamPayload p = (StreamPayload) payload;
+        if (p.type == Payload.BYTES) {
+            Frame f = new Frame(FRAME_BYTES, p.id, p.bytes, p.bytes.length);
+            f.onWritten = () -> c.update(p.id, STATUS_SUCCESS, p.bytes.length, p.bytes.length);
+            c.enqueueQuietly(f);
+        } else {
+            Sending s = new Sending();
+            c.sending.put(p.id, s);
+            execute(() -> c.pump(p, s));
+        }
+    }
+
+    @Override
+    public void cancel(long payloadId) {
+        for (Connection c : connections.values()) {
+            Sending s = c.sending.get(payloadId);
+            if (s != null) s.canceled = true;
+            Receiving r = c.receiving.get(payloadId);
+            if (r != null && !r.canceled) {
+                // The reader cleans up when the sender acknowledges with its own CANCEL
+                r.canceled = true;
+                if (r.pipe != null) r.pipe.fail(new IOException("Payload canceled"));
+                c.enqueueQuietly(new Frame(FRAME_CANCEL, payloadId, null, 0));
+            }
+        }
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+        Connection c = connections.remove(endpointId);
+        if (c != null) c.drop(false);
+    }
+
+    @Override
+    public void stopAll() {
+        for (Connection c : new ArrayList<>(connections.values())) {
+            connections.remove(c.endpointId, c);
+            c.drop(false);
+        }
+        for (File f : receivedFiles) f.delete();
+        receivedFiles.clear();
+    }
+
+    private final class StreamPayload implements Payload {
+        final long id;
+        final int type;
+        final byte[] bytes;
+        final InputStream stream;
+        final File file;
+
+        StreamPayload(long id, int type, byte[] bytes, InputStream stream, File file) {
+            this.id = id;
+            this.type = type;
+            this.bytes = bytes;
+            this.stream = stream;
+            this.file = file;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public byte[] asBytes() {
+            return bytes;
+        }
+
+        @Override
+        public InputStream asStream() {
+            return stream;
+        }
+
+        @Override
+        public FileChannel openFile() throws IOException {
+            if (file == null) throw new FileNotFoundException("Payload " + id + " has no file");
+            if (!receivedFiles.remove(file)) return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+    }
+
+    private static final class Frame {
+        final byte type;
+        final long payloadId;
+        final byte[] body;
+        final int length;
+        long arrival;
+        Runnable onWritten;
+
+        Frame(byte type, long payloadId, byte[] body, int length) {
+            this.type = type;
+            this.payloadId = payloadId;
+            this.body = body;
+            this.length = length;
+        }
+    }
+
+    private static final Frame CLOSE = new Frame((byte) 0, 0, null, 0);
+
+    private static final class Sending {
+        volatile boolean canceled;
+    }
+
+    private static final class Receiving {
+        final StreamPayload payload;
+        final long totalBytes;
+        final PayloadPipe pipe;
+        final FileChannel file;
+        long bytes;
+        volatile boolean canceled;
+
+        Receiving(StreamPayload payload, long totalBytes, PayloadPipe pipe, FileChannel file) {
+            this.payload = payload;
+            this.totalBytes = totalBytes;
+            this.pipe = pipe;
+            this.file = file;
+        }
+    }
+
+    private final class Connection {
+        final String endpointId;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final Closeable link;
+        final Listener listener;
+        // Frames waiting for the link, and frames on the wire waiting out the latency
+        final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_FRAMES);
+        final BlockingQueue<Frame> inFlight = new LinkedBlockingQueue<>();
+        final Map<Long, Sending> sending = new ConcurrentHashMap<>();
+        final Map<Long, Receiving> receiving = new ConcurrentHashMap<>();
+        // When the link profile drops this connection, by System.nanoTime(), or 0 for never
+        final long dropAt;
+        volatile boolean closed;
+
+        Connection(String endpointId, InputStream in, OutputStream out, Closeable link, Listener listener) {
+            this.endpointId = endpointId;
+            this.in = new DataInputStream(new BufferedInputStream(in, CHUNK_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(out, CHUNK_SIZE));
+            this.link = link;
+            this.listener = listener;
+            long dropAfter = profile.dropAfterNanos(ThreadLocalRandom.current());
+            this.dropAt = dropAfter < 0 ? 0 : Math.max(1, System.nanoTime() + dropAfter);
+        }
+
+        void update(long payloadId, int status, long bytes, long total) {
+            post(() -> listener.onTransferUpdate(endpointId, payloadId, status, bytes, total));
+        }
+
+        void enqueue(Frame f) throws IOException {
+            try {
+                while (!queue.offer(f, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed) throw new IOException("Disconnected from " + endpointId);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (closed) throw new IOException("Disconnected from " + endpointId);
+        }
+
+        void enqueueQuietly(Frame f) {
+            try {
+                enqueue(f);
+            } catch (IOException ignored) {
+                // Reported through onDisconnected
+            }
+        }
+
+        /** Reads an outgoing STREAM or FILE payload into frames until it ends or is canceled. */
+        void pump(StreamPayload p, Sending s) {
+            long total = p.file != null ? p.file.length() : -1;
+            long sent = 0;
+            try (InputStream src = p.file != null ? new FileInputStream(p.file) : p.stream) {
+                enqueue(new Frame(FRAME_START, p.id,
+                        ByteBuffer.allocate(9).put((byte) p.type).putLong(total).array(), 9));
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int n;
+                while (!s.canceled && (n = src.read(buffer)) != -1) {
+                    if (n == 0) continue;
+                    sent += n;
+                    Frame f = new Frame(FRAME_DATA, p.id, Arrays.copyOf(buffer, n), n);
+                    long progress = sent;
+                    f.onWritten = () -> update(p.id, STATUS_IN_PROGRESS, progress, total);
+                    enqueue(f);
+                }
+                if (s.canceled) {
+                    enqueue(new Frame(FRAME_CANCEL, p.id, null, 0));
+                    update(p.id, STATUS_CANCELED, sent, total);
+                } else {
+                    Frame end = new Frame(FRAME_END, p.id, null, 0);
+                    long done = sent;
+                    end.onWritten = () -> update(p.id, STATUS_SUCCESS, done, total);
+                    enqueue(end);
+                }
+            } catch (IOException e) {
+                if (!closed) enqueueQuietly(new Frame(FRAME_CANCEL, p.id, null, 0));
+                update(p.id, STATUS_FAILURE, sent, total);
+            } finally {
+                sending.remove(p.id);
+            }
+        }
+
+        /** Paces frames onto the link at its bandwidth; with latency, they are delivered later. */
+        void shapeLoop() {
+            long linkFree = System.nanoTime();
+            try {
+                while (true) {
+                    Frame f = queue.poll();
+                    if (f == null) {
+                        if (profile.latencyMillis == 0) out.flush();
+                        f = nextFrame();
+                    }
+                    if (f == CLOSE) break;
+                    long now = System.nanoTime();
+                    if (dropAt != 0 && now >= dropAt) throw new IOException("Link dropped");
+                    linkFree = Math.max(now, linkFree) + profile.transmitNanos(FRAME_HEADER + f.length)
+                            + profile.lossNanos(FRAME_HEADER + f.length, ThreadLocalRandom.current());
+                    sleepUntil(linkFree);
+                    if (profile.latencyMillis == 0) {
+                        write(f);
+                    } else {
+                        f.arrival = linkFree + TimeUnit.MILLISECONDS.toNanos(profile.latencyMillis);
+                        inFlight.put(f);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                lost();
+            } finally {
+                inFlight.offer(CLOSE);
+            }
+        }
+
+        /** Waits for the next frame, or for the simulated drop if that comes first. */
+        private Frame nextFrame() throws IOException, InterruptedException {
+            if (dropAt == 0) return queue.take();
+            Frame f = queue.poll(Math.max(0, dropAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (f == null) throw new IOException("Link dropped");
+            return f;
+        }
+
+        void deliverLoop() {
+            try {
+                while (true) {
+                    Frame f = inFlight.poll();
+                    if (f == null) {
+                        out.flush();
+                        f = inFlight.take();
+                    }
+                    if (f == CLOSE) break;
+                    sleepUntil(f.arrival);
+                    write(f);
+                }
+            } catch (IOException | InterruptedException e) {
+                lost();
+            }
+        }
+
+        private void write(Frame f) throws IOException {
+            out.writeByte(f.type);
+            out.writeLong(f.payloadId);
+            out.writeInt(f.length);
+            if (f.length > 0) out.write(f.body, 0, f.length);
+            if (f.onWritten != null) f.onWritten.run();
+        }
+
+        void readLoop() {
+            byte[] body = new byte[CHUNK_SIZE];
+            try {
+                while (true) {
+                    byte type;
+                    try {
+                        type = in.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    long id = in.readLong();
+                    int len = in.readInt();
+                    if (len < 0 || len > body.length) throw new IOException("Bad frame length " + len);
+                    in.readFully(body, 0, len);
+                    onFrame(type, id, body, len);
+                }
+            } catch (IOException e) {
+                // Link broke; treated like a clean close
+            }
+            lost();
+        }
+
+        private void onFrame(byte type, long id, byte[] body, int len) throws IOException {
+            switch (type) {
+                case FRAME_BYTES: {
+                    StreamPayload p = new StreamPayload(id, Payload.BYTES, Arrays.copyOf(body, len), null, null);
+                    post(() -> listener.onPayloadReceived(endpointId, p));
+                    update(id, STATUS_SUCCESS, len, len);
+                    break;
+                }
+                case FRAME_START: {
+                    ByteBuffer b = ByteBuffer.wrap(body, 0, len);
+                    int kind = b.get();
+                    long total = b.getLong();
+                    Receiving r;
+                    if (kind == Payload.FILE) {
+                        File f = File.createTempFile("payload", ".bin", payloadDir);
+                        receivedFiles.add(f);
+                        r = new Receiving(new StreamPayload(id, Payload.FILE, null, null, f), total, null,
+                                FileChannel.open(f.toPath(), StandardOpenOption.WRITE));
+                    } else {
+                        PayloadPipe pipe = new PayloadPipe(PIPE_CAPACITY);
+                        r = new Receiving(new StreamPayload(id, Payload.STREAM, null, pipe, null), total, pipe, null);
+                    }
+                    receiving.put(id, r);
+                    post(() -> listener.onPayloadReceived(endpointId, r.payload));
+                    break;
+                }
+                case FRAME_DATA: {
+                    Receiving r = receiving.get(id);
+                    if (r == null || r.canceled) break;
+                    if (r.pipe != null) {
+                        if (!r.pipe.write(body, 0, len)) break;
+                    } else {
+                        ParallelSegmentEngine.writeFully(r.file, ByteBuffer.wrap(body, 0, len), r.bytes);
+                    }
+                    r.bytes += len;
+                    update(id, STATUS_IN_PROGRESS, r.bytes, r.totalBytes);
+                    break;
+                }
+                case FRAME_END: {
+                    Receiving r = receiving.remove(id);
+                    if (r == null) break;
+                    if (r.canceled) {
+                        discard(r);
+                        update(id, STATUS_CANCELED, r.bytes, r.totalBytes);
+                        break;
+                    }
+                    if (r.pipe != null) r.pipe.finish();
+                    else r.file.close();
+                    update(id, STATUS_SUCCESS, r.bytes, r.totalBytes);
+                    break;
+                }
+                case FRAME_CANCEL: {
+                    Receiving r = receiving.remove(id);
+                    if (r != null) {
+                        discard(r);
+                        update(id, STATUS_CANCELED, r.bytes, r.totalBytes);
+                    }
+                    Sending s = sending.get(id);
+                    if (s != null) s.canceled = true;
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown frame type " + type);
+            }
+        }
+
+        private void discard(Receiving r) {
+            if (r.pipe != null) {
+                r.pipe.fail(new IOException("Payload canceled"));
+            } else {
+                try {
+                    r.file.close();
+                } catch (IOException ignored) {}
+                receivedFiles.remove(r.payload.file);
+                r.payload.file.delete();
+            }
+        }
+
+        /** The link broke or the peer went away. */
+        void lost() {
+            if (connections.remove(endpointId, this)) drop(true);
+        }
+
+        void drop(boolean notify) {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            queue.clear();
+            queue.offer(CLOSE);
+            try {
+                link.close();
+            } catch (IOException ignored) {}
+            // Partially received files stay on disk so the receiver can salvage them
+            for (Receiving r : receiving.values()) {
+                if (r.pipe != null) {
+                    r.pipe.fail(new IOException("Disconnected from " + endpointId));
+                } else {
+                    try {
+                        r.file.close();
+                    } catch (IOException ignored) {}
+                }
+                update(r.payload.id, STATUS_FAILURE, r.bytes, r.totalBytes);
+            }
+            receiving.clear();
+            if (notify) post(() -> listener.onDisconnected(endpointId));
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Bounded buffer between the connection reader and the consumer of a received
+     * stream. Writes block while it is full and are dropped once the consumer closes it.
+     */
+    static final class PayloadPipe extends InputStream {
+        private final byte[] buffer;
+        private int head;
+        private int count;
+        private boolean finished;
+        private boolean closed;
+        private IOException failure;
+
+        PayloadPipe(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        /** Returns false if the consumer is gone and the data was dropped. */
+        synchronized boolean write(byte[] b, int off, int len) throws InterruptedIOException {
+            while (len > 0) {
+                while (count == buffer.length && !closed && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed || failure != null) return false;
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+            return true;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            if (failure == null && !finished) failure = e;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (count == 0) {
+                if (closed) throw new IOException("Stream closed");
+                if (failure != null) throw failure;
+                if (finished) return -1;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            int n = Math.min(len, Math.min(count, buffer.length - head));
+            System.arraycopy(buffer, head, b, off, n);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.passcast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.security.GeneralSecurityException;
+import java.util.zip.InflaterOutputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Constant-memory encryption and decryption of the segmented container.
+ * Only one segment is held in memory at a time, and every segment is verified
+ * before any of its plaintext is written out.
+ */
+public final class StreamingAead {
+
+    private StreamingAead() {}
+
+    /** Encrypts {@code in} to {@code out}; returns the number of plaintext bytes. */
+    public static long encrypt(PasswordKey key, InputStream in, OutputStream out, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        return encrypt(key, in, out, segmentSize, Compression.NONE, null);
+    }
+
+    /**
+     * Encodes {@code in} with {@code codec}, then encrypts it to {@code out}; returns the
+     * number of sealed (encoded) plaintext bytes.
+     */
+    public static long encrypt(PasswordKey key, InputStream in, OutputStream out, int segmentSize,
+                               byte codec, Compression.Stats stats)
+            throws IOException, GeneralSecurityException {
+        return encrypt(key, in, out, segmentSize, codec, CipherSuite.AES_GCM, stats);
+    }
+
+    /** As above, sealed with {@code cipherSuite}; decryption reads the suite from the header. */
+    public static long encrypt(PasswordKey key, InputStream in, OutputStream out, int segmentSize,
+                               byte codec, byte cipherSuite, Compression.Stats stats)
+            throws IOException, GeneralSecurityException {
+        StreamHeader header = StreamHeader.create(segmentSize, key.params, codec, cipherSuite);
+        SegmentCipher cipher = new SegmentCipher(key.key, header);
+        PushbackInputStream src = new PushbackInputStream(Compression.encoding(in, codec, stats), 1);
+
+        byte[] plain = new byte[segmentSize];
+        byte[] sealed = new byte[header.encryptedSegmentSize()];
+        out.write(header.toBytes());
+
+        long total = 0;
+        int index = 0;
+        while (true) {
+            int n = readFully(src, plain, plain.length);
+            boolean last = n < plain.length;
+            if (!last) {
+                // Peek one byte so a file ending exactly on a boundary still gets a final segment
+                int next = src.read();
+                if (next == -1) last = true;
+                else src.unread(next);
+            }
+            int len = cipher.seal(index, last, plain, 0, n, sealed, 0);
+            out.write(sealed, 0, len);
+            total += n;
+            if (last) break;
+            index++;
+        }
+        out.flush();
+        return total;
+    }
+
+    /**
+     * Decrypts {@code in} and decodes it with the header's codec into {@code out};
+     * returns the number of sealed plaintext bytes.
+     */
+    public static long decrypt(SecretKey key, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        StreamHeader header = StreamHeader.read(in);
+        SegmentCipher cipher = new SegmentCipher(key, header);
+        PushbackInputStream src = new PushbackInputStream(in, 1);
+        OutputStream sink = Compression.decoding(out, header.getCodec());
+
+        byte[] sealed = new byte[header.encryptedSegmentSize()];
+        byte[] plain = new byte[header.getSegmentSize()];
+
+        long total = 0;
+        int index = 0;
+        while (true) {
+            int n = readFully(src, sealed, sealed.length);
+            if (n < SegmentCipher.TAG_LENGTH) throw new IOException("Truncated stream");
+            boolean last = n < sealed.length;
+            if (!last) {
+                int next = src.read();
+                if (next == -1) last = true;
+                else src.unread(next);
+            }
+            int len = last
+                    ? cipher.openFinal(index, sealed, 0, n, plain, 0)
+                    : cipher.open(index, false, sealed, 0, n, plain, 0);
+            sink.write(plain, 0, len);
+            total += len;
+            if (last) break;
+            if (index == Integer.MAX_VALUE) throw new IOException("Too many segments");
+            index++;
+        }
+        if (sink instanceof InflaterOutputStream) ((InflaterOutputStream) sink).finish();
+        out.flush();
+        return total;
+    }
+
+    /** Reads until {@code len} bytes or end of stream; returns the count read. */
+    public static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int r = in.read(buf, off, len - off);
+            if (r == -1) break;
+            off += r;
+        }
+        return off;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.passcast;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.SecretKey;
+
+/**
+ * One file fetched from several senders at once. Every sender sealed it under its own
+ * salt, so each peer's segments are opened with that peer's key and header. Segments
+ * of the same size cover the same plaintext range whoever sealed them, so they are
+ * written straight into one shared output. Each segment is authenticated as it
+ * arrives, and the whole output is checked against the content hash at the end.
+ */
+public final class SwarmDownload implements Closeable {
+
+    private final byte[] contentHash;
+    private final long plaintextSize;
+    private final int segmentSize;
+    private final FileChannel out;
+    private final SwarmPlanner planner;
+    private final AtomicBoolean finishing = new AtomicBoolean();
+
+    public SwarmDownload(TransferCheckpoint first, FileChannel out) {
+        this.contentHash = first.contentHash.clone();
+        this.plaintextSize = first.plaintextSize();
+        this.segmentSize = first.header.getSegmentSize();
+        this.out = out;
+        this.planner = new SwarmPlanner(first.segmentCount, segmentSize);
+    }
+
+    /**
+     * Whether an offer can be fetched in parts: uncompressed, since compressed segments
+     * don't line up with the file, and more than one segment long.
+     */
+    public static boolean eligible(TransferCheckpoint cp) {
+        return cp.header.getCodec() == Compression.NONE && cp.segmentCount > 1;
+    }
+
+    /** Whether another peer's offer is the same file, laid out the same way. */
+    public boolean accepts(TransferCheckpoint cp) {
+        return eligible(cp) && Arrays.equals(contentHash, cp.contentHash)
+                && cp.plaintextSize() == plaintextSize && cp.header.getSegmentSize() == segmentSize;
+    }
+
+    public SwarmPlanner planner() {
+        return planner;
+    }
+
+    public long getPlaintextSize() {
+        return plaintextSize;
+    }
+
+    /**
+     * Reads one peer's {@link SegmentStream} until it ends, opening each frame with the
+     * peer's key and writing what is new; returns the number of segments written. A
+     * segment that fails authentication ends the stream with an exception. Grants
+     * {@code credit}, if non-null, for each segment once it is written.
+     */
+    public int receive(String peer, TransferCheckpoint cp, SecretKey key, InputStream frames)
+            throws IOException, GeneralSecurityException {
+        return receive(peer, cp, key, frames, null);
+    }
+
+    public int receive(String peer, TransferCheckpoint cp, SecretKey key, InputStream frames,
+                       CreditFlow.Window credit) throws IOException, GeneralSecurityException {
+        if (!accepts(cp)) throw new IOException("Not the same file");
+        SegmentCipher cipher = new SegmentCipher(key, cp.header);
+        byte[] sealed = new byte[cp.header.encryptedSegmentSize()];
+        byte[] plain = new byte[segmentSize];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(frames, sealed.length));
+        int[] len = new int[1];
+        int written = 0;
+        int index;
+        while ((index = SegmentStream.readFrame(in, sealed, len)) != -1) {
+            if (index >= cp.segmentCount) throw new IOException("Segment index out of range");
+            long off = cp.header.ciphertextOffset(index);
+            if (len[0] != Math.min(cp.header.encryptedSegmentSize(), cp.ciphertextSize - off))
+                throw new IOException("Bad length for segment " + index);
+            int n = cipher.open(index, index == cp.segmentCount - 1, sealed, 0, len[0], plain, 0);
+            ParallelSegmentEngine.writeFully(out, ByteBuffer.wrap(plain, 0, n), cp.header.plaintextOffset(index));
+            // Marked only once the plaintext is in place
+            if (planner.received(peer, index)) written++;
+            if (credit != null) credit.consumed();
+        }
+        return written;
+    }
+
+    /** True for exactly one caller once every segment is in; that caller finishes the file. */
+    public boolean claimFinish() {
+        return planner.isComplete() && finishing.compareAndSet(false, true);
+    }
+
+    /** Checks the assembled output against the content hash every peer offered. */
+    public boolean verify() throws IOException {
+        MessageDigest sha = ContentHash.sha256();
+        ByteBuffer buf = ByteBuffer.allocate(StreamHeader.DEFAULT_SEGMENT_SIZE);
+        for (long pos = 0; pos < plaintextSize; ) {
+            buf.clear().limit((int) Math.min(buf.capacity(), plaintextSize - pos));
+            int n = ParallelSegmentEngine.readFully(out, buf, pos);
+            if (n <= 0) return false;
+            sha.update(buf.array(), 0, n);
+            pos += n;
+        }
+        return MessageDigest.isEqual(sha.digest(), contentHash);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.passcast;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which segments of one file to fetch from which peer when several senders
+ * hold it. Each peer gets a batch at a time. Segments go out rarest first, so one that
+ * only a single peer holds is fetched while that peer is still around. Each batch is
+ * sized by the peer's measured throughput, so fast links take most of the file. Once
+ * nothing is left unassigned, idle peers fetch segments still outstanding elsewhere, so
+ * one slow link doesn't hold up the finish.
+ */
+public final class SwarmPlanner {
+
+    static final int MIN_BATCH = 4;
+    static final int MAX_BATCH = 256;
+    /** About how long one batch should keep a peer busy. */
+    static final long BATCH_NANOS = 2_000_000_000L;
+
+    private static final class Peer {
+        // Null when the peer holds the whole file
+        final BitSet available;
+        final BitSet assigned = new BitSet();
+        long assignedAt;
+        long deliveredBytes;
+        // Smoothed, 0 until the first batch completes
+        double bytesPerNano;
+
+        Peer(BitSet available) {
+            this.available = available;
+        }
+
+        boolean has(int index) {
+            return available == null || available.get(index);
+        }
+    }
+
+    private final int segmentCount;
+    private final long segmentBytes;
+    private final LongSupplier clock;
+    private final BitSet done = new BitSet();
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+
+    public SwarmPlanner(int segmentCount, long segmentBytes) {
+        this(segmentCount, segmentBytes, System::nanoTime);
+    }
+
+    SwarmPlanner(int segmentCount, long segmentBytes, LongSupplier clock) {
+        this.segmentCount = segmentCount;
+        this.segmentBytes = segmentBytes;
+        this.clock = clock;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /** Adds a peer holding the segments in {@code available}, or all of them if null. */
+    public synchronized void addPeer(String peer, BitSet available) {
+        if (!peers.containsKey(peer)) peers.put(peer, new Peer(available == null ? null : (BitSet) available.clone()));
+    }
+
+    /** Drops a peer that left; its outstanding segments go back to the pool. */
+    public synchronized void removePeer(String peer) {
+        peers.remove(peer);
+    }
+
+    public synchronized int peerCount() {
+        return peers.size();
+    }
+
+    /** Whether {@code peer} has no batch outstanding. */
+    public synchronized boolean isIdle(String peer) {
+        Peer p = peers.get(peer);
+        return p != null && p.assigned.isEmpty();
+    }
+
+    /**
+     * The next batch for an idle peer, empty if there is nothing it could usefully
+     * fetch. The peer stays busy until {@link #finished}.
+     */
+    public synchronized BitSet next(String peer) {
+        Peer p = peers.get(peer);
+        BitSet batch = new BitSet();
+        if (p == null || !p.assigned.isEmpty()) return batch;
+        int size = batchSize(p);
+
+        BitSet taken = new BitSet();
+        for (Peer other : peers.values()) taken.or(other.assigned);
+        pick(p, size, taken, batch);
+        if (batch.isEmpty()) {
+            // Endgame: race the others for what is still outstanding
+            BitSet mine = new BitSet();
+            pick(p, size, mine, batch);
+        }
+        p.assigned.or(batch);
+        p.assignedAt = clock.getAsLong();
+        p.deliveredBytes = 0;
+        return (BitSet) batch.clone();
+    }
+
+    /** Up to {@code size} wanted segments {@code p} holds, outside {@code exclude}, rarest first. */
+    private void pick(Peer p, int size, BitSet exclude, BitSet batch) {
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = done.nextClearBit(0); i < segmentCount; i = done.nextClearBit(i + 1)) {
+            if (p.has(i) && !exclude.get(i)) candidates.add(i);
+        }
+        if (candidates.isEmpty()) return;
+        int[] rarity = new int[segmentCount];
+        for (int i : candidates) {
+            for (Peer other : peers.values()) {
+                if (other.has(i)) rarity[i]++;
+            }
+        }
+        // Stable, so segments of equal rarity stay in file order
+        candidates.sort((a, b) -> Integer.compare(rarity[a], rarity[b]));
+        for (int k = 0; k < candidates.size() && k < size; k++) batch.set(candidates.get(k));
+    }
+
+    private int batchSize(Peer p) {
+        if (p.bytesPerNano <= 0) return MIN_BATCH * 2;
+        long segments = (long) (p.bytesPerNano * BATCH_NANOS / segmentBytes);
+        return (int) Math.max(MIN_BATCH, Math.min(MAX_BATCH, segments));
+    }
+
+    /**
+     * Records a segment verified from {@code peer}. Returns false if it was already
+     * in, e.g. fetched twice in the endgame, in which case it needn't be written again.
+     */
+    public synchronized boolean received(String peer, int index) {
+        Peer p = peers.get(peer);
+        if (p != null) {
+            p.assigned.clear(index);
+            p.deliveredBytes += segmentBytes;
+        }
+        if (index < 0 || index >= segmentCount || done.get(index)) return false;
+        done.set(index);
+        // Nobody needs to fetch it any more
+        for (Peer other : peers.values()) other.assigned.clear(index);
+        return true;
+    }
+
+    /**
+     * Ends a peer's batch, whether or not every segment arrived, and updates its
+     * throughput. Segments it didn't deliver go back to the pool.
+     */
+    public synchronized void finished(String peer) {
+        Peer p = peers.get(peer);
+        if (p == null) return;
+        long elapsed = clock.getAsLong() - p.assignedAt;
+        if (elapsed > 0 && p.deliveredBytes > 0) {
+            double rate = (double) p.deliveredBytes / elapsed;
+            p.bytesPerNano = p.bytesPerNano <= 0 ? rate : (p.bytesPerNano + rate) / 2;
+        }
+        p.assigned.clear();
+    }
+
+    /** Measured throughput of a peer in bytes per second, or 0 before its first batch. */
+    public synchronized long bytesPerSecond(String peer) {
+        Peer p = peers.get(peer);
+        return p == null ? 0 : (long) (p.bytesPerNano * 1e9);
+    }
+
+    public synchronized int doneCount() {
+        return done.cardinality();
+    }
+
+    public synchronized boolean isComplete() {
+        return done.cardinality() == segmentCount;
+    }
+
+    /** The segments to leave out of a request for exactly {@code batch}. */
+    public BitSet skipAllBut(BitSet batch) {
+        BitSet skip = new BitSet(segmentCount);
+        skip.set(0, segmentCount);
+        skip.andNot(batch);
+        return skip;
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.passcast;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Transport} over localhost TCP, for running sender and receivers as separate
+ * processes. Advertising listens on a port; discovery polls a fixed list of peer
+ * addresses, which double as their endpoint ids ("host:port").
+ */
+public final class TcpTransport extends StreamTransport {
+
+    private static final int HELLO_PROBE = 1;
+    private static final int HELLO_CONNECT = 2;
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final long DISCOVERY_INTERVAL_MS = 500;
+
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private volatile ServerSocket server;
+    private volatile String advertisedName;
+    private volatile DiscoveryListener discoveryListener;
+    // Bumped by every start and stop, so a superseded discovery loop exits
+    private final AtomicInteger discoveryRun = new AtomicInteger();
+
+    /** {@code port} 0 picks a free one; see {@link #getLocalPort()}. */
+    public TcpTransport(int port, List<InetSocketAddress> peers, LinkProfile link, File payloadDir) {
+        super(link, payloadDir);
+        this.port = port;
+        this.peers = peers;
+    }
+
+    /** The port this endpoint advertises on, or -1 before advertising. */
+    public int getLocalPort() {
+        ServerSocket s = server;
+        return s != null ? s.getLocalPort() : -1;
+    }
+
+    public static String endpointId(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    @Override
+    public CompletableFuture<Void> startAdvertising(String name, Listener listener) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            ServerSocket s = new ServerSocket();
+            s.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            advertisedName = name;
+            server = s;
+            execute(() -> acceptLoop(s, listener));
+            result.complete(null);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void acceptLoop(ServerSocket s, Listener listener) {
+        while (!s.isClosed()) {
+            try {
+                Socket socket = s.accept();
+                execute(() -> handshake(socket, listener));
+            } catch (IOException e) {
+                // Closed by stopAll
+            }
+        }
+    }
+
+    /** A probe gets our name back; a connection request is attached. */
+    private void handshake(Socket socket, Listener listener) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int hello = in.readUnsignedByte();
+            if (hello == HELLO_PROBE) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeUTF(advertisedName);
+                out.flush();
+                socket.close();
+            } else if (hello == HELLO_CONNECT) {
+                String endpointId = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+                attach(endpointId, socket.getInputStream(), socket.getOutputStream(), socket, listener);
+            } else {
+                socket.close();
+            }
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> startDiscovery(DiscoveryListener listener) {
+        discoveryListener = listener;
+        int run = discoveryRun.incrementAndGet();
+        execute(() -> discoveryLoop(run));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void stopDiscovery() {
+        discoveryListener = null;
+        discoveryRun.incrementAndGet();
+    }
+
+    /** Polls the peers, reporting each once when it starts answering and once when it stops. */
+    private void discoveryLoop(int run) {
+        Set<String> found = new HashSet<>();
+        DiscoveryListener listener;
+        while (discoveryRun.get() == run && (listener = discoveryListener) != null) {
+            for (InetSocketAddress peer : peers) {
+                String id = endpointId(peer);
+                String name = probe(peer);
+                DiscoveryListener l = listener;
+                if (name != null && found.add(id)) post(() -> l.onEndpointFound(id, name));
+                else if (name == null && found.remove(id)) post(() -> l.onEndpointLost(id));
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(DISCOVERY_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static String probe(InetSocketAddress peer) {
+        try (Socket socket = new Socket()) {
+            socket.connect(peer, CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            socket.getOutputStream().write(HELLO_PROBE);
+            return new DataInputStream(socket.getInputStream()).readUTF();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> requestConnection(String name, String endpointId, Listener listener) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        execute(() -> {
+            Socket socket = new Socket();
+            try {
+                int colon = endpointId.lastIndexOf(':');
+                if (colon < 0) throw new IOException("Not a host:port endpoint: " + endpointId);
+                socket.connect(new InetSocketAddress(endpointId.substring(0, colon),
+                        Integer.parseInt(endpointId.substring(colon + 1))), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                out.write(HELLO_CONNECT);
+                out.flush();
+                attach(endpointId, socket.getInputStream(), out, socket, listener);
+                result.complete(null);
+            } catch (IOException | NumberFormatException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+                post(() -> listener.onConnectionFailed(endpointId, e.getMessage()));
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void stopAll() {
+        stopDiscovery();
+        ServerSocket s = server;
+        server = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {}
+        }
+        super.stopAll();
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.passcast;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Finished {@link TransferMetrics} as JSON lines in a small rotating file, and an
+ * export of everything kept as one JSON document tagged with the device it came
+ * from, so logs from many devices can be concatenated and compared.
+ */
+public final class TelemetryLog {
+
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final File previous;
+    private final long maxBytes;
+
+    public TelemetryLog(File dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    public TelemetryLog(File dir, long maxBytes) {
+        dir.mkdirs();
+        this.file = new File(dir, "transfers.jsonl");
+        this.previous = new File(dir, "transfers.1.jsonl");
+        this.maxBytes = maxBytes;
+    }
+
+    /** Appends one finished record; once the file is full it becomes the previous generation. */
+    public synchronized void append(TransferMetrics metrics) throws IOException {
+        if (file.length() >= maxBytes) {
+            previous.delete();
+            if (!file.renameTo(previous)) file.delete();
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            out.write(metrics.toJson());
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Writes {@code {"device":{...},"transfers":[...]}} with every kept record, oldest
+     * first. {@code device} describes where the log came from (model, OS, app version).
+     */
+    public synchronized int export(Map<String, String> device, OutputStream os) throws IOException {
+        Writer out = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+        out.write("{\"device\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> e : device.entrySet()) {
+            if (!first) out.write(',');
+            first = false;
+            out.write(TransferMetrics.quote(e.getKey()));
+            out.write(':');
+            out.write(e.getValue() == null ? "null" : TransferMetrics.quote(e.getValue()));
+        }
+        out.write("},\"transfers\":[");
+        int count = copyLines(previous, out, 0);
+        count = copyLines(file, out, count);
+        out.write("]}\n");
+        out.flush();
+        return count;
+    }
+
+    private static int copyLines(File f, Writer out, int count) throws IOException {
+        if (!f.exists()) return count;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // A torn last line from a crash mid-append isn't valid JSON
+                if (line.isEmpty() || !line.endsWith("}")) continue;
+                if (count++ > 0) out.write(',');
+                out.write(line);
+            }
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        file.delete();
+        previous.delete();
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.passcast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Receiver-side record of a partially received transfer: which segments have
+ * been verified and written to the partial output file next to it.
+ */
+public final class TransferCheckpoint {
+
+    private static final int VERSION = 1;
+
+    public static final String SUFFIX = ".ckpt";
+    public static final String PART_SUFFIX = ".part";
+    /** How long an abandoned transfer's checkpoint and partial output are kept. */
+    public static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    public final String transferId;
+    public final String fileName;
+    public final long ciphertextSize;
+    public final byte[] contentHash;
+    public final StreamHeader header;
+    public final int segmentCount;
+    private final BitSet verified;
+
+    public TransferCheckpoint(String transferId, String fileName, long ciphertextSize,
+                              byte[] contentHash, StreamHeader header, BitSet verified) {
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.ciphertextSize = ciphertextSize;
+        this.contentHash = contentHash;
+        this.header = header;
+        this.segmentCount = header.segmentCount(header.plaintextSize(ciphertextSize));
+        this.verified = verified;
+    }
+
+    public static TransferCheckpoint fromOffer(ControlMessage.Offer offer) throws IOException {
+        StreamHeader header = StreamHeader.parse(offer.header);
+        if (header.plaintextSize(offer.ciphertextSize) < 0) throw new IOException("Invalid offer size");
+        if (!transferId(offer.contentHash, offer.header).equals(offer.transferId))
+            throw new IOException("Transfer id does not match offer");
+        return new TransferCheckpoint(offer.transferId, offer.fileName, offer.ciphertextSize,
+                offer.contentHash, header, new BitSet());
+    }
+
+    /** Stable id of one encrypted artifact: the content plus its random header. */
+    public static String transferId(byte[] contentHash, byte[] header) {
+        MessageDigest sha = ContentHash.sha256();
+        sha.update(contentHash);
+        return ContentHash.hex(Arrays.copyOf(sha.digest(header), 16));
+    }
+
+    public long plaintextSize() {
+        return header.plaintextSize(ciphertextSize);
+    }
+
+    public synchronized void markVerified(int index) {
+        verified.set(index);
+    }
+
+    public synchronized boolean isVerified(int index) {
+        return verified.get(index);
+    }
+
+    public synchronized BitSet verified() {
+        return (BitSet) verified.clone();
+    }
+
+    public synchronized int verifiedCount() {
+        return verified.cardinality();
+    }
+
+    public synchronized boolean isComplete() {
+        return verified.nextClearBit(0) >= segmentCount;
+    }
+
+    public boolean matches(ControlMessage.Offer offer) {
+        return transferId.equals(offer.transferId)
+                && ciphertextSize == offer.ciphertextSize
+                && Arrays.equals(contentHash, offer.contentHash)
+                && Arrays.equals(header.toBytes(), offer.header);
+    }
+
+    /** Writes to a temp file and renames, so a crash never leaves a torn checkpoint. */
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(transferId);
+            out.writeUTF(fileName);
+            out.writeLong(ciphertextSize);
+            ControlMessage.writeBytes(out, contentHash);
+            ControlMessage.writeBytes(out, header.toBytes());
+            ControlMessage.writeBytes(out, verified.toByteArray());
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Could not write checkpoint " + file);
+    }
+
+    public static TransferCheckpoint load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) throw new IOException("Unsupported checkpoint");
+            String id = in.readUTF();
+            String name = in.readUTF();
+            long size = in.readLong();
+            byte[] hash = ControlMessage.readBytes(in, 64);
+            StreamHeader header = StreamHeader.parse(ControlMessage.readBytes(in, 1024));
+            BitSet bits = BitSet.valueOf(ControlMessage.readBytes(in, 1 << 24));
+            return new TransferCheckpoint(id, name, size, hash, header, bits);
+        }
+    }
+
+    /**
+     * Deletes the transfers in {@code dir} nothing has touched for {@code maxAgeMillis}:
+     * each checkpoint together with its partial output, judged by whichever of the two
+     * was written last, and partial outputs whose checkpoint is already gone. Returns
+     * how many files were removed.
+     */
+    public static int expire(File dir, long maxAgeMillis, long nowMillis) {
+        File[] files = dir.listFiles();
+        if (files == null) return 0;
+        long cutoff = nowMillis - maxAgeMillis;
+        int removed = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SUFFIX)) {
+                File part = new File(dir, name.substring(0, name.length() - SUFFIX.length()) + PART_SUFFIX);
+                if (Math.max(f.lastModified(), part.lastModified()) >= cutoff) continue;
+                if (part.delete()) removed++;
+                if (f.delete()) removed++;
+            } else if (name.endsWith(PART_SUFFIX) || name.endsWith(".tmp")) {
+                if (f.lastModified() >= cutoff) continue;
+                String base = name.endsWith(PART_SUFFIX)
+                        ? name.substring(0, name.length() - PART_SUFFIX.length()) : null;
+                if (base != null && new File(dir, base + SUFFIX).exists()) continue;
+                if (f.delete()) removed++;
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,332 @@
+package com.example.passcast;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Timings for one transfer on one device: how long each stage of the pipeline ran
+ * and how many bytes it moved, the link rate seen in transfer updates, how long the
+ * connection took to upgrade to high bandwidth and the quality the data went over,
+ * retries and peak heap. Stages may
+ * overlap, e.g. encryption and the transfer itself in pipelined mode.
+ *
+ * <p>Finished records go to a {@link TelemetryLog} as one JSON object each.
+ */
+public final class TransferMetrics {
+
+    public enum Stage { KDF, HASH, ENCRYPT, TRANSFER, DECRYPT, SAVE }
+
+    public static final String SEND = "send";
+    public static final String RECEIVE = "receive";
+
+    private static final class Span {
+        long startedAt = -1;
+        long nanos;
+        long bytes;
+        int runs;
+    }
+
+    public final String transferId;
+    public final String role;
+    public final String endpointId;
+    private final LongSupplier clock;
+    private final long createdAtMillis = System.currentTimeMillis();
+    private final long createdAt;
+    private final Map<Stage, Span> stages = new EnumMap<>(Stage.class);
+
+    private String fileName;
+    private long sizeBytes = -1;
+    private long connectedAt = -1;
+    private long upgradeNanos = -1;
+    private int bandwidth = Transport.QUALITY_UNKNOWN;
+    private long heldNanos;
+    private long firstByteAt = -1;
+    private long lastByteAt = -1;
+    private long bytesTransferred;
+    private double peakBytesPerSecond;
+    private long lastSampleAt = -1;
+    private long lastSampleBytes;
+    private int retries;
+    private int resumedSegments;
+    private long peakHeapBytes;
+    private String outcome;
+    private long finishedAt = -1;
+
+    public TransferMetrics(String transferId, String role, String endpointId) {
+        this(transferId, role, endpointId, System::nanoTime);
+    }
+
+    TransferMetrics(String transferId, String role, String endpointId, LongSupplier clock) {
+        this.transferId = transferId;
+        this.role = role;
+        this.endpointId = endpointId;
+        this.clock = clock;
+        this.createdAt = clock.getAsLong();
+        sampleHeap();
+    }
+
+    public synchronized TransferMetrics describe(String fileName, long sizeBytes) {
+        this.fileName = fileName;
+        this.sizeBytes = sizeBytes;
+        return this;
+    }
+
+    public synchronized void begin(Stage stage) {
+        Span s = stages.computeIfAbsent(stage, k -> new Span());
+        if (s.startedAt < 0) s.startedAt = clock.getAsLong();
+    }
+
+    /** Ends a stage that moved {@code bytes}; a stage that runs again adds to its totals. */
+    public synchronized void end(Stage stage, long bytes) {
+        Span s = stages.get(stage);
+        if (s == null || s.startedAt < 0) return;
+        s.nanos += clock.getAsLong() - s.startedAt;
+        s.bytes += bytes;
+        s.runs++;
+        s.startedAt = -1;
+        sampleHeap();
+    }
+
+    /** Records a stage timed elsewhere, such as a key derived before the transfer existed. */
+    public synchronized void record(Stage stage, long nanos, long bytes) {
+        Span s = stages.computeIfAbsent(stage, k -> new Span());
+        s.nanos += nanos;
+        s.bytes += bytes;
+        s.runs++;
+    }
+
+    /** The connection this transfer runs over came up {@code atNanos} on this clock. */
+    public synchronized void connected(long atNanos) {
+        connectedAt = atNanos;
+    }
+
+    /** Time from connecting to the upgrade to a high-bandwidth medium. */
+    public synchronized void upgraded(long nanos) {
+        upgradeNanos = nanos;
+    }
+
+    /** Link quality when the data started to move; one of the {@code Transport.QUALITY_} values. */
+    public synchronized void bandwidth(int quality) {
+        bandwidth = quality;
+    }
+
+    /** Time a bulk send was held back waiting for the upgrade. */
+    public synchronized void held(long nanos) {
+        heldNanos += nanos;
+    }
+
+    /** A transfer update: {@code bytes} is the running total for the current attempt. */
+    public synchronized void progress(long bytes) {
+        long now = clock.getAsLong();
+        if (firstByteAt < 0) {
+            firstByteAt = now;
+            lastSampleAt = now;
+            lastSampleBytes = 0;
+        }
+        if (bytes < lastSampleBytes) lastSampleBytes = 0;
+        // Rates over very short intervals are mostly scheduling noise
+        if (now - lastSampleAt >= 100_000_000L) {
+            double rate = (bytes - lastSampleBytes) / ((now - lastSampleAt) / 1e9);
+            peakBytesPerSecond = Math.max(peakBytesPerSecond, rate);
+            lastSampleAt = now;
+            lastSampleBytes = bytes;
+            sampleHeap();
+        }
+        lastByteAt = now;
+        bytesTransferred = bytes;
+    }
+
+    /** Marks this as attempt {@code retries + 1}, starting with {@code segmentsAlreadyThere} verified. */
+    public synchronized void resumed(int retries, int segmentsAlreadyThere) {
+        this.retries = retries;
+        this.resumedSegments = segmentsAlreadyThere;
+    }
+
+    /**
+     * Adds the stages of {@code prep} to this record: work done once before the
+     * transfer, such as sealing an artifact that is then sent to many receivers.
+     */
+    public void addStages(TransferMetrics prep) {
+        Map<Stage, Span> copy = new EnumMap<>(Stage.class);
+        synchronized (prep) {
+            for (Map.Entry<Stage, Span> e : prep.stages.entrySet()) {
+                Span s = new Span();
+                s.nanos = e.getValue().nanos;
+                s.bytes = e.getValue().bytes;
+                s.runs = e.getValue().runs;
+                copy.put(e.getKey(), s);
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<Stage, Span> e : copy.entrySet()) {
+                Span from = e.getValue();
+                if (from.runs == 0) continue;
+                Span s = stages.computeIfAbsent(e.getKey(), k -> new Span());
+                s.nanos += from.nanos;
+                s.bytes += from.bytes;
+                s.runs += from.runs;
+            }
+        }
+    }
+
+    /**
+     * Closes the record with {@code outcome}, e.g. "ok", "failed" or "canceled". Only the
+     * first call counts; it returns true so exactly one caller logs the record.
+     */
+    public synchronized boolean finish(String outcome) {
+        if (this.outcome != null) return false;
+        this.outcome = outcome;
+        finishedAt = clock.getAsLong();
+        for (Map.Entry<Stage, Span> e : stages.entrySet()) {
+            if (e.getValue().startedAt >= 0) end(e.getKey(), 0);
+        }
+        sampleHeap();
+        return true;
+    }
+
+    public synchronized String getFileName() {
+        return fileName;
+    }
+
+    public synchronized boolean isFinished() {
+        return outcome != null;
+    }
+
+    public synchronized long stageNanos(Stage stage) {
+        Span s = stages.get(stage);
+        return s == null ? 0 : s.nanos;
+    }
+
+    /** Average rate over the span between the first and last transfer update. */
+    public synchronized double averageBytesPerSecond() {
+        long span = lastByteAt - firstByteAt;
+        return span <= 0 ? 0 : bytesTransferred / (span / 1e9);
+    }
+
+    public synchronized double peakBytesPerSecond() {
+        return peakBytesPerSecond;
+    }
+
+    public synchronized int getRetries() {
+        return retries;
+    }
+
+    public synchronized long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    private void sampleHeap() {
+        Runtime rt = Runtime.getRuntime();
+        peakHeapBytes = Math.max(peakHeapBytes, rt.totalMemory() - rt.freeMemory());
+    }
+
+    /** The stage that took longest, which is usually what limited the transfer. */
+    public synchronized Stage bottleneck() {
+        Stage worst = null;
+        long most = -1;
+        for (Map.Entry<Stage, Span> e : stages.entrySet()) {
+            if (e.getValue().nanos > most) {
+                most = e.getValue().nanos;
+                worst = e.getKey();
+            }
+        }
+        return worst;
+    }
+
+    /** One JSON object; times are milliseconds, rates bytes per second. */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append('{');
+        field(sb, "transferId", transferId);
+        field(sb, "role", role);
+        field(sb, "endpointId", endpointId);
+        field(sb, "fileName", fileName);
+        field(sb, "sizeBytes", sizeBytes);
+        field(sb, "startedAt", createdAtMillis);
+        field(sb, "durationMs", millis((finishedAt < 0 ? clock.getAsLong() : finishedAt) - createdAt));
+        field(sb, "outcome", outcome);
+        sb.append("\"stages\":{");
+        boolean first = true;
+        for (Map.Entry<Stage, Span> e : stages.entrySet()) {
+            Span s = e.getValue();
+            if (!first) sb.append(',');
+            first = false;
+            sb.append(quote(e.getKey().name().toLowerCase(Locale.ROOT))).append(":{");
+            field(sb, "ms", millis(s.nanos));
+            field(sb, "bytes", s.bytes);
+            field(sb, "runs", s.runs);
+            sb.append("\"bytesPerSecond\":").append(Math.round(s.nanos <= 0 ? 0 : s.bytes / (s.nanos / 1e9)));
+            sb.append('}');
+        }
+        sb.append("},");
+        Stage worst = bottleneck();
+        field(sb, "bottleneck", worst == null ? null : worst.name().toLowerCase(Locale.ROOT));
+        field(sb, "bytesTransferred", bytesTransferred);
+        field(sb, "avgBytesPerSecond", Math.round(averageBytesPerSecond()));
+        field(sb, "peakBytesPerSecond", Math.round(peakBytesPerSecond));
+        field(sb, "firstByteMs", firstByteAt < 0 || connectedAt < 0 ? -1 : millis(firstByteAt - connectedAt));
+        field(sb, "upgradeMs", upgradeNanos < 0 ? -1 : millis(upgradeNanos));
+        field(sb, "bandwidth", qualityName(bandwidth));
+        field(sb, "heldMs", millis(heldNanos));
+        field(sb, "retries", retries);
+        field(sb, "resumedSegments", resumedSegments);
+        sb.append("\"peakHeapBytes\":").append(peakHeapBytes);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static String qualityName(int quality) {
+        switch (quality) {
+            case Transport.QUALITY_LOW: return "low";
+            case Transport.QUALITY_MEDIUM: return "medium";
+            case Transport.QUALITY_HIGH: return "high";
+            default: return "unknown";
+        }
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static void field(StringBuilder sb, String name, long value) {
+        sb.append(quote(name)).append(':').append(value).append(',');
+    }
+
+    private static void field(StringBuilder sb, String name, String value) {
+        sb.append(quote(name)).append(':').append(value == null ? "null" : quote(value)).append(',');
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(role).append(' ').append(fileName != null ? fileName : transferId).append(':');
+        for (Map.Entry<Stage, Span> e : stages.entrySet()) {
+            sb.append(' ').append(e.getKey().name().toLowerCase(Locale.ROOT)).append(' ')
+                    .append(millis(e.getValue().nanos)).append(" ms");
+        }
+        sb.append(String.format(Locale.ROOT, ", link %.1f MB/s avg, %.1f MB/s peak",
+                averageBytesPerSecond() / 1e6, peakBytesPerSecond / 1e6));
+        if (retries > 0) sb.append(", ").append(retries).append(" retries");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.passcast;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The link under the transfer protocol: advertise, discover, connect and move
+ * payloads between endpoints. {@link NearbyTransport} is what runs on devices;
+ * {@link LoopbackTransport} and {@link TcpTransport} carry the same payloads on a
+ * plain JVM, optionally shaped by a {@link LinkProfile}, so the pipeline can be
+ * tested and profiled without two phones.
+ *
+ * <p>Connections are accepted automatically on both sides, and every connection
+ * request ends in {@link Listener#onConnected} or {@link Listener#onConnectionFailed}.
+ * Listener callbacks of one transport are delivered one at a time, in order.
+ */
+public interface Transport {
+
+    // Transfer update statuses; same values as Nearby's PayloadTransferUpdate.Status
+    int STATUS_SUCCESS = 1;
+    int STATUS_FAILURE = 2;
+    int STATUS_IN_PROGRESS = 3;
+    int STATUS_CANCELED = 4;
+
+    // Link quality; same values as Nearby's BandwidthInfo.Quality
+    int QUALITY_UNKNOWN = 0;
+    int QUALITY_LOW = 1;
+    int QUALITY_MEDIUM = 2;
+    int QUALITY_HIGH = 3;
+
+    /** Connection and payload events for the endpoints of one advertisement or connection request. */
+    interface Listener {
+        void onConnected(String endpointId);
+
+        void onConnectionFailed(String endpointId, String reason);
+
+        void onDisconnected(String endpointId);
+
+        /**
+         * A payload has started to arrive. BYTES payloads are complete; STREAM payloads
+         * can be read right away; FILE payloads can be opened once they report success.
+         */
+        void onPayloadReceived(String endpointId, Payload payload);
+
+        /** Progress of a payload in either direction; {@code totalBytes} is -1 for streams. */
+        void onTransferUpdate(String endpointId, long payloadId, int status, long bytesTransferred,
+                              long totalBytes);
+
+        /**
+         * The medium under a connection changed. Nearby connects over Bluetooth
+         * ({@link #QUALITY_LOW}) and reports again once it has upgraded to Wi-Fi.
+         */
+        default void onBandwidthChanged(String endpointId, int quality) {}
+    }
+
+    interface DiscoveryListener {
+        void onEndpointFound(String endpointId, String name);
+
+        void onEndpointLost(String endpointId);
+    }
+
+    /** A payload to send, created by the transport, or one being received. */
+    interface Payload {
+        int BYTES = 1;
+        int FILE = 2;
+        int STREAM = 3;
+
+        long getId();
+
+        int getType();
+
+        byte[] asBytes();
+
+        InputStream asStream();
+
+        /** Opens a received FILE payload for reading; the caller closes the channel. */
+        FileChannel openFile() throws IOException;
+    }
+
+    CompletableFuture<Void> startAdvertising(String name, Listener listener);
+
+    CompletableFuture<Void> startDiscovery(DiscoveryListener listener);
+
+    /** Stops discovery; connections stay up. Discovery started again reports every endpoint afresh. */
+    void stopDiscovery();
+
+    CompletableFuture<Void> requestConnection(String name, String endpointId, Listener listener);
+
+    Payload bytes(byte[] data);
+
+    Payload stream(InputStream in);
+
+    Payload file(File file) throws FileNotFoundException;
+
+    void send(String endpointId, Payload payload);
+
+    /** Stops a payload in either direction; both sides see it as canceled. */
+    void cancel(long payloadId);
+
+    void disconnect(String endpointId);
+
+    /** Stops advertising and discovery and drops every connection. */
+    void stopAll();
+}
@@ -0,0 +1,136 @@
+package com.example.passcast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds bulk sends on a connection until it has upgraded to a high-bandwidth medium.
+ * Nearby comes up on Bluetooth and switches to Wi-Fi a few seconds later; a large
+ * payload started in between crawls at Bluetooth speed or stalls across the switch.
+ * Small sends, and everything once the upgrade is in or the wait has timed out, go
+ * straight through.
+ */
+public final class UpgradeGate {
+
+    public static final long DEFAULT_BULK_BYTES = 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private static final class Link {
+        final long connectedAt;
+        int quality = Transport.QUALITY_UNKNOWN;
+        boolean open;
+        final List<Runnable> held = new ArrayList<>();
+
+        Link(long connectedAt) {
+            this.connectedAt = connectedAt;
+        }
+    }
+
+    private final long bulkBytes;
+    private final long timeoutNanos;
+    private final LongSupplier clock;
+    private final Map<String, Link> links = new HashMap<>();
+
+    public UpgradeGate() {
+        this(DEFAULT_BULK_BYTES, DEFAULT_TIMEOUT_MILLIS, System::nanoTime);
+    }
+
+    UpgradeGate(long bulkBytes, long timeoutMillis, LongSupplier clock) {
+        this.bulkBytes = bulkBytes;
+        this.timeoutNanos = timeoutMillis * 1_000_000;
+        this.clock = clock;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutNanos / 1_000_000;
+    }
+
+    /** A connection came up; call {@link #expire} once the timeout has passed, and again for what it returns. */
+    public synchronized void connected(String endpointId) {
+        links.put(endpointId, new Link(clock.getAsLong()));
+    }
+
+    /** Drops the connection and anything still held for it. */
+    public synchronized void disconnected(String endpointId) {
+        links.remove(endpointId);
+    }
+
+    /** Runs {@code send} now if it is small or the link is ready, otherwise once it is. */
+    public void submit(String endpointId, long bytes, Runnable send) {
+        List<Runnable> release;
+        synchronized (this) {
+            Link link = links.get(endpointId);
+            if (link == null || link.open || bytes < bulkBytes) {
+                release = new ArrayList<>(1);
+            } else if (timedOut(link)) {
+                // Keep arrival order with anything the timer hasn't released yet
+                release = open(link);
+            } else {
+                link.held.add(send);
+                return;
+            }
+            release.add(send);
+        }
+        runAll(release);
+    }
+
+    public void onBandwidthChanged(String endpointId, int quality) {
+        List<Runnable> release;
+        synchronized (this) {
+            Link link = links.get(endpointId);
+            if (link == null) return;
+            link.quality = quality;
+            if (quality < Transport.QUALITY_HIGH || link.open) return;
+            release = open(link);
+        }
+        runAll(release);
+    }
+
+    /**
+     * Stops waiting for an upgrade that hasn't come and returns 0. An early call changes
+     * nothing and returns the milliseconds left, when it should be made again: timers
+     * run on a coarser clock and can fire a fraction of a millisecond short.
+     */
+    public long expire(String endpointId) {
+        List<Runnable> release;
+        synchronized (this) {
+            Link link = links.get(endpointId);
+            if (link == null || link.open) return 0;
+            long left = link.connectedAt + timeoutNanos - clock.getAsLong();
+            if (left > 0) return (left + 999_999) / 1_000_000;
+            release = open(link);
+        }
+        runAll(release);
+        return 0;
+    }
+
+    public synchronized int quality(String endpointId) {
+        Link link = links.get(endpointId);
+        return link == null ? Transport.QUALITY_UNKNOWN : link.quality;
+    }
+
+    /** Sends waiting on {@code endpointId}. */
+    public synchronized int heldCount(String endpointId) {
+        Link link = links.get(endpointId);
+        return link == null ? 0 : link.held.size();
+    }
+
+    private boolean timedOut(Link link) {
+        return clock.getAsLong() - link.connectedAt >= timeoutNanos;
+    }
+
+    private static List<Runnable> open(Link link) {
+        link.open = true;
+        List<Runnable> release = new ArrayList<>(link.held);
+        link.held.clear();
+        return release;
+    }
+
+    // Outside the lock, like BroadcastScheduler's starts, so a send can call back in
+    private static void runAll(List<Runnable> sends) {
+        for (Runnable r : sends) r.run();
+    }
+}
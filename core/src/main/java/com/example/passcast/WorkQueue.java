@@ -0,0 +1,112 @@
+package com.example.passcast;
+
+import java.io.Closeable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blocking inbound work (stream receives, decrypts, salvage) on a bounded pool. The
+ * most urgent job runs first, and jobs of one priority run in arrival order. The
+ * pool size can change while jobs are queued or running.
+ */
+public final class WorkQueue implements Closeable {
+
+    // Lower runs first
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    /** Told when the queue goes from idle to busy and back, e.g. to hold a wake lock. */
+    public interface Listener {
+        void onBusyChanged(boolean busy);
+    }
+
+    private static final class Job implements Runnable, Comparable<Job> {
+        final int priority;
+        final long sequence;
+        final Runnable task;
+
+        Job(int priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            if (priority != o.priority) return Integer.compare(priority, o.priority);
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Listener listener;
+
+    public WorkQueue(int threads, String name) {
+        AtomicInteger count = new AtomicInteger();
+        int n = Math.max(1, threads);
+        pool = new ThreadPoolExecutor(n, n, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void execute(int priority, Runnable task) {
+        if (pending.getAndIncrement() == 0) notifyBusy(true);
+        pool.execute(new Job(priority, sequence.getAndIncrement(), () -> {
+            try {
+                task.run();
+            } finally {
+                if (pending.decrementAndGet() == 0) notifyBusy(false);
+            }
+        }));
+    }
+
+    private void notifyBusy(boolean busy) {
+        Listener l = listener;
+        if (l != null) l.onBusyChanged(busy);
+    }
+
+    /** Changes the pool size; running jobs finish, queued ones wait for the new limit. */
+    public synchronized void setConcurrency(int threads) {
+        int n = Math.max(1, threads);
+        // The core size may never exceed the maximum, so order the two updates
+        if (n > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(n);
+            pool.setCorePoolSize(n);
+        } else {
+            pool.setCorePoolSize(n);
+            pool.setMaximumPoolSize(n);
+        }
+    }
+
+    public int getConcurrency() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /** Jobs queued or running. */
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.passcast;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class ArtifactCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("artifacts").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private static File write(ArtifactCache cache, int len) throws IOException {
+        File tmp = cache.createTempFile();
+        Files.write(tmp.toPath(), new byte[len]);
+        return tmp;
+    }
+
+    private static String key(int content) {
+        return ArtifactCache.key(new byte[]{(byte) content}, "k", StreamHeader.DEFAULT_SEGMENT_SIZE, Compression.NONE);
+    }
+
+    @Test
+    public void key_coversContentKeyAndFormat() throws Exception {
+        byte[] hash = {1, 2, 3};
+        String keyId = ArtifactCache.keyId(new SecretKeySpec(new byte[16], "AES"));
+        String base = ArtifactCache.key(hash, keyId, 1024, Compression.NONE);
+        assertEquals(base, ArtifactCache.key(hash.clone(), keyId, 1024, Compression.NONE));
+        assertNotEquals(base, ArtifactCache.key(new byte[]{1, 2, 4}, keyId, 1024, Compression.NONE));
+        assertNotEquals(base, ArtifactCache.key(hash,
+                ArtifactCache.keyId(new SecretKeySpec(new byte[]{1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, "AES")),
+                1024, Compression.NONE));
+        assertNotEquals(base, ArtifactCache.key(hash, keyId, 2048, Compression.NONE));
+        assertNotEquals(base, ArtifactCache.key(hash, keyId, 1024, Compression.DEFLATE));
+        assertNotEquals(base, ArtifactCache.key(hash, keyId, 1024, Compression.NONE, CipherSuite.CHACHA20_POLY1305));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() throws Exception {
+        ArtifactCache cache = new ArtifactCache(dir, 3000);
+        File a = cache.put(key(1), write(cache, 1000));
+        File b = cache.put(key(2), write(cache, 1000));
+        cache.put(key(3), write(cache, 1000));
+        assertSame(a, cache.get(key(1)));
+
+        cache.put(key(4), write(cache, 1000));
+        assertFalse(b.exists());
+        assertNull(cache.get(key(2)));
+        assertNotNull(cache.get(key(1)));
+
+        ArtifactCache.Stats stats = cache.stats();
+        assertEquals(2, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.evictions);
+        assertEquals(3, stats.entries);
+        assertEquals(3000, stats.bytes);
+    }
+
+    @Test
+    public void pinnedEntries_surviveEviction_untilUnpinned() throws Exception {
+        ArtifactCache cache = new ArtifactCache(dir, 2500);
+        // A batch bigger than the budget, every part of it still on offer
+        cache.pin(key(1));
+        cache.pin(key(2));
+        cache.pin(key(3));
+        File a = cache.put(key(1), write(cache, 1000));
+        File b = cache.put(key(2), write(cache, 1000));
+        File c = cache.put(key(3), write(cache, 1000));
+        assertTrue(a.exists() && b.exists() && c.exists());
+        assertEquals(3000, cache.stats().bytes);
+
+        // Pins nest; the last release lets the oldest go
+        cache.pin(key(1));
+        cache.unpin(key(1));
+        assertTrue(a.exists());
+        cache.unpin(key(1));
+        assertFalse(a.exists());
+        cache.unpin(key(2));
+        cache.unpin(key(3));
+        assertEquals(2000, cache.stats().bytes);
+        assertEquals(1, cache.stats().evictions);
+    }
+
+    @Test
+    public void reopen_keepsEntriesAndDropsOrphans() throws Exception {
+        ArtifactCache cache = new ArtifactCache(dir, 10_000);
+        File kept = cache.put(key(1), write(cache, 500));
+        File orphan = write(cache, 700);
+        File stray = new File(dir, "encrypted_123");
+        Files.write(stray.toPath(), new byte[10]);
+
+        ArtifactCache reopened = new ArtifactCache(dir, 10_000);
+        assertFalse(orphan.exists());
+        assertFalse(stray.exists());
+        assertEquals(kept, reopened.get(key(1)));
+        assertEquals(500, reopened.stats().bytes);
+
+        kept.delete();
+        assertNull(reopened.get(key(1)));
+        assertEquals(0, reopened.stats().entries);
+    }
+}
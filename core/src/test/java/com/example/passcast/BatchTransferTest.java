@@ -0,0 +1,160 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BatchTransferTest {
+
+    private final PasswordKey key = TestKeys.zeroKey();
+
+    private static byte[] random(int len) {
+        byte[] b = new byte[len];
+        new Random(len).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] hash(byte[] b) throws IOException {
+        return ContentHash.of(new ByteArrayInputStream(b));
+    }
+
+    /** Collects published files in memory. */
+    private static final class MemorySink implements BatchArchive.Sink {
+        final Map<String, ByteArrayOutputStream> open = new LinkedHashMap<>();
+        final Map<String, byte[]> published = new LinkedHashMap<>();
+        final List<String> discarded = new ArrayList<>();
+
+        @Override
+        public OutputStream open(ControlMessage.Entry entry) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            open.put(entry.name, out);
+            return out;
+        }
+
+        @Override
+        public void publish(ControlMessage.Entry entry) {
+            published.put(entry.name, open.remove(entry.name).toByteArray());
+        }
+
+        @Override
+        public void discard(ControlMessage.Entry entry) {
+            open.remove(entry.name);
+            discarded.add(entry.name);
+        }
+    }
+
+    @Test
+    public void plan_packsSmallFilesAndIsolatesLargeOnes() {
+        long[] sizes = {10, 5000, 20, 30, 40, 9000};
+        List<BatchPlan.Group> groups = BatchPlan.plan(sizes, 1000, 50);
+        // Large files go out as soon as they are seen; archives close when full
+        assertEquals(5, groups.size());
+        assertEquals(List.of(1), groups.get(0).members);
+        assertFalse(groups.get(0).packed);
+        assertEquals(List.of(0, 2), groups.get(1).members);
+        assertTrue(groups.get(1).packed);
+        assertEquals(30, groups.get(1).bytes);
+        assertEquals(List.of(3), groups.get(2).members);
+        assertEquals(List.of(5), groups.get(3).members);
+        assertEquals(List.of(4), groups.get(4).members);
+    }
+
+    @Test
+    public void manifest_splitsUnderMessageLimitAndReassembles() throws Exception {
+        List<ControlMessage.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            entries.add(new ControlMessage.Entry("DCIM/Camera/IMG_" + i + ".jpg", 3_000_000 + i, "image/jpeg",
+                    new byte[32], "t" + (i / 100), true));
+        }
+        List<ControlMessage.Manifest> parts = ControlMessage.Manifest.split("batch", entries);
+        assertTrue(parts.size() > 1);
+
+        BatchManifest manifest = null;
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            byte[] wire = parts.get(i).toBytes();
+            assertTrue(wire.length <= ControlMessage.MAX_MESSAGE_SIZE);
+            ControlMessage.Manifest part = (ControlMessage.Manifest) ControlMessage.parse(wire);
+            if (manifest == null) manifest = new BatchManifest(part);
+            else manifest.add(part);
+        }
+        assertTrue(manifest.isComplete());
+        assertEquals(2000, manifest.fileCount());
+        assertEquals(100, manifest.entriesFor("t7").size());
+        assertEquals("DCIM/Camera/IMG_700.jpg", manifest.entriesFor("t7").get(0).name);
+        assertTrue(manifest.isPacked("t7"));
+    }
+
+    @Test
+    public void packedArchive_roundTripsThroughContainer() throws Exception {
+        byte[][] files = {random(100), new byte[0], random(5000), random(1)};
+        long[] sizes = new long[files.length];
+        List<ControlMessage.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            sizes[i] = files[i].length;
+            entries.add(new ControlMessage.Entry("f" + i, sizes[i], "application/octet-stream",
+                    hash(files[i]), "t", true));
+        }
+
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        StreamingAead.encrypt(key, BatchArchive.pack(sizes, i -> new ByteArrayInputStream(files[i])),
+                sealed, 1024, Compression.DEFLATE, null);
+
+        MemorySink sink = new MemorySink();
+        BatchArchive.Unpacker unpacker = new BatchArchive.Unpacker(entries, sink);
+        StreamingAead.decrypt(key.key, new ByteArrayInputStream(sealed.toByteArray()), unpacker);
+        unpacker.finish();
+
+        assertEquals(files.length, sink.published.size());
+        for (int i = 0; i < files.length; i++) assertArrayEquals(files[i], sink.published.get("f" + i));
+    }
+
+    @Test
+    public void unpacker_discardsFileWithWrongHash() throws Exception {
+        byte[] a = random(10);
+        byte[] b = random(20);
+        List<ControlMessage.Entry> entries = List.of(
+                new ControlMessage.Entry("a", 10, "x", hash(a), "t", true),
+                new ControlMessage.Entry("b", 20, "x", hash(a), "t", true));
+        MemorySink sink = new MemorySink();
+        BatchArchive.Unpacker unpacker = new BatchArchive.Unpacker(entries, sink);
+        unpacker.write(a);
+        assertThrows(IOException.class, () -> {
+            unpacker.write(b);
+            unpacker.finish();
+        });
+        assertEquals(1, sink.published.size());
+        assertEquals(List.of("b"), sink.discarded);
+    }
+
+    @Test
+    public void unpacker_rejectsShortArchive() throws Exception {
+        byte[] a = random(10);
+        List<ControlMessage.Entry> entries = List.of(new ControlMessage.Entry("a", 10, "x", hash(a), "t", true));
+        MemorySink sink = new MemorySink();
+        BatchArchive.Unpacker unpacker = new BatchArchive.Unpacker(entries, sink);
+        unpacker.write(a, 0, 5);
+        assertThrows(IOException.class, unpacker::finish);
+        unpacker.close();
+        assertEquals(List.of("a"), sink.discarded);
+    }
+
+    @Test
+    public void pack_failsWhenFileChangedSize() {
+        byte[] grown = random(11);
+        assertThrows(IOException.class, () -> BatchArchive.pack(new long[]{10},
+                i -> new ByteArrayInputStream(grown)).readAllBytes());
+        byte[] shrunk = random(9);
+        assertThrows(IOException.class, () -> BatchArchive.pack(new long[]{10},
+                i -> new ByteArrayInputStream(shrunk)).readAllBytes());
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BroadcastSchedulerTest {
+
+    private long now;
+    private final List<String> started = new ArrayList<>();
+    private final BroadcastScheduler scheduler = new BroadcastScheduler(2, started::add, () -> now);
+
+    @Test
+    public void capsConcurrentSends_andQueuesTheRest() {
+        for (String id : new String[]{"a", "b", "c", "d"}) scheduler.enqueue(id, 1000);
+        assertEquals(Arrays.asList("a", "b"), started);
+
+        BroadcastScheduler.Report report = scheduler.report();
+        assertEquals(2, report.sending);
+        assertEquals(2, report.queued);
+
+        scheduler.onComplete("a", true);
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+        scheduler.remove("b");
+        assertEquals(Arrays.asList("a", "b", "c", "d"), started);
+
+        report = scheduler.report();
+        assertEquals(1, report.done);
+        assertEquals(1, report.failed);
+        assertEquals(2, report.sending);
+    }
+
+    @Test
+    public void reportsThroughputAndCompletionTimes() {
+        scheduler.enqueue("a", 4_000_000);
+        scheduler.enqueue("b", 4_000_000);
+        scheduler.enqueue("c", 4_000_000);
+        now = 1_000_000_000L;
+        scheduler.onProgress("a", 2_000_000);
+        scheduler.onComplete("a", true);
+        scheduler.onComplete("b", true);
+        now = 2_000_000_000L;
+        scheduler.onComplete("c", true);
+
+        BroadcastScheduler.Report report = scheduler.report();
+        assertEquals(3, report.done);
+        assertEquals(12_000_000, report.bytesDelivered);
+        assertEquals(6_000_000, report.aggregateBytesPerSecond(), 1);
+        assertEquals(1000, report.receivers.get(0).completionMillis());
+        assertEquals(2000, report.receivers.get(2).completionMillis());
+    }
+
+    @Test
+    public void failedSend_freesSlot_andCanBeRetried() {
+        scheduler.enqueue("a", 10);
+        scheduler.enqueue("b", 10);
+        scheduler.enqueue("c", 10);
+        scheduler.onComplete("a", false);
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+        scheduler.enqueue("a", 10);
+        assertEquals(BroadcastScheduler.State.QUEUED, scheduler.report().receivers.get(2).getState());
+        scheduler.onComplete("b", true);
+        assertEquals(Arrays.asList("a", "b", "c", "a"), started);
+    }
+
+    @Test
+    public void resumesJumpTheQueue_inArrivalOrder() {
+        scheduler.enqueue("a", 10);
+        scheduler.enqueue("b", 10);
+        scheduler.enqueue("c", 10);
+        scheduler.enqueue("r1", 5, BroadcastScheduler.PRIORITY_RESUME);
+        scheduler.enqueue("r2", 5, BroadcastScheduler.PRIORITY_RESUME);
+        scheduler.onComplete("a", true);
+        scheduler.onComplete("b", true);
+        scheduler.onComplete("r1", true);
+        assertEquals(Arrays.asList("a", "b", "r1", "r2", "c"), started);
+    }
+
+    @Test
+    public void raisingConcurrency_startsQueuedSends() {
+        for (String id : new String[]{"a", "b", "c", "d"}) scheduler.enqueue(id, 10);
+        scheduler.setMaxConcurrent(3);
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+        scheduler.setMaxConcurrent(1);
+        scheduler.onComplete("a", true);
+        scheduler.onComplete("b", true);
+        assertEquals(3, started.size());
+        scheduler.onComplete("c", true);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), started);
+    }
+}
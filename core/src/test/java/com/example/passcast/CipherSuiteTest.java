@@ -0,0 +1,78 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.AEADBadTagException;
+
+import static org.junit.Assert.*;
+
+public class CipherSuiteTest {
+
+    private final PasswordKey key = TestKeys.zeroKey();
+
+    private byte[] seal(byte[] plain, byte suite) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingAead.encrypt(key, new ByteArrayInputStream(plain), out, 1024, Compression.NONE, suite, null);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void eachSuite_roundTrips_andTheHeaderSaysWhichOneSealedIt() throws Exception {
+        byte[] plain = new byte[5000];
+        new Random(3).nextBytes(plain);
+        byte[] aes = seal(plain, CipherSuite.AES_GCM);
+        byte[] chacha = seal(plain, CipherSuite.CHACHA20_POLY1305);
+        assertEquals(CipherSuite.AES_GCM, StreamHeader.parse(aes).getCipherSuite());
+        assertEquals(CipherSuite.CHACHA20_POLY1305, StreamHeader.parse(chacha).getCipherSuite());
+        assertFalse(Arrays.equals(Arrays.copyOfRange(aes, StreamHeader.LENGTH, aes.length),
+                Arrays.copyOfRange(chacha, StreamHeader.LENGTH, chacha.length)));
+
+        // Decryption needs nothing but the key: the suite comes from the header
+        for (byte[] sealed : new byte[][]{aes, chacha}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamingAead.decrypt(key.key, new ByteArrayInputStream(sealed), out);
+            assertArrayEquals(plain, out.toByteArray());
+        }
+
+        // Relabelling the suite breaks every segment, since the header is associated data
+        chacha[StreamHeader.LENGTH - 1] = CipherSuite.AES_GCM;
+        assertThrows(AEADBadTagException.class,
+                () -> StreamingAead.decrypt(key.key, new ByteArrayInputStream(chacha), new ByteArrayOutputStream()));
+        byte[] unknown = aes.clone();
+        unknown[StreamHeader.LENGTH - 1] = 9;
+        assertThrows(IOException.class, () -> StreamHeader.parse(unknown));
+    }
+
+    @Test
+    public void choose_picksTheFastestSuiteForTheSlowestSide() throws Exception {
+        long[] aesPhone = {400_000_000, 300_000_000};
+        long[] oldPhone = {40_000_000, 150_000_000};
+        long[] noChacha = {60_000_000, 0};
+        assertEquals(CipherSuite.AES_GCM, CipherSuite.choose(aesPhone));
+        assertEquals(CipherSuite.CHACHA20_POLY1305, CipherSuite.choose(aesPhone, oldPhone));
+        assertEquals(CipherSuite.AES_GCM, CipherSuite.choose(aesPhone, oldPhone, noChacha));
+        assertEquals(CipherSuite.CHACHA20_POLY1305, CipherSuite.choose(oldPhone, null));
+        assertEquals(CipherSuite.AES_GCM, CipherSuite.choose());
+        assertEquals(CipherSuite.AES_GCM, CipherSuite.choose(new long[]{100}, new long[]{50, 50}));
+
+        long[] measured = CipherSuite.measure();
+        assertTrue(measured[CipherSuite.AES_GCM] > 0);
+        assertArrayEquals(measured, CipherSuite.decodeSpeeds(CipherSuite.encodeSpeeds(measured)));
+        assertNull(CipherSuite.decodeSpeeds("fast"));
+
+        ControlMessage.Proof proof = (ControlMessage.Proof) ControlMessage.parse(
+                new ControlMessage.Proof(new byte[KeyConfirmation.NONCE_LENGTH], new byte[KeyConfirmation.MAC_LENGTH],
+                        oldPhone).toBytes());
+        assertArrayEquals(oldPhone, proof.cipherSpeeds);
+        ControlMessage.Proof legacy = (ControlMessage.Proof) ControlMessage.parse(
+                new ControlMessage.Proof(new byte[KeyConfirmation.NONCE_LENGTH], new byte[KeyConfirmation.MAC_LENGTH])
+                        .toBytes());
+        assertNull(legacy.cipherSpeeds);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    private final PasswordKey key = TestKeys.zeroKey();
+
+    private static byte[] csv(int rows) {
+        StringBuilder sb = new StringBuilder("id,name,amount\n");
+        for (int i = 0; i < rows; i++) sb.append(i).append(",item-").append(i % 50).append(',').append(i * 3).append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void choose_compressesText_skipsRandomAndMedia() {
+        byte[] text = csv(5000);
+        assertEquals(Compression.DEFLATE, Compression.choose("text/csv", text, Compression.SAMPLE_SIZE));
+
+        byte[] noise = new byte[Compression.SAMPLE_SIZE];
+        new Random(1).nextBytes(noise);
+        assertTrue(Compression.entropy(noise, noise.length) > Compression.MAX_ENTROPY_BITS);
+        assertEquals(Compression.NONE, Compression.choose("application/octet-stream", noise, noise.length));
+
+        assertEquals(Compression.NONE, Compression.choose("image/jpeg", text, Compression.SAMPLE_SIZE));
+        assertEquals(Compression.NONE, Compression.choose("video/mp4", text, Compression.SAMPLE_SIZE));
+        assertEquals(Compression.NONE, Compression.choose(MimeTypes.fromName("song.mp3"), text, 1000));
+    }
+
+    @Test
+    public void deflatedContainer_roundTrips_andReportsSavings() throws Exception {
+        byte[] plain = csv(20000);
+        Compression.Stats stats = new Compression.Stats();
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        StreamingAead.encrypt(key, new ByteArrayInputStream(plain), sealed, 4096, Compression.DEFLATE, stats);
+
+        assertEquals(Compression.DEFLATE, StreamHeader.parse(sealed.toByteArray()).getCodec());
+        assertEquals(plain.length, stats.bytesIn());
+        assertTrue(stats.bytesSaved() > plain.length / 2);
+        assertTrue(sealed.size() < plain.length / 2);
+
+        ByteArrayOutputStream opened = new ByteArrayOutputStream();
+        StreamingAead.decrypt(key.key, new ByteArrayInputStream(sealed.toByteArray()), opened);
+        assertArrayEquals(plain, opened.toByteArray());
+    }
+
+    @Test
+    public void partialOutput_decodesThroughInputStream() throws Exception {
+        byte[] plain = csv(3000);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (InputStream in = Compression.encoding(new ByteArrayInputStream(plain), Compression.DEFLATE, null)) {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) != -1) deflated.write(buf, 0, n);
+        }
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        try (InputStream in = Compression.decoding(new ByteArrayInputStream(deflated.toByteArray()), Compression.DEFLATE)) {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) != -1) inflated.write(buf, 0, n);
+        }
+        assertArrayEquals(plain, inflated.toByteArray());
+    }
+}
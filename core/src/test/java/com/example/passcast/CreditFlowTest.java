@@ -0,0 +1,124 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CreditFlowTest {
+
+    private static final int SEGMENT = 64 * 1024;
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void gate_blocksWithoutCredit_untilGrantedOrClosed() throws Exception {
+        CreditFlow.Gate gate = new CreditFlow.Gate(2);
+        gate.acquire();
+        gate.acquire();
+
+        CountDownLatch third = new CountDownLatch(1);
+        CountDownLatch fourth = new CountDownLatch(1);
+        Thread sender = new Thread(() -> {
+            try {
+                gate.acquire();
+                third.countDown();
+                gate.acquire();
+                fourth.countDown();
+            } catch (Exception ignored) {}
+        });
+        sender.start();
+        assertFalse(third.await(100, TimeUnit.MILLISECONDS));
+        gate.grant(1);
+        assertFalse("stale grants give nothing", third.await(50, TimeUnit.MILLISECONDS));
+        gate.grant(3);
+        assertTrue(third.await(1, TimeUnit.SECONDS));
+        assertFalse(fourth.await(100, TimeUnit.MILLISECONDS));
+        gate.close();
+        assertTrue(fourth.await(1, TimeUnit.SECONDS));
+        sender.join();
+
+        ControlMessage.Credit credit = (ControlMessage.Credit) ControlMessage.parse(
+                new ControlMessage.Credit(42, 7).toBytes());
+        assertEquals(42, credit.payloadId);
+        assertEquals(7, credit.through);
+        ControlMessage.Resume resume = (ControlMessage.Resume) ControlMessage.parse(
+                new ControlMessage.Resume("t", new BitSet(), 16).toBytes());
+        assertEquals(16, resume.window);
+    }
+
+    @Test
+    public void window_followsTheDrainRate_withinBounds() {
+        long[] now = {0};
+        List<Integer> grants = new ArrayList<>();
+        int max = (int) (CreditFlow.MAX_BYTES / SEGMENT);
+
+        // A fast receiver on a 50 ms round trip opens up to the cap
+        CreditFlow.Window fast = new CreditFlow.Window(SEGMENT, 50 * MS, grants::add, () -> now[0]);
+        assertEquals(CreditFlow.INITIAL_BYTES / SEGMENT, fast.getGranted());
+        for (int i = 1; i <= 500; i++) {
+            now[0] += MS / 10;
+            fast.consumed();
+            assertTrue(fast.getGranted() <= i + max);
+        }
+        assertEquals(max, fast.window());
+        assertFalse(grants.isEmpty());
+        for (int i = 1; i < grants.size(); i++) assertTrue(grants.get(i) > grants.get(i - 1));
+
+        // One writing a segment every 100 ms keeps only a few in flight
+        CreditFlow.Window slow = new CreditFlow.Window(SEGMENT, 50 * MS, g -> {}, () -> now[0]);
+        for (int i = 1; i <= 50; i++) {
+            now[0] += 100 * MS;
+            slow.consumed();
+        }
+        assertEquals(CreditFlow.MIN_WINDOW, slow.window());
+        assertEquals(50 + CreditFlow.MIN_WINDOW, slow.getGranted(), 1);
+    }
+
+    @Test
+    public void gatedStream_deliversEverySegment_onTheReceiversCredit() throws Exception {
+        File dir = Files.createTempDirectory("credit").toFile();
+        try {
+            byte[] plain = new byte[40 * SEGMENT + 123];
+            new Random(5).nextBytes(plain);
+            byte[] raw = new byte[16];
+            new Random(6).nextBytes(raw);
+            PasswordKey key = TestKeys.key(raw);
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            StreamingAead.encrypt(key, new ByteArrayInputStream(plain), sealed, SEGMENT);
+            File artifact = new File(dir, "artifact");
+            Files.write(artifact.toPath(), sealed.toByteArray());
+            byte[] hash = ContentHash.of(new ByteArrayInputStream(plain));
+            byte[] header = StreamHeader.parse(sealed.toByteArray()).toBytes();
+            TransferCheckpoint cp = TransferCheckpoint.fromOffer(new ControlMessage.Offer(
+                    TransferCheckpoint.transferId(hash, header), "f", artifact.length(), hash, header));
+
+            CreditFlow.Gate gate = new CreditFlow.Gate(CreditFlow.initialWindow(SEGMENT));
+            CreditFlow.Window window = new CreditFlow.Window(SEGMENT, 0, gate::grant);
+            File out = new File(dir, "out");
+            try (RandomAccessFile part = new RandomAccessFile(out, "rw");
+                 SegmentStream frames = new SegmentStream(artifact, new BitSet()).gated(gate)) {
+                new SegmentReceiver(cp, new File(dir, "ckpt"), part.getChannel(), key.key).receive(frames, window);
+                part.setLength(cp.plaintextSize());
+            }
+            assertTrue(cp.isComplete());
+            // Credit runs at most a full window ahead of what was consumed, whatever the window was then
+            assertTrue(window.getGranted() <= cp.segmentCount
+                    + (int) Math.max(CreditFlow.MIN_WINDOW, CreditFlow.MAX_BYTES / SEGMENT));
+            assertArrayEquals(plain, Files.readAllBytes(out.toPath()));
+        } finally {
+            for (File f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+    }
+}
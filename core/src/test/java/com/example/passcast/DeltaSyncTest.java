@@ -0,0 +1,94 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaSyncTest {
+
+    private static byte[] random(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+
+    /** Diffs {@code target} against {@code basis}, checks the rebuild, returns the stats. */
+    private static DeltaSync.Stats roundTrip(byte[] basis, byte[] target) throws IOException {
+        DeltaSync.Signature sig = DeltaSync.Signature.compute(new ByteArrayInputStream(basis), basis.length);
+        ByteArrayOutputStream sigBytes = new ByteArrayOutputStream();
+        sig.write(sigBytes);
+        sig = DeltaSync.Signature.read(new ByteArrayInputStream(sigBytes.toByteArray()));
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DeltaSync.Stats stats = DeltaSync.diff(sig, new ByteArrayInputStream(target), delta);
+
+        File f = Files.createTempFile("basis", ".bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(basis);
+            FileChannel ch = raf.getChannel();
+            ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+            assertEquals(target.length, DeltaSync.patch(ch, new ByteArrayInputStream(delta.toByteArray()), rebuilt));
+            assertArrayEquals(target, rebuilt.toByteArray());
+        } finally {
+            f.delete();
+        }
+        assertEquals(target.length, stats.targetBytes());
+        return stats;
+    }
+
+    @Test
+    public void smallEdits_sendAFractionOfTheFile() throws IOException {
+        byte[] v1 = random(4_000_000, 1);
+        // An insertion shifts everything after it; a rolling match picks the blocks up again
+        byte[] v2 = concat(Arrays.copyOf(v1, 1_000_000), "inserted".getBytes(),
+                Arrays.copyOfRange(v1, 1_000_000, v1.length), random(10_000, 2));
+        v2[3_000_123] ^= 1;
+
+        DeltaSync.Stats stats = roundTrip(v1, v2);
+        assertTrue("literal " + stats.literalBytes, stats.literalBytes * 10 < v2.length / 10);
+    }
+
+    @Test
+    public void unrelatedOrEmptyContent_stillRebuilds() throws IOException {
+        byte[] basis = random(300_000, 3);
+        DeltaSync.Stats stats = roundTrip(basis, random(500_000, 4));
+        assertEquals(500_000, stats.literalBytes);
+        assertEquals(0, stats.copies);
+
+        roundTrip(basis, new byte[0]);
+        // Basis shorter than a block: no signatures, all literal
+        assertEquals(1000, roundTrip(new byte[100], random(1000, 5)).literalBytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsReferencesOutsideTheBasis() throws IOException {
+        byte[] v1 = random(400_000, 6);
+        DeltaSync.Signature sig = DeltaSync.Signature.compute(new ByteArrayInputStream(v1), v1.length);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DeltaSync.diff(sig, new ByteArrayInputStream(v1), delta);
+
+        File f = Files.createTempFile("basis", ".bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(v1, 0, 1000);
+            DeltaSync.patch(raf.getChannel(), new ByteArrayInputStream(delta.toByteArray()), new ByteArrayOutputStream());
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EndpointRegistryTest {
+
+    private static final long MS = 1_000_000L;
+
+    private long now;
+    private long wall = 1_000_000_000L;
+    private final EndpointRegistry registry = new EndpointRegistry(30_000, () -> now, () -> wall);
+
+    private static List<String> labels(List<EndpointRegistry.Endpoint> list) {
+        List<String> out = new ArrayList<>();
+        for (EndpointRegistry.Endpoint e : list) out.add(e.toString());
+        return out;
+    }
+
+    @Test
+    public void keysById_andTellsSharedNamesApart() {
+        assertTrue(registry.found("AAAA1111", "Hall"));
+        assertTrue(registry.found("BBBB2222", "Desk"));
+        assertTrue(registry.found("CCCC3333", "Hall"));
+        // Seen again: only refreshed, nothing for the list to redraw
+        assertFalse(registry.found("BBBB2222", "Desk"));
+
+        assertEquals(Arrays.asList("Desk", "Hall · 1111", "Hall · 3333"), labels(registry.snapshot()));
+
+        assertTrue(registry.lost("AAAA1111"));
+        assertFalse(registry.lost("AAAA1111"));
+        assertEquals(Arrays.asList("Desk", "Hall"), labels(registry.snapshot()));
+    }
+
+    @Test
+    public void expiresEndpointsNotSeenWithinTtl() {
+        registry.found("a", "Old");
+        now = 20_000 * MS;
+        registry.found("b", "New");
+        assertEquals(20_000, registry.oldestSightingMillis());
+
+        now = 30_000 * MS;
+        assertTrue(registry.expire());
+        assertEquals(Arrays.asList("New"), labels(registry.snapshot()));
+        assertFalse(registry.expire());
+    }
+
+    @Test
+    public void recentSenders_surviveARestart_andFollowANewId() {
+        registry.found("a", "Laptop");
+        registry.remember("a", "Laptop");
+        registry.lost("a");
+        assertEquals(Arrays.asList("Laptop (recent)"), labels(registry.snapshot()));
+
+        EndpointRegistry restored = new EndpointRegistry(30_000, () -> now, () -> wall);
+        restored.restoreRecent(registry.encodeRecent() + "garbage\n");
+        assertEquals(Arrays.asList("Laptop (recent)"), labels(restored.snapshot()));
+        assertNull(restored.availableIdFor("a"));
+
+        // The sender restarted and advertises under a new id
+        restored.found("z", "Laptop");
+        assertEquals("z", restored.availableIdFor("a"));
+        assertEquals(Arrays.asList("Laptop"), labels(restored.snapshot()));
+
+        wall += EndpointRegistry.RECENT_TTL_MILLIS + 1;
+        restored.lost("z");
+        assertTrue(restored.expire());
+        assertTrue(restored.snapshot().isEmpty());
+    }
+
+    @Test
+    public void tagsAreHiddenFromTheList_andMatchSendersOfTheSameFiles() {
+        registry.found("a", EndpointRegistry.advertisedName("Hall", "cafe01"));
+        registry.found("b", EndpointRegistry.advertisedName("Desk", "cafe01"));
+        registry.found("c", EndpointRegistry.advertisedName("Door", "beef02"));
+        registry.found("d", "Lobby");
+        assertEquals(Arrays.asList("Desk", "Door", "Hall", "Lobby"), labels(registry.snapshot()));
+
+        assertEquals(Arrays.asList("b"), registry.sameTagAs("a"));
+        assertTrue(registry.sameTagAs("c").isEmpty());
+        assertTrue(registry.sameTagAs("d").isEmpty());
+
+        // Re-advertising other files changes the tag
+        assertTrue(registry.found("b", EndpointRegistry.advertisedName("Desk", "beef02")));
+        assertEquals(Arrays.asList("b"), registry.sameTagAs("c"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.*;
+
+public class KeyConfirmationTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final KdfParams params = KdfParams.generate(PasswordKdf.MIN_ITERATIONS);
+
+    private SecretKey keyFor(String password) throws Exception {
+        return PasswordKdf.derive(password, params).key;
+    }
+
+    /**
+     * Runs the exchange over serialized messages, as the sessions do; null if the
+     * receiver hung up on the sender's MAC, else whether the sender took the receiver's.
+     */
+    private Boolean exchange(String senderPassword, String receiverPassword) throws Exception {
+        byte[] receiverNonce = KeyConfirmation.newNonce();
+        ControlMessage.Hello hello = (ControlMessage.Hello) ControlMessage.parse(
+                new ControlMessage.Hello(receiverNonce).toBytes());
+
+        byte[] senderNonce = KeyConfirmation.newNonce();
+        SecretKey senderKey = keyFor(senderPassword);
+        ControlMessage.Challenge challenge = (ControlMessage.Challenge) ControlMessage.parse(new ControlMessage.Challenge(
+                params, senderNonce, KeyConfirmation.senderProof(senderKey, senderNonce, hello.nonce)).toBytes());
+        assertEquals(params, challenge.params);
+
+        SecretKey receiverKey = keyFor(receiverPassword);
+        if (!KeyConfirmation.matches(
+                KeyConfirmation.senderProof(receiverKey, challenge.nonce, receiverNonce), challenge.mac)) return null;
+        byte[] answer = KeyConfirmation.receiverProof(receiverKey, challenge.nonce, receiverNonce);
+        // The sender's own MAC is not accepted as the receiver's
+        assertFalse(KeyConfirmation.matches(answer, challenge.mac));
+        ControlMessage.Proof proof = (ControlMessage.Proof) ControlMessage.parse(
+                new ControlMessage.Proof(receiverNonce, answer).toBytes());
+        return KeyConfirmation.matches(KeyConfirmation.receiverProof(senderKey, senderNonce, proof.nonce), proof.mac);
+    }
+
+    @Test
+    public void samePassword_confirmsBothWays_differentOneDoesNot() throws Exception {
+        assertEquals(Boolean.TRUE, exchange("correct horse", "correct horse"));
+        // The receiver finds out first and never sends a MAC of its own
+        assertNull(exchange("correct horse", "correct hose"));
+        assertFalse(KeyConfirmation.matches(new byte[32], null));
+    }
+
+    @Test
+    public void challenge_withCheapParams_isRejectedBeforeAnythingIsDerived() {
+        byte[] cheap = new ControlMessage.Challenge(KdfParams.generate(PasswordKdf.MIN_ITERATIONS - 1),
+                KeyConfirmation.newNonce(), new byte[KeyConfirmation.MAC_LENGTH]).toBytes();
+        assertThrows(IOException.class, () -> ControlMessage.parse(cheap));
+        // The receiver hangs up rather than wait on a handshake that can't go on
+        assertNull(KeyConfirmation.readUnconfirmed(cheap));
+        assertNotNull(KeyConfirmation.readUnconfirmed(new ControlMessage.Hello(KeyConfirmation.newNonce()).toBytes()));
+    }
+
+    @Test
+    public void reject_waitIsClampedToTheBackoffRange() throws Exception {
+        ControlMessage.Reject forever = (ControlMessage.Reject) ControlMessage.parse(
+                new ControlMessage.Reject(Long.MAX_VALUE).toBytes());
+        assertEquals(KeyConfirmation.Backoff.MAX_MILLIS, forever.retryAfterMillis);
+        ControlMessage.Reject negative = (ControlMessage.Reject) ControlMessage.parse(
+                new ControlMessage.Reject(-1).toBytes());
+        assertEquals(0, negative.retryAfterMillis);
+    }
+
+    @Test
+    public void backoff_locksOutGrowingLonger_andClearsOnSuccess() {
+        long[] now = {0};
+        KeyConfirmation.Backoff backoff = new KeyConfirmation.Backoff(() -> now[0]);
+        assertEquals(0, backoff.failed());
+        assertEquals(0, backoff.failed());
+        assertEquals(0, backoff.remainingMillis());
+
+        assertEquals(KeyConfirmation.Backoff.BASE_MILLIS, backoff.failed());
+        assertEquals(KeyConfirmation.Backoff.BASE_MILLIS, backoff.remainingMillis());
+        now[0] = 1500 * MS;
+        assertEquals(500, backoff.remainingMillis());
+        now[0] = 2000 * MS;
+        assertEquals(0, backoff.remainingMillis());
+        assertEquals(2 * KeyConfirmation.Backoff.BASE_MILLIS, backoff.failed());
+
+        for (int i = 0; i < 30; i++) backoff.failed();
+        assertEquals(KeyConfirmation.Backoff.MAX_MILLIS, backoff.remainingMillis());
+
+        backoff.succeeded();
+        assertEquals(0, backoff.remainingMillis());
+        assertEquals(0, backoff.failed());
+    }
+
+    @Test
+    public void challengeLimit_capsChallengesPerWindow() {
+        long[] now = {0};
+        KeyConfirmation.ChallengeLimit limit = new KeyConfirmation.ChallengeLimit(() -> now[0]);
+        for (int i = 0; i < KeyConfirmation.ChallengeLimit.PER_WINDOW; i++) {
+            now[0] = i * MS;
+            assertEquals(0, limit.take());
+        }
+        assertEquals(KeyConfirmation.ChallengeLimit.WINDOW_MILLIS - (KeyConfirmation.ChallengeLimit.PER_WINDOW - 1),
+                limit.take());
+        // A refused challenge doesn't use up a slot, and the oldest one frees up on time
+        now[0] = KeyConfirmation.ChallengeLimit.WINDOW_MILLIS * MS;
+        assertEquals(0, limit.take());
+        assertEquals(1, limit.take());
+    }
+}
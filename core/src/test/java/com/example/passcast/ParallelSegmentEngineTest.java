@@ -0,0 +1,190 @@
+package com.example.passcast;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.AEADBadTagException;
+
+import static org.junit.Assert.*;
+
+public class ParallelSegmentEngineTest {
+
+    private static final int SEGMENT = 1024;
+
+    private final PasswordKey key = TestKeys.zeroKey();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("engine").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private static byte[] random(int len) {
+        byte[] b = new byte[len];
+        new Random(len).nextBytes(b);
+        return b;
+    }
+
+    private byte[] encrypt(ParallelSegmentEngine engine, byte[] plain) throws Exception {
+        File src = new File(dir, "plain");
+        File dst = new File(dir, "sealed");
+        Files.write(src.toPath(), plain);
+        dst.delete();
+        try (RandomAccessFile in = new RandomAccessFile(src, "r");
+             RandomAccessFile out = new RandomAccessFile(dst, "rw")) {
+            engine.encrypt(key, in.getChannel(), plain.length, out.getChannel(), SEGMENT);
+        }
+        return Files.readAllBytes(dst.toPath());
+    }
+
+    private byte[] decrypt(ParallelSegmentEngine engine, byte[] sealed) throws Exception {
+        File src = new File(dir, "sealed");
+        File dst = new File(dir, "opened");
+        Files.write(src.toPath(), sealed);
+        dst.delete();
+        try (RandomAccessFile in = new RandomAccessFile(src, "r");
+             RandomAccessFile out = new RandomAccessFile(dst, "rw")) {
+            engine.decrypt(key.key, in.getChannel(), sealed.length, out.getChannel());
+        }
+        return Files.readAllBytes(dst.toPath());
+    }
+
+    @Test
+    public void roundTrip_acrossThreadCounts() throws Exception {
+        byte[] plain = random(37 * SEGMENT + 11);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            try (ParallelSegmentEngine engine = new ParallelSegmentEngine(threads)) {
+                assertArrayEquals(plain, decrypt(engine, encrypt(engine, plain)));
+            }
+        }
+    }
+
+    @Test
+    public void interoperatesWithStreamingAead() throws Exception {
+        byte[] plain = random(9 * SEGMENT);
+        try (ParallelSegmentEngine engine = new ParallelSegmentEngine(4)) {
+            ByteArrayOutputStream opened = new ByteArrayOutputStream();
+            StreamingAead.decrypt(key.key, new ByteArrayInputStream(encrypt(engine, plain)), opened);
+            assertArrayEquals(plain, opened.toByteArray());
+
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            StreamingAead.encrypt(key, new ByteArrayInputStream(plain), sealed, SEGMENT);
+            assertArrayEquals(plain, decrypt(engine, sealed.toByteArray()));
+        }
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        try (ParallelSegmentEngine engine = new ParallelSegmentEngine(4)) {
+            assertEquals(0, decrypt(engine, encrypt(engine, new byte[0])).length);
+        }
+    }
+
+    @Test
+    public void tamperedSegment_isRejected() throws Exception {
+        try (ParallelSegmentEngine engine = new ParallelSegmentEngine(4)) {
+            byte[] sealed = encrypt(engine, random(20 * SEGMENT));
+            sealed[sealed.length / 2] ^= 1;
+            assertThrows(AEADBadTagException.class, () -> decrypt(engine, sealed));
+        }
+    }
+
+    @Test
+    public void truncatedAtBoundary_isRejected() throws Exception {
+        try (ParallelSegmentEngine engine = new ParallelSegmentEngine(4)) {
+            byte[] sealed = encrypt(engine, random(6 * SEGMENT));
+            int cut = StreamHeader.LENGTH + 4 * (SEGMENT + SegmentCipher.TAG_LENGTH);
+            assertThrows(IOException.class, () -> decrypt(engine, Arrays.copyOf(sealed, cut)));
+        }
+    }
+
+    @Test
+    public void directBuffers_matchArrayPath() throws Exception {
+        StreamHeader header = StreamHeader.create(SEGMENT, key.params);
+        SegmentCipher cipher = new SegmentCipher(key.key, header);
+        byte[] plain = random(SEGMENT);
+        byte[] sealed = new byte[SEGMENT + SegmentCipher.TAG_LENGTH];
+        new SegmentCipher(key.key, header).seal(3, false, plain, 0, plain.length, sealed, 0);
+
+        ByteBuffer in = ByteBuffer.allocateDirect(SEGMENT);
+        in.put(plain).flip();
+        ByteBuffer out = ByteBuffer.allocateDirect(sealed.length);
+        assertEquals(sealed.length, cipher.seal(3, false, in, out));
+        byte[] direct = new byte[sealed.length];
+        out.flip().get(direct);
+        assertArrayEquals(sealed, direct);
+
+        // A full non-final segment at the end of the stream means it was cut short
+        out.flip();
+        assertThrows(IOException.class, () -> cipher.openFinal(3, out, ByteBuffer.allocateDirect(SEGMENT)));
+        out.rewind();
+        ByteBuffer opened = ByteBuffer.allocateDirect(SEGMENT);
+        assertEquals(SEGMENT, cipher.open(3, false, out, opened));
+    }
+
+    @Test
+    public void encrypt_stopsBetweenSegments_onceCanceled() throws Exception {
+        byte[] plain = random(64 * SEGMENT);
+        File src = new File(dir, "plain");
+        Files.write(src.toPath(), plain);
+        StreamHeader header = StreamHeader.create(SEGMENT, key.params);
+        AtomicInteger written = new AtomicInteger();
+        ParallelSegmentEngine.SegmentListener listener = new ParallelSegmentEngine.SegmentListener() {
+            @Override
+            public void onSegmentWritten(int index) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public boolean isCanceled() {
+                return written.get() >= 3;
+            }
+        };
+        ArtifactProgress canceled = new ArtifactProgress(header.segmentCount(plain.length));
+        canceled.cancel();
+        try (ParallelSegmentEngine engine = new ParallelSegmentEngine(2);
+             RandomAccessFile in = new RandomAccessFile(src, "r");
+             RandomAccessFile out = new RandomAccessFile(new File(dir, "sealed"), "rw")) {
+            assertThrows(InterruptedIOException.class, () ->
+                    engine.encrypt(key.key, header, in.getChannel(), plain.length, out.getChannel(), listener));
+            // Each worker finishes the segment it is on, no more
+            assertTrue(written.get() <= 3 + engine.getThreads());
+
+            assertThrows(InterruptedIOException.class, () ->
+                    engine.encrypt(key.key, header, in.getChannel(), plain.length, out.getChannel(), canceled));
+            assertEquals(0, canceled.writtenCount());
+            assertThrows(IOException.class, () -> canceled.awaitSegment(0));
+        }
+    }
+
+    @Test
+    public void scalingReport_hasRowPerThreadCount() throws Exception {
+        List<ScalingReport.Row> rows = ScalingReport.measure(dir, 256 * 1024, 3);
+        assertEquals(3, rows.size());
+        assertEquals(1.0, rows.get(0).speedup, 1e-9);
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(i + 1, rows.get(i).threads);
+            assertTrue(rows.get(i).encryptMBps > 0);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PasswordKdfTest {
+
+    @Test
+    public void derive_isDeterministicPerSaltAndPassword() throws Exception {
+        KdfParams params = KdfParams.generate(1000);
+        PasswordKey a = PasswordKdf.derive("secret", params);
+        PasswordKey b = PasswordKdf.derive("secret", params);
+        assertArrayEquals(a.key.getEncoded(), b.key.getEncoded());
+        assertEquals(16, a.key.getEncoded().length);
+
+        assertFalse(Arrays.equals(a.key.getEncoded(),
+                PasswordKdf.derive("secret", KdfParams.generate(1000)).key.getEncoded()));
+        assertFalse(Arrays.equals(a.key.getEncoded(),
+                PasswordKdf.derive("Secret", params).key.getEncoded()));
+    }
+
+    @Test
+    public void calibrate_staysWithinBounds() throws Exception {
+        int iterations = PasswordKdf.calibrate(20);
+        assertTrue(iterations >= PasswordKdf.MIN_ITERATIONS);
+        assertTrue(iterations <= KdfParams.MAX_ITERATIONS);
+    }
+
+    @Test
+    public void header_carriesKdfParams() throws Exception {
+        KdfParams params = KdfParams.generate(123_456);
+        StreamHeader header = StreamHeader.create(StreamHeader.DEFAULT_SEGMENT_SIZE, params);
+        assertEquals(params, StreamHeader.parse(header.toBytes()).getKdfParams());
+    }
+
+    @Test
+    public void header_rejectsExcessiveIterations() {
+        byte[] bytes = StreamHeader.create(StreamHeader.DEFAULT_SEGMENT_SIZE,
+                KdfParams.generate(PasswordKdf.MIN_ITERATIONS)).toBytes();
+        // iterations follow magic, version, segment size, nonce prefix and the algorithm byte
+        int at = 4 + 1 + 4 + StreamHeader.NONCE_PREFIX_LENGTH + 1;
+        bytes[at] = 0x7f;
+        assertThrows(IOException.class, () -> StreamHeader.parse(bytes));
+    }
+
+    @Test
+    public void header_rejectsTooFewIterations() throws Exception {
+        KdfParams floor = KdfParams.generate(PasswordKdf.MIN_ITERATIONS);
+        StreamHeader header = StreamHeader.create(StreamHeader.DEFAULT_SEGMENT_SIZE, floor);
+        assertEquals(floor, StreamHeader.parse(header.toBytes()).getKdfParams());
+        byte[] cheap = StreamHeader.create(StreamHeader.DEFAULT_SEGMENT_SIZE, KdfParams.generate(1)).toBytes();
+        assertThrows(IOException.class, () -> StreamHeader.parse(cheap));
+    }
+
+    @Test
+    public void params_roundTripThroughBytes() throws Exception {
+        KdfParams params = KdfParams.generate(PasswordKdf.MIN_ITERATIONS);
+        assertEquals(params, KdfParams.fromBytes(params.toBytes()));
+        assertThrows(IOException.class, () -> KdfParams.fromBytes(new byte[KdfParams.LENGTH - 1]));
+        assertThrows(IOException.class, () -> KdfParams.fromBytes(KdfParams.generate(1).toBytes()));
+    }
+
+    @Test
+    public void keyCache_derivesOncePerSession() throws Exception {
+        try (KeyCache cache = new KeyCache()) {
+            KdfParams params = KdfParams.generate(1000);
+            cache.prefetch("pw", params, true);
+            PasswordKey first = cache.get("pw", params);
+            assertSame(first, cache.get("pw", params));
+            assertNotSame(first, cache.get("other", params));
+        }
+    }
+
+    @Test
+    public void keyCache_keepsOnlyTheMostRecentlyUsedKeys() throws Exception {
+        try (KeyCache cache = new KeyCache()) {
+            KdfParams first = KdfParams.generate(1000);
+            PasswordKey kept = cache.get("pw", first);
+            // Peers each bring params of their own
+            for (int i = 0; i < 3 * KeyCache.MAX_ENTRIES; i++) {
+                cache.prefetch("pw", KdfParams.generate(1000), false);
+                if (i % 4 == 0) cache.get("pw", first);
+            }
+            assertEquals(KeyCache.MAX_ENTRIES, cache.size());
+            assertSame(kept, cache.get("pw", first));
+        }
+    }
+
+    @Test
+    public void keyCache_keepsOnlyTheLatestSpeculativeKey() throws Exception {
+        try (KeyCache cache = new KeyCache()) {
+            KdfParams params = KdfParams.generate(20_000);
+            // One prefetch per keystroke; the earlier ones are running or queued when replaced
+            String typed = "";
+            for (char c : "password".toCharArray()) {
+                typed += c;
+                cache.prefetch(typed, params, true);
+            }
+            assertEquals(1, cache.size());
+            PasswordKey key = cache.get("password", params);
+            assertSame(key, cache.get("password", params));
+
+            // A key that has been asked for stays when typing starts again
+            cache.prefetch("next", params, true);
+            assertEquals(2, cache.size());
+            cache.prefetch("next!", params, true);
+            assertEquals(2, cache.size());
+            assertSame(key, cache.get("password", params));
+        }
+    }
+}
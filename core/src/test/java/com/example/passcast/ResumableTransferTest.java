@@ -0,0 +1,217 @@
+package com.example.passcast;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ResumableTransferTest {
+
+    private static final int SEGMENT = 1024;
+
+    private final PasswordKey key = TestKeys.zeroKey();
+    private File dir;
+    private byte[] plain;
+    private File artifact;
+    private ControlMessage.Offer offer;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("resume").toFile();
+        plain = new byte[20 * SEGMENT + 100];
+        new Random(7).nextBytes(plain);
+
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        StreamingAead.encrypt(key, new ByteArrayInputStream(plain), sealed, SEGMENT);
+        artifact = new File(dir, "artifact");
+        Files.write(artifact.toPath(), sealed.toByteArray());
+
+        byte[] hash = ContentHash.of(new ByteArrayInputStream(plain));
+        byte[] header = StreamHeader.parse(sealed.toByteArray()).toBytes();
+        offer = new ControlMessage.Offer(TransferCheckpoint.transferId(hash, header), "file.bin",
+                artifact.length(), hash, header);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    /** Stream that fails after {@code limit} bytes, like a dropped link. */
+    private static InputStream dropAfter(InputStream in, long limit) {
+        return new FilterInputStream(in) {
+            long read;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (read >= limit) throw new IOException("link dropped");
+                int n = super.read(b, off, (int) Math.min(len, limit - read));
+                if (n > 0) read += n;
+                return n;
+            }
+        };
+    }
+
+    @Test
+    public void controlMessages_roundTrip() throws Exception {
+        ControlMessage.Offer o = (ControlMessage.Offer) ControlMessage.parse(offer.toBytes());
+        assertEquals(offer.transferId, o.transferId);
+        assertEquals(offer.fileName, o.fileName);
+        assertEquals(offer.ciphertextSize, o.ciphertextSize);
+        assertArrayEquals(offer.header, o.header);
+
+        BitSet bits = new BitSet();
+        bits.set(3);
+        bits.set(17);
+        ControlMessage.Resume r = (ControlMessage.Resume) ControlMessage.parse(
+                new ControlMessage.Resume(offer.transferId, bits).toBytes());
+        assertEquals(bits, r.verified);
+    }
+
+    @Test
+    public void droppedStream_resumesWithOnlyMissingSegments() throws Exception {
+        TransferCheckpoint cp = TransferCheckpoint.fromOffer(offer);
+        File ckpt = new File(dir, "t.ckpt");
+        File part = new File(dir, "t.part");
+
+        try (RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+            SegmentReceiver receiver = new SegmentReceiver(cp, ckpt, out.getChannel(), key.key);
+            try (SegmentStream all = new SegmentStream(artifact, new BitSet())) {
+                receiver.receive(dropAfter(all, 7 * (SegmentStream.FRAME_HEADER + SEGMENT + 16) + 30));
+                fail("expected drop");
+            } catch (IOException expected) {
+                // link dropped
+            }
+        }
+
+        // Reconnect: reload the persisted checkpoint and advertise it
+        TransferCheckpoint restored = TransferCheckpoint.load(ckpt);
+        assertTrue(restored.matches(offer));
+        assertEquals(7, restored.verifiedCount());
+        ControlMessage.Resume resume = new ControlMessage.Resume(restored.transferId, restored.verified());
+
+        try (RandomAccessFile out = new RandomAccessFile(part, "rw");
+             SegmentStream missing = new SegmentStream(artifact, resume.verified)) {
+            assertEquals(restored.segmentCount - 7, missing.pendingSegments());
+            new SegmentReceiver(restored, ckpt, out.getChannel(), key.key).receive(missing);
+            out.setLength(restored.plaintextSize());
+        }
+        assertTrue(restored.isComplete());
+        assertArrayEquals(plain, Files.readAllBytes(part.toPath()));
+    }
+
+    @Test
+    public void salvage_recoversCompleteSegmentsOfPartialFile() throws Exception {
+        TransferCheckpoint cp = TransferCheckpoint.fromOffer(offer);
+        File part = new File(dir, "t.part");
+        long available = StreamHeader.LENGTH + 5L * (SEGMENT + 16) + 200;
+        try (RandomAccessFile src = new RandomAccessFile(artifact, "r");
+             RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+            new SegmentReceiver(cp, new File(dir, "t.ckpt"), out.getChannel(), key.key)
+                    .salvage(src.getChannel(), available);
+        }
+        assertEquals(5, cp.verifiedCount());
+        assertFalse(cp.isComplete());
+    }
+
+    @Test
+    public void pipelinedStream_decryptsWhileSealing() throws Exception {
+        File src = new File(dir, "plain");
+        Files.write(src.toPath(), plain);
+        File growing = new File(dir, "growing");
+        StreamHeader header = StreamHeader.create(SEGMENT, key.params);
+        long size = header.ciphertextSize(plain.length);
+        ArtifactProgress progress = new ArtifactProgress(header.segmentCount(plain.length));
+        byte[] hash = ContentHash.of(new ByteArrayInputStream(plain));
+        ControlMessage.Offer pipelined = new ControlMessage.Offer(
+                TransferCheckpoint.transferId(hash, header.toBytes()), "file.bin", size, hash, header.toBytes());
+
+        ExecutorService sealer = Executors.newSingleThreadExecutor();
+        try (ParallelSegmentEngine engine = new ParallelSegmentEngine(4);
+             RandomAccessFile in = new RandomAccessFile(src, "r");
+             RandomAccessFile out = new RandomAccessFile(growing, "rw")) {
+            // The stream is opened before a single segment has been sealed
+            SegmentStream stream = new SegmentStream(growing, header, size, new BitSet(), progress);
+            Future<Long> sealed = sealer.submit(() ->
+                    engine.encrypt(key.key, header, in.getChannel(), plain.length, out.getChannel(), progress));
+
+            TransferCheckpoint cp = TransferCheckpoint.fromOffer(pipelined);
+            File part = new File(dir, "p.part");
+            try (RandomAccessFile dst = new RandomAccessFile(part, "rw")) {
+                new SegmentReceiver(cp, new File(dir, "p.ckpt"), dst.getChannel(), key.key).receive(stream);
+                dst.setLength(cp.plaintextSize());
+            }
+            stream.close();
+            assertEquals(size, (long) sealed.get());
+            assertTrue(progress.isComplete());
+            assertTrue(cp.isComplete());
+            assertArrayEquals(plain, Files.readAllBytes(part.toPath()));
+        } finally {
+            sealer.shutdown();
+        }
+    }
+
+    @Test
+    public void pipelinedStream_failsWhenSealingFails() throws Exception {
+        StreamHeader header = StreamHeader.create(SEGMENT, key.params);
+        File growing = new File(dir, "growing");
+        Files.write(growing.toPath(), header.toBytes());
+        ArtifactProgress progress = new ArtifactProgress(3);
+        try (SegmentStream stream = new SegmentStream(growing, header, header.ciphertextSize(3 * SEGMENT),
+                new BitSet(), progress)) {
+            progress.fail(new IOException("disk full"));
+            assertThrows(IOException.class, () -> stream.read(new byte[16], 0, 16));
+        }
+    }
+
+    @Test
+    public void forgedOffer_isRejected() throws Exception {
+        ControlMessage.Offer forged = new ControlMessage.Offer("00", offer.fileName,
+                offer.ciphertextSize, offer.contentHash, offer.header);
+        assertThrows(IOException.class, () -> TransferCheckpoint.fromOffer(forged));
+    }
+
+    @Test
+    public void expire_dropsOnlyAbandonedTransfers() throws Exception {
+        long now = System.currentTimeMillis();
+        long old = now - TransferCheckpoint.MAX_AGE_MILLIS - 60_000;
+        File staleCkpt = touch("stale" + TransferCheckpoint.SUFFIX, old);
+        File stalePart = touch("stale" + TransferCheckpoint.PART_SUFFIX, old);
+        File activeCkpt = touch("active" + TransferCheckpoint.SUFFIX, old);
+        File activePart = touch("active" + TransferCheckpoint.PART_SUFFIX, now);
+        File orphan = touch("swarm-ab" + TransferCheckpoint.PART_SUFFIX, old);
+        File fresh = touch("fresh" + TransferCheckpoint.PART_SUFFIX, now);
+
+        assertEquals(3, TransferCheckpoint.expire(dir, TransferCheckpoint.MAX_AGE_MILLIS, now));
+        assertFalse(staleCkpt.exists());
+        assertFalse(stalePart.exists());
+        assertFalse(orphan.exists());
+        assertTrue(activeCkpt.exists());
+        assertTrue(activePart.exists());
+        assertTrue(fresh.exists());
+        assertTrue(artifact.exists());
+    }
+
+    private File touch(String name, long modified) throws IOException {
+        File f = new File(dir, name);
+        Files.write(f.toPath(), new byte[1]);
+        assertTrue(f.setLastModified(modified));
+        return f;
+    }
+}
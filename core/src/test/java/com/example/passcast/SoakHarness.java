@@ -0,0 +1,756 @@
+package com.example.passcast;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Headless soak and load run of the broadcast protocol on one machine. One sender
+ * offers a set of files to many receivers over {@link LoopbackTransport}, every
+ * connection shaped by a {@link LinkProfile} with bandwidth, latency, loss and random
+ * drops. Receivers resume from their checkpoints after each drop, as the app does, and
+ * may write through slow storage so credit flow has to hold the sender back. Reports
+ * per-transfer throughput percentiles, the heap high-water mark and every file that
+ * didn't come out bit-exact.
+ *
+ * <p>Run with {@code ./gradlew :core:soak -Pscenario=crowd}. A scenario is a preset,
+ * optionally followed by overrides, e.g. {@code lossy,receivers=100,loss=0.1}; see
+ * {@link Scenario#set} for the settings. The protocol is driven as TransportTest drives
+ * it, without the password handshake, whose cost doesn't depend on the link.
+ */
+public final class SoakHarness {
+
+    private static final String SENDER = "soak-sender";
+    private static final long RECONNECT_MILLIS = 100;
+
+    /** What to run: the size of the broadcast and the shape of every link in it. */
+    static final class Scenario {
+
+        static final Map<String, String> PRESETS = new LinkedHashMap<>();
+
+        static {
+            PRESETS.put("smoke", "receivers=4,files=2,size=256k,segment=16k,bandwidth=2m,latency=2,"
+                    + "loss=0.02,drops=150,timeout=60");
+            PRESETS.put("crowd", "receivers=200,files=2,size=4m,bandwidth=2m,latency=20,loss=0.01,timeout=600");
+            PRESETS.put("lossy", "receivers=50,files=4,size=2m,bandwidth=1m,latency=50,loss=0.05,drops=5000,"
+                    + "timeout=600");
+            PRESETS.put("slow-storage", "receivers=50,files=2,size=8m,bandwidth=10m,latency=5,storage=500k,"
+                    + "slow=0.5,timeout=600");
+            PRESETS.put("soak", "receivers=300,files=3,size=2m,bandwidth=2m,latency=30,loss=0.02,drops=20000,"
+                    + "storage=1m,slow=0.2,timeout=1200");
+        }
+
+        String name = "custom";
+        int receivers = 10;
+        int files = 2;
+        long fileBytes = 1024 * 1024;
+        int segmentBytes = StreamHeader.DEFAULT_SEGMENT_SIZE;
+        long bytesPerSecond;
+        long latencyMillis;
+        double loss;
+        long dropMillis;
+        long storageBytesPerSecond;
+        // Share of receivers whose storage is slow, when storage is set
+        double slowShare = 1;
+        // 0 sends to everyone at once
+        int maxConcurrentSends;
+        long timeoutSeconds = 120;
+        long seed = 1;
+
+        static Scenario parse(String spec) {
+            Scenario s = new Scenario();
+            String[] parts = spec.split(",");
+            int first = 0;
+            if (!parts[0].contains("=")) {
+                String preset = PRESETS.get(parts[0].trim());
+                if (preset == null) {
+                    throw new IllegalArgumentException("Unknown scenario " + parts[0] + "; presets are "
+                            + PRESETS.keySet());
+                }
+                for (String setting : preset.split(",")) s.set(setting);
+                first = 1;
+            }
+            for (int i = first; i < parts.length; i++) s.set(parts[i]);
+            s.name = spec;
+            return s;
+        }
+
+        /**
+         * Applies one {@code key=value}: receivers, files, size, segment, bandwidth (per
+         * connection, bytes/s), latency (ms), loss (0..1), drops (mean ms between drops
+         * of a connection), storage (bytes/s), slow (share of receivers with that
+         * storage), sends (concurrent), timeout (s) or seed. Sizes take k, m or g.
+         */
+        void set(String setting) {
+            int eq = setting.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + setting);
+            String key = setting.substring(0, eq).trim();
+            String value = setting.substring(eq + 1).trim();
+            switch (key) {
+                case "receivers": receivers = Integer.parseInt(value); break;
+                case "files": files = Integer.parseInt(value); break;
+                case "size": fileBytes = size(value); break;
+                case "segment": segmentBytes = (int) size(value); break;
+                case "bandwidth": bytesPerSecond = size(value); break;
+                case "latency": latencyMillis = Long.parseLong(value); break;
+                case "loss": loss = Double.parseDouble(value); break;
+                case "drops": dropMillis = Long.parseLong(value); break;
+                case "storage": storageBytesPerSecond = size(value); break;
+                case "slow": slowShare = Double.parseDouble(value); break;
+                case "sends": maxConcurrentSends = Integer.parseInt(value); break;
+                case "timeout": timeoutSeconds = Long.parseLong(value); break;
+                case "seed": seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown setting " + key);
+            }
+        }
+
+        private static long size(String value) {
+            String v = value.toLowerCase(Locale.ROOT);
+            long unit = 1;
+            if (v.endsWith("k")) unit = 1024;
+            else if (v.endsWith("m")) unit = 1024 * 1024;
+            else if (v.endsWith("g")) unit = 1024 * 1024 * 1024;
+            if (unit != 1) v = v.substring(0, v.length() - 1);
+            return (long) (Double.parseDouble(v) * unit);
+        }
+
+        /** The sender's side of every connection, which carries the data. */
+        LinkProfile downlink() {
+            return new LinkProfile(bytesPerSecond, latencyMillis, loss, dropMillis);
+        }
+
+        /** The receivers' side, which only carries control messages. */
+        LinkProfile uplink() {
+            return new LinkProfile(0, latencyMillis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %d receivers x %d files of %s, link %s%s", name, receivers,
+                    files, megabytes(fileBytes), downlink(), storageBytesPerSecond > 0
+                            ? String.format(Locale.ROOT, ", %.0f%% on %s/s storage", slowShare * 100,
+                            megabytes(storageBytesPerSecond)) : "");
+        }
+    }
+
+    /** The outcome of one run. */
+    static final class Report {
+        final Scenario scenario;
+        final int expected;
+        final int completed;
+        final List<String> integrityFailures;
+        final int drops;
+        final int reconnects;
+        // Sorted ascending
+        final double[] megabytesPerSecond;
+        final long[] completionMillis;
+        final long bytesDelivered;
+        final long elapsedNanos;
+        final long heapHighWater;
+
+        Report(Scenario scenario, Stats stats, long elapsedNanos, long heapHighWater) {
+            this.scenario = scenario;
+            this.expected = scenario.receivers * scenario.files;
+            synchronized (stats) {
+                this.completed = stats.megabytesPerSecond.size();
+                this.integrityFailures = new ArrayList<>(stats.integrityFailures);
+                this.megabytesPerSecond = stats.megabytesPerSecond.stream().mapToDouble(Double::doubleValue)
+                        .sorted().toArray();
+                this.completionMillis = stats.completionMillis.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            this.drops = stats.drops.get();
+            this.reconnects = stats.reconnects.get();
+            this.bytesDelivered = stats.bytesDelivered.get();
+            this.elapsedNanos = elapsedNanos;
+            this.heapHighWater = heapHighWater;
+        }
+
+        int unfinished() {
+            return expected - completed - integrityFailures.size();
+        }
+
+        boolean passed() {
+            return integrityFailures.isEmpty() && unfinished() == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(scenario).append('\n');
+            sb.append(String.format(Locale.ROOT, "  transfers   %d/%d complete, %d unfinished, %d integrity failures%n",
+                    completed, expected, unfinished(), integrityFailures.size()));
+            sb.append(String.format(Locale.ROOT, "  links       %d drops, %d reconnects%n", drops, reconnects));
+            if (completed > 0) {
+                sb.append(String.format(Locale.ROOT, "  MB/s        min %.2f  p10 %.2f  p50 %.2f  p90 %.2f  max %.2f%n",
+                        megabytesPerSecond[0], percentile(megabytesPerSecond, 10),
+                        percentile(megabytesPerSecond, 50), percentile(megabytesPerSecond, 90),
+                        megabytesPerSecond[completed - 1]));
+                sb.append(String.format(Locale.ROOT, "  done in     p50 %d ms  p90 %d ms  p99 %d ms  max %d ms%n",
+                        percentile(completionMillis, 50), percentile(completionMillis, 90),
+                        percentile(completionMillis, 99), completionMillis[completed - 1]));
+            }
+            sb.append(String.format(Locale.ROOT, "  aggregate   %s in %.1f s, %.2f MB/s%n", megabytes(bytesDelivered),
+                    elapsedNanos / 1e9, bytesDelivered / 1e6 / Math.max(1e-9, elapsedNanos / 1e9)));
+            sb.append(String.format(Locale.ROOT, "  heap        %s high-water%n", megabytes(heapHighWater)));
+            for (String failure : integrityFailures) sb.append("  FAILED      ").append(failure).append('\n');
+            return sb.toString();
+        }
+    }
+
+    /** Nearest-rank percentile of sorted values. */
+    static double percentile(double[] sorted, int p) {
+        return sorted[rank(sorted.length, p)];
+    }
+
+    static long percentile(long[] sorted, int p) {
+        return sorted[rank(sorted.length, p)];
+    }
+
+    private static int rank(int n, int p) {
+        return Math.max(0, Math.min(n - 1, (int) Math.ceil(p / 100.0 * n) - 1));
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / 1048576.0);
+    }
+
+    /** Counters shared by every receiver; the lists are guarded by the instance. */
+    private static final class Stats {
+        final List<Double> megabytesPerSecond = new ArrayList<>();
+        final List<Long> completionMillis = new ArrayList<>();
+        final List<String> integrityFailures = new ArrayList<>();
+        final AtomicInteger drops = new AtomicInteger();
+        final AtomicInteger reconnects = new AtomicInteger();
+        final AtomicLong bytesDelivered = new AtomicLong();
+
+        synchronized void completed(long bytes, long nanos) {
+            megabytesPerSecond.add(bytes / 1e6 / Math.max(1e-9, nanos / 1e9));
+            completionMillis.add(nanos / 1_000_000);
+            bytesDelivered.addAndGet(bytes);
+        }
+
+        synchronized void failed(String what) {
+            integrityFailures.add(what);
+        }
+    }
+
+    /** Samples heap use in the background; the heap is where buffered segments would pile up. */
+    private static final class MemoryWatch implements Runnable {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final Thread thread = new Thread(this, "soak-memory");
+        private volatile boolean running = true;
+        private volatile long highWater;
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                highWater = Math.max(highWater, memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            return Math.max(highWater, memory.getHeapMemoryUsage().getUsed());
+        }
+    }
+
+    /**
+     * Seals every file once and streams it to each receiver that resumes it, through
+     * a {@link BroadcastScheduler} and a credit gate per stream. Sends are keyed
+     * "endpoint/transferId". State is touched only on the transport's callback thread.
+     */
+    private static final class Sender implements Transport.Listener {
+        final LoopbackTransport transport;
+        final PasswordKey key;
+        final List<ControlMessage.Offer> offers = new ArrayList<>();
+        private final Map<String, File> artifacts = new HashMap<>();
+        private final int segmentBytes;
+        private final BroadcastScheduler scheduler;
+        private final Map<String, ControlMessage.Resume> queued = new HashMap<>();
+        private final Map<Long, String> sending = new HashMap<>();
+        private final Map<Long, CreditFlow.Gate> gates = new HashMap<>();
+
+        Sender(Scenario s, LoopbackTransport transport, File dir) throws IOException, GeneralSecurityException {
+            this.transport = transport;
+            this.segmentBytes = s.segmentBytes;
+            Random random = new Random(s.seed);
+            byte[] raw = new byte[16];
+            random.nextBytes(raw);
+            key = TestKeys.key(raw);
+            byte[] chunk = new byte[64 * 1024];
+            for (int i = 0; i < s.files; i++) {
+                File plain = new File(dir, "file" + i);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(plain))) {
+                    for (long left = s.fileBytes; left > 0; left -= chunk.length) {
+                        random.nextBytes(chunk);
+                        out.write(chunk, 0, (int) Math.min(chunk.length, left));
+                    }
+                }
+                File artifact = new File(dir, "file" + i + ".sealed");
+                try (InputStream in = new FileInputStream(plain);
+                     OutputStream out = new BufferedOutputStream(new FileOutputStream(artifact))) {
+                    StreamingAead.encrypt(key, in, out, s.segmentBytes);
+                }
+                byte[] hash;
+                try (InputStream in = new FileInputStream(plain)) {
+                    hash = ContentHash.of(in);
+                }
+                byte[] header;
+                try (InputStream in = new FileInputStream(artifact)) {
+                    header = StreamHeader.read(in).toBytes();
+                }
+                plain.delete();
+                String transferId = TransferCheckpoint.transferId(hash, header);
+                offers.add(new ControlMessage.Offer(transferId, plain.getName(), artifact.length(), hash, header));
+                artifacts.put(transferId, artifact);
+            }
+            int maxConcurrent = s.maxConcurrentSends > 0 ? s.maxConcurrentSends : s.receivers * s.files;
+            scheduler = new BroadcastScheduler(maxConcurrent, this::start);
+        }
+
+        void advertise() throws Exception {
+            transport.startAdvertising(SENDER, this).get();
+        }
+
+        @Override
+        public void onConnected(String endpointId) {
+            for (ControlMessage.Offer offer : offers) transport.send(endpointId, transport.bytes(offer.toBytes()));
+        }
+
+        @Override
+        public void onConnectionFailed(String endpointId, String reason) {}
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            String prefix = endpointId + "/";
+            for (Iterator<String> it = queued.keySet().iterator(); it.hasNext(); ) {
+                String send = it.next();
+                if (!send.startsWith(prefix)) continue;
+                it.remove();
+                scheduler.remove(send);
+            }
+            for (Long payloadId : new ArrayList<>(sending.keySet())) {
+                if (sending.get(payloadId).startsWith(prefix)) finished(payloadId, false);
+            }
+        }
+
+        @Override
+        public void onPayloadReceived(String endpointId, Transport.Payload payload) {
+            if (payload.getType() != Transport.Payload.BYTES) return;
+            ControlMessage msg;
+            try {
+                msg = ControlMessage.parse(payload.asBytes());
+            } catch (IOException e) {
+                return;
+            }
+            if (msg instanceof ControlMessage.Resume) {
+                ControlMessage.Resume resume = (ControlMessage.Resume) msg;
+                File artifact = artifacts.get(resume.transferId);
+                if (artifact == null) return;
+                String send = endpointId + "/" + resume.transferId;
+                queued.put(send, resume);
+                scheduler.enqueue(send, artifact.length(), resume.verified.isEmpty()
+                        ? BroadcastScheduler.PRIORITY_NORMAL : BroadcastScheduler.PRIORITY_RESUME);
+            } else if (msg instanceof ControlMessage.Credit) {
+                ControlMessage.Credit credit = (ControlMessage.Credit) msg;
+                CreditFlow.Gate gate = gates.get(credit.payloadId);
+                if (gate != null) gate.grant(credit.through);
+            }
+        }
+
+        private void start(String send) {
+            ControlMessage.Resume resume = queued.remove(send);
+            if (resume == null) {
+                scheduler.onComplete(send, false);
+                return;
+            }
+            String endpointId = send.substring(0, send.indexOf('/'));
+            try {
+                SegmentStream segments = new SegmentStream(artifacts.get(resume.transferId), resume.verified);
+                CreditFlow.Gate gate = new CreditFlow.Gate(resume.window > 0 ? resume.window
+                        : CreditFlow.initialWindow(segmentBytes));
+                Transport.Payload data = transport.stream(segments.gated(gate));
+                gates.put(data.getId(), gate);
+                sending.put(data.getId(), send);
+                transport.send(endpointId, transport.bytes(
+                        new ControlMessage.Bind(resume.transferId, data.getId()).toBytes()));
+                transport.send(endpointId, data);
+            } catch (IOException e) {
+                scheduler.onComplete(send, false);
+            }
+        }
+
+        private void finished(long payloadId, boolean success) {
+            String send = sending.remove(payloadId);
+            CreditFlow.Gate gate = gates.remove(payloadId);
+            if (gate != null) gate.close();
+            if (send != null) scheduler.onComplete(send, success);
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, long payloadId, int status, long bytesTransferred,
+                                     long totalBytes) {
+            if (status == Transport.STATUS_IN_PROGRESS) {
+                String send = sending.get(payloadId);
+                if (send != null) scheduler.onProgress(send, bytesTransferred);
+            } else {
+                finished(payloadId, status == Transport.STATUS_SUCCESS);
+            }
+        }
+    }
+
+    /** One receiver's view of one offered file. Guarded by its {@link Receiver}. */
+    private static final class Transfer {
+        final ControlMessage.Offer offer;
+        final TransferCheckpoint checkpoint;
+        final File part;
+        final File checkpointFile;
+        long firstAskedAt;
+        // A stream is being written; a fresh offer waits for it to end
+        boolean busy;
+        boolean resumeWanted;
+        boolean finished;
+
+        Transfer(ControlMessage.Offer offer, File dir) throws IOException {
+            this.offer = offer;
+            this.checkpoint = TransferCheckpoint.fromOffer(offer);
+            this.part = new File(dir, offer.fileName + ".part");
+            this.checkpointFile = new File(dir, offer.fileName + ".ckpt");
+        }
+    }
+
+    /**
+     * Finds the sender, resumes every offered file and writes the streams through a
+     * {@link SegmentReceiver} on a worker, granting credit as it goes. Reconnects after
+     * every drop until it holds all the files.
+     */
+    private final class Receiver implements Transport.Listener, Transport.DiscoveryListener {
+        final String name;
+        final LoopbackTransport transport;
+        final File dir;
+        final SecretKey key;
+        // 0 for storage that keeps up with anything
+        final long storageBytesPerSecond;
+        final CountDownLatch done;
+        private final Map<String, Transfer> transfers = new HashMap<>();
+        private final Map<Long, Transfer> bound = new HashMap<>();
+        private final Map<Long, Transport.Payload> unbound = new HashMap<>();
+        private String senderId;
+        private boolean connected;
+        private volatile boolean stopped;
+
+        Receiver(int index, LoopbackTransport transport, SecretKey key, long storageBytesPerSecond) {
+            this.name = "receiver" + index;
+            this.transport = transport;
+            this.dir = new File(root, name);
+            this.key = key;
+            this.storageBytesPerSecond = storageBytesPerSecond;
+            this.done = new CountDownLatch(scenario.files);
+            dir.mkdirs();
+        }
+
+        void start() {
+            transport.startDiscovery(this);
+        }
+
+        void stop() {
+            stopped = true;
+            transport.stopAll();
+        }
+
+        @Override
+        public synchronized void onEndpointFound(String endpointId, String endpointName) {
+            if (senderId != null || !SENDER.equals(endpointName)) return;
+            senderId = endpointId;
+            transport.stopDiscovery();
+            transport.requestConnection(name, senderId, this);
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {}
+
+        private void reconnect() {
+            if (stopped || done.getCount() == 0) return;
+            stats.reconnects.incrementAndGet();
+            transport.requestConnection(name, senderId, this);
+        }
+
+        @Override
+        public synchronized void onConnected(String endpointId) {
+            connected = true;
+        }
+
+        @Override
+        public void onConnectionFailed(String endpointId, String reason) {
+            timer.schedule(this::reconnect, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void onDisconnected(String endpointId) {
+            connected = false;
+            unbound.clear();
+            bound.clear();
+            if (stopped || done.getCount() == 0) return;
+            stats.drops.incrementAndGet();
+            timer.schedule(this::reconnect, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void onPayloadReceived(String endpointId, Transport.Payload payload) {
+            if (payload.getType() == Transport.Payload.STREAM) {
+                Transfer t = bound.remove(payload.getId());
+                if (t != null) receive(t, payload);
+                else unbound.put(payload.getId(), payload);
+                return;
+            }
+            if (payload.getType() != Transport.Payload.BYTES) return;
+            try {
+                ControlMessage msg = ControlMessage.parse(payload.asBytes());
+                if (msg instanceof ControlMessage.Offer) {
+                    ControlMessage.Offer offer = (ControlMessage.Offer) msg;
+                    Transfer t = transfers.get(offer.transferId);
+                    if (t == null) {
+                        t = new Transfer(offer, dir);
+                        transfers.put(offer.transferId, t);
+                    }
+                    if (t.finished) return;
+                    if (t.busy) t.resumeWanted = true;
+                    else ask(t);
+                } else if (msg instanceof ControlMessage.Bind) {
+                    ControlMessage.Bind bind = (ControlMessage.Bind) msg;
+                    Transfer t = transfers.get(bind.transferId);
+                    if (t == null) return;
+                    Transport.Payload waiting = unbound.remove(bind.payloadId);
+                    if (waiting != null) receive(t, waiting);
+                    else bound.put(bind.payloadId, t);
+                }
+            } catch (IOException ignored) {
+                // Not a message of this protocol
+            }
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, long payloadId, int status, long bytesTransferred,
+                                     long totalBytes) {}
+
+        private void ask(Transfer t) {
+            if (!connected) return;
+            if (t.firstAskedAt == 0) t.firstAskedAt = System.nanoTime();
+            int window = CreditFlow.initialWindow(t.checkpoint.header.getSegmentSize());
+            transport.send(senderId, transport.bytes(
+                    new ControlMessage.Resume(t.offer.transferId, t.checkpoint.verified(), window).toBytes()));
+        }
+
+        private void receive(Transfer t, Transport.Payload payload) {
+            t.busy = true;
+            String sender = senderId;
+            workers.execute(() -> {
+                boolean finished = false;
+                try (RandomAccessFile out = new RandomAccessFile(t.part, "rw")) {
+                    CreditFlow.Window window = new CreditFlow.Window(t.checkpoint.header.getSegmentSize(),
+                            2 * scenario.latencyMillis * 1_000_000, through -> transport.send(sender,
+                            transport.bytes(new ControlMessage.Credit(payload.getId(), through).toBytes())));
+                    InputStream frames = storageBytesPerSecond > 0
+                            ? new SlowStorage(payload.asStream(), storageBytesPerSecond) : payload.asStream();
+                    new SegmentReceiver(t.checkpoint, t.checkpointFile, out.getChannel(), key).receive(frames, window);
+                    if (t.checkpoint.isComplete()) {
+                        out.setLength(t.checkpoint.plaintextSize());
+                        finished = true;
+                        if (matches(t.part, t.offer.contentHash)) {
+                            stats.completed(t.checkpoint.plaintextSize(), System.nanoTime() - t.firstAskedAt);
+                        } else {
+                            stats.failed(name + "/" + t.offer.fileName + ": content hash mismatch");
+                        }
+                    }
+                } catch (GeneralSecurityException e) {
+                    finished = true;
+                    stats.failed(name + "/" + t.offer.fileName + ": " + e);
+                } catch (IOException e) {
+                    // The link dropped; the checkpoint is saved and the next offer resumes it
+                }
+                synchronized (this) {
+                    t.busy = false;
+                    if (finished) {
+                        t.finished = true;
+                        done.countDown();
+                        if (done.getCount() == 0 && connected) transport.disconnect(senderId);
+                    } else if (t.resumeWanted) {
+                        t.resumeWanted = false;
+                        ask(t);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Storage that writes at most {@code bytesPerSecond}. Reading the stream at that
+     * pace stands in for writing at it: either way the receiver drains no faster.
+     */
+    private static final class SlowStorage extends FilterInputStream {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long read;
+
+        SlowStorage(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n <= 0) return n;
+            read += n;
+            long dueNanos = read * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - start);
+            if (dueNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(dueNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted writing");
+                }
+            }
+            return n;
+        }
+    }
+
+    private static boolean matches(File file, byte[] contentHash) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return MessageDigest.isEqual(ContentHash.of(in), contentHash);
+        }
+    }
+
+    private final Scenario scenario;
+    private final File root;
+    private final Stats stats = new Stats();
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "soak-receive");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "soak-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private SoakHarness(Scenario scenario, File root) {
+        this.scenario = scenario;
+        this.root = root;
+    }
+
+    /** Runs one scenario with its files under {@code dir}, which the caller cleans up. */
+    static Report run(Scenario scenario, File dir) throws Exception {
+        return new SoakHarness(scenario, dir).run();
+    }
+
+    private Report run() throws Exception {
+        MemoryWatch memory = new MemoryWatch();
+        memory.start();
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        Sender sender = new Sender(scenario, new LoopbackTransport(network, scenario.downlink(), root), root);
+        List<Receiver> receivers = new ArrayList<>();
+        int slow = scenario.storageBytesPerSecond > 0 ? (int) Math.round(scenario.receivers * scenario.slowShare) : 0;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < scenario.receivers; i++) order.add(i);
+        // Which receivers get slow storage is random but repeatable
+        Collections.shuffle(order, new Random(scenario.seed));
+        for (int i = 0; i < scenario.receivers; i++) {
+            receivers.add(new Receiver(i, new LoopbackTransport(network, scenario.uplink(), root), sender.key.key,
+                    order.get(i) < slow ? scenario.storageBytesPerSecond : 0));
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(scenario.timeoutSeconds);
+        long elapsed;
+        try {
+            sender.advertise();
+            for (Receiver r : receivers) r.start();
+            for (Receiver r : receivers) r.done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            elapsed = System.nanoTime() - start;
+        } finally {
+            for (Receiver r : receivers) r.stop();
+            sender.transport.stopAll();
+            timer.shutdownNow();
+            workers.shutdownNow();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        return new Report(scenario, stats, elapsed, memory.stop());
+    }
+
+    /** Runs each scenario given, or the "crowd" preset; exits non-zero if any failed. */
+    public static void main(String[] args) throws Exception {
+        List<String> specs = args.length == 0 ? List.of("crowd") : Arrays.asList(args);
+        boolean passed = true;
+        for (String spec : specs) {
+            Scenario scenario = Scenario.parse(spec);
+            System.out.println("Running " + spec + "...");
+            File dir = Files.createTempDirectory("soak").toFile();
+            try {
+                Report report = run(scenario, dir);
+                System.out.print(report);
+                passed &= report.passed();
+            } finally {
+                delete(dir);
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
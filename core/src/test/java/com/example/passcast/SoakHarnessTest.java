@@ -0,0 +1,38 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class SoakHarnessTest {
+
+    @Test
+    public void scenario_presetWithOverrides() {
+        SoakHarness.Scenario s = SoakHarness.Scenario.parse("lossy,receivers=7,size=1.5m");
+        assertEquals(7, s.receivers);
+        assertEquals(1536 * 1024, s.fileBytes);
+        assertEquals(0.05, s.loss, 1e-9);
+        assertEquals(5000, s.dropMillis);
+        assertThrows(IllegalArgumentException.class, () -> SoakHarness.Scenario.parse("nope"));
+        assertThrows(IllegalArgumentException.class, () -> SoakHarness.Scenario.parse("smoke,colour=red"));
+        assertEquals(100, SoakHarness.percentile(new long[]{10, 20, 100}, 90));
+        assertEquals(20, SoakHarness.percentile(new long[]{10, 20, 100}, 50));
+    }
+
+    @Test
+    public void smoke_everyFileArrivesIntact_acrossLossAndDrops() throws Exception {
+        File dir = Files.createTempDirectory("soak").toFile();
+        try {
+            SoakHarness.Report report = SoakHarness.run(SoakHarness.Scenario.parse("smoke"), dir);
+            assertTrue(report.toString(), report.passed());
+            assertEquals(report.expected, report.completed);
+            assertTrue(report.toString(), report.drops > 0);
+            assertTrue(report.heapHighWater > 0);
+        } finally {
+            SoakHarness.delete(dir);
+        }
+    }
+}
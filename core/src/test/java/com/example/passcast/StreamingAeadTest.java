@@ -0,0 +1,133 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class StreamingAeadTest {
+
+    private static final int SEGMENT = 1024;
+    private static final int SEALED = SEGMENT + SegmentCipher.TAG_LENGTH;
+
+    private final PasswordKey key = TestKeys.zeroKey();
+
+    private static byte[] random(int len) {
+        byte[] b = new byte[len];
+        new Random(len).nextBytes(b);
+        return b;
+    }
+
+    private byte[] encrypt(byte[] plain) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingAead.encrypt(key, new ByteArrayInputStream(plain), out, SEGMENT);
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] sealed) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingAead.decrypt(key.key, new ByteArrayInputStream(sealed), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTrip_variousSizes() throws Exception {
+        int[] sizes = {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, 5 * SEGMENT + 17};
+        for (int size : sizes) {
+            byte[] plain = random(size);
+            byte[] sealed = encrypt(plain);
+            StreamHeader header = StreamHeader.parse(sealed);
+            assertEquals(header.ciphertextSize(size), sealed.length);
+            assertEquals(size, header.plaintextSize(sealed.length));
+            assertArrayEquals(plain, decrypt(sealed));
+        }
+    }
+
+    @Test
+    public void truncatedAtSegmentBoundary_isRejected() throws Exception {
+        byte[] sealed = encrypt(random(3 * SEGMENT + 10));
+        byte[] cut = Arrays.copyOf(sealed, StreamHeader.LENGTH + 2 * SEALED);
+        assertThrows(IOException.class, () -> decrypt(cut));
+    }
+
+    @Test
+    public void truncatedMidSegment_isRejected() throws Exception {
+        byte[] sealed = encrypt(random(3 * SEGMENT));
+        byte[] cut = Arrays.copyOf(sealed, sealed.length - 5);
+        assertThrows(GeneralSecurityException.class, () -> decrypt(cut));
+    }
+
+    @Test
+    public void truncatedHeader_isRejected() throws Exception {
+        byte[] sealed = encrypt(random(10));
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(sealed, 5)));
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(sealed, StreamHeader.LENGTH)));
+    }
+
+    @Test
+    public void reorderedSegments_areRejected() throws Exception {
+        byte[] sealed = encrypt(random(3 * SEGMENT + 10));
+        byte[] swapped = sealed.clone();
+        int a = StreamHeader.LENGTH;
+        int b = StreamHeader.LENGTH + SEALED;
+        System.arraycopy(sealed, a, swapped, b, SEALED);
+        System.arraycopy(sealed, b, swapped, a, SEALED);
+        assertThrows(AEADBadTagException.class, () -> decrypt(swapped));
+    }
+
+    @Test
+    public void appendedSegment_isRejected() throws Exception {
+        byte[] sealed = encrypt(random(2 * SEGMENT));
+        byte[] extended = Arrays.copyOf(sealed, sealed.length + SEALED);
+        System.arraycopy(sealed, StreamHeader.LENGTH, extended, sealed.length, SEALED);
+        assertThrows(GeneralSecurityException.class, () -> decrypt(extended));
+    }
+
+    @Test
+    public void tamperedCiphertext_isRejected() throws Exception {
+        byte[] sealed = encrypt(random(2 * SEGMENT + 3));
+        sealed[StreamHeader.LENGTH + SEALED + 7] ^= 1;
+        byte[] tampered = sealed;
+        assertThrows(AEADBadTagException.class, () -> decrypt(tampered));
+    }
+
+    @Test
+    public void tamperedHeader_isRejected() throws Exception {
+        byte[] sealed = encrypt(random(100));
+        sealed[StreamHeader.LENGTH - 1] ^= 1; // cipher suite
+        byte[] tampered = sealed;
+        assertThrows(AEADBadTagException.class, () -> decrypt(tampered));
+    }
+
+    @Test
+    public void wrongKey_isRejected() throws Exception {
+        byte[] sealed = encrypt(random(100));
+        SecretKey other = new SecretKeySpec(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+        assertThrows(AEADBadTagException.class,
+                () -> StreamingAead.decrypt(other, new ByteArrayInputStream(sealed), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void decrypt_writesOnlyVerifiedSegments() throws Exception {
+        byte[] plain = random(3 * SEGMENT);
+        byte[] sealed = encrypt(plain);
+        sealed[StreamHeader.LENGTH + 2 * SEALED + 1] ^= 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            StreamingAead.decrypt(key.key, new ByteArrayInputStream(sealed), out);
+            fail("tampered segment accepted");
+        } catch (AEADBadTagException expected) {
+            assertArrayEquals(Arrays.copyOf(plain, 2 * SEGMENT), out.toByteArray());
+        }
+    }
+}
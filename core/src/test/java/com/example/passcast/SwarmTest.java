@@ -0,0 +1,134 @@
+package com.example.passcast;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SwarmTest {
+
+    private static final int SEGMENT = 1024;
+    private static final long MS = 1_000_000L;
+
+    private File dir;
+    private byte[] plain;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("swarm").toFile();
+        plain = new byte[40 * SEGMENT + 300];
+        new Random(11).nextBytes(plain);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    /** The file as one sender would seal and offer it, under its own salt and key. */
+    private TransferCheckpoint seal(String name, PasswordKey key) throws Exception {
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        StreamingAead.encrypt(key, new ByteArrayInputStream(plain), sealed, SEGMENT);
+        File artifact = new File(dir, name);
+        Files.write(artifact.toPath(), sealed.toByteArray());
+        byte[] hash = ContentHash.of(new ByteArrayInputStream(plain));
+        byte[] header = StreamHeader.parse(sealed.toByteArray()).toBytes();
+        return TransferCheckpoint.fromOffer(new ControlMessage.Offer(TransferCheckpoint.transferId(hash, header),
+                "file.bin", artifact.length(), hash, header));
+    }
+
+    private static PasswordKey key(int seed) {
+        byte[] raw = new byte[16];
+        new Random(seed).nextBytes(raw);
+        return TestKeys.key(raw);
+    }
+
+    @Test
+    public void stitchesDisjointBatchesFromDifferentlySealedCopies() throws Exception {
+        PasswordKey keyA = key(1);
+        PasswordKey keyB = key(2);
+        TransferCheckpoint a = seal("a", keyA);
+        TransferCheckpoint b = seal("b", keyB);
+        assertNotEquals(a.transferId, b.transferId);
+
+        try (RandomAccessFile out = new RandomAccessFile(new File(dir, "out"), "rw")) {
+            SwarmDownload swarm = new SwarmDownload(a, out.getChannel());
+            assertTrue(swarm.accepts(b));
+            SwarmPlanner planner = swarm.planner();
+            planner.addPeer("A", null);
+            planner.addPeer("B", null);
+
+            for (int round = 0; !planner.isComplete(); round++) {
+                BitSet forA = planner.next("A");
+                BitSet forB = planner.next("B");
+                if (round == 0) assertFalse(forA.intersects(forB));
+
+                // Each sender streams only its batch, exactly as it answers a Resume
+                swarm.receive("A", a, keyA.key, new SegmentStream(new File(dir, "a"), planner.skipAllBut(forA)));
+                planner.finished("A");
+                swarm.receive("B", b, keyB.key, new SegmentStream(new File(dir, "b"), planner.skipAllBut(forB)));
+                planner.finished("B");
+            }
+            assertTrue(swarm.claimFinish());
+            assertFalse(swarm.claimFinish());
+            assertTrue(swarm.verify());
+            out.setLength(swarm.getPlaintextSize());
+        }
+        assertArrayEquals(plain, Files.readAllBytes(new File(dir, "out").toPath()));
+    }
+
+    @Test
+    public void rarestFirst_fastPeersGetBiggerBatches_andLostWorkIsReassigned() {
+        long[] now = {0};
+        SwarmPlanner planner = new SwarmPlanner(1000, SEGMENT, () -> now[0]);
+        BitSet partial = new BitSet();
+        partial.set(500, 1000);
+        planner.addPeer("full", null);
+        planner.addPeer("half", partial);
+
+        // Segments only "full" holds are the rarest, so it starts on those
+        BitSet first = planner.next("full");
+        assertEquals(SwarmPlanner.MIN_BATCH * 2, first.cardinality());
+        assertTrue(first.nextSetBit(0) < 500);
+        assertTrue(planner.next("half").nextSetBit(0) >= 500);
+
+        // "full" delivers its batch in 1 ms, "half" drops out without delivering
+        for (int i = first.nextSetBit(0); i >= 0; i = first.nextSetBit(i + 1)) assertTrue(planner.received("full", i));
+        now[0] = MS;
+        planner.finished("full");
+        planner.removePeer("half");
+
+        BitSet second = planner.next("full");
+        assertEquals(SwarmPlanner.MAX_BATCH, second.cardinality());
+        assertTrue(planner.bytesPerSecond("full") > 0);
+        assertFalse(planner.received("full", first.nextSetBit(0)));
+    }
+
+    @Test
+    public void endgame_idlePeerRacesTheSlowOne() {
+        SwarmPlanner planner = new SwarmPlanner(6, SEGMENT);
+        planner.addPeer("slow", null);
+        planner.addPeer("fast", null);
+        BitSet slow = planner.next("slow");
+        assertEquals(6, slow.cardinality());
+
+        // Nothing unassigned is left, so the idle peer doubles up on what is outstanding
+        BitSet fast = planner.next("fast");
+        assertEquals(slow, fast);
+        for (int i = 0; i < 6; i++) planner.received("fast", i);
+        assertTrue(planner.isComplete());
+        assertFalse(planner.received("slow", 0));
+        planner.finished("slow");
+        assertTrue(planner.next("slow").isEmpty());
+    }
+}
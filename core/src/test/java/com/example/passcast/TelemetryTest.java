@@ -0,0 +1,157 @@
+package com.example.passcast;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TelemetryTest {
+
+    private long now;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("telemetry").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void metrics_timeStagesAndLinkRate() {
+        TransferMetrics m = new TransferMetrics("t1", TransferMetrics.RECEIVE, "ep", () -> now)
+                .describe("a.bin", 4_000_000);
+        m.connected(0);
+        m.upgraded(1500 * MS);
+        m.bandwidth(Transport.QUALITY_HIGH);
+        m.begin(TransferMetrics.Stage.TRANSFER);
+        now = 2000 * MS;
+        m.progress(0);
+        now = 3000 * MS;
+        m.progress(1_000_000);
+        now = 4000 * MS;
+        m.progress(4_000_000);
+        m.end(TransferMetrics.Stage.TRANSFER, 4_000_000);
+        m.begin(TransferMetrics.Stage.DECRYPT);
+        now = 4500 * MS;
+        m.end(TransferMetrics.Stage.DECRYPT, 4_000_000);
+        m.begin(TransferMetrics.Stage.SAVE);
+        now = 4600 * MS;
+        assertTrue(m.finish("ok"));
+        assertFalse(m.finish("failed"));
+
+        assertEquals(4000 * MS, m.stageNanos(TransferMetrics.Stage.TRANSFER));
+        assertEquals(500 * MS, m.stageNanos(TransferMetrics.Stage.DECRYPT));
+        // A stage still open at the end is closed by finish
+        assertEquals(100 * MS, m.stageNanos(TransferMetrics.Stage.SAVE));
+        assertEquals(TransferMetrics.Stage.TRANSFER, m.bottleneck());
+        assertEquals(2_000_000, m.averageBytesPerSecond(), 1);
+        assertEquals(3_000_000, m.peakBytesPerSecond(), 1);
+
+        String json = m.toJson();
+        assertTrue(json, json.contains("\"outcome\":\"ok\""));
+        assertTrue(json, json.contains("\"upgradeMs\":1500"));
+        assertTrue(json, json.contains("\"bandwidth\":\"high\""));
+        assertTrue(json, json.contains("\"firstByteMs\":2000"));
+        assertTrue(json, json.contains("\"decrypt\":{\"ms\":500,\"bytes\":4000000,\"runs\":1,\"bytesPerSecond\":8000000}"));
+    }
+
+    @Test
+    public void metrics_carryPrepStagesAndRetries() {
+        TransferMetrics prep = new TransferMetrics(null, TransferMetrics.SEND, null, () -> now);
+        prep.record(TransferMetrics.Stage.KDF, 300 * MS, 0);
+        prep.begin(TransferMetrics.Stage.ENCRYPT);
+        now = 700 * MS;
+        prep.end(TransferMetrics.Stage.ENCRYPT, 1000);
+
+        TransferMetrics send = new TransferMetrics("t", TransferMetrics.SEND, "ep", () -> now);
+        send.resumed(2, 5);
+        send.addStages(prep);
+        send.addStages(new TransferMetrics(null, TransferMetrics.SEND, null, () -> now));
+        send.finish("ok");
+
+        assertEquals(300 * MS, send.stageNanos(TransferMetrics.Stage.KDF));
+        assertEquals(700 * MS, send.stageNanos(TransferMetrics.Stage.ENCRYPT));
+        assertEquals(2, send.getRetries());
+        assertTrue(send.toJson().contains("\"resumedSegments\":5"));
+    }
+
+    @Test
+    public void metrics_escapeStrings() {
+        TransferMetrics m = new TransferMetrics("t", TransferMetrics.SEND, "ep", () -> now)
+                .describe("a \"b\"\\c\n.txt", 1);
+        assertTrue(m.toJson().contains("\"fileName\":\"a \\\"b\\\"\\\\c\\n.txt\""));
+    }
+
+    @Test
+    public void liveProgress_throttlesAndEstimates() {
+        LiveProgress live = new LiveProgress(250, () -> now);
+        assertNotNull(live.update(0, 10_000_000));
+        int emitted = 0;
+        for (int i = 1; i <= 100; i++) {
+            now = i * 10 * MS;
+            if (live.update(i * 10_000L, 10_000_000) != null) emitted++;
+        }
+        // A second of updates every 10 ms, shown at most every 250 ms
+        assertEquals(4, emitted);
+
+        now = 1250 * MS;
+        LiveProgress.Snapshot s = live.update(1_250_000, 10_000_000);
+        assertNotNull(s);
+        assertEquals(12, s.percent());
+        assertEquals(1_000_000, s.bytesPerSecond, 1);
+        assertEquals(9, s.etaSeconds());
+
+        // Completion always gets through
+        now += MS;
+        assertNotNull(live.update(10_000_000, 10_000_000));
+    }
+
+    @Test
+    public void liveProgress_unknownTotal() {
+        LiveProgress live = new LiveProgress(250, () -> now);
+        live.update(0, -1);
+        now = 500 * MS;
+        LiveProgress.Snapshot s = live.update(1_000_000, -1);
+        assertEquals(-1, s.percent());
+        assertEquals(-1, s.etaSeconds());
+        assertEquals(2_000_000, s.bytesPerSecond, 1);
+    }
+
+    @Test
+    public void log_rotatesAndExportsOneDocument() throws IOException {
+        TelemetryLog log = new TelemetryLog(dir, 300);
+        for (int i = 0; i < 5; i++) {
+            TransferMetrics m = new TransferMetrics("t" + i, TransferMetrics.SEND, "ep", () -> now);
+            m.finish("ok");
+            log.append(m);
+        }
+        // Torn line from a crash mid-append
+        Files.write(new File(dir, "transfers.jsonl").toPath(), "{\"transferId\":\"x".getBytes(StandardCharsets.UTF_8),
+                java.nio.file.StandardOpenOption.APPEND);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int count = log.export(Collections.singletonMap("model", "Pixel \"7\""), out);
+        String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+        assertTrue(count > 0 && count < 5);
+        assertTrue(json, json.startsWith("{\"device\":{\"model\":\"Pixel \\\"7\\\"\"},\"transfers\":[{"));
+        assertTrue(json, json.trim().endsWith("}]}"));
+        assertTrue(json, json.contains("\"transferId\":\"t4\""));
+        assertFalse(json, json.contains("\"transferId\":\"x"));
+    }
+}
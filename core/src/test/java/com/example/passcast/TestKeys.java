@@ -0,0 +1,18 @@
+package com.example.passcast;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/** Keys for tests, without deriving them: headers still carry params a receiver would accept. */
+final class TestKeys {
+
+    private TestKeys() {}
+
+    /** An all-zero AES-128 key. */
+    static PasswordKey zeroKey() {
+        return key(new byte[16]);
+    }
+
+    static PasswordKey key(byte[] raw) {
+        return new PasswordKey(KdfParams.generate(PasswordKdf.MIN_ITERATIONS), new SecretKeySpec(raw, "AES"));
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.passcast;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransportTest {
+
+    private static final long TIMEOUT_S = 10;
+
+    private final PasswordKey key = TestKeys.zeroKey();
+    private File dir;
+    private Transport a;
+    private Transport b;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("transport").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (a != null) a.stopAll();
+        if (b != null) b.stopAll();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private static byte[] random(int len) {
+        byte[] bytes = new byte[len];
+        new Random(len).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Records every callback so tests can wait for them in order. */
+    private static final class Events implements Transport.Listener, Transport.DiscoveryListener {
+        final BlockingQueue<String> connections = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> found = new LinkedBlockingQueue<>();
+        final BlockingQueue<Transport.Payload> payloads = new LinkedBlockingQueue<>();
+        final BlockingQueue<long[]> finished = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onConnected(String endpointId) {
+            connections.add("connected " + endpointId);
+        }
+
+        @Override
+        public void onConnectionFailed(String endpointId, String reason) {
+            connections.add("failed " + endpointId);
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            connections.add("disconnected " + endpointId);
+        }
+
+        @Override
+        public void onPayloadReceived(String endpointId, Transport.Payload payload) {
+            payloads.add(payload);
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, long payloadId, int status, long bytes, long total) {
+            if (status != Transport.STATUS_IN_PROGRESS) finished.add(new long[]{payloadId, status, bytes});
+        }
+
+        @Override
+        public void onEndpointFound(String endpointId, String name) {
+            found.add(endpointId + "=" + name);
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+            found.add("lost " + endpointId);
+        }
+
+        <T> T next(BlockingQueue<T> queue) throws InterruptedException {
+            T value = queue.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            assertNotNull("timed out", value);
+            return value;
+        }
+
+        /** Waits for the final update of {@code payloadId}, skipping those of other payloads. */
+        long[] finishedOf(long payloadId) throws InterruptedException {
+            while (true) {
+                long[] update = next(finished);
+                if (update[0] == payloadId) return update;
+            }
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+
+    /** Ids each side knows the other by once connected. */
+    private String senderId;
+    private String receiverId;
+
+    /** Connects {@code b} to {@code a}, which advertises as "sender". */
+    private void connect(Events sender, Events receiver) throws Exception {
+        await(a.startAdvertising("sender", sender));
+        await(b.startDiscovery(receiver));
+        String found = receiver.next(receiver.found);
+        assertTrue(found, found.endsWith("=sender"));
+        senderId = found.substring(0, found.length() - "=sender".length());
+        await(b.requestConnection("receiver", senderId, receiver));
+        assertEquals("connected " + senderId, receiver.next(receiver.connections));
+        String accepted = sender.next(sender.connections);
+        assertTrue(accepted, accepted.startsWith("connected "));
+        receiverId = accepted.substring("connected ".length());
+    }
+
+    private void loopback(LinkProfile link) {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        a = new LoopbackTransport(network, link, dir);
+        b = new LoopbackTransport(network, link, dir);
+    }
+
+    @Test
+    public void loopback_deliversEveryPayloadKind() throws Exception {
+        loopback(LinkProfile.UNLIMITED);
+        Events sender = new Events();
+        Events receiver = new Events();
+        connect(sender, receiver);
+
+        byte[] small = random(1000);
+        byte[] streamed = random(300_000);
+        byte[] filed = random(200_000);
+        File source = new File(dir, "source");
+        Files.write(source.toPath(), filed);
+
+        a.send(receiverId, a.bytes(small));
+        Transport.Payload stream = a.stream(new ByteArrayInputStream(streamed));
+        a.send(receiverId, stream);
+        Transport.Payload file = a.file(source);
+        a.send(receiverId, file);
+
+        assertArrayEquals(small, receiver.next(receiver.payloads).asBytes());
+        // Data payloads run side by side, so they may start in either order
+        Transport.Payload in = receiver.next(receiver.payloads);
+        Transport.Payload inFile = receiver.next(receiver.payloads);
+        if (in.getId() != stream.getId()) {
+            Transport.Payload t = in;
+            in = inFile;
+            inFile = t;
+        }
+        assertEquals(Transport.Payload.STREAM, in.getType());
+        assertEquals(stream.getId(), in.getId());
+        assertArrayEquals(streamed, in.asStream().readAllBytes());
+
+        assertEquals(file.getId(), inFile.getId());
+        assertEquals(Transport.Payload.FILE, inFile.getType());
+        assertEquals(Transport.STATUS_SUCCESS, receiver.finishedOf(inFile.getId())[1]);
+        try (FileChannel ch = inFile.openFile()) {
+            ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+            ParallelSegmentEngine.readFully(ch, buf, 0);
+            assertArrayEquals(filed, buf.array());
+        }
+        long[] sent = sender.finishedOf(file.getId());
+        assertEquals(Transport.STATUS_SUCCESS, sent[1]);
+        assertEquals(filed.length, sent[2]);
+
+        // Messages flow back too
+        b.send(senderId, b.bytes(new byte[]{42}));
+        assertArrayEquals(new byte[]{42}, sender.next(sender.payloads).asBytes());
+    }
+
+    @Test
+    public void loopback_resumableTransferEndToEnd() throws Exception {
+        loopback(new LinkProfile(0, 2));
+        resumableTransfer();
+    }
+
+    @Test
+    public void tcp_resumableTransferEndToEnd() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        a = new TcpTransport(port, List.of(), LinkProfile.UNLIMITED, dir);
+        b = new TcpTransport(0, List.of(new InetSocketAddress("127.0.0.1", port)), LinkProfile.UNLIMITED, dir);
+        resumableTransfer();
+    }
+
+    /**
+     * Runs the broadcast protocol: offer, resume with the segments already held, bind,
+     * then the missing segments as a stream, verified into the partial output.
+     */
+    private void resumableTransfer() throws Exception {
+        Events sender = new Events();
+        Events receiver = new Events();
+        connect(sender, receiver);
+
+        byte[] plain = random(40 * 1024 + 17);
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        StreamingAead.encrypt(key, new ByteArrayInputStream(plain), sealed, 1024);
+        File artifact = new File(dir, "artifact");
+        Files.write(artifact.toPath(), sealed.toByteArray());
+        byte[] hash = ContentHash.of(new ByteArrayInputStream(plain));
+        byte[] header = StreamHeader.parse(sealed.toByteArray()).toBytes();
+        ControlMessage.Offer offer = new ControlMessage.Offer(TransferCheckpoint.transferId(hash, header),
+                "file.bin", artifact.length(), hash, header);
+
+        // The receiver already holds some segments from an earlier attempt
+        TransferCheckpoint cp = TransferCheckpoint.fromOffer(offer);
+        File part = new File(dir, "part");
+        try (RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+            SegmentReceiver earlier = new SegmentReceiver(cp, new File(dir, "ckpt"), out.getChannel(), key.key);
+            BitSet skip = new BitSet();
+            skip.set(10, cp.segmentCount);
+            earlier.receive(new SegmentStream(artifact, skip));
+        }
+        assertEquals(10, cp.verifiedCount());
+
+        a.send(receiverId, a.bytes(offer.toBytes()));
+        ControlMessage.Offer got = (ControlMessage.Offer) ControlMessage.parse(receiver.next(receiver.payloads).asBytes());
+        assertEquals(offer.transferId, got.transferId);
+
+        b.send(senderId, b.bytes(new ControlMessage.Resume(got.transferId, cp.verified()).toBytes()));
+        ControlMessage.Resume resume = (ControlMessage.Resume) ControlMessage.parse(sender.next(sender.payloads).asBytes());
+
+        Transport.Payload data = a.stream(new SegmentStream(artifact, resume.verified));
+        a.send(receiverId, a.bytes(new ControlMessage.Bind(resume.transferId, data.getId()).toBytes()));
+        a.send(receiverId, data);
+
+        ControlMessage.Bind bind = (ControlMessage.Bind) ControlMessage.parse(receiver.next(receiver.payloads).asBytes());
+        Transport.Payload incoming = receiver.next(receiver.payloads);
+        assertEquals(bind.payloadId, incoming.getId());
+        try (RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+            new SegmentReceiver(cp, new File(dir, "ckpt"), out.getChannel(), key.key).receive(incoming.asStream());
+            out.setLength(cp.plaintextSize());
+        }
+        assertTrue(cp.isComplete());
+        assertArrayEquals(plain, Files.readAllBytes(part.toPath()));
+        assertEquals(Transport.STATUS_SUCCESS, sender.finishedOf(data.getId())[1]);
+    }
+
+    @Test
+    public void shapedLink_respectsBandwidthAndLatency() throws Exception {
+        loopback(new LinkProfile(2_000_000, 50));
+        Events sender = new Events();
+        Events receiver = new Events();
+        connect(sender, receiver);
+
+        long start = System.nanoTime();
+        b.send(senderId, b.bytes(new byte[]{1}));
+        sender.next(sender.payloads);
+        a.send(receiverId, a.bytes(new byte[]{2}));
+        receiver.next(receiver.payloads);
+        long roundTripMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("round trip " + roundTripMs + " ms", roundTripMs >= 100);
+
+        start = System.nanoTime();
+        a.send(receiverId, a.stream(new ByteArrayInputStream(new byte[1_000_000])));
+        assertEquals(1_000_000, receiver.next(receiver.payloads).asStream().readAllBytes().length);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("1 MB in " + elapsedMs + " ms", elapsedMs >= 500);
+    }
+
+    @Test
+    public void cancel_stopsStreamOnBothSides() throws Exception {
+        loopback(LinkProfile.UNLIMITED);
+        Events sender = new Events();
+        Events receiver = new Events();
+        connect(sender, receiver);
+
+        // A source that never ends
+        Transport.Payload endless = a.stream(new InputStream() {
+            @Override
+            public int read() {
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) {
+                return len;
+            }
+        });
+        a.send(receiverId, endless);
+        Transport.Payload in = receiver.next(receiver.payloads);
+        assertTrue(in.asStream().read(new byte[1000]) > 0);
+        b.cancel(in.getId());
+
+        assertEquals(Transport.STATUS_CANCELED, sender.finishedOf(endless.getId())[1]);
+        assertEquals(Transport.STATUS_CANCELED, receiver.finishedOf(in.getId())[1]);
+        assertThrows(IOException.class, () -> in.asStream().readAllBytes());
+    }
+
+    @Test
+    public void disconnect_failsIncomingStream() throws Exception {
+        loopback(new LinkProfile(1_000_000, 0));
+        Events sender = new Events();
+        Events receiver = new Events();
+        connect(sender, receiver);
+
+        a.send(receiverId, a.stream(new ByteArrayInputStream(new byte[10_000_000])));
+        Transport.Payload in = receiver.next(receiver.payloads);
+        a.disconnect(receiverId);
+
+        assertEquals("disconnected " + senderId, receiver.next(receiver.connections));
+        assertEquals(Transport.STATUS_FAILURE, receiver.finishedOf(in.getId())[1]);
+        assertThrows(IOException.class, () -> in.asStream().readAllBytes());
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.passcast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UpgradeGateTest {
+
+    private static final long MS = 1_000_000L;
+
+    private long now;
+    private final List<String> sent = new ArrayList<>();
+    private final UpgradeGate gate = new UpgradeGate(1000, 10_000, () -> now);
+
+    private Runnable send(String name) {
+        return () -> sent.add(name);
+    }
+
+    @Test
+    public void smallSendsGoNow_bulkWaitsForHighBandwidth() {
+        gate.connected("ep");
+        gate.submit("ep", 10, send("offer-sized"));
+        gate.submit("ep", 5000, send("big1"));
+        gate.submit("ep", 5000, send("big2"));
+        assertEquals(Collections.singletonList("offer-sized"), sent);
+        assertEquals(2, gate.heldCount("ep"));
+
+        gate.onBandwidthChanged("ep", Transport.QUALITY_LOW);
+        assertEquals(1, sent.size());
+
+        gate.onBandwidthChanged("ep", Transport.QUALITY_HIGH);
+        assertEquals(Arrays.asList("offer-sized", "big1", "big2"), sent);
+        assertEquals(Transport.QUALITY_HIGH, gate.quality("ep"));
+
+        // A later drop back to Bluetooth doesn't hold sends again
+        gate.onBandwidthChanged("ep", Transport.QUALITY_LOW);
+        gate.submit("ep", 5000, send("big3"));
+        assertEquals("big3", sent.get(3));
+    }
+
+    @Test
+    public void timeoutReleasesHeldSends_andIgnoresEarlyTimers() {
+        gate.connected("ep");
+        gate.submit("ep", 5000, send("big1"));
+        now = 5000 * MS;
+        assertEquals(5000, gate.expire("ep"));
+        assertTrue(sent.isEmpty());
+
+        now = 10_000 * MS;
+        gate.submit("ep", 5000, send("big2"));
+        // Past the deadline, a new send flushes what was held ahead of it
+        assertEquals(Arrays.asList("big1", "big2"), sent);
+
+        gate.disconnected("ep");
+        gate.connected("ep");
+        gate.submit("ep", 5000, send("big3"));
+        gate.disconnected("ep");
+        gate.onBandwidthChanged("ep", Transport.QUALITY_HIGH);
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void timerFiringJustShort_asksToBeCalledAgain() {
+        gate.connected("ep");
+        gate.submit("ep", 5000, send("big"));
+        now = 10_000 * MS - 1;
+        assertEquals(1, gate.expire("ep"));
+        assertTrue(sent.isEmpty());
+
+        now = 10_000 * MS;
+        assertEquals(0, gate.expire("ep"));
+        assertEquals(Collections.singletonList("big"), sent);
+    }
+}
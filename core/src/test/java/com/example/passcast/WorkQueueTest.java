@@ -0,0 +1,80 @@
+package com.example.passcast;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WorkQueueTest {
+
+    private final WorkQueue queue = new WorkQueue(1, "test-work");
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    private Runnable job(String name, CountDownLatch done) {
+        return () -> {
+            ran.add(name);
+            done.countDown();
+        };
+    }
+
+    @Test
+    public void runsByPriority_thenInArrivalOrder() throws InterruptedException {
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        queue.execute(WorkQueue.PRIORITY_NORMAL, () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException ignored) {}
+            done.countDown();
+        });
+        queue.execute(WorkQueue.PRIORITY_LOW, job("salvage", done));
+        queue.execute(WorkQueue.PRIORITY_NORMAL, job("decrypt1", done));
+        queue.execute(WorkQueue.PRIORITY_HIGH, job("stream", done));
+        queue.execute(WorkQueue.PRIORITY_NORMAL, job("decrypt2", done));
+        gate.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("stream", "decrypt1", "decrypt2", "salvage"), ran);
+    }
+
+    @Test
+    public void widerPool_runsQueuedJobsTogether_andReportsBusy() throws InterruptedException {
+        List<Boolean> busy = Collections.synchronizedList(new ArrayList<>());
+        queue.setListener(busy::add);
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = () -> {
+            bothRunning.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {}
+        };
+        queue.execute(WorkQueue.PRIORITY_NORMAL, blocking);
+        queue.execute(WorkQueue.PRIORITY_NORMAL, blocking);
+        assertFalse(bothRunning.await(200, TimeUnit.MILLISECONDS));
+
+        queue.setConcurrency(2);
+        queue.execute(WorkQueue.PRIORITY_NORMAL, () -> {});
+        assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+        assertEquals(3, queue.pendingCount());
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.pendingCount() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(0, queue.pendingCount());
+        Thread.sleep(50);
+        assertEquals(Arrays.asList(true, false), busy);
+    }
+}